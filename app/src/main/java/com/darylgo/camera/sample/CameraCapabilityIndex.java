@@ -0,0 +1,521 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 摄像头能力索引，按设备指纹持久化到一个小的二进制文件中。
+ * <p>
+ * 每个摄像头只在第一次开启时查询一次支持的尺寸和格式，之后冷启动和切换摄像头都直接读取索引。
+ * 支持的尺寸按照约分之后的宽高比分组，组内按面积从大到小排列，查找时允许一定的比例误差，
+ * 避免用浮点数严格相等比较宽高比导致什么都匹配不上。
+ */
+public class CameraCapabilityIndex {
+
+    private static final String TAG = "CameraCapabilityIndex";
+
+    private static final int FILE_MAGIC = 0x43414d31; // "CAM1"
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * 默认允许 1% 的宽高比误差，可以把 854x480 这类尺寸归到 16:9。
+     */
+    public static final float DEFAULT_ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    private final File mFile;
+    private final String mFingerprint;
+    private int mCameraCount = -1;
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    private boolean mDirty = false;
+
+    private CameraCapabilityIndex(@NonNull File file, @NonNull String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * 从文件加载索引，文件不存在、损坏或者设备指纹不一致时返回一个空索引。
+     */
+    @NonNull
+    public static CameraCapabilityIndex load(@NonNull File file, @NonNull String fingerprint) {
+        CameraCapabilityIndex index = new CameraCapabilityIndex(file, fingerprint);
+        if (!file.isFile()) {
+            return index;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignore incompatible capability index: " + file);
+                return index;
+            }
+            if (!fingerprint.equals(input.readUTF())) {
+                Log.d(TAG, "Device fingerprint changed, rebuild capability index.");
+                return index;
+            }
+            index.mCameraCount = input.readInt();
+            int entryCount = input.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = Entry.read(input);
+                index.mEntries.put(entry.mCameraId, entry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load capability index.", e);
+            index.mCameraCount = -1;
+            index.mEntries.clear();
+        } finally {
+            closeQuietly(input);
+        }
+        return index;
+    }
+
+    /**
+     * 如果索引有变化，写入临时文件之后重命名，避免留下写了一半的文件。
+     */
+    public synchronized void saveIfDirty() {
+        if (!mDirty) {
+            return;
+        }
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeUTF(mFingerprint);
+            output.writeInt(mCameraCount);
+            output.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                mEntries.valueAt(i).write(output);
+            }
+            output.close();
+            output = null;
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + mFile);
+            }
+            mDirty = false;
+            Log.d(TAG, "Capability index saved: " + mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save capability index.", e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    /**
+     * 摄像头个数，-1 代表还没有枚举过。
+     */
+    public synchronized int getCameraCount() {
+        return mCameraCount;
+    }
+
+    public synchronized void setCameraCount(int cameraCount) {
+        if (mCameraCount != cameraCount) {
+            mCameraCount = cameraCount;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * 记录摄像头的朝向和传感器方向。
+     */
+    public synchronized void putCameraInfo(int cameraId, @NonNull Camera.CameraInfo cameraInfo) {
+        Entry entry = obtainEntry(cameraId);
+        if (entry.mFacing != cameraInfo.facing || entry.mOrientation != cameraInfo.orientation) {
+            entry.mFacing = cameraInfo.facing;
+            entry.mOrientation = cameraInfo.orientation;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * 从索引读取摄像头信息。
+     *
+     * @return false 代表索引中没有这个摄像头
+     */
+    public synchronized boolean getCameraInfo(int cameraId, @NonNull Camera.CameraInfo cameraInfo) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mFacing < 0) {
+            return false;
+        }
+        cameraInfo.facing = entry.mFacing;
+        cameraInfo.orientation = entry.mOrientation;
+        return true;
+    }
+
+    /**
+     * 是否已经记录过这个摄像头支持的尺寸和格式。
+     */
+    public synchronized boolean hasParameters(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null && entry.mPreviewSizes != null;
+    }
+
+    /**
+     * 记录摄像头支持的尺寸、预览格式和帧率范围。
+     */
+    public synchronized void putParameters(int cameraId, @NonNull Camera.Parameters parameters) {
+        Entry entry = obtainEntry(cameraId);
+        entry.mPreviewSizes = SizeTable.from(parameters.getSupportedPreviewSizes());
+        entry.mPictureSizes = SizeTable.from(parameters.getSupportedPictureSizes());
+        List<Integer> previewFormats = parameters.getSupportedPreviewFormats();
+        entry.mPreviewFormats = new int[previewFormats != null ? previewFormats.size() : 0];
+        for (int i = 0; i < entry.mPreviewFormats.length; i++) {
+            entry.mPreviewFormats[i] = previewFormats.get(i);
+        }
+        List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        entry.mPreviewFpsRanges = new int[fpsRanges != null ? fpsRanges.size() * 2 : 0];
+        for (int i = 0; i < entry.mPreviewFpsRanges.length / 2; i++) {
+            int[] range = fpsRanges.get(i);
+            entry.mPreviewFpsRanges[i * 2] = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            entry.mPreviewFpsRanges[i * 2 + 1] = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        }
+        mDirty = true;
+    }
+
+    public synchronized boolean isPreviewFormatSupported(int cameraId, int format) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mPreviewFormats == null) {
+            return false;
+        }
+        for (int supportedFormat : entry.mPreviewFormats) {
+            if (supportedFormat == format) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 支持的预览帧率范围，按 [min0, max0, min1, max1, ...] 排列，单位是 fps * 1000。
+     */
+    @NonNull
+    public synchronized int[] getPreviewFpsRanges(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry == null || entry.mPreviewFpsRanges == null ? new int[0] : entry.mPreviewFpsRanges.clone();
+    }
+
+    /**
+     * 所有支持的预览尺寸，按面积从大到小排列。
+     */
+    @NonNull
+    public synchronized List<Size> getPreviewSizes(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry == null || entry.mPreviewSizes == null ? Collections.<Size>emptyList() : entry.mPreviewSizes.getSizesByArea();
+    }
+
+    /**
+     * 查找比例和指定尺寸一致，并且不超过指定尺寸的最大预览尺寸。
+     *
+     * @param shortSide 短边长度
+     * @param longSide  长边长度
+     */
+    @Nullable
+    public synchronized Size findPreviewSize(int cameraId, int shortSide, int longSide) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mPreviewSizes == null) {
+            return null;
+        }
+        return entry.mPreviewSizes.findBestFit(shortSide, longSide, true, DEFAULT_ASPECT_RATIO_TOLERANCE);
+    }
+
+    /**
+     * 查找比例和指定尺寸一致的最大照片尺寸。
+     *
+     * @param shortSide 短边长度
+     * @param longSide  长边长度
+     */
+    @Nullable
+    public synchronized Size findPictureSize(int cameraId, int shortSide, int longSide) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mPictureSizes == null) {
+            return null;
+        }
+        return entry.mPictureSizes.findBestFit(shortSide, longSide, false, DEFAULT_ASPECT_RATIO_TOLERANCE);
+    }
+
+    private Entry obtainEntry(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null) {
+            entry = new Entry(cameraId);
+            mEntries.put(cameraId, entry);
+            mDirty = true;
+        }
+        return entry;
+    }
+
+    private static void closeQuietly(@Nullable java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close stream.", e);
+            }
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * 一个摄像头的能力信息。
+     */
+    private static class Entry {
+        private final int mCameraId;
+        private int mFacing = -1;
+        private int mOrientation;
+        @Nullable
+        private SizeTable mPreviewSizes;
+        @Nullable
+        private SizeTable mPictureSizes;
+        @Nullable
+        private int[] mPreviewFormats;
+        @Nullable
+        private int[] mPreviewFpsRanges;
+
+        private Entry(int cameraId) {
+            mCameraId = cameraId;
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeInt(mCameraId);
+            output.writeInt(mFacing);
+            output.writeInt(mOrientation);
+            boolean hasParameters = mPreviewSizes != null;
+            output.writeBoolean(hasParameters);
+            if (hasParameters) {
+                mPreviewSizes.write(output);
+                mPictureSizes.write(output);
+                writeIntArray(output, mPreviewFormats);
+                writeIntArray(output, mPreviewFpsRanges);
+            }
+        }
+
+        private static Entry read(DataInputStream input) throws IOException {
+            Entry entry = new Entry(input.readInt());
+            entry.mFacing = input.readInt();
+            entry.mOrientation = input.readInt();
+            if (input.readBoolean()) {
+                entry.mPreviewSizes = SizeTable.read(input);
+                entry.mPictureSizes = SizeTable.read(input);
+                entry.mPreviewFormats = readIntArray(input);
+                entry.mPreviewFpsRanges = readIntArray(input);
+            }
+            return entry;
+        }
+
+        private static void writeIntArray(DataOutputStream output, int[] array) throws IOException {
+            output.writeInt(array.length);
+            for (int value : array) {
+                output.writeInt(value);
+            }
+        }
+
+        private static int[] readIntArray(DataInputStream input) throws IOException {
+            int length = input.readInt();
+            if (length < 0 || length > 4096) {
+                throw new IOException("Illegal array length: " + length);
+            }
+            int[] array = new int[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = input.readInt();
+            }
+            return array;
+        }
+    }
+
+    /**
+     * 按约分之后的宽高比分组的尺寸表，组按比例从小到大排列，组内按面积从大到小排列。包内可见，给单元测试使用。
+     */
+    static class SizeTable {
+
+        /**
+         * 每一组的约分比例，按 [width0, height0, width1, height1, ...] 排列。
+         */
+        private final int[] mRatios;
+
+        /**
+         * 每一组的尺寸，按 [width0, height0, width1, height1, ...] 排列。
+         */
+        private final int[][] mGroups;
+
+        private SizeTable(int[] ratios, int[][] groups) {
+            mRatios = ratios;
+            mGroups = groups;
+        }
+
+        private static SizeTable from(@Nullable List<Camera.Size> sizes) {
+            List<int[]> landscapeSizes = new ArrayList<>();
+            if (sizes != null) {
+                for (Camera.Size size : sizes) {
+                    if (size.width > 0 && size.height > 0) {
+                        landscapeSizes.add(new int[]{Math.max(size.width, size.height), Math.min(size.width, size.height)});
+                    }
+                }
+            }
+            return build(landscapeSizes);
+        }
+
+        static SizeTable build(List<int[]> sizes) {
+            // 先按比例，再按面积从大到小排序，这样相同比例的尺寸就连在一起了。
+            Collections.sort(sizes, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    int ratio = Long.compare((long) a[0] * b[1], (long) b[0] * a[1]);
+                    if (ratio != 0) {
+                        return ratio;
+                    }
+                    return Long.compare((long) b[0] * b[1], (long) a[0] * a[1]);
+                }
+            });
+            List<int[]> ratios = new ArrayList<>();
+            List<int[]> groups = new ArrayList<>();
+            int start = 0;
+            while (start < sizes.size()) {
+                int[] first = sizes.get(start);
+                int end = start + 1;
+                while (end < sizes.size()
+                        && (long) sizes.get(end)[0] * first[1] == (long) first[0] * sizes.get(end)[1]) {
+                    end++;
+                }
+                int divisor = gcd(first[0], first[1]);
+                ratios.add(new int[]{first[0] / divisor, first[1] / divisor});
+                int[] group = new int[(end - start) * 2];
+                for (int i = start; i < end; i++) {
+                    group[(i - start) * 2] = sizes.get(i)[0];
+                    group[(i - start) * 2 + 1] = sizes.get(i)[1];
+                }
+                groups.add(group);
+                start = end;
+            }
+            int[] ratioArray = new int[ratios.size() * 2];
+            for (int i = 0; i < ratios.size(); i++) {
+                ratioArray[i * 2] = ratios.get(i)[0];
+                ratioArray[i * 2 + 1] = ratios.get(i)[1];
+            }
+            return new SizeTable(ratioArray, groups.toArray(new int[groups.size()][]));
+        }
+
+        /**
+         * 查找最合适的尺寸。优先在比例误差范围内选择面积最大的尺寸，找不到的话退而求其次选择比例最接近的。
+         *
+         * @param bounded true 代表尺寸不能超过 shortSide x longSide
+         */
+        @Nullable
+        Size findBestFit(int shortSide, int longSide, boolean bounded, float tolerance) {
+            float targetRatio = (float) longSide / shortSide;
+            int bestWidth = 0;
+            int bestHeight = 0;
+            float bestDiff = Float.MAX_VALUE;
+            for (int i = 0; i < mGroups.length; i++) {
+                float ratio = (float) mRatios[i * 2] / mRatios[i * 2 + 1];
+                float diff = Math.abs(ratio - targetRatio) / targetRatio;
+                int[] group = mGroups[i];
+                for (int j = 0; j < group.length; j += 2) {
+                    int width = group[j];
+                    int height = group[j + 1];
+                    if (bounded && (width > longSide || height > shortSide)) {
+                        continue;
+                    }
+                    // 组内按面积从大到小排列，第一个满足条件的就是这一组最大的。
+                    boolean withinTolerance = diff <= tolerance;
+                    boolean bestWithinTolerance = bestDiff <= tolerance;
+                    boolean better;
+                    if (withinTolerance && bestWithinTolerance) {
+                        better = (long) width * height > (long) bestWidth * bestHeight;
+                    } else if (withinTolerance != bestWithinTolerance) {
+                        better = withinTolerance;
+                    } else if (Math.abs(diff - bestDiff) <= tolerance) {
+                        // 比例差不多接近的时候选面积大的，避免为了一点点比例差异选中很小的尺寸。
+                        better = (long) width * height > (long) bestWidth * bestHeight;
+                    } else {
+                        better = diff < bestDiff;
+                    }
+                    if (better) {
+                        bestWidth = width;
+                        bestHeight = height;
+                        bestDiff = diff;
+                    }
+                    break;
+                }
+            }
+            return bestWidth > 0 ? new Size(bestWidth, bestHeight) : null;
+        }
+
+        List<Size> getSizesByArea() {
+            List<Size> sizes = new ArrayList<>();
+            for (int[] group : mGroups) {
+                for (int j = 0; j < group.length; j += 2) {
+                    sizes.add(new Size(group[j], group[j + 1]));
+                }
+            }
+            Collections.sort(sizes, new Comparator<Size>() {
+                @Override
+                public int compare(Size a, Size b) {
+                    return Long.compare((long) b.getWidth() * b.getHeight(), (long) a.getWidth() * a.getHeight());
+                }
+            });
+            return sizes;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            int count = 0;
+            for (int[] group : mGroups) {
+                count += group.length / 2;
+            }
+            output.writeInt(count);
+            for (int[] group : mGroups) {
+                for (int value : group) {
+                    output.writeInt(value);
+                }
+            }
+        }
+
+        static SizeTable read(DataInputStream input) throws IOException {
+            int count = input.readInt();
+            if (count < 0 || count > 1024) {
+                throw new IOException("Illegal size count: " + count);
+            }
+            List<int[]> sizes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                sizes.add(new int[]{input.readInt(), input.readInt()});
+            }
+            return build(sizes);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("SizeTable{");
+            for (int i = 0; i < mGroups.length; i++) {
+                builder.append(mRatios[i * 2]).append(':').append(mRatios[i * 2 + 1])
+                        .append('=').append(Arrays.toString(mGroups[i])).append(' ');
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+}
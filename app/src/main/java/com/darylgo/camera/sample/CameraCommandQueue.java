@@ -0,0 +1,458 @@
+package com.darylgo.camera.sample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 运行在相机线程上的带优先级的命令队列。
+ * <p>
+ * 每个命令都有一个类型，类型决定优先级以及是否属于某个会话：优先级高的命令先执行，同一优先级按提交顺序执行；
+ * 调用 {@link #cancelSession()} 之后，之前提交的属于会话的命令都会被丢弃，不会在关闭的相机上执行。
+ * <p>
+ * 每种命令分别统计排队等待时间和执行时间的直方图，执行时间超过阈值的命令会打印警告，方便找到阻塞相机线程的操作。
+ *
+ * @param <T> 命令类型，通常是一个实现了 {@link CommandType} 的枚举
+ */
+public class CameraCommandQueue<T extends Enum<T> & CameraCommandQueue.CommandType> {
+
+    private static final String TAG = "CameraCommandQueue";
+
+    public static final long DEFAULT_SLOW_COMMAND_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * 执行下一个命令的消息，延时命令用 MSG_ENQUEUE_BASE + 类型序号，方便按类型移除。
+     */
+    private static final int MSG_EXECUTE_NEXT = 0;
+    private static final int MSG_ENQUEUE_BASE = 1;
+
+    /**
+     * 命令优先级，按声明顺序从高到低。
+     */
+    public enum Priority {
+        /**
+         * 关闭相机、回收 Buffer 这类必须尽快执行的命令。
+         */
+        URGENT,
+        /**
+         * 打开相机、配置参数、拍照。
+         */
+        NORMAL,
+        /**
+         * 统计、调节这类周期性的后台工作。
+         */
+        BACKGROUND
+    }
+
+    /**
+     * 命令类型的属性。
+     */
+    public interface CommandType {
+        @NonNull
+        Priority getPriority();
+
+        /**
+         * 属于会话的命令会被 {@link #cancelSession()} 取消。
+         */
+        boolean isSessionBound();
+    }
+
+    /**
+     * 在相机线程上执行命令。
+     */
+    public interface Executor<T> {
+        @WorkerThread
+        void execute(@NonNull T type, @Nullable Object obj, int arg);
+    }
+
+    /**
+     * 把消息投递到相机线程，相机线程收到消息之后调用 {@link #handleMessage(int, Object)}。
+     * 默认用 Handler 实现，单元测试可以换成手动驱动的实现。
+     */
+    interface Dispatcher {
+        boolean isCurrentThread();
+
+        void send(int what, @Nullable Object obj, long delayMillis);
+
+        void remove(int what);
+    }
+
+    private static class Command<T extends Enum<T>> implements Comparable<Command<T>> {
+        private final T mType;
+        private final int mPriority;
+        private final Object mObj;
+        private final int mArg;
+        private final long mSequence;
+        private final int mSession;
+        private long mEnqueueTimeNanos;
+
+        private Command(T type, int priority, Object obj, int arg, long sequence, int session) {
+            mType = type;
+            mPriority = priority;
+            mObj = obj;
+            mArg = arg;
+            mSequence = sequence;
+            mSession = session;
+        }
+
+        @Override
+        public int compareTo(@NonNull Command<T> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 一种命令的统计信息，直方图按 2 的幂次分桶，单位是微秒。
+     */
+    public static class Stats {
+        private static final int BUCKET_COUNT = 32;
+
+        private final String mName;
+        private final AtomicLong mExecutedCount = new AtomicLong();
+        private final AtomicLong mCancelledCount = new AtomicLong();
+        private final AtomicLong mSlowCount = new AtomicLong();
+        private final AtomicLong mMaxExecuteNanos = new AtomicLong();
+        private final AtomicLongArray mWaitHistogram = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLongArray mExecuteHistogram = new AtomicLongArray(BUCKET_COUNT);
+
+        private Stats(String name) {
+            mName = name;
+        }
+
+        private void record(long waitNanos, long executeNanos, boolean slow) {
+            mExecutedCount.incrementAndGet();
+            if (slow) {
+                mSlowCount.incrementAndGet();
+            }
+            if (executeNanos > mMaxExecuteNanos.get()) {
+                mMaxExecuteNanos.set(executeNanos);
+            }
+            mWaitHistogram.incrementAndGet(getBucket(waitNanos));
+            mExecuteHistogram.incrementAndGet(getBucket(executeNanos));
+        }
+
+        private static int getBucket(long nanos) {
+            long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+            return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        }
+
+        private static long getPercentileMicros(AtomicLongArray histogram, double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * percentile / 100);
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += histogram.get(i);
+                if (count >= target) {
+                    // 返回桶的上界。
+                    return (1L << (i + 1)) - 1;
+                }
+            }
+            return (1L << BUCKET_COUNT) - 1;
+        }
+
+        public long getExecutedCount() {
+            return mExecutedCount.get();
+        }
+
+        /**
+         * 因为会话取消而没有执行的命令数量。
+         */
+        public long getCancelledCount() {
+            return mCancelledCount.get();
+        }
+
+        /**
+         * 执行时间超过阈值的命令数量。
+         */
+        public long getSlowCount() {
+            return mSlowCount.get();
+        }
+
+        public long getMaxExecuteNanos() {
+            return mMaxExecuteNanos.get();
+        }
+
+        /**
+         * 排队等待时间的百分位数，精度是 2 的幂次。
+         */
+        public long getWaitPercentileMicros(double percentile) {
+            return getPercentileMicros(mWaitHistogram, percentile);
+        }
+
+        /**
+         * 执行时间的百分位数，精度是 2 的幂次。
+         */
+        public long getExecutePercentileMicros(double percentile) {
+            return getPercentileMicros(mExecuteHistogram, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{executed=" + mExecutedCount.get()
+                    + ", cancelled=" + mCancelledCount.get()
+                    + ", slow=" + mSlowCount.get()
+                    + ", waitP50Us<=" + getWaitPercentileMicros(50)
+                    + ", waitP99Us<=" + getWaitPercentileMicros(99)
+                    + ", execP50Us<=" + getExecutePercentileMicros(50)
+                    + ", execP99Us<=" + getExecutePercentileMicros(99)
+                    + ", execMaxUs=" + TimeUnit.NANOSECONDS.toMicros(mMaxExecuteNanos.get()) + "}";
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private final Executor<T> mExecutor;
+    private final T[] mTypes;
+    private final Stats[] mStats;
+    private final long mSlowCommandThresholdNanos;
+
+    private final Object mLock = new Object();
+    private final PriorityQueue<Command<T>> mPendingCommands = new PriorityQueue<>();
+    private long mNextSequence;
+    private volatile int mSession;
+
+    public CameraCommandQueue(@NonNull Looper looper, @NonNull Class<T> typeClass, @NonNull Executor<T> executor) {
+        this(looper, typeClass, executor, DEFAULT_SLOW_COMMAND_THRESHOLD_NANOS);
+    }
+
+    /**
+     * @param looper                    相机线程的 Looper
+     * @param slowCommandThresholdNanos 执行时间超过这个值的命令会被记录为慢命令
+     */
+    public CameraCommandQueue(@NonNull Looper looper, @NonNull Class<T> typeClass, @NonNull Executor<T> executor,
+                              long slowCommandThresholdNanos) {
+        this(looper, null, typeClass, executor, slowCommandThresholdNanos);
+    }
+
+    /**
+     * 使用指定的 Dispatcher，给单元测试使用。
+     */
+    CameraCommandQueue(@NonNull Dispatcher dispatcher, @NonNull Class<T> typeClass, @NonNull Executor<T> executor,
+                       long slowCommandThresholdNanos) {
+        this(null, dispatcher, typeClass, executor, slowCommandThresholdNanos);
+    }
+
+    private CameraCommandQueue(@Nullable Looper looper, @Nullable Dispatcher dispatcher, @NonNull Class<T> typeClass,
+                               @NonNull Executor<T> executor, long slowCommandThresholdNanos) {
+        mDispatcher = dispatcher != null ? dispatcher : new HandlerDispatcher(looper);
+        mExecutor = executor;
+        mTypes = typeClass.getEnumConstants();
+        mStats = new Stats[mTypes.length];
+        for (int i = 0; i < mTypes.length; i++) {
+            mStats[i] = new Stats(mTypes[i].name());
+        }
+        mSlowCommandThresholdNanos = slowCommandThresholdNanos;
+    }
+
+    /**
+     * 当前是否运行在相机线程上。
+     */
+    public boolean isCurrentThread() {
+        return mDispatcher.isCurrentThread();
+    }
+
+    public void post(@NonNull T type) {
+        post(type, null, 0);
+    }
+
+    /**
+     * 提交一个命令，可以在任意线程调用。
+     */
+    public void post(@NonNull T type, @Nullable Object obj, int arg) {
+        enqueue(newCommand(type, obj, arg));
+    }
+
+    /**
+     * 延时提交一个命令，延时结束之后再按优先级排队，等待期间会话被取消的话就不会再提交。
+     */
+    public void postDelayed(@NonNull T type, long delayMillis) {
+        Command<T> command = newCommand(type, null, 0);
+        mDispatcher.send(MSG_ENQUEUE_BASE + type.ordinal(), command, delayMillis);
+    }
+
+    /**
+     * 移除所有还没执行的指定类型的命令，包括还在延时的命令。
+     */
+    public void remove(@NonNull T type) {
+        mDispatcher.remove(MSG_ENQUEUE_BASE + type.ordinal());
+        synchronized (mLock) {
+            Iterator<Command<T>> iterator = mPendingCommands.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mType == type) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 结束当前会话，之前提交的属于会话的命令都不会再执行，之后提交的命令属于新的会话。
+     *
+     * @return 被取消的命令数量，不包括还在延时的命令
+     */
+    public int cancelSession() {
+        int cancelledCount = 0;
+        synchronized (mLock) {
+            mSession++;
+            Iterator<Command<T>> iterator = mPendingCommands.iterator();
+            while (iterator.hasNext()) {
+                Command<T> command = iterator.next();
+                if (command.mType.isSessionBound()) {
+                    iterator.remove();
+                    mStats[command.mType.ordinal()].mCancelledCount.incrementAndGet();
+                    cancelledCount++;
+                }
+            }
+        }
+        for (T type : mTypes) {
+            if (type.isSessionBound()) {
+                mDispatcher.remove(MSG_ENQUEUE_BASE + type.ordinal());
+            }
+        }
+        if (cancelledCount > 0) {
+            Log.d(TAG, "Cancelled " + cancelledCount + " stale commands.");
+        }
+        return cancelledCount;
+    }
+
+    private Command<T> newCommand(T type, Object obj, int arg) {
+        synchronized (mLock) {
+            return new Command<>(type, type.getPriority().ordinal(), obj, arg, mNextSequence++, mSession);
+        }
+    }
+
+    private void enqueue(Command<T> command) {
+        command.mEnqueueTimeNanos = System.nanoTime();
+        synchronized (mLock) {
+            mPendingCommands.add(command);
+        }
+        mDispatcher.send(MSG_EXECUTE_NEXT, null, 0);
+    }
+
+    @WorkerThread
+    private void executeNext() {
+        Command<T> command;
+        synchronized (mLock) {
+            command = mPendingCommands.poll();
+        }
+        if (command == null) {
+            // 命令已经被移除了。
+            return;
+        }
+        Stats stats = mStats[command.mType.ordinal()];
+        if (command.mType.isSessionBound() && command.mSession != mSession) {
+            stats.mCancelledCount.incrementAndGet();
+            return;
+        }
+        long startNanos = System.nanoTime();
+        mExecutor.execute(command.mType, command.mObj, command.mArg);
+        long executeNanos = System.nanoTime() - startNanos;
+        long waitNanos = startNanos - command.mEnqueueTimeNanos;
+        boolean slow = executeNanos > mSlowCommandThresholdNanos;
+        stats.record(waitNanos, executeNanos, slow);
+        if (slow) {
+            Log.w(TAG, "Slow command " + command.mType + ": execute " + TimeUnit.NANOSECONDS.toMillis(executeNanos)
+                    + "ms, waited " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms");
+        }
+    }
+
+    /**
+     * 获取指定类型命令的统计信息。
+     */
+    @NonNull
+    public Stats getStats(@NonNull T type) {
+        return mStats[type.ordinal()];
+    }
+
+    /**
+     * 待执行的命令数量，不包括还在延时的命令。
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingCommands.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CameraCommandQueue{pending=").append(getPendingCount()).append(", stats=[");
+        boolean first = true;
+        for (Stats stats : mStats) {
+            if (stats.getExecutedCount() == 0 && stats.getCancelledCount() == 0) {
+                continue;
+            }
+            if (!first) {
+                builder.append(", ");
+            }
+            builder.append(stats);
+            first = false;
+        }
+        return builder.append("]}").toString();
+    }
+
+    /**
+     * 处理 {@link Dispatcher} 投递的消息，运行在相机线程上。
+     */
+    @WorkerThread
+    @SuppressWarnings("unchecked")
+    void handleMessage(int what, @Nullable Object obj) {
+        if (what == MSG_EXECUTE_NEXT) {
+            executeNext();
+        } else {
+            Command<T> command = (Command<T>) obj;
+            if (command.mType.isSessionBound() && command.mSession != mSession) {
+                mStats[command.mType.ordinal()].mCancelledCount.incrementAndGet();
+            } else {
+                enqueue(command);
+            }
+        }
+    }
+
+    private class HandlerDispatcher implements Dispatcher, Handler.Callback {
+        private final Handler mHandler;
+
+        private HandlerDispatcher(@NonNull Looper looper) {
+            mHandler = new Handler(looper, this);
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return mHandler.getLooper() == Looper.myLooper();
+        }
+
+        @Override
+        public void send(int what, @Nullable Object obj, long delayMillis) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(what, obj), delayMillis);
+        }
+
+        @Override
+        public void remove(int what) {
+            mHandler.removeMessages(what);
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            CameraCommandQueue.this.handleMessage(msg.what, msg.obj);
+            return true;
+        }
+    }
+
+}
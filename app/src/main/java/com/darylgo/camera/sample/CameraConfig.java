@@ -0,0 +1,71 @@
+package com.darylgo.camera.sample;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.view.SurfaceHolder;
+
+/**
+ * 相机线程要达到的目标状态，包括摄像头 ID、预览 Surface 和它的尺寸。
+ * <p>
+ * 相机线程只会应用最新的一个目标状态，并且只执行和当前状态不同的步骤。
+ */
+public class CameraConfig {
+
+    /**
+     * 不指定摄像头 ID，由相机线程在枚举完摄像头之后选择默认的摄像头。
+     */
+    public static final int DEFAULT_CAMERA_ID = -1;
+
+    private final int mCameraId;
+    @Nullable
+    private final SurfaceHolder mPreviewSurface;
+    private final int mPreviewSurfaceWidth;
+    private final int mPreviewSurfaceHeight;
+    private final long mRequestTimeNanos;
+
+    /**
+     * @param cameraId             要开启的摄像头 ID，或者 {@link #DEFAULT_CAMERA_ID}
+     * @param previewSurface       预览 Surface，为 null 时只开启相机，不开启预览
+     * @param previewSurfaceWidth  预览 Surface 的宽度，也就是短边长度
+     * @param previewSurfaceHeight 预览 Surface 的高度，也就是长边长度
+     */
+    public CameraConfig(int cameraId, @Nullable SurfaceHolder previewSurface, int previewSurfaceWidth, int previewSurfaceHeight) {
+        mCameraId = cameraId;
+        mPreviewSurface = previewSurface;
+        mPreviewSurfaceWidth = previewSurfaceWidth;
+        mPreviewSurfaceHeight = previewSurfaceHeight;
+        mRequestTimeNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    @Nullable
+    public SurfaceHolder getPreviewSurface() {
+        return mPreviewSurface;
+    }
+
+    public int getPreviewSurfaceWidth() {
+        return mPreviewSurfaceWidth;
+    }
+
+    public int getPreviewSurfaceHeight() {
+        return mPreviewSurfaceHeight;
+    }
+
+    /**
+     * 发起这次配置的时间，基于 {@link SystemClock#elapsedRealtimeNanos()}。
+     */
+    public long getRequestTimeNanos() {
+        return mRequestTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "CameraConfig{cameraId=" + mCameraId
+                + ", previewSurface=" + mPreviewSurface
+                + ", size=" + mPreviewSurfaceWidth + "x" + mPreviewSurfaceHeight + "}";
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * 基于 {@link Camera} 的帧来源，所有方法都要在开启相机的线程上调用，回调也运行在这个线程上。
+ */
+public class CameraFrameSource implements FrameSource {
+
+    private final Camera mCamera;
+
+    public CameraFrameSource(@NonNull Camera camera) {
+        mCamera = camera;
+    }
+
+    @NonNull
+    public Camera getCamera() {
+        return mCamera;
+    }
+
+    @Override
+    public void setFrameCallback(@Nullable final FrameCallback callback) {
+        if (callback == null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } else {
+            mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] data, Camera camera) {
+                    callback.onFrame(data, CameraFrameSource.this);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void addCallbackBuffer(@NonNull byte[] buffer) {
+        mCamera.addCallbackBuffer(buffer);
+    }
+
+    @Override
+    public void startPreview() {
+        mCamera.startPreview();
+    }
+
+    @Override
+    public void stopPreview() {
+        mCamera.stopPreview();
+    }
+
+    @Override
+    public void takePicture(@NonNull final PictureCallback callback) {
+        mCamera.takePicture(new Camera.ShutterCallback() {
+            @Override
+            public void onShutter() {
+                callback.onShutter();
+            }
+        }, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                callback.onPictureTaken(data, CameraFrameSource.this);
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        mCamera.release();
+    }
+
+}
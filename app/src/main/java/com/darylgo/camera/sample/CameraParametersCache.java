@@ -0,0 +1,342 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+/**
+ * 每个打开的 Camera 对应一份参数缓存。
+ * <p>
+ * {@link Camera#getParameters()} 和 {@link Camera#setParameters(Camera.Parameters)} 每次都要跨进程
+ * 并且完整地序列化、解析一遍参数字符串。这里在开启相机之后只读取一次参数，之后的修改都放在
+ * {@link Transaction} 里面，提交时只有参数真的发生了变化才会调用一次 setParameters。
+ * <p>
+ * 没有提交的修改可以通过 {@link Transaction#abort()} 放弃，修改过程中抛出异常时要在 finally 里调用，
+ * 否则之后的 {@link #edit()} 都会失败。
+ * <p>
+ * 所有方法都只能在相机线程调用。
+ */
+@WorkerThread
+public class CameraParametersCache {
+
+    private static final String TAG = "CameraParametersCache";
+    static final String KEY_PREVIEW_SIZE = "preview-size";
+    static final String KEY_PICTURE_SIZE = "picture-size";
+    static final String KEY_PREVIEW_FPS_RANGE = "preview-fps-range";
+    static final String KEY_ROTATION = "rotation";
+
+    /**
+     * 缓存读写参数的方式，默认通过 {@link Camera} 实现，单元测试可以换成内存中的实现。
+     * 读取使用 {@link Camera.Parameters#get(String)} 的字符串格式，比如尺寸是 "宽x高"，帧率范围是 "下限,上限"。
+     */
+    interface Store {
+        /**
+         * 缓存的参数对象。
+         */
+        Camera.Parameters getParameters();
+
+        /**
+         * 调用一次 getParameters，替换缓存的参数。
+         */
+        void reload();
+
+        /**
+         * 调用一次 setParameters，Camera 拒绝时抛出 RuntimeException。
+         */
+        void apply();
+
+        @Nullable
+        String get(@NonNull String key);
+
+        void set(@NonNull String key, @NonNull String value);
+
+        int getPreviewFormat();
+
+        void setPreviewFormat(int format);
+
+        void setPreviewSize(int width, int height);
+
+        void setPictureSize(int width, int height);
+
+        void setPreviewFpsRange(int min, int max);
+
+        void setRotation(int rotation);
+    }
+
+    private final Store mStore;
+    private final Transaction mTransaction = new Transaction();
+
+    private long mReadCount;
+    private long mCommitCount;
+    private long mAppliedCommitCount;
+    private long mGetParametersCount;
+    private long mSetParametersCount;
+
+    public CameraParametersCache(@NonNull Camera camera) {
+        this(new CameraStore(camera));
+    }
+
+    /**
+     * 使用指定的 Store，给单元测试使用。Store 在创建时已经读取过一次参数。
+     */
+    CameraParametersCache(@NonNull Store store) {
+        mStore = store;
+        mGetParametersCount++;
+    }
+
+    /**
+     * 获取缓存的参数，只能用来读取，修改请使用 {@link #edit()}。
+     */
+    @NonNull
+    public Camera.Parameters get() {
+        mReadCount++;
+        return mStore.getParameters();
+    }
+
+    /**
+     * 开始一次修改，上一次修改必须已经提交或者放弃。
+     */
+    @NonNull
+    public Transaction edit() {
+        if (mTransaction.mOpen) {
+            throw new IllegalStateException("Previous transaction has not been committed or aborted.");
+        }
+        mTransaction.mOpen = true;
+        mTransaction.mChanged = false;
+        return mTransaction;
+    }
+
+    /**
+     * 从 Camera 重新读取参数，在 setParameters 失败之后保证缓存和 Camera 一致。
+     */
+    public void reload() {
+        mStore.reload();
+        mGetParametersCount++;
+    }
+
+    /**
+     * 从缓存读取参数的次数，每一次都省掉了一次 getParameters。
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    public long getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * 真正调用了 setParameters 的次数。
+     */
+    public long getAppliedCommitCount() {
+        return mAppliedCommitCount;
+    }
+
+    /**
+     * 实际调用 getParameters 的次数，包括开启时的第一次和 {@link #reload()}。
+     */
+    public long getGetParametersCount() {
+        return mGetParametersCount;
+    }
+
+    /**
+     * 实际调用 setParameters 的次数，包括被 Camera 拒绝的调用。
+     */
+    public long getSetParametersCount() {
+        return mSetParametersCount;
+    }
+
+    /**
+     * 和不使用缓存相比省掉的跨进程调用次数。
+     * <p>
+     * 不使用缓存时每次读取都要 getParameters，每次修改都要 getParameters 和 setParameters，
+     * 减去实际发生的 getParameters 和 setParameters 调用就是省掉的次数。
+     */
+    public long getSavedRoundTrips() {
+        long savedGets = mReadCount + mCommitCount - mGetParametersCount;
+        long savedSets = mCommitCount - mSetParametersCount;
+        return Math.max(0, savedGets) + savedSets;
+    }
+
+    @Override
+    public String toString() {
+        return "CameraParametersCache{reads=" + mReadCount
+                + ", commits=" + mCommitCount
+                + ", applied=" + mAppliedCommitCount
+                + ", getParameters=" + mGetParametersCount
+                + ", setParameters=" + mSetParametersCount
+                + ", savedRoundTrips=" + getSavedRoundTrips() + "}";
+    }
+
+    /**
+     * 一次参数修改，只有和当前值不同的修改才会被记录。
+     */
+    public class Transaction {
+
+        private boolean mOpen;
+        private boolean mChanged;
+
+        private Transaction() {
+        }
+
+        public Transaction setPreviewSize(int width, int height) {
+            if (!(width + "x" + height).equals(mStore.get(KEY_PREVIEW_SIZE))) {
+                mStore.setPreviewSize(width, height);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        public Transaction setPictureSize(int width, int height) {
+            if (!(width + "x" + height).equals(mStore.get(KEY_PICTURE_SIZE))) {
+                mStore.setPictureSize(width, height);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        public Transaction setPreviewFormat(int format) {
+            if (mStore.getPreviewFormat() != format) {
+                mStore.setPreviewFormat(format);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        public Transaction setPreviewFpsRange(int min, int max) {
+            if (!(min + "," + max).equals(mStore.get(KEY_PREVIEW_FPS_RANGE))) {
+                mStore.setPreviewFpsRange(min, max);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        public Transaction setRotation(int rotation) {
+            if (!String.valueOf(rotation).equals(mStore.get(KEY_ROTATION))) {
+                mStore.setRotation(rotation);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        public Transaction set(@NonNull String key, @NonNull String value) {
+            if (!value.equals(mStore.get(key))) {
+                mStore.set(key, value);
+                mChanged = true;
+            }
+            return this;
+        }
+
+        /**
+         * 提交修改，没有变化的话不会调用 setParameters。
+         *
+         * @return false 代表 Camera 拒绝了这次修改，缓存已经重新和 Camera 同步
+         */
+        public boolean commit() {
+            if (!mOpen) {
+                throw new IllegalStateException("Transaction has already been committed.");
+            }
+            mOpen = false;
+            mCommitCount++;
+            if (!mChanged) {
+                return true;
+            }
+            try {
+                mSetParametersCount++;
+                mStore.apply();
+                mAppliedCommitCount++;
+                return true;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to set parameters.", e);
+                reload();
+                return false;
+            }
+        }
+
+        /**
+         * 放弃还没提交的修改，已经修改的缓存会重新和 Camera 同步。已经提交的话什么都不做，可以放在 finally 里调用。
+         */
+        public void abort() {
+            if (!mOpen) {
+                return;
+            }
+            mOpen = false;
+            if (mChanged) {
+                reload();
+            }
+        }
+    }
+
+    /**
+     * 直接读写 {@link Camera} 的 Store。
+     */
+    private static class CameraStore implements Store {
+
+        private final Camera mCamera;
+        private Camera.Parameters mParameters;
+
+        private CameraStore(Camera camera) {
+            mCamera = camera;
+            mParameters = camera.getParameters();
+        }
+
+        @Override
+        public Camera.Parameters getParameters() {
+            return mParameters;
+        }
+
+        @Override
+        public void reload() {
+            mParameters = mCamera.getParameters();
+        }
+
+        @Override
+        public void apply() {
+            mCamera.setParameters(mParameters);
+        }
+
+        @Nullable
+        @Override
+        public String get(@NonNull String key) {
+            return mParameters.get(key);
+        }
+
+        @Override
+        public void set(@NonNull String key, @NonNull String value) {
+            mParameters.set(key, value);
+        }
+
+        @Override
+        public int getPreviewFormat() {
+            return mParameters.getPreviewFormat();
+        }
+
+        @Override
+        public void setPreviewFormat(int format) {
+            mParameters.setPreviewFormat(format);
+        }
+
+        @Override
+        public void setPreviewSize(int width, int height) {
+            mParameters.setPreviewSize(width, height);
+        }
+
+        @Override
+        public void setPictureSize(int width, int height) {
+            mParameters.setPictureSize(width, height);
+        }
+
+        @Override
+        public void setPreviewFpsRange(int min, int max) {
+            mParameters.setPreviewFpsRange(min, max);
+        }
+
+        @Override
+        public void setRotation(int rotation) {
+            mParameters.setRotation(rotation);
+        }
+    }
+
+}
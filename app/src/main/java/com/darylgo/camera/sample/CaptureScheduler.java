@@ -0,0 +1,179 @@
+package com.darylgo.camera.sample;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 运行在相机线程上的拍照调度器。
+ * <p>
+ * Camera1 同一时刻只能进行一次 takePicture，并且拍完之后预览会停止。调度器负责排队单拍和连拍请求，
+ * 在收到 JPEG 回调（最早可以重新开启预览的时机）后立即恢复预览并发起下一次拍照，
+ * 同时把短时间内重复的点击合并成一次请求，并统计连拍的拍照间隔和持续拍照速度。
+ */
+@WorkerThread
+public class CaptureScheduler {
+
+    private static final String TAG = "CaptureScheduler";
+
+    /**
+     * 从一组请求的第一次开始，在这个时间窗口内重复的拍照请求会被合并。窗口不会因为被合并的请求而延长，
+     * 间隔稍长的连续点击仍然会各自拍照。
+     */
+    private static final long COALESCE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    /**
+     * 调度器通过这个接口操作相机。
+     */
+    public interface CameraController {
+        /**
+         * 发起一次拍照。
+         *
+         * @return false 代表当前无法拍照
+         */
+        boolean takePicture();
+
+        /**
+         * 拍照结束后恢复预览。
+         */
+        void restartPreview();
+    }
+
+    private final CameraController mCameraController;
+
+    private int mPendingShots = 0;
+    private boolean mCapturing = false;
+    // 当前这组合并请求中第一个请求的时间。
+    private long mCoalesceWindowStartNanos = 0;
+
+    // 当前连拍的统计信息。
+    private int mBurstShots = 0;
+    private long mBurstStartNanos = 0;
+    private long mLastShotNanos = 0;
+
+    private long mLastShotToShotNanos = 0;
+    private float mSustainedShotsPerSecond = 0;
+    private long mCompletedShots = 0;
+    private long mCoalescedRequests = 0;
+
+    public CaptureScheduler(@NonNull CameraController cameraController) {
+        mCameraController = cameraController;
+    }
+
+    /**
+     * 请求拍摄 shotCount 张照片，1 代表单拍。
+     */
+    public void requestCapture(int shotCount) {
+        requestCapture(shotCount, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * 使用指定的时间请求拍照，包内可见，给单元测试使用。
+     */
+    void requestCapture(int shotCount, long now) {
+        if (shotCount <= 0) {
+            throw new IllegalArgumentException("Illegal shot count: " + shotCount);
+        }
+        boolean duplicate = (mCapturing || mPendingShots > 0) && now - mCoalesceWindowStartNanos < COALESCE_WINDOW_NANOS;
+        if (duplicate) {
+            // 重复的点击，只保证至少还有这么多张要拍。
+            mCoalescedRequests++;
+            mPendingShots = Math.max(mPendingShots, shotCount - (mCapturing ? 1 : 0));
+            Log.d(TAG, "Coalesced capture request, pending shots: " + mPendingShots);
+            return;
+        }
+        mCoalesceWindowStartNanos = now;
+        mPendingShots += shotCount;
+        if (!mCapturing) {
+            mBurstShots = 0;
+            mBurstStartNanos = now;
+            mLastShotNanos = 0;
+            captureNext();
+        }
+    }
+
+    /**
+     * 收到 JPEG 回调之后调用，恢复预览并继续拍下一张。
+     */
+    public void onCaptureCompleted() {
+        onCaptureCompleted(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * 使用指定的时间处理拍照完成，包内可见，给单元测试使用。
+     */
+    void onCaptureCompleted(long now) {
+        if (!mCapturing) {
+            return;
+        }
+        mCapturing = false;
+        mCompletedShots++;
+        mBurstShots++;
+        if (mLastShotNanos != 0) {
+            mLastShotToShotNanos = now - mLastShotNanos;
+        }
+        mLastShotNanos = now;
+        long burstDurationNanos = now - mBurstStartNanos;
+        if (burstDurationNanos > 0) {
+            mSustainedShotsPerSecond = mBurstShots * (float) TimeUnit.SECONDS.toNanos(1) / burstDurationNanos;
+        }
+
+        mCameraController.restartPreview();
+        if (mPendingShots > 0) {
+            captureNext();
+        } else {
+            Log.d(TAG, "Capture finished: " + this);
+        }
+    }
+
+    /**
+     * 相机关闭时丢弃所有未完成的请求。
+     */
+    public void reset() {
+        mPendingShots = 0;
+        mCapturing = false;
+    }
+
+    private void captureNext() {
+        mPendingShots--;
+        mCapturing = mCameraController.takePicture();
+        if (!mCapturing) {
+            Log.w(TAG, "Failed to take picture, drop pending shots: " + mPendingShots);
+            mPendingShots = 0;
+        }
+    }
+
+    /**
+     * 最近两张照片之间的间隔。
+     */
+    public long getLastShotToShotNanos() {
+        return mLastShotToShotNanos;
+    }
+
+    /**
+     * 最近一次连拍的持续拍照速度。
+     */
+    public float getSustainedShotsPerSecond() {
+        return mSustainedShotsPerSecond;
+    }
+
+    public long getCompletedShots() {
+        return mCompletedShots;
+    }
+
+    public long getCoalescedRequests() {
+        return mCoalescedRequests;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureScheduler{completed=" + mCompletedShots
+                + ", coalesced=" + mCoalescedRequests
+                + ", lastShotToShotMs=" + TimeUnit.NANOSECONDS.toMillis(mLastShotToShotNanos)
+                + ", sustainedShotsPerSecond=" + mSustainedShotsPerSecond + "}";
+    }
+
+}
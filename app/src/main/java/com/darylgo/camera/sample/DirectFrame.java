@@ -0,0 +1,146 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 保存在页对齐的直接内存中的一帧 NV21 预览数据，由 {@link DirectFramePool} 分配和回收。
+ * <p>
+ * Native 库可以通过 GetDirectBufferAddress 直接访问 {@link #getBuffer()}，NIO 通道也可以直接写出，都不需要再复制。
+ * Y 和 VU 平面的视图只在尺寸变化时重新创建，每次获取时返回它们的 duplicate，position 和 limit 互不影响，
+ * 多个使用者和多个线程可以同时读取，数据本身不会复制。使用引用计数管理，最后一个引用释放之后回到缓存池，之后就不能再访问了。
+ */
+public class DirectFrame {
+
+    private final DirectFramePool mPool;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    private ByteBuffer mFrameView;
+    private ByteBuffer mYPlane;
+    private ByteBuffer mVuPlane;
+    private int mWidth;
+    private int mHeight;
+    private int mStride;
+    private long mTimestampNanos;
+    private int mRotation;
+
+    DirectFrame(@NonNull DirectFramePool pool, @NonNull ByteBuffer buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    /**
+     * 复制一帧数据并更新元数据，只在发布帧的线程调用。
+     */
+    void set(byte[] data, int width, int height, long timestampNanos, int rotation) {
+        int ySize = width * height;
+        int frameSize = ySize * 3 / 2;
+        if (width != mWidth || height != mHeight) {
+            mFrameView = slice(mBuffer, 0, frameSize);
+            mYPlane = slice(mBuffer, 0, ySize);
+            mVuPlane = slice(mBuffer, ySize, frameSize - ySize);
+            mWidth = width;
+            mHeight = height;
+            // Camera1 的 NV21 预览帧没有行填充。
+            mStride = width;
+        }
+        mBuffer.clear();
+        mBuffer.put(data, 0, frameSize);
+        mTimestampNanos = timestampNanos;
+        mRotation = rotation;
+        mRefCount.set(1);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length).position(offset);
+        return duplicate.slice();
+    }
+
+    /**
+     * 完整的一帧 NV21 数据，position 为 0，limit 为帧大小。每次调用返回新的视图，可以随意修改 position 和 limit。
+     */
+    @NonNull
+    public ByteBuffer getBuffer() {
+        return mFrameView.duplicate();
+    }
+
+    /**
+     * Y 平面，宽 x 高个字节，每行 {@link #getStride()} 个字节。
+     */
+    @NonNull
+    public ByteBuffer getYPlane() {
+        return mYPlane.duplicate();
+    }
+
+    /**
+     * 交错的 VU 平面，宽 x 高 / 2 个字节，每行 {@link #getStride()} 个字节。
+     */
+    @NonNull
+    public ByteBuffer getVuPlane() {
+        return mVuPlane.duplicate();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * 画面需要顺时针旋转多少度才能正常显示。
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * 增加一个引用，交给其他线程继续使用之前调用。
+     */
+    @NonNull
+    public DirectFrame retain() {
+        while (true) {
+            int refCount = mRefCount.get();
+            if (refCount <= 0) {
+                throw new IllegalStateException("Frame has already been released.");
+            }
+            if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放时回到缓存池。
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mPool.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("Frame has been released too many times.");
+        }
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把预览帧复制一次到页对齐的直接内存中，分发给需要 {@link ByteBuffer} 的使用者，比如 Native 库和网络推流。
+ * <p>
+ * 作为 {@link FrameHub} 的订阅者接收预览帧，复制完成之后立刻释放预览帧，Camera 的 Buffer 不会被使用者占用。
+ * {@link DirectFrame} 预先分配并循环使用，全部被占用时新的帧会被丢弃，不会额外分配。
+ * 直接内存按页大小分配，在运行时允许读取地址时起始地址也按页对齐，否则只保证大小是页的整数倍。
+ */
+public class DirectFramePool implements FrameHub.Subscriber {
+
+    private static final String TAG = "DirectFramePool";
+
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * 直接内存中预览帧的使用者。
+     */
+    public interface Consumer {
+        /**
+         * 在发布帧的线程回调，需要在其他线程继续使用时先调用 {@link DirectFrame#retain()}，用完之后调用 {@link DirectFrame#release()}。
+         * 这个回调返回之后，分发时持有的引用会被释放。
+         */
+        @WorkerThread
+        void onDirectFrame(@NonNull DirectFrame frame);
+    }
+
+    private static final Field sAddressField = findAddressField();
+
+    private final int mCapacity;
+    private final BlockingQueue<DirectFrame> mFreeFrames;
+    private final List<Consumer> mConsumers = new CopyOnWriteArrayList<>();
+    private volatile int mRotation;
+
+    // 只在发布帧的线程修改。
+    private int mAllocatedCount;
+
+    private volatile long mMirroredCount;
+    private volatile long mDroppedCount;
+    private volatile long mAllocatedBytes;
+    private volatile long mLastCopyNanos;
+
+    /**
+     * @param capacity 最多同时存在的帧数量
+     */
+    public DirectFramePool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        mCapacity = capacity;
+        mFreeFrames = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public void addConsumer(@NonNull Consumer consumer) {
+        mConsumers.add(consumer);
+    }
+
+    public void removeConsumer(@NonNull Consumer consumer) {
+        mConsumers.remove(consumer);
+    }
+
+    /**
+     * 设置之后帧的旋转角度，开启摄像头时根据 CameraInfo 更新。
+     */
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    @WorkerThread
+    @Override
+    public void onFrame(@NonNull FrameHandle frame) {
+        DirectFrame directFrame = null;
+        try {
+            if (mConsumers.isEmpty() || frame.getFormat() != ImageFormat.NV21) {
+                return;
+            }
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            directFrame = acquire(width * height * 3 / 2);
+            if (directFrame == null) {
+                mDroppedCount++;
+                return;
+            }
+            long startNanos = System.nanoTime();
+            directFrame.set(frame.getData(), width, height, frame.getTimestampNanos(), mRotation);
+            mLastCopyNanos = System.nanoTime() - startNanos;
+            mMirroredCount++;
+        } finally {
+            // 数据已经复制出来了，预览帧可以马上还给 Camera。
+            frame.release();
+        }
+        // 分发过程中持有 set 时的引用，使用者没有 retain 的话分发完就回到缓存池。
+        for (Consumer consumer : mConsumers) {
+            consumer.onDirectFrame(directFrame);
+        }
+        directFrame.release();
+    }
+
+    private DirectFrame acquire(int frameSize) {
+        DirectFrame frame;
+        while ((frame = mFreeFrames.poll()) != null && frame.getCapacity() < frameSize) {
+            // 尺寸变大了，旧的帧交给 GC 回收，重新分配。
+            mAllocatedCount--;
+            mAllocatedBytes -= frame.getCapacity();
+        }
+        if (frame == null && mAllocatedCount < mCapacity) {
+            ByteBuffer buffer = allocateAligned(frameSize);
+            frame = new DirectFrame(this, buffer);
+            mAllocatedCount++;
+            mAllocatedBytes += buffer.capacity();
+            Log.d(TAG, "Allocate direct frame: " + buffer.capacity() + " bytes; " + this);
+        }
+        return frame;
+    }
+
+    void recycle(@NonNull DirectFrame frame) {
+        mFreeFrames.offer(frame);
+    }
+
+    /**
+     * 分配大小为页的整数倍的直接内存，能读取地址时把起始地址对齐到页边界。
+     */
+    @NonNull
+    static ByteBuffer allocateAligned(int size) {
+        int alignedSize = (size + PAGE_SIZE - 1) & ~(PAGE_SIZE - 1);
+        ByteBuffer raw = ByteBuffer.allocateDirect(alignedSize + PAGE_SIZE);
+        long address = getAddress(raw);
+        int offset = address < 0 ? 0 : (int) ((PAGE_SIZE - (address & (PAGE_SIZE - 1))) & (PAGE_SIZE - 1));
+        raw.limit(offset + alignedSize).position(offset);
+        return raw.slice();
+    }
+
+    /**
+     * 读取直接内存的地址，运行时不允许时返回 -1。
+     */
+    static long getAddress(@NonNull ByteBuffer buffer) {
+        if (sAddressField == null || !buffer.isDirect()) {
+            return -1;
+        }
+        try {
+            return sAddressField.getLong(buffer);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    private static Field findAddressField() {
+        try {
+            Field field = Buffer.class.getDeclaredField("address");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            Log.w(TAG, "Direct buffer address is not accessible, pages may be unaligned.");
+            return null;
+        }
+    }
+
+    /**
+     * 复制到直接内存的帧数量。
+     */
+    public long getMirroredCount() {
+        return mMirroredCount;
+    }
+
+    /**
+     * 因为所有帧都被使用者占用而丢弃的帧数量。
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 最近一帧复制的耗时。
+     */
+    public long getLastCopyNanos() {
+        return mLastCopyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectFramePool{capacity=" + mCapacity
+                + ", allocated=" + mAllocatedCount
+                + ", allocatedKb=" + mAllocatedBytes / 1024
+                + ", free=" + mFreeFrames.size()
+                + ", mirrored=" + mMirroredCount
+                + ", dropped=" + mDroppedCount
+                + ", lastCopyUs=" + TimeUnit.NANOSECONDS.toMicros(mLastCopyNanos) + "}";
+    }
+
+}
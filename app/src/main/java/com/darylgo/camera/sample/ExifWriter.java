@@ -0,0 +1,429 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 生成最小的 EXIF TIFF 数据，配合 {@link JpegSplicer} 写入 JPEG。
+ * <p>
+ * 包含厂商、型号、方向、拍摄时间和可选的缩略图。缩略图不会被复制，作为单独的 Buffer 跟在 IFD 后面。
+ * 相机已经写入 EXIF 时用 {@link #merge(ByteBuffer)} 只补充缺少的标签，相机写入的其他标签原样保留。
+ */
+public class ExifWriter {
+
+    private static final String TAG = "ExifWriter";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+
+    private static final int COMPRESSION_JPEG = 6;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    public static final int ORIENTATION_NORMAL = 1;
+
+    /**
+     * IFD 中的一个条目。数值类型的值保存在 mNumber 中，写入时按 TIFF 的字节序输出；
+     * 从已有 EXIF 复制的条目保存原始的 12 个字节，值的偏移仍然指向原来的位置。
+     */
+    private static class Entry {
+        private final int mTag;
+        private final int mType;
+        private final int mCount;
+        @Nullable
+        private final byte[] mValue;
+        private int mNumber;
+        @Nullable
+        private final byte[] mRaw;
+
+        private Entry(int tag, int type, int count, @Nullable byte[] value, int number) {
+            mTag = tag;
+            mType = type;
+            mCount = count;
+            mValue = value;
+            mNumber = number;
+            mRaw = null;
+        }
+
+        private Entry(int tag, @NonNull byte[] raw) {
+            mTag = tag;
+            mType = 0;
+            mCount = 0;
+            mValue = null;
+            mRaw = raw;
+        }
+
+        private int getDataSize() {
+            return mValue != null && mValue.length > 4 ? (mValue.length + 1) & ~1 : 0;
+        }
+    }
+
+    private static final Comparator<Entry> TAG_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mTag - rhs.mTag;
+        }
+    };
+
+    private static class Ifd {
+        private final List<Entry> mEntries = new ArrayList<>();
+        private int mOffset;
+
+        private int getSize() {
+            int size = 2 + mEntries.size() * IFD_ENTRY_SIZE + 4;
+            for (Entry entry : mEntries) {
+                size += entry.getDataSize();
+            }
+            return size;
+        }
+
+        @Nullable
+        private Entry find(int tag) {
+            for (Entry entry : mEntries) {
+                if (entry.mTag == tag) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Nullable
+    private String mMake;
+    @Nullable
+    private String mModel;
+    private int mOrientation = ORIENTATION_NORMAL;
+    private long mDateTimeMillis;
+
+    public ExifWriter setMake(@Nullable String make) {
+        mMake = make;
+        return this;
+    }
+
+    public ExifWriter setModel(@Nullable String model) {
+        mModel = model;
+        return this;
+    }
+
+    /**
+     * 设置照片顺时针旋转多少度才能正常显示。
+     */
+    public ExifWriter setRotation(int rotation) {
+        switch ((rotation % 360 + 360) % 360) {
+            case 90:
+                mOrientation = 6;
+                break;
+            case 180:
+                mOrientation = 3;
+                break;
+            case 270:
+                mOrientation = 8;
+                break;
+            default:
+                mOrientation = ORIENTATION_NORMAL;
+                break;
+        }
+        return this;
+    }
+
+    /**
+     * 直接设置 EXIF 方向，取值 1 到 8，比如保留相机已经写入的方向。
+     */
+    public ExifWriter setOrientation(int orientation) {
+        if (orientation < 1 || orientation > 8) {
+            throw new IllegalArgumentException("Illegal orientation: " + orientation);
+        }
+        mOrientation = orientation;
+        return this;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * 设置拍摄时间，0 代表不写入时间。
+     */
+    public ExifWriter setDateTime(long millis) {
+        mDateTimeMillis = millis;
+        return this;
+    }
+
+    /**
+     * 生成 TIFF 数据。
+     *
+     * @param thumbnail 内嵌的 JPEG 缩略图，放不进 APP1 段时会被丢弃
+     * @return IFD 数据和可选的缩略图
+     */
+    @NonNull
+    public ByteBuffer[] build(@Nullable ByteBuffer thumbnail) {
+        Ifd ifd0 = new Ifd();
+        Ifd exifIfd = new Ifd();
+        Ifd ifd1 = new Ifd();
+        addEntries(ifd0, exifIfd);
+        Entry exifPointer = number(TAG_EXIF_IFD_POINTER, TYPE_LONG, 0);
+        if (!exifIfd.mEntries.isEmpty()) {
+            ifd0.mEntries.add(exifPointer);
+        }
+        Entry thumbnailOffset = number(TAG_JPEG_INTERCHANGE_FORMAT, TYPE_LONG, 0);
+        if (thumbnail != null) {
+            ifd1.mEntries.add(number(TAG_COMPRESSION, TYPE_SHORT, COMPRESSION_JPEG));
+            ifd1.mEntries.add(thumbnailOffset);
+            ifd1.mEntries.add(number(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, TYPE_LONG, thumbnail.remaining()));
+        }
+
+        // 依次排列 IFD0、Exif IFD、IFD1，每个 IFD 的数据区紧跟在它后面。
+        ifd0.mOffset = TIFF_HEADER_SIZE;
+        int size = ifd0.mOffset + ifd0.getSize();
+        if (!exifIfd.mEntries.isEmpty()) {
+            exifIfd.mOffset = size;
+            size += exifIfd.getSize();
+            exifPointer.mNumber = exifIfd.mOffset;
+        }
+        if (thumbnail != null) {
+            if (size + ifd1.getSize() + thumbnail.remaining() > JpegSplicer.MAX_EXIF_TIFF_SIZE) {
+                Log.w(TAG, "Thumbnail is too large, drop it: " + thumbnail.remaining());
+                thumbnail = null;
+            } else {
+                ifd1.mOffset = size;
+                size += ifd1.getSize();
+                thumbnailOffset.mNumber = size;
+            }
+        }
+
+        ByteBuffer tiff = ByteBuffer.allocate(size);
+        tiff.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0.mOffset);
+        writeIfd(tiff, ifd0, thumbnail != null ? ifd1.mOffset : 0);
+        if (!exifIfd.mEntries.isEmpty()) {
+            writeIfd(tiff, exifIfd, 0);
+        }
+        if (thumbnail != null) {
+            writeIfd(tiff, ifd1, 0);
+        }
+        tiff.flip();
+        return thumbnail != null ? new ByteBuffer[]{tiff, thumbnail.duplicate()} : new ByteBuffer[]{tiff};
+    }
+
+    /**
+     * 把缺少的标签合并进相机已经写入的 EXIF，相机写入的曝光、ISO、GPS、厂商数据等标签都原样保留，
+     * 已经存在的标签（包括方向）不会被覆盖。
+     * <p>
+     * 原有的 TIFF 数据一个字节都不移动：补充了标签的 IFD0 和 Exif IFD 复制一份追加到末尾，
+     * 新的 TIFF 头指向新的 IFD0，IFD1 和缩略图仍然通过原来的链接找到。所以 MakerNote 之类依赖绝对偏移的数据仍然有效，
+     * 旧的 IFD 作为无用的数据留在原处。
+     *
+     * @param tiff 相机写入的 TIFF 数据，比如 {@link JpegSplicer#getExifTiff()}，字节序必须和 TIFF 头一致
+     * @return 合并之后的 TIFF 数据，除了新的头部和追加的 IFD 之外都是原数据上的视图；
+     * 没有缺少的标签、原有的 IFD 无法解析或者合并之后放不进 APP1 段时返回 null，这时应该原样保留相机的 EXIF
+     */
+    @Nullable
+    public ByteBuffer[] merge(@NonNull ByteBuffer tiff) {
+        Ifd ifd0 = readIfd(tiff, tiff.getInt(4));
+        if (ifd0 == null) {
+            return null;
+        }
+        Entry exifPointer = ifd0.find(TAG_EXIF_IFD_POINTER);
+        Ifd exifIfd = exifPointer != null ? readIfd(tiff, readNumber(tiff, exifPointer)) : new Ifd();
+        if (exifIfd == null) {
+            return null;
+        }
+        // 复制之后的 IFD 保持原来的链接，IFD0 之后仍然是原来的 IFD1。
+        int ifd0NextOffset = readNextIfdOffset(tiff, ifd0.mOffset);
+        int exifNextOffset = exifPointer != null ? readNextIfdOffset(tiff, exifIfd.mOffset) : 0;
+        Ifd addedIfd0 = new Ifd();
+        Ifd addedExifIfd = new Ifd();
+        addEntries(addedIfd0, addedExifIfd);
+        int addedCount = addMissingEntries(ifd0, addedIfd0) + addMissingEntries(exifIfd, addedExifIfd);
+        if (addedCount == 0) {
+            return null;
+        }
+        if (!addedExifIfd.mEntries.isEmpty()) {
+            // Exif IFD 也要复制到末尾，新的 IFD0 指向它。
+            if (exifPointer != null) {
+                ifd0.mEntries.remove(exifPointer);
+            }
+            exifPointer = number(TAG_EXIF_IFD_POINTER, TYPE_LONG, 0);
+            ifd0.mEntries.add(exifPointer);
+        }
+        Collections.sort(ifd0.mEntries, TAG_ORDER);
+        Collections.sort(exifIfd.mEntries, TAG_ORDER);
+
+        int limit = tiff.limit();
+        ifd0.mOffset = (limit + 1) & ~1;
+        int size = ifd0.mOffset + ifd0.getSize();
+        if (!addedExifIfd.mEntries.isEmpty()) {
+            exifIfd.mOffset = size;
+            size += exifIfd.getSize();
+            exifPointer.mNumber = exifIfd.mOffset;
+        }
+        if (size > JpegSplicer.MAX_EXIF_TIFF_SIZE) {
+            Log.w(TAG, "Merged EXIF is too large, keep the original one: " + size);
+            return null;
+        }
+
+        ByteOrder order = tiff.order();
+        ByteBuffer header = ByteBuffer.allocate(TIFF_HEADER_SIZE).order(order);
+        header.put(tiff.get(0)).put(tiff.get(1)).putShort((short) 42).putInt(ifd0.mOffset);
+        header.flip();
+        ByteBuffer body = tiff.duplicate();
+        body.limit(limit).position(TIFF_HEADER_SIZE);
+        ByteBuffer appended = ByteBuffer.allocate(size - limit).order(order);
+        if (ifd0.mOffset > limit) {
+            appended.put((byte) 0);
+        }
+        writeIfd(appended, ifd0, ifd0NextOffset);
+        if (!addedExifIfd.mEntries.isEmpty()) {
+            writeIfd(appended, exifIfd, exifNextOffset);
+        }
+        appended.flip();
+        return new ByteBuffer[]{header, body.slice(), appended};
+    }
+
+    /**
+     * 生成这个 ExifWriter 要写入的条目。
+     */
+    private void addEntries(Ifd ifd0, Ifd exifIfd) {
+        if (mMake != null) {
+            ifd0.mEntries.add(ascii(TAG_MAKE, mMake));
+        }
+        if (mModel != null) {
+            ifd0.mEntries.add(ascii(TAG_MODEL, mModel));
+        }
+        ifd0.mEntries.add(number(TAG_ORIENTATION, TYPE_SHORT, mOrientation));
+        if (mDateTimeMillis != 0) {
+            Date date = new Date(mDateTimeMillis);
+            String dateTime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(date);
+            ifd0.mEntries.add(ascii(TAG_DATE_TIME, dateTime));
+            exifIfd.mEntries.add(ascii(TAG_DATE_TIME_ORIGINAL, dateTime));
+            exifIfd.mEntries.add(ascii(TAG_SUB_SEC_TIME_ORIGINAL, String.format(Locale.US, "%03d", mDateTimeMillis % 1000)));
+        }
+    }
+
+    /**
+     * 把 added 中 ifd 没有的条目加入 ifd，没有用到的条目从 added 中移除。
+     *
+     * @return 加入的条目数量
+     */
+    private static int addMissingEntries(Ifd ifd, Ifd added) {
+        List<Entry> missing = new ArrayList<>();
+        for (Entry entry : added.mEntries) {
+            if (ifd.find(entry.mTag) == null) {
+                missing.add(entry);
+            }
+        }
+        added.mEntries.retainAll(missing);
+        ifd.mEntries.addAll(missing);
+        return missing.size();
+    }
+
+    /**
+     * 读取已有的 IFD，条目按原始字节保存，偏移或者条目数量超出范围时返回 null。
+     */
+    @Nullable
+    private static Ifd readIfd(ByteBuffer tiff, int offset) {
+        if (offset < TIFF_HEADER_SIZE || offset > tiff.limit() - 2) {
+            return null;
+        }
+        int count = tiff.getShort(offset) & 0xFFFF;
+        if (offset + 2 + count * IFD_ENTRY_SIZE + 4 > tiff.limit()) {
+            return null;
+        }
+        Ifd ifd = new Ifd();
+        ifd.mOffset = offset;
+        for (int i = 0; i < count; i++) {
+            int position = offset + 2 + i * IFD_ENTRY_SIZE;
+            byte[] raw = new byte[IFD_ENTRY_SIZE];
+            for (int j = 0; j < IFD_ENTRY_SIZE; j++) {
+                raw[j] = tiff.get(position + j);
+            }
+            ifd.mEntries.add(new Entry(tiff.getShort(position) & 0xFFFF, raw));
+        }
+        return ifd;
+    }
+
+    private static int readNextIfdOffset(ByteBuffer tiff, int ifdOffset) {
+        return tiff.getInt(ifdOffset + 2 + (tiff.getShort(ifdOffset) & 0xFFFF) * IFD_ENTRY_SIZE);
+    }
+
+    /**
+     * 读取原始条目中的 LONG 值。
+     */
+    private static int readNumber(ByteBuffer tiff, Entry entry) {
+        return ByteBuffer.wrap(entry.mRaw).order(tiff.order()).getInt(8);
+    }
+
+    /**
+     * 按 IFD 的偏移写入，tiff 的当前位置必须对应 ifd.mOffset。
+     */
+    private static void writeIfd(ByteBuffer tiff, Ifd ifd, int nextIfdOffset) {
+        int dataOffset = ifd.mOffset + 2 + ifd.mEntries.size() * IFD_ENTRY_SIZE + 4;
+        tiff.putShort((short) ifd.mEntries.size());
+        for (Entry entry : ifd.mEntries) {
+            if (entry.mRaw != null) {
+                tiff.put(entry.mRaw);
+                continue;
+            }
+            tiff.putShort((short) entry.mTag).putShort((short) entry.mType).putInt(entry.mCount);
+            if (entry.mValue == null) {
+                // 数值直接放在条目中，左对齐。
+                if (entry.mType == TYPE_SHORT) {
+                    tiff.putShort((short) entry.mNumber).putShort((short) 0);
+                } else {
+                    tiff.putInt(entry.mNumber);
+                }
+            } else if (entry.mValue.length <= 4) {
+                tiff.put(entry.mValue).put(new byte[4 - entry.mValue.length]);
+            } else {
+                tiff.putInt(dataOffset);
+                dataOffset += entry.getDataSize();
+            }
+        }
+        tiff.putInt(nextIfdOffset);
+        for (Entry entry : ifd.mEntries) {
+            if (entry.getDataSize() > 0) {
+                tiff.put(entry.mValue);
+                if ((entry.mValue.length & 1) != 0) {
+                    tiff.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    private static Entry ascii(int tag, String value) {
+        byte[] bytes = value.getBytes(ASCII);
+        byte[] terminated = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+        return new Entry(tag, TYPE_ASCII, terminated.length, terminated, 0);
+    }
+
+    private static Entry number(int tag, int type, int value) {
+        return new Entry(tag, type, 1, null, value);
+    }
+
+}
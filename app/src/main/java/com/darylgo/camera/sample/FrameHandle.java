@@ -0,0 +1,69 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link FrameHub} 分发给订阅者的预览帧，所有订阅者共享同一个 Buffer，通过引用计数管理。
+ * <p>
+ * 每次分发都会转交一个引用给订阅者，订阅者用完之后必须调用一次 {@link #release()}；
+ * 需要交给其他线程继续使用时先调用 {@link #retain()}。最后一个引用释放之后 Buffer 会交还给 Camera，
+ * 之后就不能再访问数据了。
+ */
+public class FrameHandle extends PreviewFrame {
+
+    private final FrameHub mHub;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    // 以下字段用于泄漏检测。
+    volatile int mSubscriberMask;
+    volatile boolean mLeakReported;
+
+    FrameHandle(@NonNull FrameHub hub) {
+        mHub = hub;
+    }
+
+    void reset(byte[] data, int width, int height, int format, long timestampNanos) {
+        set(data, width, height, format, timestampNanos);
+        mSubscriberMask = 0;
+        mLeakReported = false;
+        mRefCount.set(1);
+    }
+
+    /**
+     * 增加一个引用。
+     */
+    @NonNull
+    public FrameHandle retain() {
+        while (true) {
+            int refCount = mRefCount.get();
+            if (refCount <= 0) {
+                throw new IllegalStateException("Frame has already been released.");
+            }
+            if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放时回收 Buffer。
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mHub.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("Frame has been released too many times.");
+        }
+    }
+
+    /**
+     * 当前的引用数量，0 代表 Buffer 已经回收。
+     */
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把同一帧预览分发给多个订阅者的中心，不复制数据。
+ * <p>
+ * 每一帧包装成一个引用计数的 {@link FrameHandle}，所有订阅者共享同一个 Buffer，
+ * 最后一个引用释放之后才通过 {@link FramePipeline.BufferRecycler} 交还给 Camera。
+ * 每个订阅者有自己的帧率上限，超过上限的帧不会分发给它。
+ * <p>
+ * 每次发布新帧时都会检查是否有帧被持有超过 {@link #DEFAULT_LEAK_TIMEOUT_NANOS}，
+ * 如果有就打印可能的持有者，帮助定位忘记调用 {@link FrameHandle#release()} 的订阅者。
+ */
+public class FrameHub {
+
+    private static final String TAG = "FrameHub";
+
+    public static final long DEFAULT_LEAK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * 订阅者的数量受泄漏检测使用的位掩码限制。
+     */
+    private static final int MAX_SUBSCRIBERS = 32;
+
+    /**
+     * 帧间隔允许比限速间隔短的比例，避免帧率刚好等于上限时因为抖动丢帧。
+     */
+    private static final int RATE_LIMIT_SLACK_SHIFT = 3;
+
+    /**
+     * 预览帧订阅者。
+     */
+    public interface Subscriber {
+        /**
+         * 在发布帧的线程上回调，耗时的工作要交给其他线程，用完之后调用 {@link FrameHandle#release()}。
+         */
+        @WorkerThread
+        void onFrame(@NonNull FrameHandle frame);
+    }
+
+    /**
+     * 一个订阅，通过 {@link #unsubscribe(Subscription)} 取消。
+     */
+    public static class Subscription {
+        private final String mName;
+        private final Subscriber mSubscriber;
+        private final long mMinIntervalNanos;
+        private final int mBit;
+        private long mLastDeliveryNanos;
+        private final AtomicLong mDeliveredCount = new AtomicLong();
+        private final AtomicLong mSkippedCount = new AtomicLong();
+
+        private Subscription(String name, Subscriber subscriber, long minIntervalNanos, int bit) {
+            mName = name;
+            mSubscriber = subscriber;
+            mMinIntervalNanos = minIntervalNanos;
+            mBit = bit;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        public long getDeliveredCount() {
+            return mDeliveredCount.get();
+        }
+
+        /**
+         * 因为帧率限制没有分发的帧数。
+         */
+        public long getSkippedCount() {
+            return mSkippedCount.get();
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{delivered=" + mDeliveredCount.get() + ", skipped=" + mSkippedCount.get() + "}";
+        }
+    }
+
+    private final FramePipeline.BufferRecycler mBufferRecycler;
+    private final long mLeakTimeoutNanos;
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<FrameHandle> mFreeHandles;
+    private final List<FrameHandle> mAllHandles = new CopyOnWriteArrayList<>();
+    private int mUsedBits;
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mLeakCount = new AtomicLong();
+
+    /**
+     * @param handleCount    预先分配的帧对象数量，通常等于 Callback Buffer 的数量
+     * @param bufferRecycler 最后一个引用释放时回收 Buffer，可能在任意线程调用
+     */
+    public FrameHub(int handleCount, @NonNull FramePipeline.BufferRecycler bufferRecycler) {
+        this(handleCount, bufferRecycler, DEFAULT_LEAK_TIMEOUT_NANOS);
+    }
+
+    public FrameHub(int handleCount, @NonNull FramePipeline.BufferRecycler bufferRecycler, long leakTimeoutNanos) {
+        if (handleCount <= 0) {
+            throw new IllegalArgumentException("Illegal handle count: " + handleCount);
+        }
+        mBufferRecycler = bufferRecycler;
+        mLeakTimeoutNanos = leakTimeoutNanos;
+        mFreeHandles = new ArrayBlockingQueue<>(handleCount * 2);
+        for (int i = 0; i < handleCount; i++) {
+            FrameHandle handle = new FrameHandle(this);
+            mAllHandles.add(handle);
+            mFreeHandles.offer(handle);
+        }
+    }
+
+    /**
+     * 添加订阅者。
+     *
+     * @param name   订阅者的名字，用于日志
+     * @param maxFps 分发给这个订阅者的最高帧率，0 代表不限制
+     */
+    @NonNull
+    public synchronized Subscription subscribe(@NonNull String name, float maxFps, @NonNull Subscriber subscriber) {
+        if (maxFps < 0) {
+            throw new IllegalArgumentException("Illegal max fps: " + maxFps);
+        }
+        int bit = Integer.numberOfTrailingZeros(~mUsedBits);
+        if (bit >= MAX_SUBSCRIBERS) {
+            throw new IllegalStateException("Too many subscribers.");
+        }
+        mUsedBits |= 1 << bit;
+        long minIntervalNanos = maxFps == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / maxFps);
+        Subscription subscription = new Subscription(name, subscriber, minIntervalNanos, bit);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public synchronized void unsubscribe(@NonNull Subscription subscription) {
+        if (mSubscriptions.remove(subscription)) {
+            mUsedBits &= ~(1 << subscription.mBit);
+        }
+    }
+
+    /**
+     * 发布一帧预览数据，在相机线程调用。没有订阅者需要这一帧时 Buffer 会被立刻回收。
+     */
+    @WorkerThread
+    public void publish(@NonNull byte[] data, int width, int height, int format, long timestampNanos) {
+        mPublishedCount.incrementAndGet();
+        checkLeaks(timestampNanos);
+        FrameHandle handle = mFreeHandles.poll();
+        if (handle == null) {
+            // 订阅者持有的帧比预期多，补充一个帧对象。
+            handle = new FrameHandle(this);
+            mAllHandles.add(handle);
+        }
+        // 发布过程中持有一个引用，避免订阅者同步释放时提前回收。
+        handle.reset(data, width, height, format, timestampNanos);
+        for (Subscription subscription : mSubscriptions) {
+            long minIntervalNanos = subscription.mMinIntervalNanos;
+            if (minIntervalNanos > 0 && subscription.mLastDeliveryNanos != 0
+                    && timestampNanos - subscription.mLastDeliveryNanos < minIntervalNanos - (minIntervalNanos >> RATE_LIMIT_SLACK_SHIFT)) {
+                subscription.mSkippedCount.incrementAndGet();
+                continue;
+            }
+            subscription.mLastDeliveryNanos = timestampNanos;
+            subscription.mDeliveredCount.incrementAndGet();
+            handle.mSubscriberMask |= 1 << subscription.mBit;
+            handle.retain();
+            subscription.mSubscriber.onFrame(handle);
+        }
+        handle.release();
+    }
+
+    /**
+     * 根据 Buffer 找到还没回收的帧并释放一个引用，给只能拿到 byte[] 的回收接口使用。
+     *
+     * @return false 代表没有找到持有这个 Buffer 的帧
+     */
+    public boolean release(@NonNull byte[] buffer) {
+        for (FrameHandle handle : mAllHandles) {
+            if (handle.getData() == buffer && handle.getRefCount() > 0) {
+                handle.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void recycle(@NonNull FrameHandle handle) {
+        byte[] data = handle.getData();
+        handle.clear();
+        mFreeHandles.offer(handle);
+        if (data != null) {
+            mBufferRecycler.recycleBuffer(data);
+        }
+    }
+
+    /**
+     * 报告持有时间超过阈值的帧，每一帧只报告一次。发布每一帧时都会检查，但是所有 Buffer 都被持有时不会再有新帧，
+     * 所以相机线程还要定期调用。
+     *
+     * @param nowNanos 当前时间，和帧时间戳一样基于 {@link android.os.SystemClock#elapsedRealtimeNanos()}
+     */
+    @WorkerThread
+    public void checkLeaks(long nowNanos) {
+        for (FrameHandle handle : mAllHandles) {
+            if (handle.getRefCount() > 0 && !handle.mLeakReported
+                    && nowNanos - handle.getTimestampNanos() > mLeakTimeoutNanos) {
+                handle.mLeakReported = true;
+                mLeakCount.incrementAndGet();
+                Log.w(TAG, "Frame held for " + TimeUnit.NANOSECONDS.toMillis(nowNanos - handle.getTimestampNanos())
+                        + "ms with " + handle.getRefCount() + " references, delivered to: " + getSubscriberNames(handle.mSubscriberMask));
+            }
+        }
+    }
+
+    private String getSubscriberNames(int mask) {
+        List<String> names = new ArrayList<>();
+        for (Subscription subscription : mSubscriptions) {
+            if ((mask & (1 << subscription.mBit)) != 0) {
+                names.add(subscription.mName);
+            }
+        }
+        return names.toString();
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    /**
+     * 检测到的泄漏帧数量。
+     */
+    public long getLeakCount() {
+        return mLeakCount.get();
+    }
+
+    /**
+     * 当前还没回收的帧数量。
+     */
+    public int getOutstandingCount() {
+        int count = 0;
+        for (FrameHandle handle : mAllHandles) {
+            if (handle.getRefCount() > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameHub{published=" + mPublishedCount.get()
+                + ", outstanding=" + getOutstandingCount()
+                + ", leaks=" + mLeakCount.get()
+                + ", subscriptions=" + mSubscriptions + "}";
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 预览帧时序统计：帧率、帧间隔抖动、Buffer 占用时间、丢帧估计和 Buffer 饥饿。
+ * <p>
+ * 记录方法只在相机线程调用（单写者），不加锁也不分配内存；读取方通过 {@link #snapshot(Snapshot)}
+ * 在任意线程获取一份统计快照。帧间隔抖动记录在对数线性分桶的直方图中（类似 HdrHistogram），
+ * 每个 2 的幂区间再细分 {@value #SUB_BUCKET_COUNT} 个桶，相对误差不超过 12.5%。
+ */
+public class FrameMetrics {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * 最大可以记录 2^27 微秒（大约 134 秒）的抖动。
+     */
+    private static final int MAGNITUDE_COUNT = 27;
+    private static final int BUCKET_COUNT = MAGNITUDE_COUNT * SUB_BUCKET_COUNT;
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_TRACKED_BUFFERS = 8;
+
+    /**
+     * 帧间隔超过期望间隔的这个倍数时认为中间丢了帧。
+     */
+    private static final float DROP_THRESHOLD = 1.5f;
+
+    // 以下字段只由相机线程写入。
+    private final byte[][] mHeldBuffers = new byte[MAX_TRACKED_BUFFERS][];
+    private final long[] mHeldSinceNanos = new long[MAX_TRACKED_BUFFERS];
+    private int mBufferCount;
+    private int mHeldCount;
+    private long mLastFrameNanos;
+    private long mWindowStartNanos;
+    private int mWindowFrames;
+
+    private final AtomicLongArray mJitterHistogram = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long mFrameCount;
+    private volatile long mDroppedFrames;
+    private volatile long mStarvationEvents;
+    private volatile long mExpectedIntervalNanos;
+    private volatile long mLastIntervalNanos;
+    private volatile float mWindowFps;
+    private volatile long mTotalHoldNanos;
+    private volatile long mHoldCount;
+    private volatile long mMaxHoldNanos;
+
+    /**
+     * 开启预览时调用，重新开始计算帧间隔，但是保留累计的统计数据。
+     * <p>
+     * 还在处理中的 Buffer 会继续计时，直到通过 {@link #onBufferReturned(byte[], long)} 归还。
+     *
+     * @param bufferCount 交给 Camera 的 Callback Buffer 数量
+     */
+    @WorkerThread
+    public void onPreviewStarted(int bufferCount) {
+        mBufferCount = Math.min(bufferCount, MAX_TRACKED_BUFFERS);
+        mLastFrameNanos = 0;
+        mWindowStartNanos = 0;
+        mWindowFrames = 0;
+    }
+
+    /**
+     * 收到一帧预览数据时调用。
+     */
+    @WorkerThread
+    public void onFrameAvailable(@NonNull byte[] buffer, long timestampNanos) {
+        mFrameCount++;
+        trackBuffer(buffer, timestampNanos);
+
+        long lastFrameNanos = mLastFrameNanos;
+        mLastFrameNanos = timestampNanos;
+        if (lastFrameNanos != 0) {
+            long intervalNanos = timestampNanos - lastFrameNanos;
+            mLastIntervalNanos = intervalNanos;
+            long expectedNanos = mExpectedIntervalNanos;
+            if (expectedNanos == 0) {
+                mExpectedIntervalNanos = intervalNanos;
+            } else {
+                if (intervalNanos > expectedNanos * DROP_THRESHOLD) {
+                    mDroppedFrames += Math.round((double) intervalNanos / expectedNanos) - 1;
+                } else {
+                    // 只用正常的帧间隔更新期望值，指数移动平均，权重 1/8。
+                    mExpectedIntervalNanos = expectedNanos + ((intervalNanos - expectedNanos) >> 3);
+                }
+                recordJitter(Math.abs(intervalNanos - expectedNanos));
+            }
+        }
+
+        if (mWindowStartNanos == 0) {
+            mWindowStartNanos = timestampNanos;
+            mWindowFrames = 0;
+        } else {
+            mWindowFrames++;
+            long windowNanos = timestampNanos - mWindowStartNanos;
+            if (windowNanos >= WINDOW_NANOS) {
+                mWindowFps = mWindowFrames * (float) TimeUnit.SECONDS.toNanos(1) / windowNanos;
+                mWindowStartNanos = timestampNanos;
+                mWindowFrames = 0;
+            }
+        }
+    }
+
+    /**
+     * Buffer 用完时调用，不管它是交还给 Camera 还是归还到缓存池。
+     */
+    @WorkerThread
+    public void onBufferReturned(@NonNull byte[] buffer, long timestampNanos) {
+        for (int i = 0; i < MAX_TRACKED_BUFFERS; i++) {
+            if (mHeldBuffers[i] == buffer) {
+                mHeldBuffers[i] = null;
+                mHeldCount--;
+                long holdNanos = timestampNanos - mHeldSinceNanos[i];
+                mTotalHoldNanos += holdNanos;
+                mHoldCount++;
+                if (holdNanos > mMaxHoldNanos) {
+                    mMaxHoldNanos = holdNanos;
+                }
+                return;
+            }
+        }
+    }
+
+    private void trackBuffer(byte[] buffer, long timestampNanos) {
+        for (int i = 0; i < MAX_TRACKED_BUFFERS; i++) {
+            if (mHeldBuffers[i] == null) {
+                mHeldBuffers[i] = buffer;
+                mHeldSinceNanos[i] = timestampNanos;
+                mHeldCount++;
+                break;
+            }
+        }
+        if (mBufferCount > 0 && mHeldCount >= mBufferCount) {
+            // 所有 Buffer 都被取走了，在有 Buffer 归还之前 Camera 只能丢帧。
+            // 重新开启预览时上一次的 Buffer 可能还没有归还，持有数量会超过 Buffer 总数。
+            mStarvationEvents++;
+        }
+    }
+
+    private void recordJitter(long jitterNanos) {
+        mJitterHistogram.incrementAndGet(getBucketIndex(TimeUnit.NANOSECONDS.toMicros(jitterNanos)));
+    }
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (magnitude >= MAGNITUDE_COUNT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (magnitude - 1)) & (SUB_BUCKET_COUNT - 1);
+        return magnitude * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * 分桶的上界（包含），单位是微秒。
+     */
+    private static long getBucketUpperBound(int index) {
+        int magnitude = index / SUB_BUCKET_COUNT;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        if (magnitude == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (magnitude - 1)) - 1;
+    }
+
+    /**
+     * 把当前的统计数据复制到 snapshot 中，snapshot 可以重复使用。
+     */
+    @NonNull
+    public Snapshot snapshot(@NonNull Snapshot snapshot) {
+        snapshot.frameCount = mFrameCount;
+        snapshot.droppedFrames = mDroppedFrames;
+        snapshot.starvationEvents = mStarvationEvents;
+        long lastIntervalNanos = mLastIntervalNanos;
+        snapshot.instantFps = lastIntervalNanos > 0 ? (float) TimeUnit.SECONDS.toNanos(1) / lastIntervalNanos : 0;
+        snapshot.windowFps = mWindowFps;
+        snapshot.expectedIntervalNanos = mExpectedIntervalNanos;
+        long holdCount = mHoldCount;
+        snapshot.averageHoldNanos = holdCount > 0 ? mTotalHoldNanos / holdCount : 0;
+        snapshot.maxHoldNanos = mMaxHoldNanos;
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = mJitterHistogram.get(i);
+            snapshot.jitterHistogram[i] = count;
+            total += count;
+        }
+        snapshot.jitterSamples = total;
+        return snapshot;
+    }
+
+    /**
+     * 统计快照。
+     */
+    public static class Snapshot {
+        public long frameCount;
+        public long droppedFrames;
+        public long starvationEvents;
+        public float instantFps;
+        public float windowFps;
+        public long expectedIntervalNanos;
+        public long averageHoldNanos;
+        public long maxHoldNanos;
+        public long jitterSamples;
+        private final long[] jitterHistogram = new long[BUCKET_COUNT];
+
+        /**
+         * 帧间隔抖动的百分位数，单位是微秒。
+         *
+         * @param percentile 0 到 100 之间的百分位
+         */
+        public long getJitterPercentileMicros(double percentile) {
+            if (jitterSamples == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(jitterSamples * percentile / 100));
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += jitterHistogram[i];
+                if (count >= target) {
+                    return getBucketUpperBound(i);
+                }
+            }
+            return getBucketUpperBound(BUCKET_COUNT - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "FrameMetrics{frames=" + frameCount
+                    + ", instantFps=" + instantFps
+                    + ", windowFps=" + windowFps
+                    + ", expectedIntervalUs=" + TimeUnit.NANOSECONDS.toMicros(expectedIntervalNanos)
+                    + ", jitterP50Us=" + getJitterPercentileMicros(50)
+                    + ", jitterP99Us=" + getJitterPercentileMicros(99)
+                    + ", dropped=" + droppedFrames
+                    + ", starvation=" + starvationEvents
+                    + ", avgHoldUs=" + TimeUnit.NANOSECONDS.toMicros(averageHoldNanos)
+                    + ", maxHoldUs=" + TimeUnit.NANOSECONDS.toMicros(maxHoldNanos) + "}";
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把预览帧从相机线程转移到工作线程处理的流水线。
+ * <p>
+ * 相机线程只负责把 Buffer 放进有界队列，真正的分析工作由工作线程完成，处理完成后再通过
+ * {@link BufferRecycler} 把 Buffer 交还给 Camera。当分析速度跟不上预览帧率时，按照
+ * {@link Backpressure} 策略丢帧，而不是卡住相机线程。
+ */
+public class FramePipeline {
+
+    private static final String TAG = "FramePipeline";
+
+    /**
+     * 阻塞模式下每次等待队列空位的时长，超时后检查一次是否已经释放。
+     */
+    private static final long BLOCK_POLL_MILLIS = 10;
+
+    /**
+     * 队列已满时的处理策略。
+     */
+    public enum Backpressure {
+        /**
+         * 丢弃队列中最旧的帧，保证处理的总是最新的画面。
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃新来的帧。
+         */
+        DROP_NEWEST,
+        /**
+         * 阻塞相机线程直到队列有空位或者流水线被释放，只适合不允许丢帧的场景。
+         */
+        BLOCK
+    }
+
+    /**
+     * 回收 Buffer 的接口，通常就是调用 {@link android.hardware.Camera#addCallbackBuffer(byte[])}。
+     */
+    public interface BufferRecycler {
+        void recycleBuffer(@NonNull byte[] buffer);
+    }
+
+    private final BlockingQueue<PreviewFrame> mPendingFrames;
+    private final BlockingQueue<PreviewFrame> mFreeFrames;
+    private final List<FrameProcessor> mProcessors = new CopyOnWriteArrayList<>();
+    private final Backpressure mBackpressure;
+    private final BufferRecycler mBufferRecycler;
+    private final Thread[] mWorkers;
+
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mProcessedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final int mQueueCapacity;
+
+    /**
+     * 每一帧经过所有处理器的平均耗时，指数移动平均，权重 1/8。
+     */
+    private volatile long mAverageProcessNanos;
+
+    private volatile boolean mReleased = false;
+
+    public FramePipeline(int queueCapacity, int workerCount, @NonNull Backpressure backpressure, @NonNull BufferRecycler bufferRecycler) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Illegal queue capacity: " + queueCapacity);
+        }
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Illegal worker count: " + workerCount);
+        }
+        mPendingFrames = new ArrayBlockingQueue<>(queueCapacity);
+        mQueueCapacity = queueCapacity;
+        // 所有帧对象预先分配好，同一时刻最多只有 queueCapacity + workerCount 帧在流水线中。
+        int frameCount = queueCapacity + workerCount + 1;
+        mFreeFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeFrames.offer(new PreviewFrame());
+        }
+        mBackpressure = backpressure;
+        mBufferRecycler = bufferRecycler;
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Worker(), "FramePipelineWorker-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    public void addProcessor(@NonNull FrameProcessor processor) {
+        mProcessors.add(processor);
+    }
+
+    public void removeProcessor(@NonNull FrameProcessor processor) {
+        mProcessors.remove(processor);
+    }
+
+    /**
+     * 提交一帧预览数据，在相机线程调用。和 {@link #release()} 同时调用时，Buffer 也一定会被回收。
+     *
+     * @return true 代表这一帧进入了队列，false 代表被丢弃并且 Buffer 已经被回收
+     */
+    public boolean submit(@NonNull byte[] data, int width, int height, int format, long timestampNanos) {
+        mSubmittedCount.incrementAndGet();
+        if (mReleased || mProcessors.isEmpty()) {
+            // 没有处理器的时候直接回收，避免无意义的线程切换。
+            mBufferRecycler.recycleBuffer(data);
+            return false;
+        }
+        PreviewFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new PreviewFrame();
+        }
+        frame.set(data, width, height, format, timestampNanos);
+        boolean queued = enqueue(frame);
+        if (queued && mReleased) {
+            // release() 可能已经清空过队列，刚放进去的帧要再清一次，否则 Buffer 不会还给 Camera。
+            drainPendingFrames();
+            return false;
+        }
+        return queued;
+    }
+
+    private boolean enqueue(PreviewFrame frame) {
+        switch (mBackpressure) {
+            case DROP_OLDEST: {
+                while (!mPendingFrames.offer(frame)) {
+                    PreviewFrame oldest = mPendingFrames.poll();
+                    if (oldest != null) {
+                        dropFrame(oldest);
+                    }
+                }
+                return true;
+            }
+            case DROP_NEWEST: {
+                if (!mPendingFrames.offer(frame)) {
+                    dropFrame(frame);
+                    return false;
+                }
+                return true;
+            }
+            case BLOCK: {
+                try {
+                    // release() 只中断工作线程，相机线程在这里分段等待，释放之后不再等待。
+                    while (!mReleased) {
+                        if (mPendingFrames.offer(frame, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            return true;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dropFrame(frame);
+                return false;
+            }
+            default:
+                throw new IllegalStateException("Illegal backpressure: " + mBackpressure);
+        }
+    }
+
+    private void dropFrame(PreviewFrame frame) {
+        mDroppedCount.incrementAndGet();
+        recycleFrame(frame);
+    }
+
+    private void recycleFrame(PreviewFrame frame) {
+        byte[] data = frame.data;
+        frame.clear();
+        mFreeFrames.offer(frame);
+        if (data != null) {
+            mBufferRecycler.recycleBuffer(data);
+        }
+    }
+
+    /**
+     * 停止所有工作线程，回收队列中还没处理的 Buffer，阻塞在 {@link #submit} 中的相机线程也会返回。
+     */
+    public void release() {
+        mReleased = true;
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        drainPendingFrames();
+    }
+
+    private void drainPendingFrames() {
+        PreviewFrame frame;
+        while ((frame = mPendingFrames.poll()) != null) {
+            dropFrame(frame);
+        }
+    }
+
+    /**
+     * 当前等待处理的帧数。
+     */
+    public int getQueueDepth() {
+        return mPendingFrames.size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * 每一帧经过所有处理器的平均耗时。
+     */
+    public long getAverageProcessNanos() {
+        return mAverageProcessNanos;
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    public long getProcessedCount() {
+        return mProcessedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FramePipeline{backpressure=" + mBackpressure
+                + ", queueDepth=" + getQueueDepth()
+                + ", submitted=" + getSubmittedCount()
+                + ", processed=" + getProcessedCount()
+                + ", dropped=" + getDroppedCount()
+                + ", avgProcessUs=" + mAverageProcessNanos / 1000 + "}";
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!mReleased) {
+                PreviewFrame frame;
+                try {
+                    frame = mPendingFrames.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long startNanos = System.nanoTime();
+                try {
+                    for (FrameProcessor processor : mProcessors) {
+                        processor.processFrame(frame);
+                    }
+                    long processNanos = System.nanoTime() - startNanos;
+                    long averageNanos = mAverageProcessNanos;
+                    mAverageProcessNanos = averageNanos == 0 ? processNanos : averageNanos + ((processNanos - averageNanos) >> 3);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to process frame.", e);
+                } finally {
+                    mProcessedCount.incrementAndGet();
+                    recycleFrame(frame);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+/**
+ * 预览帧处理器，运行在 {@link FramePipeline} 的工作线程上。
+ */
+public interface FrameProcessor {
+
+    /**
+     * 处理一帧预览数据，返回之后 Buffer 就会交还给 Camera。
+     */
+    @WorkerThread
+    void processFrame(@NonNull PreviewFrame frame);
+
+}
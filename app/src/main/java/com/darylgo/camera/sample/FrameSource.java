@@ -0,0 +1,68 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * 预览帧和拍照数据的来源。
+ * <p>
+ * 接口和 {@link android.hardware.Camera} 的 Callback Buffer 用法保持一致：调用者通过
+ * {@link #addCallbackBuffer(byte[])} 提供 Buffer，每一帧使用队列中的一个 Buffer 回调，
+ * 用完之后必须再次添加才能复用；队列为空时这一帧会被丢弃。除了 {@link CameraFrameSource}，
+ * 还可以使用合成帧或者回放文件的实现，在没有设备的情况下测试处理流程。
+ */
+public interface FrameSource {
+
+    /**
+     * 预览帧回调。
+     */
+    interface FrameCallback {
+        /**
+         * @param data 从 Buffer 队列中取出的 Buffer，处理完之后要通过 {@link #addCallbackBuffer(byte[])} 交还
+         */
+        void onFrame(@NonNull byte[] data, @NonNull FrameSource source);
+    }
+
+    /**
+     * 拍照回调。
+     */
+    interface PictureCallback {
+        /**
+         * 曝光完成。
+         */
+        void onShutter();
+
+        /**
+         * 拍照完成，拍照之后预览会停止。
+         *
+         * @param jpeg JPEG 数据，拍照失败时为 null
+         */
+        void onPictureTaken(@Nullable byte[] jpeg, @NonNull FrameSource source);
+    }
+
+    /**
+     * 设置预览帧回调。传入 null 时同时清空 Buffer 队列，设置新的回调会保留已经添加的 Buffer，
+     * 和 {@link android.hardware.Camera#setPreviewCallbackWithBuffer} 一样。
+     */
+    void setFrameCallback(@Nullable FrameCallback callback);
+
+    /**
+     * 把 Buffer 添加到队列中，Buffer 要能放下一帧数据。
+     */
+    void addCallbackBuffer(@NonNull byte[] buffer);
+
+    void startPreview();
+
+    void stopPreview();
+
+    /**
+     * 拍照，预览没有开启的时候会抛出 RuntimeException。
+     */
+    void takePicture(@NonNull PictureCallback callback);
+
+    /**
+     * 释放资源，之后不能再使用。
+     */
+    void release();
+
+}
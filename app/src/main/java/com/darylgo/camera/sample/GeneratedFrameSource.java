@@ -0,0 +1,271 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在独立线程上按固定帧率生成 NV21 帧的帧来源，子类负责填充每一帧的内容。
+ * <p>
+ * Buffer 队列的行为和 Camera 一致：队列为空时这一帧被丢弃，放不下一帧的 Buffer 不会加入队列。
+ * 回调运行在生成线程上，其他方法可以在任意线程调用。
+ */
+public abstract class GeneratedFrameSource implements FrameSource {
+
+    private static final String TAG = "GeneratedFrameSource";
+    private static final int JPEG_QUALITY = 90;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mFrameIntervalNanos;
+    private final Thread mThread;
+    private final Object mLock = new Object();
+
+    // 以下字段在 mLock 保护下访问。
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<>();
+    @Nullable
+    private FrameCallback mFrameCallback;
+    @Nullable
+    private PictureCallback mPictureCallback;
+    private boolean mPreviewing;
+    private boolean mReleased;
+
+    private volatile long mDeliveredFrames;
+    private volatile long mStarvedFrames;
+    private volatile long mRejectedBuffers;
+
+    /**
+     * @param name   生成线程的名字
+     * @param width  帧宽度
+     * @param height 帧高度
+     * @param fps    帧率，0 代表不限速，有空闲 Buffer 时立刻生成下一帧
+     */
+    protected GeneratedFrameSource(@NonNull String name, int width, int height, int fps) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0 || fps < 0) {
+            throw new IllegalArgumentException("Illegal frame source config: " + width + "x" + height + "@" + fps);
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameIntervalNanos = fps == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / fps;
+        mThread = new Thread(new Generator(), name);
+        mThread.start();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 一帧 NV21 数据的字节数。
+     */
+    public int getFrameSize() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    /**
+     * 把第 frameIndex 帧的内容填充到 buffer 中，在生成线程上调用。
+     *
+     * @return false 代表没有更多的帧了，预览会自动停止
+     */
+    protected abstract boolean fillFrame(@NonNull byte[] buffer, long frameIndex);
+
+    @Override
+    public void setFrameCallback(@Nullable FrameCallback callback) {
+        synchronized (mLock) {
+            mFrameCallback = callback;
+            if (callback == null) {
+                mBuffers.clear();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void addCallbackBuffer(@NonNull byte[] buffer) {
+        synchronized (mLock) {
+            if (buffer.length < getFrameSize()) {
+                mRejectedBuffers++;
+                Log.w(TAG, "Callback buffer too small: " + buffer.length);
+                return;
+            }
+            mBuffers.addLast(buffer);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void startPreview() {
+        synchronized (mLock) {
+            mPreviewing = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        synchronized (mLock) {
+            mPreviewing = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void takePicture(@NonNull PictureCallback callback) {
+        synchronized (mLock) {
+            if (!mPreviewing || mPictureCallback != null) {
+                throw new RuntimeException("takePicture failed");
+            }
+            mPictureCallback = callback;
+            mPreviewing = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mPreviewing = false;
+            mBuffers.clear();
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 已经回调的帧数。
+     */
+    public long getDeliveredFrames() {
+        return mDeliveredFrames;
+    }
+
+    /**
+     * 因为 Buffer 队列为空而丢弃的帧数。
+     */
+    public long getStarvedFrames() {
+        return mStarvedFrames;
+    }
+
+    /**
+     * 因为太小而没有加入队列的 Buffer 数量。
+     */
+    public long getRejectedBuffers() {
+        return mRejectedBuffers;
+    }
+
+    private void deliverPicture(PictureCallback callback, long frameIndex) {
+        callback.onShutter();
+        byte[] frame = new byte[getFrameSize()];
+        byte[] jpeg = null;
+        if (fillFrame(frame, frameIndex)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            YuvImage yuvImage = new YuvImage(frame, ImageFormat.NV21, mWidth, mHeight, null);
+            if (yuvImage.compressToJpeg(new Rect(0, 0, mWidth, mHeight), JPEG_QUALITY, outputStream)) {
+                jpeg = outputStream.toByteArray();
+            }
+        }
+        callback.onPictureTaken(jpeg, this);
+    }
+
+    private class Generator implements Runnable {
+        @Override
+        public void run() {
+            long frameIndex = 0;
+            long nextFrameNanos = 0;
+            while (true) {
+                PictureCallback pictureCallback;
+                synchronized (mLock) {
+                    while (!mReleased && !mPreviewing && mPictureCallback == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        nextFrameNanos = 0;
+                    }
+                    if (mReleased) {
+                        return;
+                    }
+                    pictureCallback = mPictureCallback;
+                    mPictureCallback = null;
+                }
+                if (pictureCallback != null) {
+                    deliverPicture(pictureCallback, frameIndex++);
+                    continue;
+                }
+
+                // 按照帧间隔等待下一帧的时间点，落后时不补帧。
+                long now = System.nanoTime();
+                if (nextFrameNanos == 0 || nextFrameNanos < now - mFrameIntervalNanos) {
+                    nextFrameNanos = now;
+                } else if (nextFrameNanos > now) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(nextFrameNanos - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                nextFrameNanos += mFrameIntervalNanos;
+
+                FrameCallback frameCallback;
+                byte[] buffer;
+                synchronized (mLock) {
+                    // 不限速时等待 Buffer 归还，而不是空转丢帧。
+                    while (mFrameIntervalNanos == 0 && mPreviewing && mFrameCallback != null && mBuffers.isEmpty()) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mPreviewing) {
+                        continue;
+                    }
+                    frameCallback = mFrameCallback;
+                    if (frameCallback == null) {
+                        if (mFrameIntervalNanos != 0) {
+                            frameIndex++;
+                            continue;
+                        }
+                        // 不限速时没有回调就等待回调设置，而不是空转。
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    buffer = mBuffers.pollFirst();
+                }
+                if (buffer == null) {
+                    mStarvedFrames++;
+                    frameIndex++;
+                    continue;
+                }
+                if (!fillFrame(buffer, frameIndex++)) {
+                    stopPreview();
+                    addCallbackBuffer(buffer);
+                    continue;
+                }
+                mDeliveredFrames++;
+                frameCallback.onFrame(buffer, GeneratedFrameSource.this);
+            }
+        }
+    }
+
+}
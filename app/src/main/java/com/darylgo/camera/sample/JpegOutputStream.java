@@ -0,0 +1,23 @@
+package com.darylgo.camera.sample;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 可以直接访问内部数组的 JPEG 输出流，避免 toByteArray 的复制，压缩下一帧前调用 {@link #reset()} 复用。
+ */
+class JpegOutputStream extends ByteArrayOutputStream {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    JpegOutputStream() {
+        super(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 内部数组，只有前 {@link #size()} 个字节有效。
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+}
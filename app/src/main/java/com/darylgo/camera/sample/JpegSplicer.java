@@ -0,0 +1,307 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解析 JPEG 的段结构，在不解码、不复制图像数据的前提下插入或者替换 EXIF，并且找到内嵌的缩略图。
+ * <p>
+ * 只解析到 SOS 为止，压缩数据不会被读取。{@link #splice(ByteBuffer...)} 返回的是原始数组上的多个视图
+ * 加上新的 APP1 段，可以直接交给 {@link #write(FileChannel, ByteBuffer[])} 一次聚集写入文件。
+ */
+public class JpegSplicer {
+
+    public static final int MARKER_SOI = 0xD8;
+    public static final int MARKER_EOI = 0xD9;
+    public static final int MARKER_SOS = 0xDA;
+    public static final int MARKER_APP0 = 0xE0;
+    public static final int MARKER_APP1 = 0xE1;
+
+    /**
+     * APP1 段中 TIFF 数据的最大长度，段长度字段是 16 位并且包含自身和 EXIF 标识。
+     */
+    public static final int MAX_EXIF_TIFF_SIZE = 0xFFFF - 2 - 6;
+
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TIFF_MAGIC = 42;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    /**
+     * 一个标记段，包含 0xFF 和标记字节。
+     */
+    public static class Segment {
+        public final int marker;
+        public final int offset;
+        public final int length;
+
+        private Segment(int marker, int offset, int length) {
+            this.marker = marker;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FF%02X@%d+%d", marker, offset, length);
+        }
+    }
+
+    private final byte[] mData;
+    private final int mLength;
+    private final List<Segment> mSegments;
+    private final int mExifIndex;
+
+    private JpegSplicer(byte[] data, int length, List<Segment> segments) {
+        mData = data;
+        mLength = length;
+        mSegments = segments;
+        int exifIndex = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            if (isExifSegment(segments.get(i))) {
+                exifIndex = i;
+                break;
+            }
+        }
+        mExifIndex = exifIndex;
+    }
+
+    /**
+     * 解析 JPEG 头部的标记段，不会复制数据，解析之后不能再修改数组。
+     *
+     * @throws IOException 不是 JPEG 或者段结构不完整
+     */
+    @NonNull
+    public static JpegSplicer parse(@NonNull byte[] data) throws IOException {
+        return parse(data, data.length);
+    }
+
+    @NonNull
+    public static JpegSplicer parse(@NonNull byte[] data, int length) throws IOException {
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != MARKER_SOI) {
+            throw new IOException("Not a JPEG.");
+        }
+        List<Segment> segments = new ArrayList<>();
+        int position = 2;
+        while (true) {
+            if (position + 1 >= length || (data[position] & 0xFF) != 0xFF) {
+                throw new IOException("Illegal marker at " + position);
+            }
+            // 标记前面可以有任意个填充的 0xFF。
+            while (position + 1 < length && (data[position + 1] & 0xFF) == 0xFF) {
+                position++;
+            }
+            if (position + 1 >= length) {
+                throw new IOException("Unexpected end of data.");
+            }
+            int marker = data[position + 1] & 0xFF;
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                // 从这里开始是压缩数据，原样保留。
+                segments.add(new Segment(marker, position, length - position));
+                break;
+            }
+            if (position + 3 >= length) {
+                throw new IOException("Unexpected end of data.");
+            }
+            int segmentLength = ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+            if (segmentLength < 2 || position + 2 + segmentLength > length) {
+                throw new IOException("Illegal segment length " + segmentLength + " at " + position);
+            }
+            segments.add(new Segment(marker, position, 2 + segmentLength));
+            position += 2 + segmentLength;
+        }
+        return new JpegSplicer(data, length, segments);
+    }
+
+    /**
+     * 从 SOI 之后到压缩数据为止的所有标记段，最后一个是从 SOS（或者 EOI）开始的剩余数据。
+     */
+    @NonNull
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(mSegments);
+    }
+
+    public boolean hasExif() {
+        return mExifIndex >= 0;
+    }
+
+    private boolean isExifSegment(Segment segment) {
+        if (segment.marker != MARKER_APP1 || segment.length < 4 + EXIF_IDENTIFIER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_IDENTIFIER.length; i++) {
+            if (mData[segment.offset + 4 + i] != EXIF_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * EXIF 中的 TIFF 数据，按 TIFF 头声明的字节序读取，没有 EXIF 时返回 null。
+     */
+    @Nullable
+    public ByteBuffer getExifTiff() {
+        if (mExifIndex < 0) {
+            return null;
+        }
+        Segment segment = mSegments.get(mExifIndex);
+        int start = segment.offset + 4 + EXIF_IDENTIFIER.length;
+        ByteBuffer tiff = ByteBuffer.wrap(mData, start, segment.offset + segment.length - start).slice();
+        if (tiff.remaining() < 8) {
+            return null;
+        }
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) != 'M' || tiff.get(1) != 'M') {
+            return null;
+        }
+        if ((tiff.getShort(2) & 0xFFFF) != TIFF_MAGIC) {
+            return null;
+        }
+        return tiff;
+    }
+
+    /**
+     * EXIF 中的方向，取值 1 到 8，没有 EXIF 或者没有方向时返回 0。
+     */
+    public int getExifOrientation() {
+        ByteBuffer tiff = getExifTiff();
+        if (tiff == null) {
+            return 0;
+        }
+        int entry = findEntry(tiff, tiff.getInt(4), TAG_ORIENTATION);
+        return entry < 0 ? 0 : tiff.getShort(entry + 8) & 0xFFFF;
+    }
+
+    /**
+     * EXIF 中内嵌的 JPEG 缩略图，返回原始数组上的只读视图，不需要解码主图。
+     *
+     * @return 没有缩略图时返回 null
+     */
+    @Nullable
+    public ByteBuffer getThumbnail() {
+        ByteBuffer tiff = getExifTiff();
+        if (tiff == null) {
+            return null;
+        }
+        // 缩略图的位置记录在 IFD0 之后的 IFD1 中。
+        int ifd0 = tiff.getInt(4);
+        if (ifd0 < 8 || ifd0 + 2 > tiff.limit()) {
+            return null;
+        }
+        int nextIfdPosition = ifd0 + 2 + (tiff.getShort(ifd0) & 0xFFFF) * 12;
+        if (nextIfdPosition + 4 > tiff.limit()) {
+            return null;
+        }
+        int ifd1 = tiff.getInt(nextIfdPosition);
+        int offsetEntry = findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT);
+        int lengthEntry = findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (offsetEntry < 0 || lengthEntry < 0) {
+            return null;
+        }
+        int offset = tiff.getInt(offsetEntry + 8);
+        int length = tiff.getInt(lengthEntry + 8);
+        if (offset < 8 || length < 4 || offset > tiff.limit() - length
+                || (tiff.get(offset) & 0xFF) != 0xFF || (tiff.get(offset + 1) & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+        ByteBuffer thumbnail = tiff.duplicate();
+        thumbnail.limit(offset + length).position(offset);
+        return thumbnail.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 在指定的 IFD 中查找标签，返回条目的位置，找不到时返回 -1。
+     */
+    private static int findEntry(ByteBuffer tiff, int ifdOffset, int tag) {
+        if (ifdOffset < 8 || ifdOffset + 2 > tiff.limit()) {
+            return -1;
+        }
+        int count = tiff.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifdOffset + 2 + i * 12;
+            if (entry + 12 > tiff.limit()) {
+                return -1;
+            }
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 用新的 TIFF 数据替换原有的 EXIF，没有 EXIF 时插入到 SOI 和 JFIF 段之后。
+     *
+     * @param exifTiff 新的 TIFF 数据，可以分成多个 Buffer，比如 IFD 和缩略图
+     * @return 按顺序写出的 Buffer，除了新段的头部之外都是原始数组上的视图
+     */
+    @NonNull
+    public ByteBuffer[] splice(@NonNull ByteBuffer... exifTiff) {
+        int tiffSize = 0;
+        for (ByteBuffer buffer : exifTiff) {
+            tiffSize += buffer.remaining();
+        }
+        if (tiffSize > MAX_EXIF_TIFF_SIZE) {
+            throw new IllegalArgumentException("EXIF is too large: " + tiffSize);
+        }
+        int headEnd;
+        int tailStart;
+        if (mExifIndex >= 0) {
+            Segment exif = mSegments.get(mExifIndex);
+            headEnd = exif.offset;
+            tailStart = exif.offset + exif.length;
+        } else {
+            Segment first = mSegments.get(0);
+            headEnd = first.marker == MARKER_APP0 ? first.offset + first.length : 2;
+            tailStart = headEnd;
+        }
+        int segmentLength = 2 + EXIF_IDENTIFIER.length + tiffSize;
+        ByteBuffer header = ByteBuffer.allocate(4 + EXIF_IDENTIFIER.length);
+        header.put((byte) 0xFF).put((byte) MARKER_APP1).putShort((short) segmentLength).put(EXIF_IDENTIFIER);
+        header.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[exifTiff.length + 3];
+        buffers[0] = ByteBuffer.wrap(mData, 0, headEnd);
+        buffers[1] = header;
+        for (int i = 0; i < exifTiff.length; i++) {
+            buffers[i + 2] = exifTiff[i].duplicate();
+        }
+        buffers[buffers.length - 1] = ByteBuffer.wrap(mData, tailStart, mLength - tailStart);
+        return buffers;
+    }
+
+    /**
+     * 把所有 Buffer 聚集写入 FileChannel，直到全部写完。
+     *
+     * @return 写入的字节数
+     */
+    public static long write(@NonNull FileChannel channel, @NonNull ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        long written = 0;
+        while (written < remaining) {
+            written += channel.write(buffers);
+        }
+        return written;
+    }
+
+    @Override
+    public String toString() {
+        return "JpegSplicer{length=" + mLength + ", segments=" + mSegments + "}";
+    }
+
+}
@@ -0,0 +1,261 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+/**
+ * 统计 NV21 预览帧 Y 平面的亮度直方图、曝光指标和清晰度。
+ * <p>
+ * 按照配置的步长隔行隔列采样，结果写入调用者提供的 {@link Result}，每一帧都不会分配内存。
+ * 清晰度使用采样点和右边、下边相邻像素的梯度平方均值，在每个感兴趣区域内分别计算。
+ * 区域配置只能在统计线程上修改。
+ */
+public class LumaStats {
+
+    public static final int HISTOGRAM_SIZE = 256;
+
+    /**
+     * 亮度小于等于这个值的像素算作欠曝。
+     */
+    public static final int DEFAULT_CLIP_LOW = 4;
+
+    /**
+     * 亮度大于等于这个值的像素算作过曝。
+     */
+    public static final int DEFAULT_CLIP_HIGH = 251;
+
+    private final int mStrideX;
+    private final int mStrideY;
+    private int mClipLow = DEFAULT_CLIP_LOW;
+    private int mClipHigh = DEFAULT_CLIP_HIGH;
+    @NonNull
+    private Rect[] mRegions = new Rect[0];
+
+    /**
+     * @param strideX 水平方向的采样步长，1 代表每一列都采样
+     * @param strideY 垂直方向的采样步长，1 代表每一行都采样
+     */
+    public LumaStats(int strideX, int strideY) {
+        if (strideX <= 0 || strideY <= 0) {
+            throw new IllegalArgumentException("Illegal stride: " + strideX + "x" + strideY);
+        }
+        mStrideX = strideX;
+        mStrideY = strideY;
+    }
+
+    public int getStrideX() {
+        return mStrideX;
+    }
+
+    public int getStrideY() {
+        return mStrideY;
+    }
+
+    /**
+     * 设置欠曝和过曝的亮度阈值。
+     */
+    public void setClipThresholds(int clipLow, int clipHigh) {
+        if (clipLow < 0 || clipHigh >= HISTOGRAM_SIZE || clipLow >= clipHigh) {
+            throw new IllegalArgumentException("Illegal clip thresholds: " + clipLow + ", " + clipHigh);
+        }
+        mClipLow = clipLow;
+        mClipHigh = clipHigh;
+    }
+
+    /**
+     * 设置计算清晰度的感兴趣区域，坐标基于预览帧的像素。没有设置时使用整帧。
+     */
+    public void setRegions(@NonNull Rect... regions) {
+        Rect[] copy = new Rect[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            copy[i] = new Rect(regions[i].left, regions[i].top, regions[i].right, regions[i].bottom);
+        }
+        mRegions = copy;
+    }
+
+    /**
+     * 当前感兴趣区域的数量，没有设置时也会返回 1，代表整帧。
+     */
+    public int getRegionCount() {
+        return Math.max(1, mRegions.length);
+    }
+
+    /**
+     * 统计一帧预览数据。
+     */
+    @WorkerThread
+    @NonNull
+    public Result compute(@NonNull PreviewFrame frame, @NonNull Result result) {
+        return compute(frame.getData(), frame.getWidth(), frame.getHeight(), result);
+    }
+
+    /**
+     * 统计一帧 NV21 数据，只会读取前面 width * height 个字节的 Y 平面。
+     */
+    @WorkerThread
+    @NonNull
+    public Result compute(@NonNull byte[] nv21, int width, int height, @NonNull Result result) {
+        if (nv21.length < width * height) {
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + ": " + nv21.length);
+        }
+        computeHistogram(nv21, width, height, result);
+        Rect[] regions = mRegions;
+        int regionCount = getRegionCount();
+        result.ensureRegionCapacity(regionCount);
+        result.regionCount = regionCount;
+        if (regions.length == 0) {
+            result.sharpness[0] = computeSharpness(nv21, width, 0, 0, width, height);
+        } else {
+            for (int i = 0; i < regions.length; i++) {
+                Rect region = regions[i];
+                int left = Math.max(0, region.left);
+                int top = Math.max(0, region.top);
+                int right = Math.min(width, region.right);
+                int bottom = Math.min(height, region.bottom);
+                result.sharpness[i] = computeSharpness(nv21, width, left, top, right, bottom);
+            }
+        }
+        return result;
+    }
+
+    private void computeHistogram(byte[] y, int width, int height, Result result) {
+        int[] histogram = result.histogram;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            histogram[i] = 0;
+        }
+        int strideX = mStrideX;
+        int strideY = mStrideY;
+        long sum = 0;
+        int samples = 0;
+        for (int row = 0; row < height; row += strideY) {
+            int end = row * width + width;
+            for (int i = row * width; i < end; i += strideX) {
+                int luma = y[i] & 0xFF;
+                histogram[luma]++;
+                sum += luma;
+            }
+            samples += (width + strideX - 1) / strideX;
+        }
+
+        int clipLow = mClipLow;
+        int clipHigh = mClipHigh;
+        int underExposed = 0;
+        for (int i = 0; i <= clipLow; i++) {
+            underExposed += histogram[i];
+        }
+        int overExposed = 0;
+        for (int i = clipHigh; i < HISTOGRAM_SIZE; i++) {
+            overExposed += histogram[i];
+        }
+        result.sampleCount = samples;
+        result.mean = samples > 0 ? (float) sum / samples : 0;
+        result.underExposedCount = underExposed;
+        result.overExposedCount = overExposed;
+    }
+
+    /**
+     * 区域内梯度平方的均值，区域太小无法计算梯度时返回 0。
+     */
+    private float computeSharpness(byte[] y, int width, int left, int top, int right, int bottom) {
+        // 最后一行和最后一列没有右边和下边的相邻像素。
+        int lastRow = bottom - 1;
+        int lastColumn = right - 1;
+        if (lastRow <= top || lastColumn <= left) {
+            return 0;
+        }
+        int strideX = mStrideX;
+        int strideY = mStrideY;
+        long sum = 0;
+        int samples = 0;
+        for (int row = top; row < lastRow; row += strideY) {
+            int start = row * width + left;
+            int end = row * width + lastColumn;
+            for (int i = start; i < end; i += strideX) {
+                int center = y[i] & 0xFF;
+                int dx = (y[i + 1] & 0xFF) - center;
+                int dy = (y[i + width] & 0xFF) - center;
+                sum += dx * dx + dy * dy;
+            }
+            samples += (lastColumn - left + strideX - 1) / strideX;
+        }
+        return samples > 0 ? (float) sum / samples : 0;
+    }
+
+    /**
+     * 一帧的统计结果，可以重复使用。
+     */
+    public static class Result {
+        /**
+         * 采样点的亮度直方图。
+         */
+        public final int[] histogram = new int[HISTOGRAM_SIZE];
+        public int sampleCount;
+        public float mean;
+        public int underExposedCount;
+        public int overExposedCount;
+        /**
+         * 每个感兴趣区域的清晰度，只有前 {@link #regionCount} 个有效。
+         */
+        public float[] sharpness = new float[1];
+        public int regionCount;
+
+        private void ensureRegionCapacity(int regionCount) {
+            if (sharpness.length < regionCount) {
+                sharpness = new float[regionCount];
+            }
+        }
+
+        /**
+         * 欠曝像素的比例。
+         */
+        public float getUnderExposedRatio() {
+            return sampleCount > 0 ? (float) underExposedCount / sampleCount : 0;
+        }
+
+        /**
+         * 过曝像素的比例。
+         */
+        public float getOverExposedRatio() {
+            return sampleCount > 0 ? (float) overExposedCount / sampleCount : 0;
+        }
+
+        /**
+         * 所有感兴趣区域中最高的清晰度。
+         */
+        public float getMaxSharpness() {
+            float max = 0;
+            for (int i = 0; i < regionCount; i++) {
+                max = Math.max(max, sharpness[i]);
+            }
+            return max;
+        }
+
+        /**
+         * 亮度的百分位数。
+         *
+         * @param percentile 0 到 100 之间的百分位
+         */
+        public int getPercentile(float percentile) {
+            long target = Math.max(1, (long) Math.ceil(sampleCount * percentile / 100));
+            long count = 0;
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                count += histogram[i];
+                if (count >= target) {
+                    return i;
+                }
+            }
+            return HISTOGRAM_SIZE - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "LumaStats.Result{samples=" + sampleCount
+                    + ", mean=" + mean
+                    + ", underExposed=" + getUnderExposedRatio()
+                    + ", overExposed=" + getOverExposedRatio()
+                    + ", sharpness=" + getMaxSharpness() + "}";
+        }
+    }
+
+}
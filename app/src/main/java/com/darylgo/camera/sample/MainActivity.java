@@ -1,21 +1,25 @@
 package com.darylgo.camera.sample;
 
 import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.PixelFormat;
 import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.Environment;
 import android.os.HandlerThread;
-import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.util.Size;
 import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -24,107 +28,356 @@ import android.view.View;
 import android.view.Window;
 import android.widget.Button;
 
+import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class MainActivity extends AppCompatActivity implements Handler.Callback {
+public class MainActivity extends AppCompatActivity implements CameraCommandQueue.Executor<MainActivity.CameraCommand> {
 
-    private static final int MSG_OPEN_CAMERA = 1;
-    private static final int MSG_CLOSE_CAMERA = 2;
-    private static final int MSG_SET_PREVIEW_SIZE = 3;
-    private static final int MSG_SET_PREVIEW_SURFACE = 4;
-    private static final int MSG_START_PREVIEW = 5;
-    private static final int MSG_STOP_PREVIEW = 6;
-    private static final int MSG_SET_PICTURE_SIZE = 7;
-    private static final int MSG_TAKE_PICTURE = 8;
+    /**
+     * 相机线程上执行的命令，关闭相机和回收 Buffer 优先于配置工作，配置和拍照在 onPause 之后会被取消。
+     */
+    enum CameraCommand implements CameraCommandQueue.CommandType {
+        INIT_CAMERA_INFO(CameraCommandQueue.Priority.URGENT, false),
+        CLOSE_CAMERA(CameraCommandQueue.Priority.URGENT, false),
+        RECYCLE_PREVIEW_BUFFER(CameraCommandQueue.Priority.URGENT, false),
+        RECONFIGURE(CameraCommandQueue.Priority.NORMAL, true),
+        TAKE_PICTURE(CameraCommandQueue.Priority.NORMAL, true),
+        START_TIME_LAPSE(CameraCommandQueue.Priority.NORMAL, false),
+        STOP_TIME_LAPSE(CameraCommandQueue.Priority.NORMAL, false),
+        GOVERN_PREVIEW(CameraCommandQueue.Priority.BACKGROUND, true),
+        DUMP_FRAME_METRICS(CameraCommandQueue.Priority.BACKGROUND, true);
+
+        private final CameraCommandQueue.Priority mPriority;
+        private final boolean mSessionBound;
+
+        CameraCommand(CameraCommandQueue.Priority priority, boolean sessionBound) {
+            mPriority = priority;
+            mSessionBound = sessionBound;
+        }
+
+        @NonNull
+        @Override
+        public CameraCommandQueue.Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public boolean isSessionBound() {
+            return mSessionBound;
+        }
+    }
 
     private static final String TAG = "MainActivity";
     private static final int REQUEST_PERMISSIONS_CODE = 1;
     private static final String[] REQUIRED_PERMISSIONS = {Manifest.permission.CAMERA, Manifest.permission.WRITE_EXTERNAL_STORAGE};
     private static final int PREVIEW_FORMAT = ImageFormat.NV21;
+    private static final String CAPABILITY_INDEX_FILE_NAME = "camera_capabilities.bin";
+    private static final int PREVIEW_CALLBACK_BUFFER_COUNT = 3;
+    private static final int FRAME_PIPELINE_WORKER_COUNT = 1;
+    // 工作线程和队列加起来至少给 Camera 留一个 Buffer，否则 DROP_OLDEST 永远等不到新的帧，预览会卡住。
+    private static final int FRAME_PIPELINE_QUEUE_CAPACITY = PREVIEW_CALLBACK_BUFFER_COUNT - FRAME_PIPELINE_WORKER_COUNT - 1;
+    private static final int PHOTO_WRITER_QUEUE_CAPACITY = 8;
+    private static final int PHOTO_WRITER_SYNC_BATCH_SIZE = 4;
+    private static final int BURST_SHOT_COUNT = 5;
+    private static final long FRAME_METRICS_DUMP_INTERVAL_MS = 5000;
+    private static final long PREVIEW_GOVERNOR_INTERVAL_MS = 1000;
+    private static final int ORIENTATION_HYSTERESIS_DEGREES = 15;
+    private static final long ORIENTATION_DEBOUNCE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final String PRE_ROLL_FILE_PREFIX = "pre_roll";
+    private static final String PRE_ROLL_EXPORT_PREFIX = "PREROLL_";
+    private static final String THUMBNAIL_DIRECTORY_NAME = "thumbnails";
+    private static final int TIME_LAPSE_MAX_WIDTH = 1280;
+    private static final int DIRECT_FRAME_POOL_CAPACITY = 4;
+    private static final int PREVIEW_STREAM_FPS = 15;
+    private static final int PRE_ROLL_SECONDS = 3;
+    private static final int PRE_ROLL_FPS = 10;
+    private static final int PRE_ROLL_MAX_WIDTH = 640;
+    private static final int PRE_ROLL_MAX_EXPORTS = 5;
 
     @Nullable
     private HandlerThread mCameraThread = null;
 
     @Nullable
-    private Handler mCameraHandler = null;
+    private CameraCommandQueue<CameraCommand> mCameraCommandQueue = null;
 
+    // 摄像头信息在相机线程上初始化，UI 线程切换摄像头时也会读取。
     @Nullable
-    private Camera.CameraInfo mFrontCameraInfo = null;
-    private int mFrontCameraId = -1;
+    private volatile Camera.CameraInfo mFrontCameraInfo = null;
+    private volatile int mFrontCameraId = -1;
 
     @Nullable
-    private Camera.CameraInfo mBackCameraInfo = null;
-    private int mBackCameraId = -1;
+    private volatile Camera.CameraInfo mBackCameraInfo = null;
+    private volatile int mBackCameraId = -1;
 
     @Nullable
     private Camera mCamera;
     private int mCameraId = -1;
-    private Camera.CameraInfo mCameraInfo;
+    // 在相机线程上赋值，零延迟拍照时 UI 线程也会读取。
+    @Nullable
+    private volatile Camera.CameraInfo mCameraInfo;
+
+    /**
+     * 当前 Camera 的帧来源，预览和拍照都通过它进行。
+     */
+    @Nullable
+    private FrameSource mFrameSource;
+
+    /**
+     * 当前 Camera 的参数缓存，开启相机后读取一次，关闭相机时清空。
+     */
+    @Nullable
+    private CameraParametersCache mParametersCache;
+
+    /**
+     * 持久化的摄像头能力索引，避免每次启动和切换摄像头都重新查询。
+     */
+    @Nullable
+    private CameraCapabilityIndex mCapabilityIndex;
 
     @Nullable
     private SurfaceHolder mPreviewSurface;
     private int mPreviewSurfaceWidth;
     private int mPreviewSurfaceHeight;
 
+    /**
+     * UI 线程希望开启的摄像头 ID，{@link CameraConfig#DEFAULT_CAMERA_ID} 代表交给相机线程选择。
+     */
+    private int mTargetCameraId = CameraConfig.DEFAULT_CAMERA_ID;
+
+    /**
+     * 冷启动时间线，在 onCreate 开始时创建。
+     */
+    private StartupTimeline mStartupTimeline;
+
+    /**
+     * 等待相机线程应用的目标状态，多次请求只保留最新的一个。
+     */
+    private final AtomicReference<CameraConfig> mPendingCameraConfig = new AtomicReference<>();
+
+    // 相机线程上已经应用的状态。
+    @Nullable
+    private SurfaceHolder mAppliedPreviewSurface;
+    private int mAppliedPreviewSurfaceWidth;
+    private int mAppliedPreviewSurfaceHeight;
+    private boolean mPreviewing = false;
+
+    /**
+     * takePicture 已经发起，还没有收到 JPEG 回调。这期间预览是停止的，但不能重新配置或者开启预览。
+     */
+    private boolean mTakingPicture = false;
+
+    /**
+     * 最近一次配置的发起时间，收到新配置的第一帧之后清零。
+     */
+    private long mReconfigureStartNanos = 0;
+    private boolean mFirstPreviewFrameReceived = false;
+    private volatile long mLastReconfigureLatencyNanos = 0;
+
     @Nullable
     private DeviceOrientationListener mDeviceOrientationListener;
 
+    /**
+     * 设备相对自然方向顺时针旋转的角度，取值 0、90、180、270，在 UI 线程更新，拍照时在相机线程读取。
+     */
+    private volatile int mDeviceOrientation = 0;
+
+    /**
+     * 预览 Buffer 缓存池，切换摄像头时复用已经分配过的 Buffer。
+     */
+    private final PreviewBufferPool mPreviewBufferPool = new PreviewBufferPool();
+
+    /**
+     * 当前交给 Camera 的预览 Buffer，关闭相机时会归还到缓存池。
+     */
+    private final List<byte[]> mPreviewCallbackBuffers = new ArrayList<>(PREVIEW_CALLBACK_BUFFER_COUNT);
+
+    /**
+     * 把每一帧预览分发给多个订阅者，所有订阅者都释放之后才回收 Buffer。
+     */
+    private final FrameHub mFrameHub = new FrameHub(PREVIEW_CALLBACK_BUFFER_COUNT, new PreviewBufferRecycler());
+
+    /**
+     * 正在进行的延时摄影，打开和恢复文件需要读写磁盘，只在相机线程开始和停止。
+     */
+    @Nullable
+    private TimeLapseRecorder mTimeLapseRecorder;
+    @Nullable
+    private FrameHub.Subscription mTimeLapseSubscription;
+
+    /**
+     * 把预览帧复制到直接内存的可选模式，通过 {@link #setDirectFrameMirrorEnabled(boolean)} 开启。
+     */
+    private final DirectFramePool mDirectFramePool = new DirectFramePool(DIRECT_FRAME_POOL_CAPACITY);
+    @Nullable
+    private FrameHub.Subscription mDirectFrameSubscription;
+
+    /**
+     * 可选的预览推流服务，只在 UI 线程开始和停止。
+     */
+    @Nullable
+    private PreviewStreamServer mPreviewStreamServer;
+    @Nullable
+    private FrameHub.Subscription mPreviewStreamSubscription;
+
+    /**
+     * 已经分发出去还没回收的预览 Buffer，只在相机线程访问。
+     */
+    private final List<byte[]> mProcessingPreviewBuffers = new ArrayList<>(PREVIEW_CALLBACK_BUFFER_COUNT);
+
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private int mPreviewFormat;
+
+    /**
+     * 预览帧处理流水线，通过 {@link #getFramePipeline()} 注册 {@link FrameProcessor}。
+     */
+    @Nullable
+    private FramePipeline mFramePipeline;
+
+    /**
+     * 把预览帧旋转到屏幕显示方向，开启摄像头时根据 CameraInfo 更新角度和镜像设置。
+     */
+    private final Nv21Rotator mFrameRotator = new Nv21Rotator();
+
+    /**
+     * 运动检测器，注册在 FramePipeline 上处理每一帧预览。
+     */
+    private final MotionDetector mMotionDetector = new MotionDetector();
+
+    /**
+     * 按需把预览帧转换成 ARGB 像素，通过 {@link #requestPreviewSnapshot(int, PreviewSnapshot.Callback)} 请求。
+     */
+    private final PreviewSnapshot mPreviewSnapshot = new PreviewSnapshot();
+
+    /**
+     * 最近几秒预览帧的预录缓冲区，通过 {@link #setPreRollEnabled(boolean)} 开启，在相机线程创建和写入，检测到运动时导出。
+     * 帧先缩小到不超过 {@value #PRE_ROLL_MAX_WIDTH} 像素宽再写入，减少闪存的写入量。
+     */
+    @Nullable
+    private volatile PreRollRing mPreRollRing;
+    private volatile boolean mPreRollEnabled;
+    private final Object mPreRollLock = new Object();
+    private final AtomicBoolean mExportingPreRoll = new AtomicBoolean(false);
+    @Nullable
+    private FrameHub.Subscription mPreRollSubscription;
+    // 缩小预录帧的缓冲区，只在相机线程访问。
+    private byte[] mPreRollScratch = new byte[0];
+
+    /**
+     * 零延迟拍照，开启之后单拍直接从最近的预览帧中选帧编码。
+     */
+    private final ZslCapture mZslCapture = new ZslCapture();
+
+    /**
+     * 普通拍照按下快门的时间，用来计算到快门回调的延迟，和零延迟拍照对比。
+     */
+    private volatile long mShutterPressNanos = 0;
+    private volatile long mLastTakePictureLatencyNanos = 0;
+
+    /**
+     * 在 I/O 线程上保存照片，避免阻塞相机线程。
+     */
+    @Nullable
+    private PhotoWriter mPhotoWriter;
+
+    /**
+     * 拍照调度器，只在相机线程访问。
+     */
+    private final CaptureScheduler mCaptureScheduler = new CaptureScheduler(new CaptureCameraController());
+
+    /**
+     * 预览帧时序统计，在相机线程记录，可以在任意线程读取快照。
+     */
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
+    private final FrameMetrics.Snapshot mFrameMetricsSnapshot = new FrameMetrics.Snapshot();
+
+    /**
+     * 根据预览帧处理负载调整预览尺寸和帧率，只在相机线程访问。
+     */
+    private final PreviewGovernor mPreviewGovernor = new PreviewGovernor();
+
+    @WorkerThread
     @Override
-    public boolean handleMessage(Message msg) {
-        switch (msg.what) {
-            case MSG_OPEN_CAMERA: {
-                openCamera(msg.arg1);
+    public void execute(@NonNull CameraCommand command, @Nullable Object obj, int arg) {
+        switch (command) {
+            case INIT_CAMERA_INFO: {
+                initCameraInfo();
+                break;
+            }
+            case RECONFIGURE: {
+                reconfigure();
                 break;
             }
-            case MSG_CLOSE_CAMERA: {
+            case CLOSE_CAMERA: {
                 closeCamera();
                 break;
             }
-            case MSG_SET_PREVIEW_SIZE: {
-                int shortSide = msg.arg1;
-                int longSide = msg.arg2;
-                setPreviewSize(shortSide, longSide);
+            case RECYCLE_PREVIEW_BUFFER: {
+                recyclePreviewBuffer((byte[]) obj);
                 break;
             }
-            case MSG_SET_PREVIEW_SURFACE: {
-                SurfaceHolder previewSurface = (SurfaceHolder) msg.obj;
-                setPreviewSurface(previewSurface);
+            case TAKE_PICTURE: {
+                mCaptureScheduler.requestCapture(arg > 0 ? arg : 1);
                 break;
             }
-            case MSG_START_PREVIEW: {
-                startPreview();
+            case DUMP_FRAME_METRICS: {
+                dumpFrameMetrics();
                 break;
             }
-            case MSG_STOP_PREVIEW: {
-                stopPreview();
+            case START_TIME_LAPSE: {
+                openTimeLapse((Long) obj);
                 break;
             }
-            case MSG_SET_PICTURE_SIZE: {
-                int shortSide = msg.arg1;
-                int longSide = msg.arg2;
-                setPictureSize(shortSide, longSide);
+            case STOP_TIME_LAPSE: {
+                closeTimeLapse();
                 break;
             }
-            case MSG_TAKE_PICTURE: {
-                takePicture();
+            case GOVERN_PREVIEW: {
+                governPreview();
+                break;
             }
             default:
-                throw new IllegalArgumentException("Illegal message: " + msg.what);
+                throw new IllegalArgumentException("Illegal command: " + command);
         }
-        return false;
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mStartupTimeline = new StartupTimeline();
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
-
-        mDeviceOrientationListener = new DeviceOrientationListener(this);
 
+        // 先启动相机线程，在加载布局和创建 Surface 的同时枚举并开启摄像头。
         startCameraThread();
+        mCameraCommandQueue.post(CameraCommand.INIT_CAMERA_INFO);
+        if (isRequiredPermissionsGranted()) {
+            requestReconfigure();
+        }
+
+        mFramePipeline = new FramePipeline(FRAME_PIPELINE_QUEUE_CAPACITY, FRAME_PIPELINE_WORKER_COUNT,
+                FramePipeline.Backpressure.DROP_OLDEST, new FrameHubReleaser());
+        mMotionDetector.setListener(new MotionListener());
+        mFramePipeline.addProcessor(mMotionDetector);
+        mFramePipeline.addProcessor(mZslCapture);
+        mFramePipeline.addProcessor(mPreviewSnapshot);
+
+        mFrameHub.subscribe("pipeline", 0, new PipelineSubscriber());
 
-        initCameraInfo();
+        mPhotoWriter = new PhotoWriter(PHOTO_WRITER_QUEUE_CAPACITY, PHOTO_WRITER_SYNC_BATCH_SIZE);
+        mPhotoWriter.setThumbnailDirectory(new File(getCacheDir(), THUMBNAIL_DIRECTORY_NAME));
+
+        setContentView(R.layout.activity_main);
+        mStartupTimeline.mark(StartupTimeline.Phase.LAYOUT_INFLATED);
+
+        mDeviceOrientationListener = new DeviceOrientationListener(this);
 
         SurfaceView cameraPreview = findViewById(R.id.camera_preview);
         cameraPreview.getHolder().addCallback(new PreviewSurfaceCallback());
@@ -134,6 +387,7 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
 
         Button takePictureButton = findViewById(R.id.take_picture);
         takePictureButton.setOnClickListener(new OnTakePictureButtonClickListener());
+        takePictureButton.setOnLongClickListener(new OnTakePictureButtonLongClickListener());
     }
 
     @Override
@@ -151,17 +405,20 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
         // 动态权限检查
         if (!isRequiredPermissionsGranted() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             requestPermissions(REQUIRED_PERMISSIONS, REQUEST_PERMISSIONS_CODE);
-        } else if (mCameraHandler != null) {
-            mCameraHandler.obtainMessage(MSG_OPEN_CAMERA, getCameraId(), 0).sendToTarget();
+        } else {
+            requestReconfigure();
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        if (mCameraHandler != null) {
-            mCameraHandler.removeMessages(MSG_OPEN_CAMERA);
-            mCameraHandler.sendEmptyMessage(MSG_CLOSE_CAMERA);
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            // 丢弃还没应用的配置和这次会话中还没执行的命令，避免在关闭的相机上执行或者关闭之后又把相机打开。
+            mPendingCameraConfig.set(null);
+            cameraCommandQueue.cancelSession();
+            cameraCommandQueue.post(CameraCommand.CLOSE_CAMERA);
         }
     }
 
@@ -177,7 +434,368 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        FramePipeline framePipeline = mFramePipeline;
+        mFramePipeline = null;
+        if (framePipeline != null) {
+            framePipeline.release();
+        }
+        mZslCapture.release();
+        mPreviewSnapshot.release();
+        stopTimeLapse();
+        stopPreviewStreaming();
+        PhotoWriter photoWriter = mPhotoWriter;
+        mPhotoWriter = null;
+        if (photoWriter != null) {
+            photoWriter.release();
+        }
         stopCameraThread();
+        setPreRollEnabled(false);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // 界面已经不可见，缓存的 Buffer 短时间内用不上了。
+            mPreviewBufferPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // 内存紧张，先释放一半空闲的 Buffer。
+            mPreviewBufferPool.trimToSize(mPreviewBufferPool.getRetainedBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mPreviewBufferPool.clear();
+    }
+
+    /**
+     * 获取预览帧处理流水线，用于注册 {@link FrameProcessor}。
+     */
+    @Nullable
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+    /**
+     * 把下一帧预览转换成 ARGB 像素，比如用来生成缩略图，回调在流水线的工作线程上。
+     *
+     * @param downscale 缩小倍数，1 代表不缩小
+     */
+    public void requestPreviewSnapshot(int downscale, @NonNull PreviewSnapshot.Callback callback) {
+        mPreviewSnapshot.request(downscale, callback);
+    }
+
+    /**
+     * 获取预览帧旋转器，FrameProcessor 可以用它把预览帧转到屏幕显示方向，
+     * 输出 Buffer 来自 {@link #getPreviewBufferPool()}。
+     */
+    @NonNull
+    public Nv21Rotator getFrameRotator() {
+        return mFrameRotator;
+    }
+
+    /**
+     * 获取预览 Buffer 缓存池。
+     */
+    @NonNull
+    public PreviewBufferPool getPreviewBufferPool() {
+        return mPreviewBufferPool;
+    }
+
+    /**
+     * 获取照片保存器，可以查看写入耗时和队列深度。
+     */
+    @Nullable
+    public PhotoWriter getPhotoWriter() {
+        return mPhotoWriter;
+    }
+
+    /**
+     * 获取预览帧分发中心，可以添加自己的订阅者。
+     */
+    @NonNull
+    public FrameHub getFrameHub() {
+        return mFrameHub;
+    }
+
+    /**
+     * 获取运动检测器。
+     */
+    @NonNull
+    public MotionDetector getMotionDetector() {
+        return mMotionDetector;
+    }
+
+    /**
+     * 开始延时摄影，每隔 intervalSeconds 秒保存一帧预览，已经在进行的延时摄影会先停止。在 UI 线程调用。
+     * <p>
+     * 创建目录和恢复已有文件都在相机线程完成，保存的目录会打印在日志中。
+     *
+     * @return 间隔不合法或者相机线程没有运行时返回 false
+     */
+    public boolean startTimeLapse(long intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            Log.w(TAG, "Illegal time-lapse interval: " + intervalSeconds + "s");
+            return false;
+        }
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue == null) {
+            return false;
+        }
+        cameraCommandQueue.post(CameraCommand.START_TIME_LAPSE, TimeUnit.SECONDS.toNanos(intervalSeconds), 0);
+        return true;
+    }
+
+    /**
+     * 停止延时摄影，已经选中的帧会写完再关闭文件。在 UI 线程调用。
+     */
+    public void stopTimeLapse() {
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            cameraCommandQueue.post(CameraCommand.STOP_TIME_LAPSE);
+        }
+    }
+
+    @WorkerThread
+    private void openTimeLapse(long intervalNanos) {
+        closeTimeLapse();
+        File directory = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        if (directory == null) {
+            directory = new File(getFilesDir(), Environment.DIRECTORY_MOVIES);
+        }
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        File timeLapseDirectory = new File(directory, "TIMELAPSE_" + timestamp);
+        try {
+            TimeLapseRecorder recorder = TimeLapseRecorder.open(timeLapseDirectory, intervalNanos, TIME_LAPSE_MAX_WIDTH);
+            mTimeLapseRecorder = recorder;
+            mTimeLapseSubscription = mFrameHub.subscribe("timeLapse", 0, recorder);
+            Log.i(TAG, "Start time-lapse in " + timeLapseDirectory);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start time-lapse.", e);
+        }
+    }
+
+    @WorkerThread
+    private void closeTimeLapse() {
+        FrameHub.Subscription subscription = mTimeLapseSubscription;
+        mTimeLapseSubscription = null;
+        if (subscription != null) {
+            mFrameHub.unsubscribe(subscription);
+        }
+        TimeLapseRecorder recorder = mTimeLapseRecorder;
+        mTimeLapseRecorder = null;
+        if (recorder != null) {
+            Log.i(TAG, "Stop time-lapse: " + recorder);
+            recorder.release();
+        }
+    }
+
+    /**
+     * 开启或者关闭直接内存镜像，开启后每一帧预览都会复制一次到 {@link #getDirectFramePool()} 中分发给使用者。在 UI 线程调用。
+     */
+    public void setDirectFrameMirrorEnabled(boolean enabled) {
+        FrameHub.Subscription subscription = mDirectFrameSubscription;
+        if (enabled && subscription == null) {
+            mDirectFrameSubscription = mFrameHub.subscribe("directMirror", 0, mDirectFramePool);
+        } else if (!enabled && subscription != null) {
+            mFrameHub.unsubscribe(subscription);
+            mDirectFrameSubscription = null;
+        }
+    }
+
+    /**
+     * 获取直接内存帧缓存池，通过 {@link DirectFramePool#addConsumer(DirectFramePool.Consumer)} 注册使用者。
+     */
+    @NonNull
+    public DirectFramePool getDirectFramePool() {
+        return mDirectFramePool;
+    }
+
+    /**
+     * 开始预览推流，只监听本机回环地址。先在电脑上执行 adb forward tcp:端口 tcp:端口，
+     * 然后浏览器访问 http://localhost:端口/mjpeg 查看画面，工具可以访问 /nv21 获取原始数据。
+     * 已经在推流时会先停止。在 UI 线程调用。
+     *
+     * @param port 监听的端口，0 代表随机选择
+     * @return 实际监听的端口，启动失败时返回 -1
+     */
+    public int startPreviewStreaming(int port) {
+        stopPreviewStreaming();
+        try {
+            PreviewStreamServer server = PreviewStreamServer.start(port);
+            mPreviewStreamServer = server;
+            mPreviewStreamSubscription = mFrameHub.subscribe("stream", PREVIEW_STREAM_FPS, server);
+            return server.getPort();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start preview streaming.", e);
+            return -1;
+        }
+    }
+
+    /**
+     * 停止预览推流并断开所有客户端。在 UI 线程调用。
+     */
+    public void stopPreviewStreaming() {
+        FrameHub.Subscription subscription = mPreviewStreamSubscription;
+        mPreviewStreamSubscription = null;
+        if (subscription != null) {
+            mFrameHub.unsubscribe(subscription);
+        }
+        PreviewStreamServer server = mPreviewStreamServer;
+        mPreviewStreamServer = null;
+        if (server != null) {
+            Log.i(TAG, "Stop preview streaming: " + server);
+            server.stop();
+        }
+    }
+
+    /**
+     * 开启或者关闭零延迟拍照，开启后单拍不再调用 Camera.takePicture，连拍不受影响。
+     */
+    public void setZslEnabled(boolean enabled) {
+        mZslCapture.setEnabled(enabled);
+    }
+
+    /**
+     * 获取零延迟拍照，可以查看最近一次从按下快门到选中帧的时间。
+     */
+    @NonNull
+    public ZslCapture getZslCapture() {
+        return mZslCapture;
+    }
+
+    /**
+     * 获取预览档位调节器，可以通过 {@link PreviewGovernor#getChangeLog()} 查看预览尺寸和帧率的调整记录。
+     */
+    @NonNull
+    public PreviewGovernor getPreviewGovernor() {
+        return mPreviewGovernor;
+    }
+
+    /**
+     * 最近一次普通拍照从按下快门到快门回调的时间。
+     */
+    public long getLastTakePictureLatencyNanos() {
+        return mLastTakePictureLatencyNanos;
+    }
+
+    /**
+     * 获取预览帧时序统计，通过 {@link FrameMetrics#snapshot(FrameMetrics.Snapshot)} 读取。
+     */
+    @NonNull
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    /**
+     * 生成一个新的照片文件路径。
+     */
+    private File createPhotoFile() {
+        File directory = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        if (directory == null) {
+            directory = new File(getFilesDir(), Environment.DIRECTORY_PICTURES);
+        }
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        return new File(directory, "IMG_" + timestamp + ".jpg");
+    }
+
+    /**
+     * 生成拍照时写入的 EXIF，包含设备信息和拍摄时间。
+     */
+    @NonNull
+    private static ExifWriter createExifWriter() {
+        return new ExifWriter()
+                .setMake(Build.MANUFACTURER)
+                .setModel(Build.MODEL)
+                .setDateTime(System.currentTimeMillis());
+    }
+
+    /**
+     * 在独立的线程上导出预录缓冲区，导出期间预览和预录都不受影响，同一时间只会有一个导出任务。
+     * 导出目录中只保留最近的 {@value #PRE_ROLL_MAX_EXPORTS} 个预录文件。
+     */
+    private void exportPreRoll() {
+        final PreRollRing preRollRing = mPreRollRing;
+        if (preRollRing == null || !mExportingPreRoll.compareAndSet(false, true)) {
+            return;
+        }
+        File directory = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        if (directory == null) {
+            directory = new File(getFilesDir(), Environment.DIRECTORY_MOVIES);
+        }
+        final File exportDirectory = directory;
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        final File file = new File(exportDirectory, PRE_ROLL_EXPORT_PREFIX + timestamp + ".nv21");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int frameCount = preRollRing.freezeAndExport(file);
+                    Log.i(TAG, "Export " + frameCount + " pre-roll frames to " + file + "; " + preRollRing);
+                    trimPreRollExports(exportDirectory);
+                } catch (IOException | IllegalStateException e) {
+                    // 预录在导出开始之前被关闭时会抛出 IllegalStateException。
+                    Log.e(TAG, "Failed to export pre-roll frames.", e);
+                } finally {
+                    mExportingPreRoll.set(false);
+                }
+            }
+        }, "PreRollExporter").start();
+    }
+
+    /**
+     * 删除旧的预录文件，只保留最近的 {@value #PRE_ROLL_MAX_EXPORTS} 个，文件名中的时间戳可以直接按字典序排序。
+     */
+    @WorkerThread
+    private static void trimPreRollExports(@NonNull File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        List<String> exports = new ArrayList<>();
+        for (String name : names) {
+            if (name.startsWith(PRE_ROLL_EXPORT_PREFIX)) {
+                exports.add(name);
+            }
+        }
+        Collections.sort(exports);
+        for (int i = 0; i < exports.size() - PRE_ROLL_MAX_EXPORTS; i++) {
+            File file = new File(directory, exports.get(i));
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * 最近一次切换摄像头或者 Surface 变化，从发起请求到收到第一帧新画面的耗时。
+     */
+    public long getLastReconfigureLatencyNanos() {
+        return mLastReconfigureLatencyNanos;
+    }
+
+    /**
+     * 获取冷启动时间线，可以用来跟踪从启动到第一帧预览的耗时。
+     */
+    @NonNull
+    public StartupTimeline getStartupTimeline() {
+        return mStartupTimeline;
+    }
+
+    /**
+     * 根据 UI 线程当前的状态请求相机线程重新配置，还没应用的旧请求会被直接替换掉。
+     */
+    private void requestReconfigure() {
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            CameraConfig config = new CameraConfig(mTargetCameraId, mPreviewSurface, mPreviewSurfaceWidth, mPreviewSurfaceHeight);
+            if (mPendingCameraConfig.getAndSet(config) == null) {
+                // 已经有等待处理的请求时不需要再提交命令，相机线程会直接取最新的配置。
+                cameraCommandQueue.post(CameraCommand.RECONFIGURE);
+            }
+        }
     }
 
     /**
@@ -197,9 +815,13 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
      * 切换前后置时切换ID
      */
     private int switchCameraId() {
-        if (mCameraId == mFrontCameraId && hasBackCamera()) {
+        if (mTargetCameraId == CameraConfig.DEFAULT_CAMERA_ID) {
+            // 相机线程开启的是默认摄像头。
+            mTargetCameraId = getCameraId();
+        }
+        if (mTargetCameraId == mFrontCameraId && hasBackCamera()) {
             return mBackCameraId;
-        } else if (mCameraId == mBackCameraId && hasFrontCamera()) {
+        } else if (mTargetCameraId == mBackCameraId && hasFrontCamera()) {
             return mFrontCameraId;
         } else {
             throw new RuntimeException("No available camera id to switch.");
@@ -238,7 +860,8 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
     private void startCameraThread() {
         mCameraThread = new HandlerThread("CameraThread");
         mCameraThread.start();
-        mCameraHandler = new Handler(mCameraThread.getLooper(), this);
+        mCameraCommandQueue = new CameraCommandQueue<>(mCameraThread.getLooper(), CameraCommand.class, this);
+        mStartupTimeline.mark(StartupTimeline.Phase.CAMERA_THREAD_STARTED);
     }
 
     private void stopCameraThread() {
@@ -246,17 +869,28 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
             mCameraThread.quitSafely();
         }
         mCameraThread = null;
-        mCameraHandler = null;
+        mCameraCommandQueue = null;
     }
 
     /**
-     * 初始化摄像头信息。
+     * 初始化摄像头信息，优先从能力索引中读取。
      */
+    @WorkerThread
     private void initCameraInfo() {
-        int numberOfCameras = Camera.getNumberOfCameras();// 获取摄像头个数
+        File indexFile = new File(getCacheDir(), CAPABILITY_INDEX_FILE_NAME);
+        CameraCapabilityIndex capabilityIndex = CameraCapabilityIndex.load(indexFile, Build.FINGERPRINT);
+        mCapabilityIndex = capabilityIndex;
+        int numberOfCameras = capabilityIndex.getCameraCount();
+        if (numberOfCameras < 0) {
+            numberOfCameras = Camera.getNumberOfCameras();// 获取摄像头个数
+            capabilityIndex.setCameraCount(numberOfCameras);
+        }
         for (int cameraId = 0; cameraId < numberOfCameras; cameraId++) {
             Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-            Camera.getCameraInfo(cameraId, cameraInfo);
+            if (!capabilityIndex.getCameraInfo(cameraId, cameraInfo)) {
+                Camera.getCameraInfo(cameraId, cameraInfo);
+                capabilityIndex.putCameraInfo(cameraId, cameraInfo);
+            }
             if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
                 // 后置摄像头信息
                 mBackCameraId = cameraId;
@@ -267,6 +901,63 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
                 mFrontCameraInfo = cameraInfo;
             }
         }
+        capabilityIndex.saveIfDirty();
+        mStartupTimeline.mark(StartupTimeline.Phase.CAMERAS_ENUMERATED);
+    }
+
+    /**
+     * 应用最新的目标状态，只执行和当前状态不一样的步骤。正在拍照时推迟到拍照结束之后，由 {@link JpegCallback} 重新执行。
+     */
+    @WorkerThread
+    private void reconfigure() {
+        if (mTakingPicture) {
+            Log.d(TAG, "reconfigure() deferred until picture taken.");
+            return;
+        }
+        CameraConfig config = mPendingCameraConfig.getAndSet(null);
+        if (config == null) {
+            return;
+        }
+        int cameraId = config.getCameraId();
+        if (cameraId == CameraConfig.DEFAULT_CAMERA_ID) {
+            cameraId = mCameraId != -1 ? mCameraId : getCameraId();
+        }
+        SurfaceHolder previewSurface = config.getPreviewSurface();
+        int width = config.getPreviewSurfaceWidth();
+        int height = config.getPreviewSurfaceHeight();
+        boolean cameraChanged = mCamera == null || mCameraId != cameraId;
+        boolean sizeChanged = cameraChanged || mAppliedPreviewSurfaceWidth != width || mAppliedPreviewSurfaceHeight != height;
+        boolean surfaceChanged = cameraChanged || mAppliedPreviewSurface != previewSurface;
+        if (!sizeChanged && !surfaceChanged && (mPreviewing || previewSurface == null)) {
+            Log.d(TAG, "reconfigure() skipped, nothing changed: " + config);
+            return;
+        }
+        Log.d(TAG, "reconfigure() called with: " + config + "; cameraChanged = " + cameraChanged
+                + "; sizeChanged = " + sizeChanged + "; surfaceChanged = " + surfaceChanged);
+
+        if (mPreviewing && (sizeChanged || surfaceChanged)) {
+            stopPreview();
+        }
+        if (cameraChanged) {
+            closeCamera();
+            openCamera(cameraId);
+            if (mCamera == null) {
+                return;
+            }
+        }
+        if (sizeChanged) {
+            setPreviewAndPictureSize(width, height);
+            mAppliedPreviewSurfaceWidth = width;
+            mAppliedPreviewSurfaceHeight = height;
+        }
+        if (surfaceChanged) {
+            setPreviewSurface(previewSurface);
+            mAppliedPreviewSurface = previewSurface;
+        }
+        if (previewSurface != null && !mPreviewing) {
+            mReconfigureStartNanos = config.getRequestTimeNanos();
+            startPreview();
+        }
     }
 
     /**
@@ -280,18 +971,41 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
         }
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
             mCamera = Camera.open(cameraId);
+            mFrameSource = createFrameSource(mCamera);
+            mStartupTimeline.mark(StartupTimeline.Phase.CAMERA_OPENED);
             mCameraId = cameraId;
+            mParametersCache = new CameraParametersCache(mCamera);
+            CameraCapabilityIndex capabilityIndex = mCapabilityIndex;
+            if (capabilityIndex != null && !capabilityIndex.hasParameters(cameraId)) {
+                // 每个摄像头只需要查询一次支持的尺寸和格式。
+                capabilityIndex.putParameters(cameraId, mParametersCache.get());
+                capabilityIndex.saveIfDirty();
+            }
             mCameraInfo = cameraId == mFrontCameraId ? mFrontCameraInfo : mBackCameraInfo;
             Log.d(TAG, "Camera[" + cameraId + "] has been opened.");
             assert mCamera != null;
             mCamera.setDisplayOrientation(getCameraDisplayOrientation(mCameraInfo));
+            mFrameRotator.setOrientation(mCameraInfo, getDisplayRotationDegrees());
+            mDirectFramePool.setRotation(mFrameRotator.getRotation());
         }
     }
 
     /**
-     * 获取预览画面要校正的角度。
+     * 创建预览帧和拍照数据的来源，默认直接使用 Camera。
+     * <p>
+     * 子类可以返回 {@link SyntheticFrameSource} 或者 {@link ReplayFrameSource}，用固定的输入驱动整个处理流程，
+     * 参数仍然通过 Camera 设置，所以替代的帧来源要生成和选中的预览尺寸一样大的帧。返回的帧来源在关闭相机时释放。
      */
-    private int getCameraDisplayOrientation(Camera.CameraInfo cameraInfo) {
+    @NonNull
+    @WorkerThread
+    protected FrameSource createFrameSource(@NonNull Camera camera) {
+        return new CameraFrameSource(camera);
+    }
+
+    /**
+     * 获取屏幕相对自然方向的旋转角度。
+     */
+    private int getDisplayRotationDegrees() {
         int rotation = getWindowManager().getDefaultDisplay().getRotation();
         int degrees = 0;
         switch (rotation) {
@@ -308,6 +1022,14 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
                 degrees = 270;
                 break;
         }
+        return degrees;
+    }
+
+    /**
+     * 获取预览画面要校正的角度。
+     */
+    private int getCameraDisplayOrientation(Camera.CameraInfo cameraInfo) {
+        int degrees = getDisplayRotationDegrees();
         int result;
         if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
             result = (cameraInfo.orientation + degrees) % 360;
@@ -318,6 +1040,17 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
         return result;
     }
 
+    /**
+     * 根据设备方向计算照片需要旋转的角度，前置摄像头的传感器方向和设备旋转方向相反。
+     */
+    private static int getPictureRotation(@NonNull Camera.CameraInfo cameraInfo, int deviceOrientation) {
+        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            return (cameraInfo.orientation - deviceOrientation + 360) % 360;
+        } else {  // back-facing
+            return (cameraInfo.orientation + deviceOrientation) % 360;
+        }
+    }
+
     /**
      * 关闭相机。
      */
@@ -325,11 +1058,66 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
     private void closeCamera() {
         Camera camera = mCamera;
         mCamera = null;
+        FrameSource frameSource = mFrameSource;
+        mFrameSource = null;
+        if (frameSource != null && !(frameSource instanceof CameraFrameSource)) {
+            // CameraFrameSource 释放的就是 Camera，下面统一释放，替代的帧来源要单独释放。
+            frameSource.release();
+        }
+        CameraParametersCache parametersCache = mParametersCache;
+        mParametersCache = null;
+        if (parametersCache != null) {
+            Log.d(TAG, "Release parameters cache: " + parametersCache);
+        }
         if (camera != null) {
             camera.release();
             mCameraId = -1;
             mCameraInfo = null;
         }
+        mAppliedPreviewSurface = null;
+        mAppliedPreviewSurfaceWidth = 0;
+        mAppliedPreviewSurfaceHeight = 0;
+        mPreviewing = false;
+        mTakingPicture = false;
+        mCaptureScheduler.reset();
+        mMotionDetector.reset();
+        mZslCapture.clear();
+        recyclePreviewCallbackBuffers();
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            cameraCommandQueue.remove(CameraCommand.DUMP_FRAME_METRICS);
+            cameraCommandQueue.remove(CameraCommand.GOVERN_PREVIEW);
+        }
+        Log.d(TAG, "closeCamera() called: " + mPreviewBufferPool);
+    }
+
+    /**
+     * 根据指定的尺寸要求设置预览尺寸和照片尺寸，两者在同一次 setParameters 里提交，然后按照新尺寸重新分配预览 Buffer。
+     *
+     * @param shortSide 短边长度
+     * @param longSide  长边长度
+     */
+    @WorkerThread
+    private void setPreviewAndPictureSize(int shortSide, int longSide) {
+        FrameSource frameSource = mFrameSource;
+        CameraParametersCache parametersCache = mParametersCache;
+        CameraCapabilityIndex capabilityIndex = mCapabilityIndex;
+        if (frameSource == null || parametersCache == null || capabilityIndex == null || shortSide == 0 || longSide == 0) {
+            return;
+        }
+        Size previewSize;
+        CameraParametersCache.Transaction transaction = parametersCache.edit();
+        try {
+            previewSize = setPreviewSize(transaction, capabilityIndex, shortSide, longSide);
+            setPictureSize(transaction, capabilityIndex, shortSide, longSide);
+            transaction.commit();
+        } finally {
+            transaction.abort();
+        }
+        if (previewSize != null) {
+            addPreviewCallbackBuffers(frameSource, parametersCache, capabilityIndex, previewSize);
+            mStartupTimeline.mark(StartupTimeline.Phase.PARAMETERS_SET);
+        }
     }
 
     /**
@@ -337,46 +1125,176 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
      *
      * @param shortSide 短边长度
      * @param longSide  长边长度
+     * @return 选中的预览尺寸，没有合适的尺寸时返回 null
      */
+    @Nullable
     @WorkerThread
-    private void setPreviewSize(int shortSide, int longSide) {
-        Camera camera = mCamera;
-        if (camera != null && shortSide != 0 && longSide != 0) {
-            float aspectRatio = (float) longSide / shortSide;
-            Camera.Parameters parameters = camera.getParameters();
-            List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-            for (Camera.Size previewSize : supportedPreviewSizes) {
-                if ((float) previewSize.width / previewSize.height == aspectRatio && previewSize.height <= shortSide && previewSize.width <= longSide) {
-                    parameters.setPreviewSize(previewSize.width, previewSize.height);
-                    Log.d(TAG, "setPreviewSize() called with: width = " + previewSize.width + "; height = " + previewSize.height);
-
-                    if (isPreviewFormatSupported(parameters, PREVIEW_FORMAT)) {
-                        parameters.setPreviewFormat(PREVIEW_FORMAT);
-                        int frameWidth = previewSize.width;
-                        int frameHeight = previewSize.height;
-                        int previewFormat = parameters.getPreviewFormat();
-                        PixelFormat pixelFormat = new PixelFormat();
-                        PixelFormat.getPixelFormatInfo(previewFormat, pixelFormat);
-                        int bufferSize = (frameWidth * frameHeight * pixelFormat.bitsPerPixel) / 8;
-                        camera.addCallbackBuffer(new byte[bufferSize]);
-                        camera.addCallbackBuffer(new byte[bufferSize]);
-                        camera.addCallbackBuffer(new byte[bufferSize]);
-                        Log.d(TAG, "Add three callback buffers with size: " + bufferSize);
-                    }
+    private Size setPreviewSize(@NonNull CameraParametersCache.Transaction transaction,
+                                @NonNull CameraCapabilityIndex capabilityIndex, int shortSide, int longSide) {
+        Size previewSize = capabilityIndex.findPreviewSize(mCameraId, shortSide, longSide);
+        if (previewSize != null) {
+            Log.d(TAG, "setPreviewSize() called with: width = " + previewSize.getWidth() + "; height = " + previewSize.getHeight());
+            // 重新生成档位，从最高档开始，帧率范围也恢复到最高档。
+            mPreviewGovernor.reset(previewSize, capabilityIndex.getPreviewSizes(mCameraId), capabilityIndex.getPreviewFpsRanges(mCameraId));
+            PreviewGovernor.Level level = mPreviewGovernor.getCurrentLevel();
+            setPreviewSize(transaction, capabilityIndex, previewSize,
+                    level != null ? level.getMinFps() : 0, level != null ? level.getMaxFps() : 0);
+        }
+        return previewSize;
+    }
+
+    /**
+     * 设置预览尺寸、格式和帧率范围，提交之后要调用 {@link #addPreviewCallbackBuffers(FrameSource, CameraParametersCache, CameraCapabilityIndex, Size)}。
+     *
+     * @param minFps 帧率范围的下限，单位是 fps * 1000，0 代表不修改帧率范围
+     * @param maxFps 帧率范围的上限，单位是 fps * 1000
+     */
+    @WorkerThread
+    private void setPreviewSize(@NonNull CameraParametersCache.Transaction transaction, @NonNull CameraCapabilityIndex capabilityIndex,
+                                @NonNull Size previewSize, int minFps, int maxFps) {
+        transaction.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+        if (minFps > 0 && maxFps > 0) {
+            transaction.setPreviewFpsRange(minFps, maxFps);
+        }
+        if (capabilityIndex.isPreviewFormatSupported(mCameraId, PREVIEW_FORMAT)) {
+            transaction.setPreviewFormat(PREVIEW_FORMAT);
+        }
+    }
+
+    /**
+     * 按照已经提交的预览尺寸和格式重新分配预览 Buffer。
+     */
+    @WorkerThread
+    private void addPreviewCallbackBuffers(@NonNull FrameSource frameSource, @NonNull CameraParametersCache parametersCache,
+                                           @NonNull CameraCapabilityIndex capabilityIndex, @NonNull Size previewSize) {
+        if (capabilityIndex.isPreviewFormatSupported(mCameraId, PREVIEW_FORMAT)) {
+            int frameWidth = previewSize.getWidth();
+            int frameHeight = previewSize.getHeight();
+            int previewFormat = parametersCache.get().getPreviewFormat();
+            PixelFormat pixelFormat = new PixelFormat();
+            PixelFormat.getPixelFormatInfo(previewFormat, pixelFormat);
+            int bufferSize = (frameWidth * frameHeight * pixelFormat.bitsPerPixel) / 8;
+            mPreviewWidth = frameWidth;
+            mPreviewHeight = frameHeight;
+            mPreviewFormat = previewFormat;
+            addPreviewCallbackBuffers(frameSource, bufferSize);
+        }
+    }
+
+    /**
+     * 从缓存池中取出预览 Buffer 交给 Camera，之前添加的 Buffer 会先被回收。
+     */
+    @WorkerThread
+    private void addPreviewCallbackBuffers(FrameSource frameSource, int bufferSize) {
+        // 清空 Camera 内部的 Buffer 队列，旧尺寸的 Buffer 已经不能再用了。
+        frameSource.setFrameCallback(null);
+        recyclePreviewCallbackBuffers();
+        for (int i = 0; i < PREVIEW_CALLBACK_BUFFER_COUNT; i++) {
+            byte[] buffer = mPreviewBufferPool.acquire(bufferSize);
+            mPreviewCallbackBuffers.add(buffer);
+            frameSource.addCallbackBuffer(buffer);
+        }
+        Log.d(TAG, "Add " + PREVIEW_CALLBACK_BUFFER_COUNT + " callback buffers with size: " + bufferSize + "; " + mPreviewBufferPool);
+    }
 
-                    camera.setParameters(parameters);
-                    break;
+    /**
+     * 保证预录缓冲区的槽能放下一帧缩小之后的预览数据，尺寸变大时换一个新文件重新创建，
+     * 旧的缓冲区可能还在导出，等导出完成之后才会关闭和删除自己的文件。
+     *
+     * @return 预录已经关闭或者创建失败时返回 null
+     */
+    @WorkerThread
+    @Nullable
+    private PreRollRing ensurePreRollRing(int frameSize) {
+        synchronized (mPreRollLock) {
+            if (!mPreRollEnabled) {
+                return null;
+            }
+            PreRollRing preRollRing = mPreRollRing;
+            if (preRollRing != null && preRollRing.getMaxFrameSize() >= frameSize) {
+                return preRollRing;
+            }
+            mPreRollRing = null;
+            if (preRollRing != null) {
+                preRollRing.release();
+            }
+            File file = null;
+            try {
+                file = File.createTempFile(PRE_ROLL_FILE_PREFIX, ".ring", getCacheDir());
+                // 备用槽保证导出期间还能继续录制一秒。
+                preRollRing = PreRollRing.open(file, PreRollRing.getWindowFrames(PRE_ROLL_SECONDS, PRE_ROLL_FPS), PRE_ROLL_FPS, frameSize);
+                mPreRollRing = preRollRing;
+                Log.d(TAG, "Open pre-roll ring: " + preRollRing);
+                return preRollRing;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open pre-roll ring, disable pre-roll.", e);
+                if (file != null && !file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
                 }
+                mPreRollEnabled = false;
+                return null;
             }
         }
     }
 
     /**
-     * 判断指定的预览格式是否支持。
+     * 开启或者关闭预录，默认关闭。开启后持续把缩小的预览帧写入缓存目录中的映射文件，检测到运动时导出。在 UI 线程调用。
      */
-    private boolean isPreviewFormatSupported(Camera.Parameters parameters, int format) {
-        List<Integer> supportedPreviewFormats = parameters.getSupportedPreviewFormats();
-        return supportedPreviewFormats != null && supportedPreviewFormats.contains(format);
+    public void setPreRollEnabled(boolean enabled) {
+        if (enabled) {
+            mPreRollEnabled = true;
+            if (mPreRollSubscription == null) {
+                mPreRollSubscription = mFrameHub.subscribe("preRoll", PRE_ROLL_FPS, new PreRollSubscriber());
+            }
+            return;
+        }
+        FrameHub.Subscription subscription = mPreRollSubscription;
+        mPreRollSubscription = null;
+        if (subscription != null) {
+            mFrameHub.unsubscribe(subscription);
+        }
+        PreRollRing preRollRing;
+        synchronized (mPreRollLock) {
+            mPreRollEnabled = false;
+            preRollRing = mPreRollRing;
+            mPreRollRing = null;
+        }
+        if (preRollRing != null) {
+            Log.i(TAG, "Stop pre-roll: " + preRollRing);
+            preRollRing.release();
+        }
+    }
+
+    public boolean isPreRollEnabled() {
+        return mPreRollEnabled;
+    }
+
+    /**
+     * 把交给 Camera 的预览 Buffer 归还到缓存池，还被订阅者持有的 Buffer 要等全部释放之后才能归还。
+     */
+    @WorkerThread
+    private void recyclePreviewCallbackBuffers() {
+        for (byte[] buffer : mPreviewCallbackBuffers) {
+            if (!mProcessingPreviewBuffers.contains(buffer)) {
+                mPreviewBufferPool.release(buffer);
+            }
+        }
+        mPreviewCallbackBuffers.clear();
+    }
+
+    /**
+     * 回收处理完的预览 Buffer，如果它仍然属于当前的 Camera 就交还给 Camera，否则归还到缓存池。
+     */
+    @WorkerThread
+    private void recyclePreviewBuffer(@NonNull byte[] buffer) {
+        mProcessingPreviewBuffers.remove(buffer);
+        mFrameMetrics.onBufferReturned(buffer, SystemClock.elapsedRealtimeNanos());
+        FrameSource frameSource = mFrameSource;
+        if (frameSource != null && mPreviewCallbackBuffers.contains(buffer)) {
+            frameSource.addCallbackBuffer(buffer);
+        } else {
+            mPreviewBufferPool.release(buffer);
+        }
     }
 
     /**
@@ -386,20 +1304,12 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
      * @param longSide  长边长度
      */
     @WorkerThread
-    private void setPictureSize(int shortSide, int longSide) {
-        Camera camera = mCamera;
-        if (camera != null && shortSide != 0 && longSide != 0) {
-            float aspectRatio = (float) longSide / shortSide;
-            Camera.Parameters parameters = camera.getParameters();
-            List<Camera.Size> supportedPictureSizes = parameters.getSupportedPictureSizes();
-            for (Camera.Size pictureSize : supportedPictureSizes) {
-                if ((float) pictureSize.width / pictureSize.height == aspectRatio) {
-                    parameters.setPictureSize(pictureSize.width, pictureSize.height);
-                    camera.setParameters(parameters);
-                    Log.d(TAG, "setPictureSize() called with: width = " + pictureSize.width + "; height = " + pictureSize.height);
-                    break;
-                }
-            }
+    private void setPictureSize(@NonNull CameraParametersCache.Transaction transaction,
+                                @NonNull CameraCapabilityIndex capabilityIndex, int shortSide, int longSide) {
+        Size pictureSize = capabilityIndex.findPictureSize(mCameraId, shortSide, longSide);
+        if (pictureSize != null) {
+            transaction.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+            Log.d(TAG, "setPictureSize() called with: width = " + pictureSize.getWidth() + "; height = " + pictureSize.getHeight());
         }
     }
 
@@ -412,6 +1322,7 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
         if (camera != null && previewSurface != null) {
             try {
                 camera.setPreviewDisplay(previewSurface);
+                mStartupTimeline.mark(StartupTimeline.Phase.SURFACE_ATTACHED);
                 Log.d(TAG, "setPreviewSurface() called");
             } catch (IOException e) {
                 e.printStackTrace();
@@ -424,25 +1335,139 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
      */
     @WorkerThread
     private void startPreview() {
-        Camera camera = mCamera;
-        SurfaceHolder previewSurface = mPreviewSurface;
-        if (camera != null && previewSurface != null) {
-            camera.setPreviewCallbackWithBuffer(new PreviewCallback());
-            camera.startPreview();
+        FrameSource frameSource = mFrameSource;
+        SurfaceHolder previewSurface = mAppliedPreviewSurface;
+        if (frameSource != null && previewSurface != null) {
+            frameSource.setFrameCallback(new PreviewCallback());
+            frameSource.startPreview();
+            mPreviewing = true;
+            mStartupTimeline.mark(StartupTimeline.Phase.PREVIEW_STARTED);
+            onPreviewStarted();
             Log.d(TAG, "startPreview() called");
         }
     }
 
     /**
-     * 拍照。
+     * 预览开启之后重新开始统计帧间隔，并且定期输出统计数据。
      */
     @WorkerThread
-    private void takePicture() {
-        Camera camera = mCamera;
-        if (camera != null) {
-            Camera.Parameters parameters = camera.getParameters();
-            camera.setParameters(parameters);
-            camera.takePicture(new ShutterCallback(), new RawCallback(), new PostviewCallback(), new JpegCallback());
+    private void onPreviewStarted() {
+        mFrameMetrics.onPreviewStarted(mPreviewCallbackBuffers.size());
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            cameraCommandQueue.remove(CameraCommand.DUMP_FRAME_METRICS);
+            cameraCommandQueue.postDelayed(CameraCommand.DUMP_FRAME_METRICS, FRAME_METRICS_DUMP_INTERVAL_MS);
+            cameraCommandQueue.remove(CameraCommand.GOVERN_PREVIEW);
+            cameraCommandQueue.postDelayed(CameraCommand.GOVERN_PREVIEW, PREVIEW_GOVERNOR_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 输出预览帧时序统计和相机线程命令统计并检查被持有太久的帧，预览期间每隔 {@link #FRAME_METRICS_DUMP_INTERVAL_MS} 执行一次。
+     */
+    @WorkerThread
+    private void dumpFrameMetrics() {
+        Log.d(TAG, mFrameMetrics.snapshot(mFrameMetricsSnapshot).toString());
+        // 没有新帧发布时也要发现被订阅者一直持有的帧。
+        mFrameHub.checkLeaks(SystemClock.elapsedRealtimeNanos());
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        if (cameraCommandQueue != null) {
+            Log.d(TAG, cameraCommandQueue.toString());
+        }
+        if (mPreviewing && cameraCommandQueue != null) {
+            cameraCommandQueue.postDelayed(CameraCommand.DUMP_FRAME_METRICS, FRAME_METRICS_DUMP_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 检查预览帧处理负载，需要时切换预览档位，预览期间每隔 {@link #PREVIEW_GOVERNOR_INTERVAL_MS} 执行一次。
+     */
+    @WorkerThread
+    private void governPreview() {
+        CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+        FramePipeline framePipeline = mFramePipeline;
+        PreviewGovernor.Level currentLevel = mPreviewGovernor.getCurrentLevel();
+        if (!mPreviewing || cameraCommandQueue == null || framePipeline == null || currentLevel == null) {
+            return;
+        }
+        long frameIntervalNanos = mFrameMetrics.snapshot(mFrameMetricsSnapshot).expectedIntervalNanos;
+        if (frameIntervalNanos <= 0) {
+            frameIntervalNanos = PreviewGovernor.getFrameIntervalNanos(currentLevel);
+        }
+        PreviewGovernor.Level level = mPreviewGovernor.evaluate(SystemClock.elapsedRealtimeNanos(), framePipeline, frameIntervalNanos);
+        if (level != null) {
+            // 重新开启预览时会重新安排下一次检查。
+            applyPreviewLevel(level);
+        } else {
+            cameraCommandQueue.postDelayed(CameraCommand.GOVERN_PREVIEW, PREVIEW_GOVERNOR_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 停止预览，切换到指定的档位之后重新开启预览。
+     */
+    @WorkerThread
+    private void applyPreviewLevel(@NonNull PreviewGovernor.Level level) {
+        FrameSource frameSource = mFrameSource;
+        CameraParametersCache parametersCache = mParametersCache;
+        CameraCapabilityIndex capabilityIndex = mCapabilityIndex;
+        if (frameSource == null || parametersCache == null || capabilityIndex == null) {
+            return;
+        }
+        stopPreview();
+        mZslCapture.clear();
+        mMotionDetector.reset();
+        CameraParametersCache.Transaction transaction = parametersCache.edit();
+        try {
+            setPreviewSize(transaction, capabilityIndex, level.getSize(), level.getMinFps(), level.getMaxFps());
+            transaction.commit();
+        } finally {
+            transaction.abort();
+        }
+        addPreviewCallbackBuffers(frameSource, parametersCache, capabilityIndex, level.getSize());
+        startPreview();
+    }
+
+    /**
+     * 拍照，由 {@link CaptureScheduler} 调用。
+     *
+     * @return true 代表已经开始拍照
+     */
+    @WorkerThread
+    private boolean takePicture() {
+        FrameSource frameSource = mFrameSource;
+        if (frameSource != null) {
+            try {
+                // 通过 EXIF 方向告诉解码端如何旋转，不需要在拍照之后旋转像素。
+                CameraParametersCache parametersCache = mParametersCache;
+                Camera.CameraInfo cameraInfo = mCameraInfo;
+                if (parametersCache != null && cameraInfo != null) {
+                    parametersCache.edit().setRotation(getPictureRotation(cameraInfo, mDeviceOrientation)).commit();
+                }
+                frameSource.takePicture(new JpegCallback());
+                // 拍照之后预览会自动停止。
+                mPreviewing = false;
+                mTakingPicture = true;
+                return true;
+            } catch (RuntimeException e) {
+                // 预览没有开启的时候无法拍照。
+                Log.e(TAG, "Failed to take picture.", e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 拍照之后恢复预览。
+     */
+    @WorkerThread
+    private void restartPreview() {
+        FrameSource frameSource = mFrameSource;
+        if (frameSource != null && mAppliedPreviewSurface != null) {
+            frameSource.startPreview();
+            mPreviewing = true;
+            onPreviewStarted();
+            Log.d(TAG, "restartPreview() called");
         }
     }
 
@@ -451,9 +1476,10 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
      */
     @WorkerThread
     private void stopPreview() {
-        Camera camera = mCamera;
-        if (camera != null) {
-            camera.stopPreview();
+        FrameSource frameSource = mFrameSource;
+        if (frameSource != null) {
+            frameSource.stopPreview();
+            mPreviewing = false;
             Log.d(TAG, "stopPreview() called");
         }
     }
@@ -479,81 +1505,269 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
     private class OnSwitchCameraButtonClickListener implements View.OnClickListener {
         @Override
         public void onClick(View v) {
-            Handler cameraHandler = mCameraHandler;
-            SurfaceHolder previewSurface = mPreviewSurface;
-            int previewSurfaceWidth = mPreviewSurfaceWidth;
-            int previewSurfaceHeight = mPreviewSurfaceHeight;
-            if (cameraHandler != null && previewSurface != null) {
-                int cameraId = switchCameraId();// 切换摄像头 ID
-                cameraHandler.sendEmptyMessage(MSG_STOP_PREVIEW);// 停止预览
-                cameraHandler.sendEmptyMessage(MSG_CLOSE_CAMERA);// 关闭当前的摄像头
-                cameraHandler.obtainMessage(MSG_OPEN_CAMERA, cameraId, 0).sendToTarget();// 开启新的摄像头
-                cameraHandler.obtainMessage(MSG_SET_PREVIEW_SIZE, previewSurfaceWidth, previewSurfaceHeight).sendToTarget();// 配置预览尺寸
-                cameraHandler.obtainMessage(MSG_SET_PICTURE_SIZE, previewSurfaceWidth, previewSurfaceHeight).sendToTarget();// 配置照片尺寸
-                cameraHandler.obtainMessage(MSG_SET_PREVIEW_SURFACE, previewSurface).sendToTarget();// 配置预览 Surface
-                cameraHandler.sendEmptyMessage(MSG_START_PREVIEW);// 开启预览
+            if (mPreviewSurface != null && (hasFrontCamera() || hasBackCamera())) {
+                mTargetCameraId = switchCameraId();// 切换摄像头 ID
+                requestReconfigure();// 相机线程会关闭当前摄像头，开启新的摄像头并恢复预览
+            }
+        }
+    }
+
+    private class PreviewCallback implements FrameSource.FrameCallback {
+        @Override
+        public void onFrame(@NonNull byte[] data, @NonNull FrameSource source) {
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            mFrameMetrics.onFrameAvailable(data, timestampNanos);
+            if (!mFirstPreviewFrameReceived) {
+                mFirstPreviewFrameReceived = true;
+                if (mStartupTimeline.mark(StartupTimeline.Phase.FIRST_FRAME)) {
+                    Log.d(TAG, "First preview frame: " + mStartupTimeline);
+                }
+            }
+            if (mReconfigureStartNanos != 0) {
+                mLastReconfigureLatencyNanos = timestampNanos - mReconfigureStartNanos;
+                mReconfigureStartNanos = 0;
+                Log.d(TAG, "First frame after reconfigure: " + TimeUnit.NANOSECONDS.toMillis(mLastReconfigureLatencyNanos) + "ms");
             }
+            // 分发给所有订阅者，最后一个订阅者释放之后会通过 PreviewBufferRecycler 回收复用。
+            mProcessingPreviewBuffers.add(data);
+            mFrameHub.publish(data, mPreviewWidth, mPreviewHeight, mPreviewFormat, timestampNanos);
         }
     }
 
-    private class PreviewCallback implements Camera.PreviewCallback {
+    /**
+     * 把预览帧交给 FramePipeline 处理，处理完之后由 {@link FrameHubReleaser} 释放引用。
+     */
+    private class PipelineSubscriber implements FrameHub.Subscriber {
         @Override
-        public void onPreviewFrame(byte[] data, Camera camera) {
-            // 在使用完 Buffer 之后记得回收复用。
-            camera.addCallbackBuffer(data);
+        public void onFrame(@NonNull FrameHandle frame) {
+            FramePipeline framePipeline = mFramePipeline;
+            if (framePipeline != null) {
+                framePipeline.submit(frame.getData(), frame.getWidth(), frame.getHeight(), frame.getFormat(), frame.getTimestampNanos());
+            } else {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * 把预览帧写入预录缓冲区。
+     */
+    private class PreRollSubscriber implements FrameHub.Subscriber {
+        @Override
+        public void onFrame(@NonNull FrameHandle frame) {
+            try {
+                if (!mPreRollEnabled || frame.getFormat() != ImageFormat.NV21) {
+                    return;
+                }
+                int width = frame.getWidth();
+                int height = frame.getHeight();
+                int scale = Nv21Scaler.getScale(width, PRE_ROLL_MAX_WIDTH);
+                int scaledWidth = Nv21Scaler.getScaledWidth(width, scale);
+                int scaledHeight = Nv21Scaler.getScaledHeight(height, scale);
+                int scaledSize = scaledWidth * scaledHeight * 3 / 2;
+                PreRollRing preRollRing = ensurePreRollRing(scaledSize);
+                if (preRollRing == null) {
+                    return;
+                }
+                byte[] data = frame.getData();
+                if (scale > 1) {
+                    if (mPreRollScratch.length < scaledSize) {
+                        mPreRollScratch = new byte[scaledSize];
+                    }
+                    Nv21Scaler.downscale(data, width, height, scale, mPreRollScratch, scaledWidth, scaledHeight);
+                    data = mPreRollScratch;
+                }
+                preRollRing.write(data, scaledSize, scaledWidth, scaledHeight, frame.getFormat(), frame.getTimestampNanos());
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * FramePipeline 处理完之后释放 FrameHub 中对应帧的引用。
+     */
+    private class FrameHubReleaser implements FramePipeline.BufferRecycler {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+            if (!mFrameHub.release(buffer)) {
+                Log.w(TAG, "Recycle a buffer which is not published by FrameHub.");
+            }
+        }
+    }
+
+    /**
+     * 把所有订阅者都释放了的 Buffer 切回相机线程回收。
+     */
+    private class PreviewBufferRecycler implements FramePipeline.BufferRecycler {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+            CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+            if (cameraCommandQueue == null) {
+                mPreviewBufferPool.release(buffer);
+            } else if (cameraCommandQueue.isCurrentThread()) {
+                recyclePreviewBuffer(buffer);
+            } else {
+                cameraCommandQueue.post(CameraCommand.RECYCLE_PREVIEW_BUFFER, buffer, 0);
+            }
         }
     }
 
     private class OnTakePictureButtonClickListener implements View.OnClickListener {
         @Override
         public void onClick(View v) {
-            takePicture();
+            long pressNanos = SystemClock.elapsedRealtimeNanos();
+            Camera.CameraInfo cameraInfo = mCameraInfo;
+            if (mZslCapture.isEnabled() && cameraInfo != null
+                    && mZslCapture.capture(pressNanos, new ZslCallback(getPictureRotation(cameraInfo, mDeviceOrientation)))) {
+                return;// 零延迟拍照
+            }
+            CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+            if (cameraCommandQueue != null) {
+                mShutterPressNanos = pressNanos;
+                cameraCommandQueue.post(CameraCommand.TAKE_PICTURE, null, 1);// 单拍
+            }
+        }
+    }
+
+    private class OnTakePictureButtonLongClickListener implements View.OnLongClickListener {
+        @Override
+        public boolean onLongClick(View v) {
+            CameraCommandQueue<CameraCommand> cameraCommandQueue = mCameraCommandQueue;
+            if (cameraCommandQueue != null) {
+                cameraCommandQueue.post(CameraCommand.TAKE_PICTURE, null, BURST_SHOT_COUNT);// 连拍
+            }
+            return true;
         }
     }
 
+    private class CaptureCameraController implements CaptureScheduler.CameraController {
+        @Override
+        public boolean takePicture() {
+            return MainActivity.this.takePicture();
+        }
+
+        @Override
+        public void restartPreview() {
+            MainActivity.this.restartPreview();
+        }
+    }
+
+    private class MotionListener implements MotionDetector.Listener {
+        @Override
+        public void onMotionStarted(@NonNull Rect region, long timestampNanos) {
+            Log.i(TAG, "Motion started: " + region.toShortString());
+            exportPreRoll();
+        }
+
+        @Override
+        public void onMotionUpdated(@NonNull Rect region, long timestampNanos) {
+        }
+
+        @Override
+        public void onMotionStopped(long timestampNanos) {
+            Log.i(TAG, "Motion stopped: " + mMotionDetector);
+        }
+    }
+
+    /**
+     * 把传感器给出的角度吸附到 0、90、180、270，结果写入 {@link #mDeviceOrientation}。
+     * <p>
+     * 角度要偏离当前方向超过 45 + {@value #ORIENTATION_HYSTERESIS_DEGREES} 度才会成为候选方向，
+     * 候选方向保持 {@link #ORIENTATION_DEBOUNCE_NANOS} 之后才会生效，避免在两个方向的边界来回切换。
+     * 这个回调的频率很高，所以只使用基本类型的字段，不分配对象。
+     */
     private class DeviceOrientationListener extends OrientationEventListener {
 
+        private int mCandidateOrientation = -1;
+        private long mCandidateSinceNanos;
+
         private DeviceOrientationListener(Context context) {
             super(context);
         }
 
         @Override
         public void onOrientationChanged(int orientation) {
-
+            if (orientation == ORIENTATION_UNKNOWN) {
+                // 设备平放时无法判断方向，保持之前的结果。
+                mCandidateOrientation = -1;
+                return;
+            }
+            int current = mDeviceOrientation;
+            int distance = Math.abs(orientation - current);
+            distance = Math.min(distance, 360 - distance);
+            if (distance <= 45 + ORIENTATION_HYSTERESIS_DEGREES) {
+                mCandidateOrientation = -1;
+                return;
+            }
+            int quantized = ((orientation + 45) / 90 * 90) % 360;
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            if (quantized != mCandidateOrientation) {
+                mCandidateOrientation = quantized;
+                mCandidateSinceNanos = nowNanos;
+            } else if (nowNanos - mCandidateSinceNanos >= ORIENTATION_DEBOUNCE_NANOS) {
+                mDeviceOrientation = quantized;
+                mCandidateOrientation = -1;
+            }
         }
     }
 
-    private class ShutterCallback implements Camera.ShutterCallback {
+    private class JpegCallback implements FrameSource.PictureCallback {
         @Override
         public void onShutter() {
+            long pressNanos = mShutterPressNanos;
+            if (pressNanos != 0) {
+                mShutterPressNanos = 0;
+                mLastTakePictureLatencyNanos = SystemClock.elapsedRealtimeNanos() - pressNanos;
+                Log.d(TAG, "Press to shutter: " + TimeUnit.NANOSECONDS.toMillis(mLastTakePictureLatencyNanos) + "ms");
+            }
             Log.d(TAG, "onShutter() called");
         }
-    }
 
-    private class RawCallback implements Camera.PictureCallback {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            Log.d(TAG, "On raw taken.");
+        public void onPictureTaken(@Nullable byte[] data, @NonNull FrameSource source) {
+            Log.d(TAG, "On jpeg taken.");
+            PhotoWriter photoWriter = mPhotoWriter;
+            if (photoWriter != null && data != null) {
+                // 交给 I/O 线程保存，只有队列满了才会在这里等待，EXIF 在 I/O 线程上拼接。
+                photoWriter.submit(data, createPhotoFile(), createExifWriter());
+            }
+            // JPEG 回调之后就可以重新开启预览，继续下一张。
+            mTakingPicture = false;
+            mCaptureScheduler.onCaptureCompleted();
+            if (!mTakingPicture && mPendingCameraConfig.get() != null) {
+                // 拍照期间推迟的配置，连拍时等到最后一张拍完。
+                reconfigure();
+            }
         }
     }
 
-    private class PostviewCallback implements Camera.PictureCallback {
-        @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            Log.d(TAG, "On postview taken.");
+    private class ZslCallback implements ZslCapture.Callback {
+        /**
+         * 按下快门时根据设备方向算出的照片旋转角度。
+         */
+        private final int mRotation;
+
+        private ZslCallback(int rotation) {
+            mRotation = rotation;
         }
-    }
 
-    private class JpegCallback implements Camera.PictureCallback {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            Log.d(TAG, "On jpeg taken.");
+        public void onZslCaptured(@NonNull byte[] jpeg, long frameTimestampNanos, long pressToFrameNanos) {
+            Log.d(TAG, "Press to ZSL frame: " + TimeUnit.NANOSECONDS.toMillis(pressToFrameNanos)
+                    + "ms, press to shutter of takePicture: " + TimeUnit.NANOSECONDS.toMillis(mLastTakePictureLatencyNanos) + "ms");
+            PhotoWriter photoWriter = mPhotoWriter;
+            if (photoWriter != null) {
+                // 零延迟拍照按传感器方向编码，和 takePicture 一样通过 EXIF 方向旋转。
+                photoWriter.submit(jpeg, createPhotoFile(), createExifWriter().setRotation(mRotation));
+            }
         }
     }
 
     private class PreviewSurfaceCallback implements SurfaceHolder.Callback {
         @Override
         public void surfaceCreated(SurfaceHolder holder) {
+            mStartupTimeline.mark(StartupTimeline.Phase.SURFACE_CREATED);
 
         }
 
@@ -562,13 +1776,7 @@ public class MainActivity extends AppCompatActivity implements Handler.Callback
             mPreviewSurface = holder;
             mPreviewSurfaceWidth = width;
             mPreviewSurfaceHeight = height;
-            Handler cameraHandler = mCameraHandler;
-            if (cameraHandler != null) {
-                cameraHandler.obtainMessage(MSG_SET_PREVIEW_SIZE, width, height).sendToTarget();
-                cameraHandler.obtainMessage(MSG_SET_PICTURE_SIZE, width, height).sendToTarget();
-                cameraHandler.obtainMessage(MSG_SET_PREVIEW_SURFACE, holder).sendToTarget();
-                cameraHandler.sendEmptyMessage(MSG_START_PREVIEW);
-            }
+            requestReconfigure();
         }
 
         @Override
@@ -0,0 +1,367 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+/**
+ * 基于缩小后的亮度图的运动检测器。
+ * <p>
+ * 每一帧的 Y 平面先按整个缩放单元求平均（盒式滤波）缩小到大约 {@value #TARGET_WIDTH} 像素宽，再和参考图逐块比较，
+ * 参考图是历史帧的滑动平均。所有缓冲区在尺寸变化时才重新分配。
+ * <p>
+ * 运动状态带有迟滞：活动块数量达到进入阈值时开始运动，连续若干次低于退出阈值才结束运动。
+ * 没有运动时每 N 帧只处理一帧，降低监控时的开销。
+ */
+public class MotionDetector implements FrameProcessor {
+
+    /**
+     * 缩小之后的目标宽度。
+     */
+    private static final int TARGET_WIDTH = 160;
+
+    /**
+     * 比较时的块大小，基于缩小之后的像素。
+     */
+    private static final int BLOCK_SIZE = 8;
+
+    /**
+     * 参考图使用 8 位小数的定点数保存。
+     */
+    private static final int REFERENCE_SHIFT = 8;
+
+    /**
+     * 参考图的更新权重是 1 / 2^{@value #AVERAGE_SHIFT}。
+     */
+    private static final int AVERAGE_SHIFT = 4;
+
+    public static final int DEFAULT_BLOCK_THRESHOLD = 12;
+    public static final int DEFAULT_IDLE_FRAME_INTERVAL = 3;
+    public static final int DEFAULT_ENTER_BLOCKS = 2;
+    public static final int DEFAULT_EXIT_BLOCKS = 1;
+    public static final int DEFAULT_EXIT_FRAMES = 5;
+
+    /**
+     * 运动事件的监听器，除了 {@link #onMotionStopped(long)} 都在处理预览帧的线程上回调。
+     */
+    public interface Listener {
+        /**
+         * 开始运动。
+         *
+         * @param region 活动块的外接矩形，基于预览帧的像素，回调返回之后会被复用
+         */
+        @WorkerThread
+        void onMotionStarted(@NonNull Rect region, long timestampNanos);
+
+        /**
+         * 运动过程中每处理一帧回调一次。
+         *
+         * @param region 活动块的外接矩形，基于预览帧的像素，回调返回之后会被复用
+         */
+        @WorkerThread
+        void onMotionUpdated(@NonNull Rect region, long timestampNanos);
+
+        /**
+         * 运动结束。通常在处理预览帧的线程上回调；运动过程中调用 {@link #reset()} 时，
+         * 在调用 reset 的线程上同步回调，比如关闭相机时的相机线程，这样关闭相机之后不会一直停留在运动状态。
+         */
+        @AnyThread
+        void onMotionStopped(long timestampNanos);
+    }
+
+    private final int mBlockThreshold;
+    private final int mIdleFrameInterval;
+    private final int mEnterBlocks;
+    private final int mExitBlocks;
+    private final int mExitFrames;
+
+    @Nullable
+    private volatile Listener mListener;
+
+    // 以下字段只在持有锁的处理线程上访问。
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mScale;
+    private int mWidth;
+    private int mHeight;
+    private int mBlockColumns;
+    private int mBlockRows;
+    private int[] mCurrent = new int[0];
+    private int[] mReference = new int[0];
+    private boolean[] mActiveBlocks = new boolean[0];
+    private boolean mReferenceValid;
+    private int mFrameCounter;
+    private int mQuietFrames;
+    private final Rect mRegion = new Rect();
+
+    private volatile boolean mInMotion;
+    private volatile int mActiveBlockCount;
+    private volatile long mProcessedFrames;
+    private volatile long mSkippedFrames;
+    private volatile long mLastProcessNanos;
+    private volatile long mMaxProcessNanos;
+
+    public MotionDetector() {
+        this(DEFAULT_BLOCK_THRESHOLD, DEFAULT_IDLE_FRAME_INTERVAL, DEFAULT_ENTER_BLOCKS, DEFAULT_EXIT_BLOCKS, DEFAULT_EXIT_FRAMES);
+    }
+
+    /**
+     * @param blockThreshold    块内平均亮度差超过这个值时认为块在运动
+     * @param idleFrameInterval 没有运动时每隔多少帧处理一帧
+     * @param enterBlocks       活动块数量达到这个值时开始运动
+     * @param exitBlocks        活动块数量低于这个值时开始计算退出
+     * @param exitFrames        连续多少次处理的活动块数量低于退出阈值时结束运动
+     */
+    public MotionDetector(int blockThreshold, int idleFrameInterval, int enterBlocks, int exitBlocks, int exitFrames) {
+        if (blockThreshold <= 0 || idleFrameInterval <= 0 || exitBlocks <= 0 || enterBlocks < exitBlocks || exitFrames <= 0) {
+            throw new IllegalArgumentException("Illegal motion detector config.");
+        }
+        mBlockThreshold = blockThreshold;
+        mIdleFrameInterval = idleFrameInterval;
+        mEnterBlocks = enterBlocks;
+        mExitBlocks = exitBlocks;
+        mExitFrames = exitFrames;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    @WorkerThread
+    @Override
+    public synchronized void processFrame(@NonNull PreviewFrame frame) {
+        if (!mInMotion && mFrameCounter++ % mIdleFrameInterval != 0) {
+            mSkippedFrames++;
+            return;
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        if (frameWidth != mFrameWidth || frameHeight != mFrameHeight) {
+            allocate(frameWidth, frameHeight);
+        }
+        downsample(frame.getData());
+        if (!mReferenceValid) {
+            int[] current = mCurrent;
+            int[] reference = mReference;
+            for (int i = 0; i < current.length; i++) {
+                reference[i] = current[i] << REFERENCE_SHIFT;
+            }
+            mReferenceValid = true;
+        } else {
+            int activeBlocks = compareBlocks();
+            mActiveBlockCount = activeBlocks;
+            updateMotionState(activeBlocks, frame.getTimestampNanos());
+        }
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mLastProcessNanos = elapsedNanos;
+        if (elapsedNanos > mMaxProcessNanos) {
+            mMaxProcessNanos = elapsedNanos;
+        }
+        mProcessedFrames++;
+    }
+
+    /**
+     * 丢弃参考图，下一次处理的帧会成为新的参考图。正在运动时会在当前线程回调 {@link Listener#onMotionStopped(long)}。
+     */
+    public synchronized void reset() {
+        mReferenceValid = false;
+        mFrameCounter = 0;
+        mQuietFrames = 0;
+        mActiveBlockCount = 0;
+        if (mInMotion) {
+            mInMotion = false;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onMotionStopped(SystemClock.elapsedRealtimeNanos());
+            }
+        }
+    }
+
+    private void allocate(int frameWidth, int frameHeight) {
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mScale = Math.max(1, frameWidth / TARGET_WIDTH);
+        mWidth = frameWidth / mScale;
+        mHeight = frameHeight / mScale;
+        mBlockColumns = (mWidth + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        mBlockRows = (mHeight + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        mCurrent = new int[mWidth * mHeight];
+        mReference = new int[mWidth * mHeight];
+        mActiveBlocks = new boolean[mBlockColumns * mBlockRows];
+        mReferenceValid = false;
+    }
+
+    /**
+     * 每个输出像素取 scale x scale 单元内所有像素的平均值，只采样部分像素会让细密的纹理产生混叠，被误判成运动。
+     */
+    private void downsample(byte[] y) {
+        int[] current = mCurrent;
+        int frameWidth = mFrameWidth;
+        int scale = mScale;
+        int width = mWidth;
+        int height = mHeight;
+        int area = scale * scale;
+        for (int row = 0; row < height; row++) {
+            int rowStart = row * width;
+            int rowEnd = rowStart + width;
+            for (int i = rowStart; i < rowEnd; i++) {
+                current[i] = 0;
+            }
+            // 逐行累加单元内的像素，读取顺序和内存顺序一致。
+            for (int sourceRow = row * scale, lastRow = sourceRow + scale; sourceRow < lastRow; sourceRow++) {
+                int i = sourceRow * frameWidth;
+                for (int index = rowStart; index < rowEnd; index++) {
+                    int sum = 0;
+                    for (int end = i + scale; i < end; i++) {
+                        sum += y[i] & 0xFF;
+                    }
+                    current[index] += sum;
+                }
+            }
+            for (int i = rowStart; i < rowEnd; i++) {
+                current[i] /= area;
+            }
+        }
+    }
+
+    /**
+     * 计算每个块和参考图的平均亮度差，同时更新参考图。
+     *
+     * @return 活动块的数量
+     */
+    private int compareBlocks() {
+        int[] current = mCurrent;
+        int[] reference = mReference;
+        boolean[] activeBlocks = mActiveBlocks;
+        int width = mWidth;
+        int height = mHeight;
+        int blockColumns = mBlockColumns;
+        int blockThreshold = mBlockThreshold;
+        int activeCount = 0;
+        for (int blockRow = 0; blockRow < mBlockRows; blockRow++) {
+            int top = blockRow * BLOCK_SIZE;
+            int bottom = Math.min(height, top + BLOCK_SIZE);
+            for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+                int left = blockColumn * BLOCK_SIZE;
+                int right = Math.min(width, left + BLOCK_SIZE);
+                int sum = 0;
+                for (int row = top; row < bottom; row++) {
+                    int end = row * width + right;
+                    for (int i = row * width + left; i < end; i++) {
+                        int value = current[i];
+                        int average = reference[i];
+                        int diff = value - (average >> REFERENCE_SHIFT);
+                        sum += diff < 0 ? -diff : diff;
+                        reference[i] = average + (((value << REFERENCE_SHIFT) - average) >> AVERAGE_SHIFT);
+                    }
+                }
+                boolean active = sum > blockThreshold * (bottom - top) * (right - left);
+                activeBlocks[blockRow * blockColumns + blockColumn] = active;
+                if (active) {
+                    activeCount++;
+                }
+            }
+        }
+        return activeCount;
+    }
+
+    private void updateMotionState(int activeBlocks, long timestampNanos) {
+        Listener listener = mListener;
+        if (!mInMotion) {
+            if (activeBlocks >= mEnterBlocks) {
+                mInMotion = true;
+                mQuietFrames = 0;
+                if (listener != null) {
+                    listener.onMotionStarted(computeRegion(), timestampNanos);
+                }
+            }
+            return;
+        }
+        if (activeBlocks < mExitBlocks) {
+            if (++mQuietFrames >= mExitFrames) {
+                mInMotion = false;
+                mFrameCounter = 0;
+                if (listener != null) {
+                    listener.onMotionStopped(timestampNanos);
+                }
+                return;
+            }
+        } else {
+            mQuietFrames = 0;
+        }
+        if (listener != null && activeBlocks > 0) {
+            listener.onMotionUpdated(computeRegion(), timestampNanos);
+        }
+    }
+
+    /**
+     * 计算活动块在预览帧坐标上的外接矩形。
+     */
+    private Rect computeRegion() {
+        boolean[] activeBlocks = mActiveBlocks;
+        int blockColumns = mBlockColumns;
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = -1;
+        int bottom = -1;
+        for (int i = 0; i < activeBlocks.length; i++) {
+            if (activeBlocks[i]) {
+                int column = i % blockColumns;
+                int row = i / blockColumns;
+                left = Math.min(left, column);
+                top = Math.min(top, row);
+                right = Math.max(right, column);
+                bottom = Math.max(bottom, row);
+            }
+        }
+        int blockPixels = BLOCK_SIZE * mScale;
+        mRegion.set(left * blockPixels, top * blockPixels,
+                Math.min(mFrameWidth, (right + 1) * blockPixels), Math.min(mFrameHeight, (bottom + 1) * blockPixels));
+        return mRegion;
+    }
+
+    public boolean isInMotion() {
+        return mInMotion;
+    }
+
+    /**
+     * 最近一次处理时活动块的数量。
+     */
+    public int getActiveBlockCount() {
+        return mActiveBlockCount;
+    }
+
+    public long getProcessedFrames() {
+        return mProcessedFrames;
+    }
+
+    /**
+     * 没有运动时跳过的帧数。
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    public long getLastProcessNanos() {
+        return mLastProcessNanos;
+    }
+
+    public long getMaxProcessNanos() {
+        return mMaxProcessNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MotionDetector{inMotion=" + mInMotion
+                + ", activeBlocks=" + mActiveBlockCount
+                + ", processed=" + mProcessedFrames
+                + ", skipped=" + mSkippedFrames
+                + ", lastProcessUs=" + mLastProcessNanos / 1000
+                + ", maxProcessUs=" + mMaxProcessNanos / 1000 + "}";
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把 NV21 预览帧转换成 ARGB 或者 RGB 像素的转换器。
+ * <p>
+ * 转换结果直接写入调用者提供的数组，每一帧都不会分配内存。大尺寸的帧会按行切分成条带，
+ * 交给所有转换器共享的工作线程并行转换，调用线程自己也会处理其中一个条带。共享线程池最多有 CPU 核数 - 1 个线程，
+ * 空闲一段时间之后自动退出，创建再多的转换器也不会增加线程。
+ * <p>
+ * 颜色转换使用和 {@link android.graphics.YuvImage} 一致的 BT.601 full range 公式，
+ * 同一时刻只能有一个线程调用转换方法。
+ */
+public class Nv21Converter {
+
+    /**
+     * 输出像素少于这个数量的时候不值得切换线程，直接在调用线程转换。
+     */
+    private static final int MIN_PARALLEL_PIXELS = 320 * 240;
+
+    // BT.601 full range 系数，16 位定点数。
+    private static final int FIX_SHIFT = 16;
+    private static final int FIX_HALF = 1 << (FIX_SHIFT - 1);
+    private static final int FIX_R_V = 91881;   // 1.402
+    private static final int FIX_G_U = 22554;   // 0.344136
+    private static final int FIX_G_V = 46802;   // 0.714136
+    private static final int FIX_B_U = 116130;  // 1.772
+
+    private static final int OUTPUT_ARGB = 0;
+    private static final int OUTPUT_RGB = 1;
+
+    /**
+     * 共享工作线程空闲多久之后退出。
+     */
+    private static final long STRIPE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    private final StripeTask[] mStripeTasks;
+    private final Object mLock = new Object();
+
+    // 当前任务的参数，在 mLock 保护下发布给工作线程。
+    private byte[] mSrc;
+    private int mSrcWidth;
+    private int mSrcHeight;
+    private int mDownscale;
+    private int mOutputType;
+    private int[] mArgbDst;
+    private byte[] mRgbDst;
+    private int mDstWidth;
+    private int mDstHeight;
+    private int mStripeCount;
+
+    private int mPendingStripes;
+    private boolean mReleased;
+
+    /**
+     * 使用和 CPU 核数相同的线程数。
+     */
+    public Nv21Converter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount 最多参与转换的线程数，包括调用线程本身，实际还受共享线程池大小限制
+     */
+    public Nv21Converter(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Illegal thread count: " + threadCount);
+        }
+        int stripeTaskCount = Math.min(threadCount, getSharedThreadCount() + 1) - 1;
+        mStripeTasks = new StripeTask[stripeTaskCount];
+        for (int i = 0; i < mStripeTasks.length; i++) {
+            mStripeTasks[i] = new StripeTask(i + 1);
+        }
+    }
+
+    /**
+     * 共享线程池的线程数。
+     */
+    static int getSharedThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * 计算缩小之后的输出宽度。
+     */
+    public static int getOutputWidth(int width, int downscale) {
+        return width / downscale;
+    }
+
+    /**
+     * 计算缩小之后的输出高度。
+     */
+    public static int getOutputHeight(int height, int downscale) {
+        return height / downscale;
+    }
+
+    /**
+     * 转换成 ARGB_8888 像素。
+     *
+     * @param nv21      NV21 数据
+     * @param width     帧宽度
+     * @param height    帧高度
+     * @param argb      输出数组，长度至少为 (width / downscale) * (height / downscale)
+     * @param downscale 缩小倍数，1 代表不缩小
+     */
+    public void convertToArgb(@NonNull byte[] nv21, int width, int height, @NonNull int[] argb, int downscale) {
+        checkArguments(nv21, width, height, argb.length, 1, downscale);
+        synchronized (mLock) {
+            mArgbDst = argb;
+            mRgbDst = null;
+            mOutputType = OUTPUT_ARGB;
+        }
+        convert(nv21, width, height, downscale);
+    }
+
+    /**
+     * 转换成紧密排列的 RGB888 像素。
+     *
+     * @param nv21      NV21 数据
+     * @param width     帧宽度
+     * @param height    帧高度
+     * @param rgb       输出数组，长度至少为 (width / downscale) * (height / downscale) * 3
+     * @param downscale 缩小倍数，1 代表不缩小
+     */
+    public void convertToRgb(@NonNull byte[] nv21, int width, int height, @NonNull byte[] rgb, int downscale) {
+        checkArguments(nv21, width, height, rgb.length, 3, downscale);
+        synchronized (mLock) {
+            mRgbDst = rgb;
+            mArgbDst = null;
+            mOutputType = OUTPUT_RGB;
+        }
+        convert(nv21, width, height, downscale);
+    }
+
+    /**
+     * 释放转换器，之后不能再使用。正在进行的转换会被唤醒并抛出 {@link IllegalStateException}，
+     * 还没开始的条带不会再执行。共享的工作线程不属于某个转换器，空闲之后自己退出。
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private static void checkArguments(byte[] nv21, int width, int height, int dstLength, int dstPixelSize, int downscale) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Illegal frame size: " + width + "x" + height);
+        }
+        if (downscale <= 0) {
+            throw new IllegalArgumentException("Illegal downscale: " + downscale);
+        }
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("NV21 buffer is too small: " + nv21.length);
+        }
+        int dstSize = getOutputWidth(width, downscale) * getOutputHeight(height, downscale) * dstPixelSize;
+        if (dstLength < dstSize) {
+            throw new IllegalArgumentException("Output buffer is too small: " + dstLength + " < " + dstSize);
+        }
+    }
+
+    private void convert(byte[] nv21, int width, int height, int downscale) {
+        int dstWidth = getOutputWidth(width, downscale);
+        int dstHeight = getOutputHeight(height, downscale);
+        int stripeCount = dstWidth * dstHeight < MIN_PARALLEL_PIXELS ? 1 : Math.min(mStripeTasks.length + 1, dstHeight);
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("Nv21Converter has been released.");
+            }
+            mSrc = nv21;
+            mSrcWidth = width;
+            mSrcHeight = height;
+            mDownscale = downscale;
+            mDstWidth = dstWidth;
+            mDstHeight = dstHeight;
+            mStripeCount = stripeCount;
+            mPendingStripes = stripeCount - 1;
+        }
+        for (int stripe = 1; stripe < stripeCount; stripe++) {
+            // 队列满的时候 CallerRunsPolicy 会在调用线程直接执行。
+            SharedExecutor.INSTANCE.execute(mStripeTasks[stripe - 1]);
+        }
+
+        // 调用线程负责第 0 个条带。
+        convertStripe(0);
+
+        synchronized (mLock) {
+            boolean interrupted = false;
+            while (mPendingStripes > 0 && !mReleased) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mPendingStripes > 0) {
+                // 还没开始的条带不会再执行。正在转换的工作线程还会读取参数，所以不清空。
+                throw new IllegalStateException("Nv21Converter was released during conversion.");
+            }
+            mSrc = null;
+            mArgbDst = null;
+            mRgbDst = null;
+        }
+    }
+
+    private void convertStripe(int stripe) {
+        int rowStart = mDstHeight * stripe / mStripeCount;
+        int rowEnd = mDstHeight * (stripe + 1) / mStripeCount;
+        if (mOutputType == OUTPUT_ARGB) {
+            convertRowsToArgb(mSrc, mSrcWidth, mSrcHeight, mDownscale, mArgbDst, mDstWidth, rowStart, rowEnd);
+        } else {
+            convertRowsToRgb(mSrc, mSrcWidth, mSrcHeight, mDownscale, mRgbDst, mDstWidth, rowStart, rowEnd);
+        }
+    }
+
+    private static void convertRowsToArgb(byte[] nv21, int width, int height, int downscale,
+                                          int[] dst, int dstWidth, int rowStart, int rowEnd) {
+        int frameSize = width * height;
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int sy = dy * downscale;
+            int yIndex = sy * width;
+            int vuRow = frameSize + (sy >> 1) * width;
+            int out = dy * dstWidth;
+            for (int dx = 0, sx = 0; dx < dstWidth; dx++, sx += downscale) {
+                int y = nv21[yIndex + sx] & 0xff;
+                int vuIndex = vuRow + (sx & ~1);
+                int v = (nv21[vuIndex] & 0xff) - 128;
+                int u = (nv21[vuIndex + 1] & 0xff) - 128;
+                int yFix = (y << FIX_SHIFT) + FIX_HALF;
+                int r = (yFix + FIX_R_V * v) >> FIX_SHIFT;
+                int g = (yFix - FIX_G_U * u - FIX_G_V * v) >> FIX_SHIFT;
+                int b = (yFix + FIX_B_U * u) >> FIX_SHIFT;
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+                dst[out++] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static void convertRowsToRgb(byte[] nv21, int width, int height, int downscale,
+                                         byte[] dst, int dstWidth, int rowStart, int rowEnd) {
+        int frameSize = width * height;
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int sy = dy * downscale;
+            int yIndex = sy * width;
+            int vuRow = frameSize + (sy >> 1) * width;
+            int out = dy * dstWidth * 3;
+            for (int dx = 0, sx = 0; dx < dstWidth; dx++, sx += downscale) {
+                int y = nv21[yIndex + sx] & 0xff;
+                int vuIndex = vuRow + (sx & ~1);
+                int v = (nv21[vuIndex] & 0xff) - 128;
+                int u = (nv21[vuIndex + 1] & 0xff) - 128;
+                int yFix = (y << FIX_SHIFT) + FIX_HALF;
+                int r = (yFix + FIX_R_V * v) >> FIX_SHIFT;
+                int g = (yFix - FIX_G_U * u - FIX_G_V * v) >> FIX_SHIFT;
+                int b = (yFix + FIX_B_U * u) >> FIX_SHIFT;
+                dst[out++] = (byte) (r < 0 ? 0 : (r > 255 ? 255 : r));
+                dst[out++] = (byte) (g < 0 ? 0 : (g > 255 ? 255 : g));
+                dst[out++] = (byte) (b < 0 ? 0 : (b > 255 ? 255 : b));
+            }
+        }
+    }
+
+    /**
+     * 一个条带的转换任务，每个转换器预先创建好，每一帧重复提交。
+     */
+    private class StripeTask implements Runnable {
+
+        private final int mStripe;
+
+        private StripeTask(int stripe) {
+            mStripe = stripe;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mReleased) {
+                    return;
+                }
+            }
+            convertStripe(mStripe);
+            synchronized (mLock) {
+                mPendingStripes--;
+                if (mPendingStripes == 0) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 所有转换器共享的条带线程池，第一次并行转换时才创建。
+     */
+    private static class SharedExecutor {
+
+        private static final ThreadPoolExecutor INSTANCE = create();
+
+        private static ThreadPoolExecutor create() {
+            int threadCount = getSharedThreadCount();
+            final AtomicInteger threadIndex = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                    STRIPE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threadCount * 4),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Nv21Converter-" + threadIndex.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+import android.support.annotation.NonNull;
+
+/**
+ * 把 NV21 预览帧旋转到和屏幕显示一致的方向。
+ * <p>
+ * {@link Camera#setDisplayOrientation(int)} 只会旋转显示的画面，onPreviewFrame 拿到的数据仍然是传感器方向，
+ * 前置摄像头的画面还是镜像的。这里按照当前的 {@link Camera.CameraInfo} 计算旋转角度和是否需要镜像，
+ * 然后按块（Tile）处理 Y 平面和交错的 VU 平面，让 90/270 度旋转时的跨行写入尽量落在缓存里。
+ */
+public class Nv21Rotator {
+
+    /**
+     * 分块的边长，32x32 的 Y 块和 16x16 的 VU 块都能放进 L1 缓存。
+     */
+    private static final int TILE_SIZE = 32;
+
+    private volatile int mRotation;
+    private volatile boolean mMirror;
+
+    /**
+     * 根据摄像头信息和当前屏幕方向更新旋转角度和镜像设置。
+     *
+     * @param cameraInfo     当前摄像头信息
+     * @param displayDegrees 屏幕相对自然方向的旋转角度
+     */
+    public void setOrientation(@NonNull Camera.CameraInfo cameraInfo, int displayDegrees) {
+        mRotation = getFrameRotation(cameraInfo, displayDegrees);
+        mMirror = cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    /**
+     * 预览帧需要顺时针旋转的角度。
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * 预览帧是否需要水平镜像。
+     */
+    public boolean isMirror() {
+        return mMirror;
+    }
+
+    /**
+     * 旋转之后的宽度。
+     */
+    public int getOutputWidth(int width, int height) {
+        return mRotation % 180 == 0 ? width : height;
+    }
+
+    /**
+     * 旋转之后的高度。
+     */
+    public int getOutputHeight(int width, int height) {
+        return mRotation % 180 == 0 ? height : width;
+    }
+
+    /**
+     * 使用当前的方向设置旋转预览帧，结果写入从缓存池中取出的 Buffer，使用完之后需要归还到缓存池。
+     */
+    @NonNull
+    public byte[] rotate(@NonNull byte[] nv21, int width, int height, @NonNull PreviewBufferPool bufferPool) {
+        byte[] dst = bufferPool.acquire(width * height * 3 / 2);
+        rotate(nv21, width, height, dst, mRotation, mMirror);
+        return dst;
+    }
+
+    /**
+     * 计算预览帧需要顺时针旋转多少度才能和屏幕上看到的画面方向一致。
+     * <p>
+     * 前置摄像头的预览画面是先水平镜像再旋转的，和 {@link #rotate(byte[], int, int, byte[], int, boolean)} 的顺序一致，
+     * 所以结果和 {@link Camera#setDisplayOrientation(int)} 使用的角度相同，前置摄像头要反向补偿镜像。
+     */
+    public static int getFrameRotation(@NonNull Camera.CameraInfo cameraInfo, int displayDegrees) {
+        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            return (360 - (cameraInfo.orientation + displayDegrees) % 360) % 360;
+        } else {  // back-facing
+            return (cameraInfo.orientation - displayDegrees + 360) % 360;
+        }
+    }
+
+    /**
+     * 先水平镜像再顺时针旋转 NV21 数据。
+     *
+     * @param src      NV21 源数据
+     * @param width    源宽度，必须是偶数
+     * @param height   源高度，必须是偶数
+     * @param dst      输出 Buffer，不能和 src 相同
+     * @param rotation 顺时针旋转角度，只支持 0/90/180/270
+     * @param mirror   是否水平镜像
+     */
+    public static void rotate(@NonNull byte[] src, int width, int height, @NonNull byte[] dst, int rotation, boolean mirror) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Illegal frame size: " + width + "x" + height);
+        }
+        int frameSize = width * height;
+        if (src.length < frameSize * 3 / 2 || dst.length < frameSize * 3 / 2) {
+            throw new IllegalArgumentException("Buffer is too small for frame size: " + width + "x" + height);
+        }
+        if (src == dst) {
+            throw new IllegalArgumentException("In-place rotation is not supported.");
+        }
+        if (rotation == 0 && !mirror) {
+            System.arraycopy(src, 0, dst, 0, frameSize * 3 / 2);
+            return;
+        }
+        rotatePlane(src, 0, width, height, dst, 0, rotation, mirror, 1);
+        rotatePlane(src, frameSize, width / 2, height / 2, dst, frameSize, rotation, mirror, 2);
+    }
+
+    /**
+     * 按块旋转一个平面，pixelSize 为 1 代表 Y 平面，为 2 代表交错的 VU 平面。
+     * <p>
+     * 源像素 (x, y) 在输出中的下标可以表示成 origin + x * colStep + y * rowStep，
+     * 不同角度和镜像只是这三个参数不同。
+     */
+    private static void rotatePlane(byte[] src, int srcOffset, int width, int height,
+                                    byte[] dst, int dstOffset, int rotation, boolean mirror, int pixelSize) {
+        int origin;
+        int colStep;
+        int rowStep;
+        switch (rotation) {
+            case 0:
+                origin = 0;
+                colStep = 1;
+                rowStep = width;
+                break;
+            case 90:
+                origin = height - 1;
+                colStep = height;
+                rowStep = -1;
+                break;
+            case 180:
+                origin = width * height - 1;
+                colStep = -1;
+                rowStep = -width;
+                break;
+            case 270:
+                origin = (width - 1) * height;
+                colStep = -height;
+                rowStep = 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Illegal rotation: " + rotation);
+        }
+        if (mirror) {
+            origin += (width - 1) * colStep;
+            colStep = -colStep;
+        }
+
+        int tileSize = TILE_SIZE / pixelSize;
+        for (int tileY = 0; tileY < height; tileY += tileSize) {
+            int tileBottom = Math.min(tileY + tileSize, height);
+            for (int tileX = 0; tileX < width; tileX += tileSize) {
+                int tileRight = Math.min(tileX + tileSize, width);
+                for (int y = tileY; y < tileBottom; y++) {
+                    int srcIndex = srcOffset + (y * width + tileX) * pixelSize;
+                    int dstPixel = origin + tileX * colStep + y * rowStep;
+                    if (pixelSize == 1) {
+                        for (int x = tileX; x < tileRight; x++) {
+                            dst[dstOffset + dstPixel] = src[srcIndex++];
+                            dstPixel += colStep;
+                        }
+                    } else {
+                        for (int x = tileX; x < tileRight; x++) {
+                            int dstIndex = dstOffset + dstPixel * 2;
+                            dst[dstIndex] = src[srcIndex++];
+                            dst[dstIndex + 1] = src[srcIndex++];
+                            dstPixel += colStep;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
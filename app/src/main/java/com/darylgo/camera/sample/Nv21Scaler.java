@@ -0,0 +1,85 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 按 2 的幂缩小 NV21 帧，亮度和色度都取 scale x scale 区域的平均值。
+ * <p>
+ * 延时摄影和预录只需要小尺寸的画面，在写入磁盘之前先缩小可以成倍减少写入量。
+ */
+public final class Nv21Scaler {
+
+    private Nv21Scaler() {
+    }
+
+    /**
+     * 计算让宽度不超过 maxWidth 的最小缩小倍数，结果是 2 的幂。
+     */
+    public static int getScale(int width, int maxWidth) {
+        int scale = 1;
+        while (width / scale > maxWidth) {
+            scale <<= 1;
+        }
+        return scale;
+    }
+
+    /**
+     * 缩小之后的宽度，保证是偶数。
+     */
+    public static int getScaledWidth(int width, int scale) {
+        return (width / scale) & ~1;
+    }
+
+    /**
+     * 缩小之后的高度，保证是偶数。
+     */
+    public static int getScaledHeight(int height, int scale) {
+        return (height / scale) & ~1;
+    }
+
+    /**
+     * 按整数倍缩小 NV21，scale 必须是 2 的幂。
+     */
+    public static void downscale(@NonNull byte[] src, int width, int height, int scale,
+                                 @NonNull byte[] dst, int dstWidth, int dstHeight) {
+        if (scale == 1) {
+            System.arraycopy(src, 0, dst, 0, dstWidth * dstHeight);
+            System.arraycopy(src, width * height, dst, dstWidth * dstHeight, dstWidth * dstHeight / 2);
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(scale) * 2;
+        for (int y = 0; y < dstHeight; y++) {
+            int dstRow = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sum = 0;
+                for (int dy = 0; dy < scale; dy++) {
+                    int srcRow = (y * scale + dy) * width + x * scale;
+                    for (int dx = 0; dx < scale; dx++) {
+                        sum += src[srcRow + dx] & 0xFF;
+                    }
+                }
+                dst[dstRow + x] = (byte) (sum >> shift);
+            }
+        }
+        // 色度平面是宽 / 2 x 高 / 2 个 VU 对。
+        int srcVu = width * height;
+        int dstVu = dstWidth * dstHeight;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            for (int x = 0; x < dstWidth / 2; x++) {
+                int sumV = 0;
+                int sumU = 0;
+                for (int dy = 0; dy < scale; dy++) {
+                    int srcRow = srcVu + (y * scale + dy) * width + x * scale * 2;
+                    for (int dx = 0; dx < scale; dx++) {
+                        sumV += src[srcRow + dx * 2] & 0xFF;
+                        sumU += src[srcRow + dx * 2 + 1] & 0xFF;
+                    }
+                }
+                int dstIndex = dstVu + y * dstWidth + x * 2;
+                dst[dstIndex] = (byte) (sumV >> shift);
+                dst[dstIndex + 1] = (byte) (sumU >> shift);
+            }
+        }
+    }
+
+}
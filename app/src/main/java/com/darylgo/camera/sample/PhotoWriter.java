@@ -0,0 +1,373 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在独立的 I/O 线程上保存照片。
+ * <p>
+ * 拍照回调只负责把 JPEG 数据放进有界队列，只有队列满了才会等待磁盘。写入线程每次取出一批照片，
+ * 先通过 {@link FileChannel} 写到临时文件，整批写完之后再统一 fsync，最后重命名成正式文件名，
+ * 这样相册里永远不会出现写了一半的照片。
+ * <p>
+ * 提交时附带 {@link ExifWriter} 的照片会在写入线程上通过 {@link JpegSplicer} 补充 EXIF：没有 EXIF 时插入新的，
+ * 相机已经写入 EXIF 时只合并缺少的标签，相机写入的标签原样保留。原始 JPEG 数据不会被复制，
+ * 直接和新的 EXIF 一起聚集写入文件；内嵌的缩略图可以另外保存到缩略图目录。
+ */
+public class PhotoWriter {
+
+    private static final String TAG = "PhotoWriter";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * 照片保存结果的回调，运行在 I/O 线程上。
+     */
+    public interface Callback {
+        void onPhotoSaved(@NonNull File file, long latencyNanos);
+
+        void onPhotoFailed(@NonNull File file, @NonNull IOException e);
+    }
+
+    private static class Request {
+        private final byte[] mData;
+        private final File mFile;
+        private final long mSubmitTimeNanos;
+        @Nullable
+        private final ExifWriter mExifWriter;
+
+        @Nullable
+        private ByteBuffer mThumbnail;
+
+        @Nullable
+        private File mTempFile;
+        @Nullable
+        private FileChannel mChannel;
+        @Nullable
+        private IOException mError;
+
+        private Request(byte[] data, File file, @Nullable ExifWriter exifWriter, long submitTimeNanos) {
+            mData = data;
+            mFile = file;
+            mExifWriter = exifWriter;
+            mSubmitTimeNanos = submitTimeNanos;
+        }
+    }
+
+    /**
+     * 通知写入线程退出的标记。
+     */
+    private static final Request QUIT = new Request(new byte[0], new File(""), null, 0);
+
+    private final BlockingQueue<Request> mPendingRequests;
+    private final int mSyncBatchSize;
+    private final Thread mWriterThread;
+
+    @Nullable
+    private volatile Callback mCallback;
+
+    @Nullable
+    private volatile File mThumbnailDirectory;
+
+    // 统计信息，只在写入线程修改。
+    private volatile long mWrittenCount;
+    private volatile long mFailedCount;
+    private volatile long mLastLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+    private volatile long mTotalLatencyNanos;
+
+    /**
+     * @param queueCapacity 最多排队等待写入的照片数量
+     * @param syncBatchSize 每一批最多写入多少张照片再统一 fsync
+     */
+    public PhotoWriter(int queueCapacity, int syncBatchSize) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Illegal queue capacity: " + queueCapacity);
+        }
+        if (syncBatchSize <= 0) {
+            throw new IllegalArgumentException("Illegal sync batch size: " + syncBatchSize);
+        }
+        mPendingRequests = new ArrayBlockingQueue<>(queueCapacity);
+        mSyncBatchSize = syncBatchSize;
+        mWriterThread = new Thread(new WriterLoop(), "PhotoWriter");
+        mWriterThread.start();
+    }
+
+    public void setCallback(@Nullable Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * 设置保存内嵌缩略图的目录，缩略图和照片同名，null 代表不保存缩略图。
+     */
+    public void setThumbnailDirectory(@Nullable File thumbnailDirectory) {
+        mThumbnailDirectory = thumbnailDirectory;
+    }
+
+    /**
+     * 提交一张照片，队列满的时候会阻塞直到有空位。
+     *
+     * @param data JPEG 数据，提交之后不能再修改
+     * @param file 最终保存的文件
+     * @return false 代表 PhotoWriter 已经关闭或者等待时被中断
+     */
+    public boolean submit(@NonNull byte[] data, @NonNull File file) {
+        return submit(data, file, null);
+    }
+
+    /**
+     * 提交一张照片，队列满的时候会阻塞直到有空位。写入时把 exifWriter 中相机没有写入的标签合并进原有的 EXIF，
+     * 相机写入的标签（包括方向）原样保留；没有 EXIF 时插入 exifWriter 生成的 EXIF；没有缺少的标签或者解析失败时原样保存。
+     *
+     * @param exifWriter 要补充的 EXIF 标签，提交之后不能再修改，null 代表原样保存
+     */
+    public boolean submit(@NonNull byte[] data, @NonNull File file, @Nullable ExifWriter exifWriter) {
+        Request request = new Request(data, file, exifWriter, System.nanoTime());
+        if (!mWriterThread.isAlive()) {
+            Log.w(TAG, "PhotoWriter has been released, drop photo: " + file);
+            return false;
+        }
+        if (mPendingRequests.offer(request)) {
+            return true;
+        }
+        Log.w(TAG, "Photo queue is full, waiting for disk.");
+        try {
+            mPendingRequests.put(request);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 写完队列中剩余的照片之后退出写入线程。
+     */
+    public void release() {
+        try {
+            mPendingRequests.put(QUIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 当前排队等待写入的照片数量。
+     */
+    public int getQueueDepth() {
+        return mPendingRequests.size();
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * 最近一张照片从提交到保存完成的耗时。
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos() {
+        long writtenCount = mWrittenCount;
+        return writtenCount == 0 ? 0 : mTotalLatencyNanos / writtenCount;
+    }
+
+    @Override
+    public String toString() {
+        return "PhotoWriter{queueDepth=" + getQueueDepth()
+                + ", written=" + mWrittenCount
+                + ", failed=" + mFailedCount
+                + ", lastLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(mLastLatencyNanos)
+                + ", avgLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(getAverageLatencyNanos())
+                + ", maxLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(mMaxLatencyNanos) + "}";
+    }
+
+    private class WriterLoop implements Runnable {
+
+        private final List<Request> mBatch = new ArrayList<>();
+
+        @Override
+        public void run() {
+            boolean quit = false;
+            while (!quit) {
+                try {
+                    mBatch.add(mPendingRequests.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                mPendingRequests.drainTo(mBatch, mSyncBatchSize - 1);
+                int quitIndex = mBatch.indexOf(QUIT);
+                if (quitIndex >= 0) {
+                    // QUIT 之后不会再有新的请求，把剩下的也写完。
+                    mBatch.remove(quitIndex);
+                    mPendingRequests.drainTo(mBatch);
+                    quit = true;
+                }
+                writeBatch(mBatch);
+                mBatch.clear();
+            }
+            Log.d(TAG, "PhotoWriter quit: " + PhotoWriter.this);
+        }
+
+        private void writeBatch(List<Request> batch) {
+            // 1. 写入临时文件，暂时不 fsync。
+            for (Request request : batch) {
+                writeTempFile(request);
+            }
+            // 2. 统一 fsync 之后关闭。
+            for (Request request : batch) {
+                syncTempFile(request);
+            }
+            // 3. 数据已经落盘，原子地重命名成正式文件。
+            for (Request request : batch) {
+                commitTempFile(request);
+            }
+        }
+
+        private void writeTempFile(Request request) {
+            File tempFile = new File(request.mFile.getPath() + TEMP_FILE_SUFFIX);
+            request.mTempFile = tempFile;
+            FileChannel channel = null;
+            try {
+                File parent = tempFile.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create directory: " + parent);
+                }
+                channel = new FileOutputStream(tempFile).getChannel();
+                JpegSplicer.write(channel, prepareBuffers(request));
+                request.mChannel = channel;
+            } catch (IOException e) {
+                request.mError = e;
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * 需要补充 EXIF 时拼接出要写入的 Buffer。JPEG 或者 EXIF 解析失败、不需要补充标签时原样保存。
+         */
+        private ByteBuffer[] prepareBuffers(Request request) {
+            ByteBuffer[] original = new ByteBuffer[]{ByteBuffer.wrap(request.mData)};
+            ExifWriter exifWriter = request.mExifWriter;
+            if (exifWriter == null) {
+                return original;
+            }
+            try {
+                JpegSplicer splicer = JpegSplicer.parse(request.mData);
+                request.mThumbnail = splicer.getThumbnail();
+                if (!splicer.hasExif()) {
+                    return splicer.splice(exifWriter.build(null));
+                }
+                ByteBuffer tiff = splicer.getExifTiff();
+                // 相机写入的标签（包括方向）优先，只补充缺少的。
+                ByteBuffer[] merged = tiff != null ? exifWriter.merge(tiff) : null;
+                return merged != null ? splicer.splice(merged) : original;
+            } catch (IOException | RuntimeException e) {
+                // 相机给出的数据格式不对时也不能丢掉照片。
+                Log.w(TAG, "Failed to splice EXIF, save it as is: " + request.mFile, e);
+                request.mThumbnail = null;
+                return original;
+            }
+        }
+
+        private void syncTempFile(Request request) {
+            FileChannel channel = request.mChannel;
+            request.mChannel = null;
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(true);
+            } catch (IOException e) {
+                request.mError = e;
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+
+        private void commitTempFile(Request request) {
+            File tempFile = request.mTempFile;
+            if (request.mError == null && tempFile != null && !tempFile.renameTo(request.mFile)) {
+                request.mError = new IOException("Failed to rename " + tempFile + " to " + request.mFile);
+            }
+            Callback callback = mCallback;
+            if (request.mError != null) {
+                mFailedCount++;
+                Log.e(TAG, "Failed to save photo: " + request.mFile, request.mError);
+                if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                    Log.w(TAG, "Failed to delete temp file: " + tempFile);
+                }
+                if (callback != null) {
+                    callback.onPhotoFailed(request.mFile, request.mError);
+                }
+                return;
+            }
+            long latencyNanos = System.nanoTime() - request.mSubmitTimeNanos;
+            mLastLatencyNanos = latencyNanos;
+            mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+            mTotalLatencyNanos += latencyNanos;
+            mWrittenCount++;
+            Log.d(TAG, "Photo saved: " + request.mFile + "; latency = " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms");
+            writeThumbnail(request);
+            if (callback != null) {
+                callback.onPhotoSaved(request.mFile, latencyNanos);
+            }
+        }
+
+        /**
+         * 保存内嵌的缩略图，缩略图可以从照片重新生成，所以不需要 fsync。
+         */
+        private void writeThumbnail(Request request) {
+            File thumbnailDirectory = mThumbnailDirectory;
+            ByteBuffer thumbnail = request.mThumbnail;
+            request.mThumbnail = null;
+            if (thumbnailDirectory == null || thumbnail == null) {
+                return;
+            }
+            File thumbnailFile = new File(thumbnailDirectory, request.mFile.getName());
+            FileChannel channel = null;
+            try {
+                if (!thumbnailDirectory.isDirectory() && !thumbnailDirectory.mkdirs()) {
+                    throw new IOException("Failed to create directory: " + thumbnailDirectory);
+                }
+                channel = new FileOutputStream(thumbnailFile).getChannel();
+                JpegSplicer.write(channel, new ByteBuffer[]{thumbnail});
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save thumbnail: " + thumbnailFile, e);
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+
+        private void closeQuietly(@Nullable FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close channel.", e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 保存最近一段时间预览帧的环形缓冲区，用于行车记录仪式的预录。
+ * <p>
+ * 缓冲区通过内存映射文件分配，不占用 Java 堆。文件被分成固定大小的槽，每个槽以
+ * {@value #SLOT_HEADER_SIZE} 字节的头部开始，依次是时间戳、数据长度、宽、高、格式和帧序号，后面紧跟帧数据。
+ * 写入一帧只需要一次批量 put。
+ * <p>
+ * 槽的数量是预录窗口加上一些备用槽。{@link #freezeAndExport(File)} 冻结当前窗口内的帧，按时间顺序导出到文件中，
+ * 导出期间新的帧继续写入不属于冻结窗口的槽，冻结窗口里已经导出的槽也会陆续空出来，
+ * 只有写入追上还没导出的帧时才会丢帧。导出文件以 {@value #EXPORT_MAGIC} 开头，
+ * 后面是帧数量和每一帧的头部加数据，头部格式和槽的头部相同。
+ * <p>
+ * 每个缓冲区应该使用独立的文件，释放之后文件会被删除；导出过程中释放时，等导出完成之后再关闭和删除，
+ * 避免截断仍在读取的映射。
+ */
+public class PreRollRing {
+
+    private static final String TAG = "PreRollRing";
+
+    public static final int SLOT_HEADER_SIZE = 32;
+    public static final String EXPORT_MAGIC = "PRRL";
+    public static final int EXPORT_VERSION = 1;
+
+    private static final int HEADER_TIMESTAMP = 0;
+    private static final int HEADER_SIZE = 8;
+    private static final int HEADER_WIDTH = 12;
+    private static final int HEADER_HEIGHT = 16;
+    private static final int HEADER_FORMAT = 20;
+    private static final int HEADER_SEQUENCE = 24;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mWindowFrames;
+    private final int mSlotCount;
+    private final int mSlotSize;
+    private final int mMaxFrameSize;
+    private final Object mLock = new Object();
+
+    // 以下字段在 mLock 保护下访问。
+    private long mWriteCount;
+    private boolean mExporting;
+    // 正在导出时下一个要导出的帧序号，这个序号之前的槽可以被覆盖。
+    private long mExportCursor;
+    private boolean mReleased;
+    private boolean mClosed;
+
+    private volatile long mSkippedFrames;
+    private volatile long mOversizedFrames;
+
+    private PreRollRing(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer,
+                        int windowFrames, int slotCount, int slotSize, int maxFrameSize) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mWindowFrames = windowFrames;
+        mSlotCount = slotCount;
+        mSlotSize = slotSize;
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 创建或者覆盖一个环形缓冲区文件并映射到内存。
+     *
+     * @param file         映射的文件，旧内容会被丢弃，不能是其他缓冲区正在使用的文件
+     * @param windowFrames 预录窗口的帧数，也就是每次导出的最大帧数
+     * @param spareFrames  备用槽的数量，导出期间至少可以继续写入这么多帧
+     * @param maxFrameSize 每一帧数据的最大字节数
+     */
+    @WorkerThread
+    @NonNull
+    public static PreRollRing open(@NonNull File file, int windowFrames, int spareFrames, int maxFrameSize) throws IOException {
+        if (windowFrames <= 0 || spareFrames < 0 || maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Illegal pre-roll ring size: " + windowFrames + " + " + spareFrames + " x " + maxFrameSize);
+        }
+        int slotCount = windowFrames + spareFrames;
+        // 槽大小按 8 字节对齐，保证每个头部里的 long 字段都是对齐的。
+        int slotSize = (SLOT_HEADER_SIZE + maxFrameSize + 7) & ~7;
+        long length = (long) slotSize * slotCount;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Pre-roll ring too large: " + length);
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(length);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new PreRollRing(file, randomAccessFile, buffer, windowFrames, slotCount, slotSize, maxFrameSize);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 根据预录时长和帧率计算预录窗口的帧数。
+     */
+    public static int getWindowFrames(int seconds, int fps) {
+        return Math.max(1, seconds * fps);
+    }
+
+    public int getWindowFrames() {
+        return mWindowFrames;
+    }
+
+    /**
+     * 槽的总数量，包括备用槽。
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * 写入一帧数据，覆盖最旧的一帧。导出期间最旧的一帧还没导出，或者数据超过槽大小时直接丢弃。
+     *
+     * @return true 代表已经写入
+     */
+    @WorkerThread
+    public boolean write(@NonNull byte[] data, int length, int width, int height, int format, long timestampNanos) {
+        if (length > mMaxFrameSize) {
+            mOversizedFrames++;
+            return false;
+        }
+        synchronized (mLock) {
+            if (mReleased || (mExporting && mWriteCount - mSlotCount >= mExportCursor)) {
+                mSkippedFrames++;
+                return false;
+            }
+            MappedByteBuffer buffer = mBuffer;
+            int offset = (int) (mWriteCount % mSlotCount) * mSlotSize;
+            buffer.putLong(offset + HEADER_TIMESTAMP, timestampNanos);
+            buffer.putInt(offset + HEADER_SIZE, length);
+            buffer.putInt(offset + HEADER_WIDTH, width);
+            buffer.putInt(offset + HEADER_HEIGHT, height);
+            buffer.putInt(offset + HEADER_FORMAT, format);
+            buffer.putLong(offset + HEADER_SEQUENCE, mWriteCount);
+            buffer.position(offset + SLOT_HEADER_SIZE);
+            buffer.put(data, 0, length);
+            mWriteCount++;
+            return true;
+        }
+    }
+
+    /**
+     * 冻结当前窗口内的帧，按时间顺序导出到文件，导出期间继续写入新的帧。
+     * <p>
+     * 导出过程在调用线程上执行，不要在相机线程调用。
+     *
+     * @return 导出的帧数
+     */
+    @WorkerThread
+    public int freezeAndExport(@NonNull File file) throws IOException {
+        long start;
+        long end;
+        synchronized (mLock) {
+            if (mExporting || mReleased) {
+                throw new IllegalStateException("Pre-roll ring is exporting or released.");
+            }
+            end = mWriteCount;
+            start = Math.max(0, end - mWindowFrames);
+            mExporting = true;
+            mExportCursor = start;
+        }
+        try {
+            return export(file, start, end);
+        } finally {
+            synchronized (mLock) {
+                mExporting = false;
+                if (mReleased) {
+                    close();
+                }
+            }
+        }
+    }
+
+    private int export(File file, long start, long end) throws IOException {
+        int frameCount = (int) (end - start);
+        ByteBuffer source = mBuffer.duplicate();
+        source.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(EXPORT_MAGIC.getBytes("US-ASCII")).putInt(EXPORT_VERSION).putInt(frameCount);
+        header.flip();
+
+        long startNanos = System.nanoTime();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            FileChannel channel = outputStream.getChannel();
+            writeFully(channel, header);
+            for (long sequence = start; sequence < end; sequence++) {
+                int offset = (int) (sequence % mSlotCount) * mSlotSize;
+                int length = source.getInt(offset + HEADER_SIZE);
+                source.limit(offset + SLOT_HEADER_SIZE + length);
+                source.position(offset);
+                writeFully(channel, source);
+                source.clear();
+                synchronized (mLock) {
+                    // 这一帧已经导出，它的槽可以被新的帧覆盖了。
+                    mExportCursor = sequence + 1;
+                }
+            }
+            channel.force(false);
+        } finally {
+            outputStream.close();
+        }
+        Log.d(TAG, "Export " + frameCount + " frames to " + file + " in "
+                + (System.nanoTime() - startNanos) / 1000000 + "ms");
+        return frameCount;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 关闭并删除文件，之后写入的帧都会被丢弃。正在导出时不会等待，导出完成之后再关闭。
+     * 映射的内存在缓冲区对象被回收时释放。
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (!mExporting) {
+                close();
+            }
+        }
+    }
+
+    private void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + mFile, e);
+        }
+        if (!mFile.delete()) {
+            Log.w(TAG, "Failed to delete " + mFile);
+        }
+    }
+
+    /**
+     * 导出期间因为写入追上还没导出的帧而丢弃的帧数。
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * 超过槽大小而丢弃的帧数。
+     */
+    public long getOversizedFrames() {
+        return mOversizedFrames;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "PreRollRing{window=" + mWindowFrames
+                    + ", slots=" + mSlotCount
+                    + ", slotSize=" + mSlotSize
+                    + ", written=" + mWriteCount
+                    + ", skipped=" + mSkippedFrames
+                    + ", oversized=" + mOversizedFrames + "}";
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 按尺寸分级复用预览 Buffer 的缓存池。
+ * <p>
+ * 每次切换摄像头或者 Surface 尺寸变化时都会重新给 Camera 添加 Callback Buffer，
+ * 1080p 的 NV21 Buffer 大约有 3MB，直接 new 出来再丢给 GC 会导致明显的卡顿，
+ * 所以我们把关闭相机时收回的 Buffer 按照尺寸缓存起来，下次同尺寸的预览直接复用。
+ */
+public class PreviewBufferPool {
+
+    private static final String TAG = "PreviewBufferPool";
+
+    /**
+     * 默认最多缓存 20MB，足够容纳前后置各三个 1080p 的 NV21 Buffer（6 x 3110400 字节，约 17.8MB）。
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 20L * 1024 * 1024;
+
+    /**
+     * 按 Buffer 长度分级的空闲队列。
+     */
+    private final TreeMap<Integer, ArrayDeque<byte[]>> mFreeBuffers = new TreeMap<>();
+
+    private final long mMaxRetainedBytes;
+    private long mRetainedBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mAllocatedBytes;
+
+    public PreviewBufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    public PreviewBufferPool(long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("maxRetainedBytes must not be negative: " + maxRetainedBytes);
+        }
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * 获取一个长度恰好为 size 的 Buffer，缓存中没有的话才会重新分配。
+     */
+    @NonNull
+    public synchronized byte[] acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Illegal buffer size: " + size);
+        }
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(size);
+        if (buffers != null && !buffers.isEmpty()) {
+            byte[] buffer = buffers.pollLast();
+            if (buffers.isEmpty()) {
+                mFreeBuffers.remove(size);
+            }
+            mRetainedBytes -= size;
+            mHitCount++;
+            return buffer;
+        }
+        mMissCount++;
+        mAllocatedBytes += size;
+        return new byte[size];
+    }
+
+    /**
+     * 归还 Buffer，如果超出缓存上限则优先丢弃其他尺寸的 Buffer。
+     */
+    public synchronized void release(@NonNull byte[] buffer) {
+        int size = buffer.length;
+        if (size == 0 || size > mMaxRetainedBytes) {
+            return;
+        }
+        // 腾出空间，同尺寸的旧 Buffer 最后才会被丢弃。
+        evict(mMaxRetainedBytes - size, size);
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(size);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            mFreeBuffers.put(size, buffers);
+        }
+        buffers.addLast(buffer);
+        mRetainedBytes += size;
+    }
+
+    /**
+     * 把缓存裁剪到指定大小以内，用于响应内存压力。
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        evict(maxBytes, -1);
+        Log.d(TAG, "trimToSize() called with: maxBytes = " + maxBytes + "; retained = " + mRetainedBytes);
+    }
+
+    /**
+     * 清空所有缓存的 Buffer。
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 从最大的尺寸开始丢弃 Buffer，直到缓存大小不超过 maxBytes，keepSize 尺寸的 Buffer 最后才会被丢弃。
+     */
+    private void evict(long maxBytes, int keepSize) {
+        if (mRetainedBytes <= maxBytes) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> iterator = mFreeBuffers.descendingMap().entrySet().iterator();
+        while (iterator.hasNext() && mRetainedBytes > maxBytes) {
+            Map.Entry<Integer, ArrayDeque<byte[]>> entry = iterator.next();
+            if (entry.getKey() == keepSize) {
+                continue;
+            }
+            ArrayDeque<byte[]> buffers = entry.getValue();
+            while (!buffers.isEmpty() && mRetainedBytes > maxBytes) {
+                buffers.pollFirst();
+                mRetainedBytes -= entry.getKey();
+            }
+            if (buffers.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        ArrayDeque<byte[]> keepBuffers = mFreeBuffers.get(keepSize);
+        while (keepBuffers != null && !keepBuffers.isEmpty() && mRetainedBytes > maxBytes) {
+            keepBuffers.pollFirst();
+            mRetainedBytes -= keepSize;
+        }
+        if (keepBuffers != null && keepBuffers.isEmpty()) {
+            mFreeBuffers.remove(keepSize);
+        }
+    }
+
+    /**
+     * 复用命中次数。
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 没有命中缓存而重新分配的次数。
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 累计分配的字节数。
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * 当前缓存中空闲 Buffer 的总字节数。
+     */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreviewBufferPool{hit=" + mHitCount
+                + ", miss=" + mMissCount
+                + ", allocatedBytes=" + mAllocatedBytes
+                + ", retainedBytes=" + mRetainedBytes
+                + ", maxRetainedBytes=" + mMaxRetainedBytes + "}";
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.darylgo.camera.sample;
+
+/**
+ * 一帧预览数据，data 是 Camera 的 Callback Buffer，处理完之后会被回收复用，
+ * 所以不要在 {@link FrameProcessor#processFrame(PreviewFrame)} 返回之后继续持有它。
+ */
+public class PreviewFrame {
+
+    byte[] data;
+    int width;
+    int height;
+    int format;
+    long timestampNanos;
+
+    void set(byte[] data, int width, int height, int format, long timestampNanos) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.timestampNanos = timestampNanos;
+    }
+
+    void clear() {
+        data = null;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 预览格式，参考 {@link android.graphics.ImageFormat}。
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * 收到这一帧的时间，基于 {@link android.os.SystemClock#elapsedRealtimeNanos()}。
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+}
@@ -0,0 +1,340 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据预览帧处理的负载自动调整预览尺寸和帧率。
+ * <p>
+ * 每隔一段时间调用一次 {@link #evaluate(long, FramePipeline, long)}，根据这段时间内的丢帧比例、
+ * 平均处理耗时和队列积压判断是否过载。连续 {@value #OVERLOAD_EVALUATIONS} 次过载就降低一级，
+ * 连续 {@value #HEADROOM_EVALUATIONS} 次有余量就升高一级，每次调整之后等待
+ * {@value #COOLDOWN_EVALUATIONS} 次再重新判断，避免来回切换。
+ * <p>
+ * 如果升档之后还没稳定下来就因为过载降了回去，升到这一档需要的余量次数加倍，最多
+ * {@value #MAX_HEADROOM_EVALUATIONS} 次，避免在两档之间周期性地来回切换。在升上去的档位保持的次数
+ * 达到升档所需的次数就认为稳定了，这一档的要求恢复到 {@value #HEADROOM_EVALUATIONS} 次。
+ * <p>
+ * 档位从高到低先逐级缩小预览尺寸，到最小尺寸之后再逐级降低帧率。所有调整都记录在变更日志中，
+ * 变更日志可以在任意线程读取，其他方法只在相机线程访问。
+ */
+public class PreviewGovernor {
+
+    private static final String TAG = "PreviewGovernor";
+
+    private static final int OVERLOAD_EVALUATIONS = 3;
+    private static final int HEADROOM_EVALUATIONS = 10;
+    private static final int MAX_HEADROOM_EVALUATIONS = HEADROOM_EVALUATIONS << 4;
+    private static final int COOLDOWN_EVALUATIONS = 2;
+    private static final int MAX_CHANGE_LOG_SIZE = 32;
+
+    /**
+     * 丢帧比例超过这个值认为过载。
+     */
+    private static final float OVERLOAD_DROP_RATIO = 0.1f;
+
+    /**
+     * 平均处理耗时超过帧间隔的这个比例认为过载，低于 {@link #HEADROOM_PROCESS_RATIO} 认为有余量。
+     */
+    private static final float OVERLOAD_PROCESS_RATIO = 0.9f;
+    private static final float HEADROOM_PROCESS_RATIO = 0.5f;
+
+    /**
+     * 不会降到比这个更小的预览尺寸和更低的帧率。
+     */
+    private static final int MIN_PREVIEW_AREA = 320 * 240;
+    private static final int MIN_FPS = 15000;
+
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    /**
+     * 一个预览档位。
+     */
+    public static class Level {
+        private final Size mSize;
+        private final int mMinFps;
+        private final int mMaxFps;
+
+        public Level(@NonNull Size size, int minFps, int maxFps) {
+            mSize = size;
+            mMinFps = minFps;
+            mMaxFps = maxFps;
+        }
+
+        @NonNull
+        public Size getSize() {
+            return mSize;
+        }
+
+        /**
+         * 帧率范围的下限，单位是 fps * 1000。
+         */
+        public int getMinFps() {
+            return mMinFps;
+        }
+
+        /**
+         * 帧率范围的上限，单位是 fps * 1000。
+         */
+        public int getMaxFps() {
+            return mMaxFps;
+        }
+
+        @Override
+        public String toString() {
+            return mSize.getWidth() + "x" + mSize.getHeight() + "@" + mMinFps / 1000 + "-" + mMaxFps / 1000;
+        }
+    }
+
+    /**
+     * 一次档位调整的记录。
+     */
+    public static class Change {
+        public final long timestampNanos;
+        @NonNull
+        public final Level from;
+        @NonNull
+        public final Level to;
+        @NonNull
+        public final String reason;
+
+        private Change(long timestampNanos, @NonNull Level from, @NonNull Level to, @NonNull String reason) {
+            this.timestampNanos = timestampNanos;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + " (" + reason + ")";
+        }
+    }
+
+    private final List<Level> mLevels = new ArrayList<>();
+    private final ArrayDeque<Change> mChangeLog = new ArrayDeque<>(MAX_CHANGE_LOG_SIZE);
+    private int mCurrentLevel;
+    private int mOverloadCount;
+    private int mHeadroomCount;
+    private int mCooldown;
+
+    /**
+     * 升到每一档需要连续有余量的次数，下标和 {@link #mLevels} 对应。
+     */
+    private int[] mHeadroomEvaluations = new int[0];
+
+    /**
+     * 当前档位是升档得到的，并且还没有稳定下来。
+     */
+    private boolean mSteppedUp;
+
+    /**
+     * 切换到当前档位之后经过的判断次数。
+     */
+    private int mLevelEvaluations;
+    private long mLastSubmittedCount;
+    private long mLastDroppedCount;
+    private boolean mHasBaseline;
+
+    /**
+     * 根据摄像头支持的尺寸和帧率生成档位，从最高档开始。
+     *
+     * @param baseSize     根据 Surface 选出的预览尺寸，也是最高档的尺寸
+     * @param previewSizes 支持的预览尺寸，按面积从大到小排列
+     * @param fpsRanges    支持的帧率范围，按 [min0, max0, min1, max1, ...] 排列
+     */
+    @WorkerThread
+    public void reset(@NonNull Size baseSize, @NonNull List<Size> previewSizes, @NonNull int[] fpsRanges) {
+        mLevels.clear();
+        mCurrentLevel = 0;
+        mOverloadCount = 0;
+        mHeadroomCount = 0;
+        mCooldown = 0;
+        mHasBaseline = false;
+        mSteppedUp = false;
+        mLevelEvaluations = 0;
+        mHeadroomEvaluations = new int[0];
+
+        // 每个帧率上限只保留下限最高的范围，帧率更稳定。
+        List<int[]> ranges = new ArrayList<>();
+        for (int i = 0; i + 1 < fpsRanges.length; i += 2) {
+            int min = fpsRanges[i];
+            int max = fpsRanges[i + 1];
+            boolean replaced = false;
+            for (int[] range : ranges) {
+                if (range[1] == max) {
+                    range[0] = Math.max(range[0], min);
+                    replaced = true;
+                }
+            }
+            if (!replaced && max >= MIN_FPS) {
+                ranges.add(new int[]{min, max});
+            }
+        }
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return rhs[1] - lhs[1];
+            }
+        });
+        if (ranges.isEmpty()) {
+            return;
+        }
+        int[] fastest = ranges.get(0);
+
+        float baseRatio = (float) baseSize.getWidth() / baseSize.getHeight();
+        int baseArea = baseSize.getWidth() * baseSize.getHeight();
+        Size smallest = baseSize;
+        mLevels.add(new Level(baseSize, fastest[0], fastest[1]));
+        for (Size size : previewSizes) {
+            int area = size.getWidth() * size.getHeight();
+            float ratio = (float) size.getWidth() / size.getHeight();
+            if (area < baseArea && area >= MIN_PREVIEW_AREA && Math.abs(ratio - baseRatio) <= ASPECT_RATIO_TOLERANCE) {
+                mLevels.add(new Level(size, fastest[0], fastest[1]));
+                smallest = size;
+            }
+        }
+        for (int i = 1; i < ranges.size(); i++) {
+            mLevels.add(new Level(smallest, ranges.get(i)[0], ranges.get(i)[1]));
+        }
+        mHeadroomEvaluations = new int[mLevels.size()];
+        Arrays.fill(mHeadroomEvaluations, HEADROOM_EVALUATIONS);
+        Log.d(TAG, "Preview levels: " + mLevels);
+    }
+
+    /**
+     * 当前档位，没有可用档位时返回 null。
+     */
+    @Nullable
+    public Level getCurrentLevel() {
+        return mLevels.isEmpty() ? null : mLevels.get(mCurrentLevel);
+    }
+
+    /**
+     * 根据这段时间的负载判断是否需要调整档位。
+     *
+     * @param frameIntervalNanos 当前的期望帧间隔
+     * @return 需要切换到的新档位，null 代表保持不变
+     */
+    @WorkerThread
+    @Nullable
+    public Level evaluate(long nowNanos, @NonNull FramePipeline framePipeline, long frameIntervalNanos) {
+        long submittedCount = framePipeline.getSubmittedCount();
+        long droppedCount = framePipeline.getDroppedCount();
+        long submitted = submittedCount - mLastSubmittedCount;
+        long dropped = droppedCount - mLastDroppedCount;
+        mLastSubmittedCount = submittedCount;
+        mLastDroppedCount = droppedCount;
+        if (!mHasBaseline) {
+            mHasBaseline = true;
+            return null;
+        }
+        if (mLevels.size() < 2 || submitted == 0 || frameIntervalNanos <= 0) {
+            return null;
+        }
+        if (mSteppedUp && ++mLevelEvaluations >= mHeadroomEvaluations[mCurrentLevel]) {
+            // 升档之后保持的时间和升档前等待的时间一样长，认为这一档是稳定的。
+            mSteppedUp = false;
+            mHeadroomEvaluations[mCurrentLevel] = HEADROOM_EVALUATIONS;
+        }
+        if (mCooldown > 0) {
+            mCooldown--;
+            return null;
+        }
+
+        // 多个工作线程时，每一帧可以用的处理时间相应增加。
+        long budgetNanos = frameIntervalNanos * framePipeline.getWorkerCount();
+        long processNanos = framePipeline.getAverageProcessNanos();
+        float dropRatio = (float) dropped / submitted;
+        boolean backlogged = framePipeline.getQueueDepth() >= framePipeline.getQueueCapacity();
+        String overloadReason = null;
+        if (dropRatio > OVERLOAD_DROP_RATIO) {
+            overloadReason = "dropped " + dropped + "/" + submitted + " frames";
+        } else if (processNanos > budgetNanos * OVERLOAD_PROCESS_RATIO) {
+            overloadReason = "process " + TimeUnit.NANOSECONDS.toMicros(processNanos) + "us > budget "
+                    + TimeUnit.NANOSECONDS.toMicros(budgetNanos) + "us";
+        } else if (backlogged) {
+            overloadReason = "queue full";
+        }
+
+        if (overloadReason != null) {
+            mHeadroomCount = 0;
+            if (++mOverloadCount >= OVERLOAD_EVALUATIONS && mCurrentLevel < mLevels.size() - 1) {
+                return changeLevel(nowNanos, mCurrentLevel + 1, "overload: " + overloadReason);
+            }
+        } else if (dropped == 0 && processNanos < budgetNanos * HEADROOM_PROCESS_RATIO) {
+            mOverloadCount = 0;
+            if (mCurrentLevel > 0 && ++mHeadroomCount >= mHeadroomEvaluations[mCurrentLevel - 1]) {
+                return changeLevel(nowNanos, mCurrentLevel - 1, "headroom: process "
+                        + TimeUnit.NANOSECONDS.toMicros(processNanos) + "us");
+            }
+        } else {
+            // 介于两者之间，保持当前档位。
+            mOverloadCount = 0;
+            mHeadroomCount = 0;
+        }
+        return null;
+    }
+
+    private Level changeLevel(long nowNanos, int newLevel, String reason) {
+        Level from = mLevels.get(mCurrentLevel);
+        Level to = mLevels.get(newLevel);
+        if (newLevel > mCurrentLevel && mSteppedUp) {
+            // 刚升上来的档位又过载了，下次升到这一档需要更长时间的余量。
+            int headroomEvaluations = Math.min(mHeadroomEvaluations[mCurrentLevel] * 2, MAX_HEADROOM_EVALUATIONS);
+            mHeadroomEvaluations[mCurrentLevel] = headroomEvaluations;
+            reason += ", step up to " + from + " after " + headroomEvaluations + " evaluations";
+        }
+        mSteppedUp = newLevel < mCurrentLevel;
+        mLevelEvaluations = 0;
+        mCurrentLevel = newLevel;
+        mOverloadCount = 0;
+        mHeadroomCount = 0;
+        mCooldown = COOLDOWN_EVALUATIONS;
+        mHasBaseline = false;
+        Change change = new Change(nowNanos, from, to, reason);
+        synchronized (this) {
+            if (mChangeLog.size() == MAX_CHANGE_LOG_SIZE) {
+                mChangeLog.removeFirst();
+            }
+            mChangeLog.addLast(change);
+        }
+        Log.i(TAG, "Change preview level: " + change);
+        return to;
+    }
+
+    /**
+     * 升到指定档位需要连续有余量的判断次数。
+     */
+    @WorkerThread
+    public int getHeadroomEvaluations(int level) {
+        return mHeadroomEvaluations[level];
+    }
+
+    /**
+     * 最近 {@value #MAX_CHANGE_LOG_SIZE} 次档位调整记录，从旧到新排列。
+     */
+    @NonNull
+    public synchronized List<Change> getChangeLog() {
+        return new ArrayList<>(mChangeLog);
+    }
+
+    /**
+     * 档位帧率上限对应的帧间隔，用于还没有实际帧间隔统计的时候。
+     */
+    public static long getFrameIntervalNanos(@NonNull Level level) {
+        return TimeUnit.SECONDS.toNanos(1) * 1000 / level.getMaxFps();
+    }
+
+}
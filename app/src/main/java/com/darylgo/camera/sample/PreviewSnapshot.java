@@ -0,0 +1,86 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按需把下一帧预览转换成 ARGB 像素，用于缩略图和需要 RGB 数据的分析代码。
+ * <p>
+ * 没有请求时不做任何事情；有请求时用 {@link Nv21Converter} 转换到复用的数组中，只在尺寸变大时重新分配。
+ */
+public class PreviewSnapshot implements FrameProcessor {
+
+    /**
+     * 转换结果的回调，在处理预览帧的线程上回调。
+     */
+    public interface Callback {
+        /**
+         * @param argb 缩小之后的 ARGB_8888 像素，回调返回之后会被复用，需要保留时先复制，
+         *             比如 {@link android.graphics.Bitmap#createBitmap(int[], int, int, android.graphics.Bitmap.Config)}
+         */
+        @WorkerThread
+        void onPreviewSnapshot(@NonNull int[] argb, int width, int height, long timestampNanos);
+    }
+
+    private static class Request {
+        private final int mDownscale;
+        private final Callback mCallback;
+
+        private Request(int downscale, Callback callback) {
+            mDownscale = downscale;
+            mCallback = callback;
+        }
+    }
+
+    private final Nv21Converter mConverter = new Nv21Converter();
+    private final AtomicReference<Request> mPendingRequest = new AtomicReference<>();
+
+    // 以下字段只在持有锁的处理线程上访问。
+    private int[] mArgb = new int[0];
+
+    /**
+     * 请求转换下一帧预览，还没处理的请求会被替换。
+     *
+     * @param downscale 缩小倍数，1 代表不缩小
+     */
+    public void request(int downscale, @NonNull Callback callback) {
+        if (downscale <= 0) {
+            throw new IllegalArgumentException("Illegal downscale: " + downscale);
+        }
+        mPendingRequest.set(new Request(downscale, callback));
+    }
+
+    @WorkerThread
+    @Override
+    public void processFrame(@NonNull PreviewFrame frame) {
+        if (mPendingRequest.get() == null || frame.getFormat() != ImageFormat.NV21) {
+            return;
+        }
+        // 流水线可能有多个工作线程，转换器同一时刻只能被一个线程使用。
+        synchronized (this) {
+            Request request = mPendingRequest.getAndSet(null);
+            if (request == null) {
+                return;
+            }
+            int width = Nv21Converter.getOutputWidth(frame.getWidth(), request.mDownscale);
+            int height = Nv21Converter.getOutputHeight(frame.getHeight(), request.mDownscale);
+            if (mArgb.length < width * height) {
+                mArgb = new int[width * height];
+            }
+            mConverter.convertToArgb(frame.getData(), frame.getWidth(), frame.getHeight(), mArgb, request.mDownscale);
+            request.mCallback.onPreviewSnapshot(mArgb, width, height, frame.getTimestampNanos());
+        }
+    }
+
+    /**
+     * 停止转换线程，之后的请求不会再被处理。
+     */
+    public void release() {
+        mPendingRequest.set(null);
+        mConverter.release();
+    }
+
+}
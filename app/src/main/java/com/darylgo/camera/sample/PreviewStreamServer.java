@@ -0,0 +1,565 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 基于 NIO Selector 的预览推流服务，调试时可以在电脑上用浏览器或者工具查看预览画面。
+ * <p>
+ * 请求 {@value #PATH_MJPEG} 返回 multipart/x-mixed-replace 的 MJPEG 流；请求 {@value #PATH_NV21} 返回原始 NV21 流，
+ * 每一帧前面是 {@value #NV21_HEADER_SIZE} 字节的小端头部，依次是 {@value #NV21_MAGIC}、宽、高、时间戳和数据长度。
+ * <p>
+ * 作为 {@link FrameHub} 的订阅者接收预览帧，编码线程只保留最新的一帧，每一帧最多编码一次 JPEG、复制一次 NV21，
+ * 所有客户端共享同一份数据。每个客户端最多有一帧正在发送，发送完之后直接跳到最新的一帧，
+ * 慢的客户端只会丢帧，不会拖慢其他客户端，也不会占用 Camera 的 Buffer。
+ * <p>
+ * 编码结果保存在循环使用的 {@link SharedFrame} 中，最后一个正在发送的客户端发送完之后回到缓存池，
+ * 稳定运行时每一帧不需要分配新的大块内存。只有慢的客户端还占着旧帧时才会额外分配，缓存池最多保留
+ * {@value #FRAME_POOL_SIZE} 帧。
+ * <p>
+ * 默认只监听本机回环地址，在电脑上通过 {@code adb forward tcp:8080 tcp:8080} 转发之后访问，
+ * 预览画面不会暴露给同一网络中的其他设备。
+ */
+public class PreviewStreamServer implements FrameHub.Subscriber {
+
+    private static final String TAG = "PreviewStreamServer";
+
+    public static final String PATH_MJPEG = "/mjpeg";
+    public static final String PATH_NV21 = "/nv21";
+    public static final String NV21_MAGIC = "NV21";
+    public static final int NV21_HEADER_SIZE = 24;
+
+    private static final int JPEG_QUALITY = 70;
+    private static final int MAX_REQUEST_SIZE = 2048;
+    private static final int FRAME_POOL_SIZE = 3;
+    private static final int PART_HEADER_CAPACITY = 128;
+    private static final String BOUNDARY = "frame";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int MODE_MJPEG = 0;
+    private static final int MODE_NV21 = 1;
+
+    private static final ByteBuffer PART_TRAILER = ByteBuffer.wrap(new byte[]{'\r', '\n'}).asReadOnlyBuffer();
+
+    /**
+     * 编码好的一帧，所有客户端共享，发送时各自使用 duplicate。
+     * <p>
+     * 编码线程持有最新一帧的引用，每个正在发送的客户端各持有一个引用，全部释放之后回到缓存池，
+     * 下次编码时复用其中的数组。引用计数为 0 时不能再增加，编码线程发布之前也保持为 0。
+     */
+    private class SharedFrame {
+        private final AtomicInteger mRefCount = new AtomicInteger();
+        private final JpegOutputStream mJpegStream = new JpegOutputStream();
+        private final ByteBuffer mPartHeader = ByteBuffer.allocate(PART_HEADER_CAPACITY);
+        @Nullable
+        private ByteBuffer mNv21;
+        private long mSequence;
+        private boolean mHasMjpeg;
+        private boolean mHasNv21;
+
+        /**
+         * 帧已经被回收时返回 false。
+         */
+        private boolean tryRetain() {
+            while (true) {
+                int refCount = mRefCount.get();
+                if (refCount <= 0) {
+                    return false;
+                }
+                if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                mFreeFrames.offer(this);
+            }
+        }
+
+        /**
+         * 要发送给指定格式客户端的数据，这一帧没有这个格式时返回 null。
+         */
+        @Nullable
+        private ByteBuffer[] newSending(int mode) {
+            if (mode == MODE_MJPEG && mHasMjpeg) {
+                return new ByteBuffer[]{mPartHeader.duplicate(),
+                        ByteBuffer.wrap(mJpegStream.getBuffer(), 0, mJpegStream.size()), PART_TRAILER.duplicate()};
+            } else if (mode == MODE_NV21 && mHasNv21 && mNv21 != null) {
+                return new ByteBuffer[]{mNv21.duplicate()};
+            }
+            return null;
+        }
+    }
+
+    private static class Client {
+        private final SocketChannel mChannel;
+        private final ByteBuffer mRequest = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private int mMode = -1;
+        // 正在发送的数据，发送完之前不会切换到新的帧。
+        @Nullable
+        private ByteBuffer[] mSending;
+        // 正在发送的帧，发送完或者断开时释放。
+        @Nullable
+        private SharedFrame mSendingFrame;
+        private boolean mCloseAfterSending;
+        private long mLastSequence;
+        private long mSentFrames;
+        private long mSkippedFrames;
+
+        private Client(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        private boolean isSending() {
+            if (mSending == null) {
+                return false;
+            }
+            for (ByteBuffer buffer : mSending) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            mSending = null;
+            return false;
+        }
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final Thread mServerThread;
+    private final HandlerThread mEncoderThread;
+    private final Handler mEncoderHandler;
+    private final AtomicReference<FrameHandle> mPendingFrame = new AtomicReference<>();
+    private final EncodeTask mEncodeTask = new EncodeTask();
+    private final BlockingQueue<SharedFrame> mFreeFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+    private volatile SharedFrame mLatestFrame;
+    private volatile boolean mRunning = true;
+
+    // 客户端数量只在服务线程修改，编码线程根据它决定要准备哪些格式。
+    private volatile int mMjpegClientCount;
+    private volatile int mNv21ClientCount;
+
+    // 以下字段只在编码线程访问。
+    private long mNextSequence = 1;
+
+    private volatile long mAllocatedFrames;
+    private volatile long mEncodedFrames;
+    private volatile long mReplacedFrames;
+
+    private PreviewStreamServer(Selector selector, ServerSocketChannel serverChannel) {
+        mSelector = selector;
+        mServerChannel = serverChannel;
+        mEncoderThread = new HandlerThread("PreviewStreamEncoder");
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+        mServerThread = new Thread(new ServerLoop(), "PreviewStreamServer");
+        mServerThread.start();
+    }
+
+    /**
+     * 在本机回环地址的指定端口开始监听。
+     *
+     * @param port 端口号，0 代表随机选择一个空闲端口，通过 {@link #getPort()} 获取
+     */
+    @NonNull
+    public static PreviewStreamServer start(int port) throws IOException {
+        return start(port, false);
+    }
+
+    /**
+     * 在指定端口开始监听。
+     *
+     * @param port        端口号，0 代表随机选择一个空闲端口，通过 {@link #getPort()} 获取
+     * @param allowRemote 是否监听所有网络接口，开启之后同一网络中的任何设备都可以看到预览画面，只在调试时使用
+     */
+    @NonNull
+    public static PreviewStreamServer start(int port, boolean allowRemote) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel serverChannel = null;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            InetSocketAddress address = allowRemote
+                    ? new InetSocketAddress(port) : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            serverChannel.socket().bind(address);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            PreviewStreamServer server = new PreviewStreamServer(selector, serverChannel);
+            Log.i(TAG, "Preview stream server listening on " + serverChannel.socket().getLocalSocketAddress());
+            return server;
+        } catch (IOException | RuntimeException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+            throw e;
+        }
+    }
+
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 监听的地址，默认是本机回环地址。
+     */
+    @NonNull
+    public InetAddress getAddress() {
+        return mServerChannel.socket().getInetAddress();
+    }
+
+    /**
+     * 在发布帧的线程回调，没有客户端时直接释放，编码线程还没处理的旧帧会被新帧替换。
+     */
+    @WorkerThread
+    @Override
+    public void onFrame(@NonNull FrameHandle frame) {
+        if (!mRunning || mMjpegClientCount + mNv21ClientCount == 0 || frame.getFormat() != ImageFormat.NV21) {
+            frame.release();
+            return;
+        }
+        FrameHandle replaced = mPendingFrame.getAndSet(frame);
+        if (replaced != null) {
+            mReplacedFrames++;
+            replaced.release();
+        } else if (!mEncoderHandler.post(mEncodeTask)) {
+            FrameHandle pending = mPendingFrame.getAndSet(null);
+            if (pending != null) {
+                pending.release();
+            }
+        }
+    }
+
+    private class EncodeTask implements Runnable {
+        @Override
+        public void run() {
+            FrameHandle frame = mPendingFrame.getAndSet(null);
+            if (frame != null) {
+                encode(frame);
+            }
+        }
+    }
+
+    /**
+     * 把一帧编码到复用的 {@link SharedFrame} 中并替换最新的一帧，在编码线程调用。包内可见，给单元测试使用。
+     */
+    @WorkerThread
+    void encode(@NonNull FrameHandle frame) {
+        SharedFrame sharedFrame = mFreeFrames.poll();
+        if (sharedFrame == null) {
+            // 其他帧都被最新帧和慢的客户端占着。
+            sharedFrame = new SharedFrame();
+            mAllocatedFrames++;
+        }
+        try {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            byte[] data = frame.getData();
+            int frameSize = width * height * 3 / 2;
+            sharedFrame.mHasNv21 = false;
+            sharedFrame.mHasMjpeg = false;
+            if (mNv21ClientCount > 0) {
+                ByteBuffer nv21 = sharedFrame.mNv21;
+                if (nv21 == null || nv21.capacity() < NV21_HEADER_SIZE + frameSize) {
+                    nv21 = ByteBuffer.allocate(NV21_HEADER_SIZE + frameSize).order(ByteOrder.LITTLE_ENDIAN);
+                    sharedFrame.mNv21 = nv21;
+                }
+                nv21.clear();
+                nv21.put(NV21_MAGIC.getBytes(ASCII)).putInt(width).putInt(height)
+                        .putLong(frame.getTimestampNanos()).putInt(frameSize);
+                nv21.put(data, 0, frameSize).flip();
+                sharedFrame.mHasNv21 = true;
+            }
+            if (mMjpegClientCount > 0) {
+                JpegOutputStream jpegStream = sharedFrame.mJpegStream;
+                jpegStream.reset();
+                YuvImage yuvImage = new YuvImage(data, ImageFormat.NV21, width, height, null);
+                if (yuvImage.compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, jpegStream)) {
+                    ByteBuffer partHeader = sharedFrame.mPartHeader;
+                    partHeader.clear();
+                    partHeader.put(String.format(Locale.US, "--%s\r\nContent-Type: image/jpeg\r\nContent-Length: %d\r\n\r\n",
+                            BOUNDARY, jpegStream.size()).getBytes(ASCII)).flip();
+                    sharedFrame.mHasMjpeg = true;
+                } else {
+                    Log.e(TAG, "Failed to encode preview frame.");
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        sharedFrame.mSequence = mNextSequence++;
+        // 编码线程持有最新一帧的引用，引用计数写入之后服务线程才能拿到这一帧。
+        sharedFrame.mRefCount.set(1);
+        SharedFrame replaced = mLatestFrame;
+        mLatestFrame = sharedFrame;
+        if (replaced != null) {
+            replaced.release();
+        }
+        mEncodedFrames++;
+        mSelector.wakeup();
+    }
+
+    private class ServerLoop implements Runnable {
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    Log.e(TAG, "Selector failed.", e);
+                    break;
+                }
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable()) {
+                                readRequest(key, client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                send(key, client);
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Client disconnected: " + e.getMessage());
+                        closeClient(key);
+                    }
+                }
+                // 给空闲的客户端安排最新的一帧。
+                SharedFrame latestFrame = mLatestFrame;
+                if (latestFrame != null) {
+                    for (SelectionKey key : mSelector.keys()) {
+                        Object attachment = key.attachment();
+                        if (key.isValid() && attachment instanceof Client) {
+                            Client client = (Client) attachment;
+                            if (client.mMode >= 0 && !client.isSending() && client.mLastSequence < latestFrame.mSequence) {
+                                try {
+                                    startFrame(key, client, latestFrame);
+                                } catch (IOException e) {
+                                    closeClient(key);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                closeClient(key);
+            }
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close server.", e);
+            }
+            Log.d(TAG, "Preview stream server stopped: " + PreviewStreamServer.this);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(mSelector, SelectionKey.OP_READ, new Client(channel));
+        Log.d(TAG, "Accept client: " + channel.socket().getRemoteSocketAddress());
+    }
+
+    private void readRequest(SelectionKey key, Client client) throws IOException {
+        if (client.mChannel.read(client.mRequest) < 0) {
+            throw new IOException("End of stream.");
+        }
+        if (client.mMode >= 0) {
+            // 已经开始推流，忽略客户端后续发送的数据。
+            client.mRequest.clear();
+            return;
+        }
+        String request = new String(client.mRequest.array(), 0, client.mRequest.position(), ASCII);
+        if (!request.contains("\r\n\r\n") && !request.contains("\n\n")) {
+            if (!client.mRequest.hasRemaining()) {
+                throw new IOException("Request is too large.");
+            }
+            return;
+        }
+        String[] requestLine = request.substring(0, request.indexOf('\n')).trim().split(" ");
+        String path = requestLine.length >= 2 ? requestLine[1] : "";
+        String response;
+        if (PATH_MJPEG.equals(path) || "/".equals(path)) {
+            client.mMode = MODE_MJPEG;
+            mMjpegClientCount++;
+            response = "HTTP/1.0 200 OK\r\nCache-Control: no-cache\r\nConnection: close\r\n"
+                    + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n";
+        } else if (PATH_NV21.equals(path)) {
+            client.mMode = MODE_NV21;
+            mNv21ClientCount++;
+            response = "HTTP/1.0 200 OK\r\nCache-Control: no-cache\r\nConnection: close\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n";
+        } else {
+            response = "HTTP/1.0 404 Not Found\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+            client.mCloseAfterSending = true;
+        }
+        client.mRequest.clear();
+        // 最新的一帧在响应头发送完之后再开始。
+        client.mLastSequence = mLatestFrame != null ? mLatestFrame.mSequence : 0;
+        client.mSending = new ByteBuffer[]{ByteBuffer.wrap(response.getBytes(ASCII))};
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void startFrame(SelectionKey key, Client client, SharedFrame frame) throws IOException {
+        if (!frame.tryRetain()) {
+            // 编码线程已经发布了新的一帧，这一帧被回收了，下一轮再安排。
+            return;
+        }
+        ByteBuffer[] sending = frame.newSending(client.mMode);
+        if (sending == null || frame.mSequence <= client.mLastSequence) {
+            // 这个客户端连接之前编码的帧没有它需要的格式，或者回收之后复用成了已经发过的帧。
+            frame.release();
+            return;
+        }
+        if (client.mLastSequence > 0) {
+            client.mSkippedFrames += frame.mSequence - client.mLastSequence - 1;
+        }
+        client.mLastSequence = frame.mSequence;
+        client.mSending = sending;
+        client.mSendingFrame = frame;
+        send(key, client);
+    }
+
+    private void send(SelectionKey key, Client client) throws IOException {
+        ByteBuffer[] sending = client.mSending;
+        if (sending != null) {
+            client.mChannel.write(sending);
+        }
+        if (client.isSending()) {
+            // Socket 缓冲区满了，等可写时继续。
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        if (client.mSendingFrame != null) {
+            client.mSentFrames++;
+            releaseSendingFrame(client);
+        }
+        if (client.mCloseAfterSending) {
+            closeClient(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * 发送完或者断开时释放客户端持有的帧。
+     */
+    private void releaseSendingFrame(Client client) {
+        SharedFrame frame = client.mSendingFrame;
+        if (frame != null) {
+            client.mSendingFrame = null;
+            frame.release();
+        }
+    }
+
+    private void closeClient(SelectionKey key) {
+        Object attachment = key.attachment();
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close channel.", e);
+        }
+        if (attachment instanceof Client) {
+            Client client = (Client) attachment;
+            if (client.mMode == MODE_MJPEG) {
+                mMjpegClientCount--;
+            } else if (client.mMode == MODE_NV21) {
+                mNv21ClientCount--;
+            }
+            client.mMode = -1;
+            releaseSendingFrame(client);
+            Log.d(TAG, "Close client: sent " + client.mSentFrames + " frames, skipped " + client.mSkippedFrames);
+        }
+    }
+
+    /**
+     * 停止服务，断开所有客户端。
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+        mEncoderThread.quitSafely();
+        FrameHandle pending = mPendingFrame.getAndSet(null);
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    /**
+     * 当前连接的推流客户端数量。
+     */
+    public int getClientCount() {
+        return mMjpegClientCount + mNv21ClientCount;
+    }
+
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * 分配过的 {@link SharedFrame} 数量，稳定运行时不再增长。
+     */
+    public long getAllocatedFrames() {
+        return mAllocatedFrames;
+    }
+
+    /**
+     * 编码线程来不及处理、被新帧替换掉的帧数量。
+     */
+    public long getReplacedFrames() {
+        return mReplacedFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "PreviewStreamServer{address=" + mServerChannel.socket().getLocalSocketAddress()
+                + ", mjpegClients=" + mMjpegClientCount
+                + ", nv21Clients=" + mNv21ClientCount
+                + ", encoded=" + mEncodedFrames
+                + ", allocated=" + mAllocatedFrames
+                + ", replaced=" + mReplacedFrames + "}";
+    }
+
+}
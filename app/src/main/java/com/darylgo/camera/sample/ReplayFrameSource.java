@@ -0,0 +1,117 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 回放 {@link PreRollRing#freezeAndExport(File)} 导出的预览帧的帧来源。
+ * <p>
+ * 帧尺寸取自文件中的第一帧，尺寸或者格式不同的帧会被跳过。
+ */
+public class ReplayFrameSource extends GeneratedFrameSource {
+
+    private static final String TAG = "ReplayFrameSource";
+    private static final int FILE_HEADER_SIZE = 12;
+
+    private final RandomAccessFile mFile;
+    private final int mFrameCount;
+    private final boolean mLoop;
+    private final byte[] mHeader = new byte[PreRollRing.SLOT_HEADER_SIZE];
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.wrap(mHeader).order(ByteOrder.LITTLE_ENDIAN);
+    private int mNextFrame;
+
+    /**
+     * 打开一个导出文件。
+     *
+     * @param fps  回放帧率，0 代表不限速
+     * @param loop 是否在回放结束之后从头开始
+     */
+    @NonNull
+    public static ReplayFrameSource open(@NonNull File file, int fps, boolean loop) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[FILE_HEADER_SIZE + PreRollRing.SLOT_HEADER_SIZE];
+            randomAccessFile.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            int version = buffer.getInt();
+            int frameCount = buffer.getInt();
+            if (!PreRollRing.EXPORT_MAGIC.equals(new String(magic, "US-ASCII"))
+                    || version != PreRollRing.EXPORT_VERSION || frameCount <= 0) {
+                throw new IOException("Illegal pre-roll file: " + file);
+            }
+            int width = buffer.getInt(FILE_HEADER_SIZE + 12);
+            int height = buffer.getInt(FILE_HEADER_SIZE + 16);
+            int format = buffer.getInt(FILE_HEADER_SIZE + 20);
+            if (format != ImageFormat.NV21) {
+                throw new IOException("Unsupported preview format: " + format);
+            }
+            randomAccessFile.seek(FILE_HEADER_SIZE);
+            return new ReplayFrameSource(randomAccessFile, width, height, fps, frameCount, loop);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private ReplayFrameSource(RandomAccessFile file, int width, int height, int fps, int frameCount, boolean loop) {
+        super("ReplayFrameSource", width, height, fps);
+        mFile = file;
+        mFrameCount = frameCount;
+        mLoop = loop;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    protected boolean fillFrame(@NonNull byte[] buffer, long frameIndex) {
+        try {
+            for (int skipped = 0; skipped < mFrameCount; skipped++) {
+                if (mNextFrame == mFrameCount) {
+                    if (!mLoop) {
+                        return false;
+                    }
+                    mFile.seek(FILE_HEADER_SIZE);
+                    mNextFrame = 0;
+                }
+                mFile.readFully(mHeader);
+                mNextFrame++;
+                int size = mHeaderBuffer.getInt(8);
+                int width = mHeaderBuffer.getInt(12);
+                int height = mHeaderBuffer.getInt(16);
+                int frameSize = getFrameSize();
+                if (width == getWidth() && height == getHeight() && size >= frameSize) {
+                    mFile.readFully(buffer, 0, frameSize);
+                    mFile.seek(mFile.getFilePointer() + size - frameSize);
+                    return true;
+                }
+                mFile.seek(mFile.getFilePointer() + size);
+            }
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read frame " + mNextFrame, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close replay file.", e);
+        }
+    }
+
+}
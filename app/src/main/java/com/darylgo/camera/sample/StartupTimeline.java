@@ -0,0 +1,126 @@
+package com.darylgo.camera.sample;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录冷启动各个阶段的时间点，用来跟踪不同版本从启动到第一帧预览的耗时。
+ * <p>
+ * 每个阶段只记录第一次到达的时间，可以在任意线程调用。
+ */
+public class StartupTimeline {
+
+    /**
+     * 冷启动的各个阶段。
+     */
+    public enum Phase {
+        /**
+         * 相机线程已经启动。
+         */
+        CAMERA_THREAD_STARTED,
+        /**
+         * 摄像头枚举完成。
+         */
+        CAMERAS_ENUMERATED,
+        /**
+         * 布局加载完成。
+         */
+        LAYOUT_INFLATED,
+        /**
+         * 相机已经开启。
+         */
+        CAMERA_OPENED,
+        /**
+         * 预览参数已经设置。
+         */
+        PARAMETERS_SET,
+        /**
+         * 预览 Surface 已经创建。
+         */
+        SURFACE_CREATED,
+        /**
+         * 预览 Surface 已经交给 Camera。
+         */
+        SURFACE_ATTACHED,
+        /**
+         * 已经调用 startPreview。
+         */
+        PREVIEW_STARTED,
+        /**
+         * 收到第一帧 onPreviewFrame。
+         */
+        FIRST_FRAME
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long mOriginNanos;
+    private final AtomicLongArray mTimestamps = new AtomicLongArray(PHASES.length);
+
+    /**
+     * 以当前时间作为启动的起点。
+     */
+    public StartupTimeline() {
+        mOriginNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * 记录到达某个阶段的时间，重复调用时只保留第一次。
+     *
+     * @return true 代表这是第一次到达这个阶段
+     */
+    public boolean mark(@NonNull Phase phase) {
+        return mTimestamps.compareAndSet(phase.ordinal(), 0, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * 是否已经到达某个阶段。
+     */
+    public boolean isMarked(@NonNull Phase phase) {
+        return mTimestamps.get(phase.ordinal()) != 0;
+    }
+
+    /**
+     * 启动的起点，基于 {@link SystemClock#elapsedRealtimeNanos()}。
+     */
+    public long getOriginNanos() {
+        return mOriginNanos;
+    }
+
+    /**
+     * 到达某个阶段的时间，基于 {@link SystemClock#elapsedRealtimeNanos()}，0 代表还没到达。
+     */
+    public long getTimestampNanos(@NonNull Phase phase) {
+        return mTimestamps.get(phase.ordinal());
+    }
+
+    /**
+     * 从启动到某个阶段的耗时，-1 代表还没到达。
+     */
+    public long getElapsedNanos(@NonNull Phase phase) {
+        long timestamp = mTimestamps.get(phase.ordinal());
+        return timestamp == 0 ? -1 : timestamp - mOriginNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StartupTimeline{");
+        for (int i = 0; i < PHASES.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            long elapsedNanos = getElapsedNanos(PHASES[i]);
+            builder.append(PHASES[i].name()).append('=');
+            if (elapsedNanos < 0) {
+                builder.append('-');
+            } else {
+                builder.append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms");
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * 生成合成 NV21 帧的帧来源：亮度是随帧序号向下滚动的水平条纹，色度固定为灰色。
+ * <p>
+ * 每一帧的内容都不相同，可以驱动运动检测之类依赖帧间差异的处理器。
+ */
+public class SyntheticFrameSource extends GeneratedFrameSource {
+
+    /**
+     * 每一帧条纹滚动的行数。
+     */
+    private static final int SCROLL_ROWS_PER_FRAME = 4;
+
+    /**
+     * @param fps 帧率，0 代表不限速
+     */
+    public SyntheticFrameSource(int width, int height, int fps) {
+        super("SyntheticFrameSource", width, height, fps);
+    }
+
+    @Override
+    protected boolean fillFrame(@NonNull byte[] buffer, long frameIndex) {
+        int width = getWidth();
+        int height = getHeight();
+        int offset = (int) (frameIndex * SCROLL_ROWS_PER_FRAME);
+        for (int row = 0; row < height; row++) {
+            int start = row * width;
+            Arrays.fill(buffer, start, start + width, (byte) (row + offset));
+        }
+        Arrays.fill(buffer, width * height, getFrameSize(), (byte) 128);
+        return true;
+    }
+
+}
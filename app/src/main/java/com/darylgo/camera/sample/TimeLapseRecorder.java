@@ -0,0 +1,325 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * 延时摄影：每隔一段时间从预览帧中取一帧，缩小之后编码成 JPEG 追加到图像序列文件中。
+ * <p>
+ * 作为 {@link FrameHub} 的订阅者接收每一帧，不需要的帧只比较一次时间戳就直接释放。选中的帧交给编码线程，
+ * 编码线程先缩小到复用的 Buffer 中并立即释放预览帧，再编码和写文件，相机线程上不做任何耗时的工作。
+ * 编码线程还在处理上一帧时，新选中的帧会被跳过。
+ * <p>
+ * 目录中有两个只追加的文件：{@value #DATA_FILE_NAME} 依次存放每一帧的 JPEG，
+ * {@value #INDEX_FILE_NAME} 以 {@value #INDEX_MAGIC} 开头，后面是每一帧 {@value #INDEX_RECORD_SIZE} 字节的记录，
+ * 依次是时间戳、数据偏移、数据长度和前面三项的 CRC32。每一帧先写数据再写索引，
+ * 进程被杀掉之后最多丢失最后一帧，重新打开时会截掉不完整的记录和没有索引的数据，然后继续追加。
+ * <p>
+ * 所有 Buffer 都在第一帧时分配并一直复用，长时间运行也不会让 Java 堆增长。
+ */
+public class TimeLapseRecorder implements FrameHub.Subscriber {
+
+    private static final String TAG = "TimeLapseRecorder";
+
+    public static final String DATA_FILE_NAME = "frames.mjpeg";
+    public static final String INDEX_FILE_NAME = "frames.idx";
+    public static final String INDEX_MAGIC = "TLIX";
+    public static final int INDEX_VERSION = 1;
+    public static final int INDEX_HEADER_SIZE = 8;
+    public static final int INDEX_RECORD_SIZE = 24;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private final long mIntervalNanos;
+    private final int mMaxWidth;
+    private final FileChannel mDataChannel;
+    private final FileChannel mIndexChannel;
+    private final HandlerThread mEncoderThread;
+    private final Handler mEncoderHandler;
+    private final AtomicReference<FrameHandle> mPendingFrame = new AtomicReference<>();
+    private final EncodeTask mEncodeTask = new EncodeTask();
+
+    // 以下字段只在相机线程访问。
+    private long mLastSampleNanos = Long.MIN_VALUE;
+
+    // 以下字段只在编码线程访问。
+    private final ByteBuffer mIndexRecord = ByteBuffer.allocate(INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+    private final JpegOutputStream mJpegStream = new JpegOutputStream();
+    private byte[] mScaled;
+    private long mDataSize;
+    private boolean mClosed;
+
+    private volatile long mFrameCount;
+    private volatile long mSkippedCount;
+    private volatile long mLastEncodeNanos;
+
+    private TimeLapseRecorder(long intervalNanos, int maxWidth, FileChannel dataChannel, FileChannel indexChannel,
+                              long dataSize, long frameCount) {
+        mIntervalNanos = intervalNanos;
+        mMaxWidth = maxWidth;
+        mDataChannel = dataChannel;
+        mIndexChannel = indexChannel;
+        mDataSize = dataSize;
+        mFrameCount = frameCount;
+        mEncoderThread = new HandlerThread("TimeLapseEncoder");
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+    }
+
+    /**
+     * 在指定目录中开始或者继续延时摄影。
+     *
+     * @param directory     保存图像序列和索引的目录，已经有数据时继续追加
+     * @param intervalNanos 两帧之间的时间间隔
+     * @param maxWidth      输出图像的最大宽度，按 2 的幂次缩小
+     */
+    @WorkerThread
+    @NonNull
+    public static TimeLapseRecorder open(@NonNull File directory, long intervalNanos, int maxWidth) throws IOException {
+        if (intervalNanos <= 0 || maxWidth <= 0) {
+            throw new IllegalArgumentException("Illegal time-lapse config: " + intervalNanos + "ns, " + maxWidth);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory);
+        }
+        FileChannel dataChannel = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw").getChannel();
+        FileChannel indexChannel = null;
+        try {
+            indexChannel = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw").getChannel();
+            long[] recovered = recover(dataChannel, indexChannel);
+            Log.d(TAG, "Open time-lapse in " + directory + ", recovered " + recovered[1] + " frames.");
+            return new TimeLapseRecorder(intervalNanos, maxWidth, dataChannel, indexChannel, recovered[0], recovered[1]);
+        } catch (IOException | RuntimeException e) {
+            dataChannel.close();
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 校验已有的索引，截掉不完整的记录和没有索引的数据，并把写入位置移到文件末尾。包内可见，给单元测试使用。
+     *
+     * @return 有效的数据长度和帧数量
+     */
+    static long[] recover(FileChannel dataChannel, FileChannel indexChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (indexChannel.size() < INDEX_HEADER_SIZE) {
+            // 新文件，或者连头部都没写完。
+            indexChannel.truncate(0);
+            header.put(INDEX_MAGIC.getBytes("US-ASCII")).putInt(INDEX_VERSION).flip();
+            writeFully(indexChannel, header, 0);
+            dataChannel.truncate(0);
+            indexChannel.position(INDEX_HEADER_SIZE);
+            dataChannel.position(0);
+            return new long[]{0, 0};
+        }
+        readFully(indexChannel, header, 0);
+        byte[] magic = new byte[4];
+        header.get(magic);
+        int version = header.getInt();
+        if (!INDEX_MAGIC.equals(new String(magic, "US-ASCII")) || version != INDEX_VERSION) {
+            throw new IOException("Not a time-lapse index: " + new String(magic, "US-ASCII") + " v" + version);
+        }
+        long dataSize = dataChannel.size();
+        long validDataSize = 0;
+        long frameCount = 0;
+        long position = INDEX_HEADER_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        while (position + INDEX_RECORD_SIZE <= indexChannel.size()) {
+            record.clear();
+            readFully(indexChannel, record, position);
+            long offset = record.getLong(8);
+            int length = record.getInt(16);
+            crc.reset();
+            crc.update(record.array(), 0, 20);
+            if ((int) crc.getValue() != record.getInt(20) || offset != validDataSize || offset + length > dataSize) {
+                break;
+            }
+            validDataSize = offset + length;
+            frameCount++;
+            position += INDEX_RECORD_SIZE;
+        }
+        indexChannel.truncate(position);
+        dataChannel.truncate(validDataSize);
+        indexChannel.position(position);
+        dataChannel.position(validDataSize);
+        return new long[]{validDataSize, frameCount};
+    }
+
+    /**
+     * 在相机线程回调，没到采样时间的帧直接释放。
+     */
+    @WorkerThread
+    @Override
+    public void onFrame(@NonNull FrameHandle frame) {
+        long timestampNanos = frame.getTimestampNanos();
+        if (mLastSampleNanos != Long.MIN_VALUE && timestampNanos - mLastSampleNanos < mIntervalNanos) {
+            frame.release();
+            return;
+        }
+        if (frame.getFormat() != ImageFormat.NV21 || !mPendingFrame.compareAndSet(null, frame)) {
+            // 编码线程还没处理完上一帧，等下一帧再试。
+            mSkippedCount++;
+            frame.release();
+            return;
+        }
+        mLastSampleNanos = timestampNanos;
+        if (!mEncoderHandler.post(mEncodeTask)) {
+            // 编码线程已经退出。
+            mPendingFrame.set(null);
+            frame.release();
+        }
+    }
+
+    private class EncodeTask implements Runnable {
+        @Override
+        public void run() {
+            FrameHandle frame = mPendingFrame.get();
+            if (frame == null) {
+                return;
+            }
+            long startNanos = System.nanoTime();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            long timestampNanos = frame.getTimestampNanos();
+            int scale = Nv21Scaler.getScale(width, mMaxWidth);
+            int scaledWidth = Nv21Scaler.getScaledWidth(width, scale);
+            int scaledHeight = Nv21Scaler.getScaledHeight(height, scale);
+            int scaledSize = scaledWidth * scaledHeight * 3 / 2;
+            if (mScaled == null || mScaled.length < scaledSize) {
+                mScaled = new byte[scaledSize];
+            }
+            try {
+                Nv21Scaler.downscale(frame.getData(), width, height, scale, mScaled, scaledWidth, scaledHeight);
+            } finally {
+                // 缩小之后就不再需要预览帧，尽快还给 Camera。
+                mPendingFrame.set(null);
+                frame.release();
+            }
+            if (mClosed) {
+                return;
+            }
+            mJpegStream.reset();
+            YuvImage yuvImage = new YuvImage(mScaled, ImageFormat.NV21, scaledWidth, scaledHeight, null);
+            if (!yuvImage.compressToJpeg(new Rect(0, 0, scaledWidth, scaledHeight), JPEG_QUALITY, mJpegStream)) {
+                Log.e(TAG, "Failed to encode time-lapse frame.");
+                return;
+            }
+            try {
+                append(timestampNanos, mJpegStream.getBuffer(), mJpegStream.size());
+                mLastEncodeNanos = System.nanoTime() - startNanos;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append time-lapse frame.", e);
+            }
+        }
+    }
+
+    /**
+     * 先追加数据再追加索引，索引记录写完之前这一帧不会被认为存在。
+     */
+    @WorkerThread
+    private void append(long timestampNanos, byte[] jpeg, int length) throws IOException {
+        long offset = mDataSize;
+        ByteBuffer data = ByteBuffer.wrap(jpeg, 0, length);
+        while (data.hasRemaining()) {
+            mDataChannel.write(data);
+        }
+        mDataSize = offset + length;
+
+        ByteBuffer record = mIndexRecord;
+        record.clear();
+        record.putLong(timestampNanos).putLong(offset).putInt(length);
+        mCrc.reset();
+        mCrc.update(record.array(), 0, 20);
+        record.putInt((int) mCrc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            mIndexChannel.write(record);
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * 停止延时摄影，正在编码的帧会先写完，然后关闭文件。
+     */
+    public void release() {
+        mEncoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClosed = true;
+                try {
+                    mIndexChannel.force(false);
+                    mDataChannel.close();
+                    mIndexChannel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close time-lapse files.", e);
+                }
+            }
+        });
+        mEncoderThread.quitSafely();
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 因为编码线程忙而跳过的采样次数。
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * 最近一帧从开始缩小到写完索引的耗时。
+     */
+    public long getLastEncodeNanos() {
+        return mLastEncodeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeLapseRecorder{intervalMs=" + TimeUnit.NANOSECONDS.toMillis(mIntervalNanos)
+                + ", frames=" + mFrameCount
+                + ", skipped=" + mSkippedCount
+                + ", lastEncodeMs=" + TimeUnit.NANOSECONDS.toMillis(mLastEncodeNanos) + "}";
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 零延迟拍照：持续把最近几帧预览保存在环形缓冲区中，按下快门时直接从缓冲区中选帧，
+ * 不需要走 {@link android.hardware.Camera#takePicture} 的完整流程。
+ * <p>
+ * 每一帧入队时用 {@link LumaStats} 计算画面中央的清晰度，拍照时在按下快门前后的时间窗口内选择最清晰的一帧，
+ * 然后在独立的编码线程上编码成 JPEG。和 {@link android.hardware.Camera#takePicture} 一样按传感器方向编码，
+ * 不旋转像素，照片方向由调用者写入 EXIF。缓冲区的 Buffer 只在尺寸变化时重新分配。
+ */
+public class ZslCapture implements FrameProcessor {
+
+    private static final String TAG = "ZslCapture";
+
+    public static final int DEFAULT_RING_SIZE = 4;
+    public static final long DEFAULT_SEARCH_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+    private static final int JPEG_QUALITY = 95;
+    private static final int SHARPNESS_STRIDE = 4;
+
+    /**
+     * 拍照结果的回调，运行在编码线程上。
+     */
+    public interface Callback {
+        /**
+         * @param jpeg                编码好的 JPEG 数据
+         * @param frameTimestampNanos 选中帧的时间戳
+         * @param pressToFrameNanos   从按下快门到选中帧的时间，负数代表这一帧在按下快门之前就已经拍到了
+         */
+        @WorkerThread
+        void onZslCaptured(@NonNull byte[] jpeg, long frameTimestampNanos, long pressToFrameNanos);
+    }
+
+    private static class Slot {
+        private byte[] mData;
+        private int mWidth;
+        private int mHeight;
+        private long mTimestampNanos;
+        private float mSharpness;
+        private boolean mValid;
+    }
+
+    private final Slot[] mSlots;
+    private final long mSearchWindowNanos;
+    private final Object mLock = new Object();
+    private int mNextSlot;
+
+    // 以下字段只在处理预览帧的线程上访问。
+    private final LumaStats mLumaStats = new LumaStats(SHARPNESS_STRIDE, SHARPNESS_STRIDE);
+    private final LumaStats.Result mLumaResult = new LumaStats.Result();
+    private int mRegionWidth;
+    private int mRegionHeight;
+
+    @Nullable
+    private final HandlerThread mEncoderThread;
+    private final Executor mEncoder;
+
+    private volatile boolean mEnabled;
+    private volatile long mLastPressToFrameNanos;
+    private volatile long mLastEncodeNanos;
+    private volatile long mCaptureCount;
+
+    public ZslCapture() {
+        this(DEFAULT_RING_SIZE, DEFAULT_SEARCH_WINDOW_NANOS);
+    }
+
+    /**
+     * @param ringSize          保存的预览帧数量
+     * @param searchWindowNanos 选帧的时间窗口，在按下快门前后这个时间之内的帧都是候选
+     */
+    public ZslCapture(int ringSize, long searchWindowNanos) {
+        this(ringSize, searchWindowNanos, null);
+    }
+
+    /**
+     * 使用指定的 Executor 编码，给单元测试使用。encoder 为 null 时创建独立的编码线程。
+     */
+    ZslCapture(int ringSize, long searchWindowNanos, @Nullable Executor encoder) {
+        if (ringSize <= 0) {
+            throw new IllegalArgumentException("Illegal ring size: " + ringSize);
+        }
+        mSlots = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            mSlots[i] = new Slot();
+        }
+        mSearchWindowNanos = searchWindowNanos;
+        if (encoder != null) {
+            mEncoderThread = null;
+            mEncoder = encoder;
+        } else {
+            mEncoderThread = new HandlerThread("ZslEncoder");
+            mEncoderThread.start();
+            final Handler encoderHandler = new Handler(mEncoderThread.getLooper());
+            mEncoder = new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    encoderHandler.post(command);
+                }
+            };
+        }
+    }
+
+    /**
+     * 开启或者关闭零延迟拍照，关闭之后不再保存预览帧，已经保存的帧也会失效。
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    @WorkerThread
+    @Override
+    public void processFrame(@NonNull PreviewFrame frame) {
+        if (!mEnabled || frame.getFormat() != ImageFormat.NV21) {
+            return;
+        }
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (width != mRegionWidth || height != mRegionHeight) {
+            // 只统计画面中央的一半区域，那里通常是拍摄主体。
+            mLumaStats.setRegions(new Rect(width / 4, height / 4, width * 3 / 4, height * 3 / 4));
+            mRegionWidth = width;
+            mRegionHeight = height;
+        }
+        byte[] data = frame.getData();
+        float sharpness = mLumaStats.compute(data, width, height, mLumaResult).getMaxSharpness();
+        int frameSize = width * height * 3 / 2;
+        synchronized (mLock) {
+            Slot slot = mSlots[mNextSlot];
+            mNextSlot = (mNextSlot + 1) % mSlots.length;
+            if (slot.mData == null || slot.mData.length != frameSize) {
+                slot.mData = new byte[frameSize];
+            }
+            System.arraycopy(data, 0, slot.mData, 0, frameSize);
+            slot.mWidth = width;
+            slot.mHeight = height;
+            slot.mTimestampNanos = frame.getTimestampNanos();
+            slot.mSharpness = sharpness;
+            slot.mValid = true;
+        }
+    }
+
+    /**
+     * 从缓冲区中选一帧拍照，可以在任意线程调用。
+     *
+     * @param pressTimestampNanos 按下快门的时间，基于 {@link SystemClock#elapsedRealtimeNanos()}
+     * @return false 代表缓冲区中没有可用的帧
+     */
+    public boolean capture(long pressTimestampNanos, @NonNull final Callback callback) {
+        final byte[] data;
+        final int width;
+        final int height;
+        final long timestampNanos;
+        synchronized (mLock) {
+            Slot best = null;
+            for (Slot slot : mSlots) {
+                if (slot.mValid && isBetter(slot, best, pressTimestampNanos)) {
+                    best = slot;
+                }
+            }
+            if (best == null) {
+                return false;
+            }
+            // 直接拿走选中帧的 Buffer，这个槽下次写入时再重新分配。
+            data = best.mData;
+            width = best.mWidth;
+            height = best.mHeight;
+            timestampNanos = best.mTimestampNanos;
+            best.mData = null;
+            best.mValid = false;
+        }
+        final long pressToFrameNanos = timestampNanos - pressTimestampNanos;
+        mLastPressToFrameNanos = pressToFrameNanos;
+        mEncoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                byte[] jpeg = encode(data, width, height);
+                mLastEncodeNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                mCaptureCount++;
+                if (jpeg != null) {
+                    callback.onZslCaptured(jpeg, timestampNanos, pressToFrameNanos);
+                } else {
+                    Log.e(TAG, "Failed to encode ZSL frame.");
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 时间窗口内的帧优先于窗口外的帧；都在窗口内时选更清晰的，都在窗口外时选离按下快门更近的。
+     */
+    private boolean isBetter(Slot slot, Slot best, long pressTimestampNanos) {
+        if (best == null) {
+            return true;
+        }
+        long distance = Math.abs(slot.mTimestampNanos - pressTimestampNanos);
+        long bestDistance = Math.abs(best.mTimestampNanos - pressTimestampNanos);
+        boolean inWindow = distance <= mSearchWindowNanos;
+        boolean bestInWindow = bestDistance <= mSearchWindowNanos;
+        if (inWindow != bestInWindow) {
+            return inWindow;
+        }
+        if (inWindow && slot.mSharpness != best.mSharpness) {
+            return slot.mSharpness > best.mSharpness;
+        }
+        return distance < bestDistance;
+    }
+
+    @WorkerThread
+    private static byte[] encode(byte[] nv21, int width, int height) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(nv21.length / 4);
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, outputStream)) {
+            return null;
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 让已经保存的帧全部失效，切换摄像头或者关闭相机时调用。
+     */
+    public void clear() {
+        synchronized (mLock) {
+            for (Slot slot : mSlots) {
+                slot.mValid = false;
+            }
+        }
+    }
+
+    /**
+     * 停止编码线程，已经提交的编码任务会先完成。
+     */
+    public void release() {
+        mEnabled = false;
+        if (mEncoderThread != null) {
+            mEncoderThread.quitSafely();
+        }
+    }
+
+    /**
+     * 最近一次零延迟拍照从按下快门到选中帧的时间。
+     */
+    public long getLastPressToFrameNanos() {
+        return mLastPressToFrameNanos;
+    }
+
+    /**
+     * 最近一次编码的耗时。
+     */
+    public long getLastEncodeNanos() {
+        return mLastEncodeNanos;
+    }
+
+    public long getCaptureCount() {
+        return mCaptureCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ZslCapture{enabled=" + mEnabled
+                + ", captures=" + mCaptureCount
+                + ", lastPressToFrameMs=" + TimeUnit.NANOSECONDS.toMillis(mLastPressToFrameNanos)
+                + ", lastEncodeMs=" + TimeUnit.NANOSECONDS.toMillis(mLastEncodeNanos) + "}";
+    }
+
+}
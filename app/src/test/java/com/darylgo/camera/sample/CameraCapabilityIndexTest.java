@@ -0,0 +1,124 @@
+package com.darylgo.camera.sample;
+
+import android.util.Size;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CameraCapabilityIndexTest {
+
+    private static final float TOLERANCE = CameraCapabilityIndex.DEFAULT_ASPECT_RATIO_TOLERANCE;
+
+    @Test
+    public void buildGroupsSizesByReducedRatio() {
+        CameraCapabilityIndex.SizeTable table = table(1280, 720, 640, 480, 1920, 1080, 1440, 1080);
+
+        // 4:3 比 16:9 小，排在前面，组内按面积从大到小排列。
+        assertEquals("SizeTable{4:3=[1440, 1080, 640, 480] 16:9=[1920, 1080, 1280, 720] }", table.toString());
+        assertSizes(table.getSizesByArea(), 1920, 1080, 1440, 1080, 1280, 720, 640, 480);
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws IOException {
+        CameraCapabilityIndex.SizeTable table = table(1920, 1080, 1280, 720, 1440, 1080, 640, 480, 176, 144);
+
+        CameraCapabilityIndex.SizeTable copy = roundTrip(table);
+
+        assertEquals(table.toString(), copy.toString());
+        assertSizes(copy.getSizesByArea(), 1920, 1080, 1440, 1080, 1280, 720, 640, 480, 176, 144);
+    }
+
+    @Test
+    public void writeAndReadEmptyTable() throws IOException {
+        CameraCapabilityIndex.SizeTable copy = roundTrip(table());
+
+        assertEquals(0, copy.getSizesByArea().size());
+        assertNull(copy.findBestFit(1080, 1920, false, TOLERANCE));
+    }
+
+    @Test
+    public void readRejectsIllegalCount() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeInt(-1);
+            CameraCapabilityIndex.SizeTable.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("read() should reject a negative count.");
+        } catch (IOException expected) {
+            // 损坏的缓存文件会被丢弃，重新查询一次参数。
+        }
+    }
+
+    @Test
+    public void boundedFitPicksLargestSizeOfMatchingRatio() {
+        CameraCapabilityIndex.SizeTable table = table(1920, 1080, 1280, 720, 1440, 1080, 640, 480);
+
+        assertSize(table.findBestFit(1080, 1920, true, TOLERANCE), 1920, 1080);
+        assertSize(table.findBestFit(720, 1280, true, TOLERANCE), 1280, 720);
+        assertSize(table.findBestFit(1080, 1440, true, TOLERANCE), 1440, 1080);
+        // 1920x1080 超出了范围，选同一比例里次大的。
+        assertSize(table.findBestFit(1000, 1778, true, TOLERANCE), 1280, 720);
+    }
+
+    @Test
+    public void unboundedFitPicksLargestSizeOfMatchingRatio() {
+        CameraCapabilityIndex.SizeTable table = table(4000, 2250, 1920, 1080, 4000, 3000);
+
+        assertSize(table.findBestFit(720, 1280, false, TOLERANCE), 4000, 2250);
+        assertSize(table.findBestFit(480, 640, false, TOLERANCE), 4000, 3000);
+    }
+
+    @Test
+    public void fitFallsBackToClosestRatioWhenNoneWithinTolerance() {
+        CameraCapabilityIndex.SizeTable table = table(1920, 1080, 1280, 720, 1440, 1080, 640, 480);
+
+        // 19.5:9 的屏幕没有相同比例的尺寸，16:9 最接近。
+        assertSize(table.findBestFit(1080, 2340, true, TOLERANCE), 1920, 1080);
+        // 1:1 没有相同比例的尺寸，4:3 最接近，1440x1080 超出了范围。
+        assertSize(table.findBestFit(1080, 1080, true, TOLERANCE), 640, 480);
+    }
+
+    @Test
+    public void fitReturnsNullWhenNothingFitsBounds() {
+        CameraCapabilityIndex.SizeTable table = table(1920, 1080, 640, 480);
+
+        assertNull(table.findBestFit(100, 100, true, TOLERANCE));
+    }
+
+    private static CameraCapabilityIndex.SizeTable table(int... sizes) {
+        List<int[]> list = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i += 2) {
+            list.add(new int[]{sizes[i], sizes[i + 1]});
+        }
+        return CameraCapabilityIndex.SizeTable.build(list);
+    }
+
+    private static CameraCapabilityIndex.SizeTable roundTrip(CameraCapabilityIndex.SizeTable table) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.write(new DataOutputStream(bytes));
+        return CameraCapabilityIndex.SizeTable.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void assertSize(Size size, int width, int height) {
+        assertNotNull(size);
+        assertEquals(width + "x" + height, size.getWidth() + "x" + size.getHeight());
+    }
+
+    private static void assertSizes(List<Size> sizes, int... expected) {
+        assertEquals(expected.length / 2, sizes.size());
+        for (int i = 0; i < sizes.size(); i++) {
+            assertSize(sizes.get(i), expected[i * 2], expected[i * 2 + 1]);
+        }
+    }
+}
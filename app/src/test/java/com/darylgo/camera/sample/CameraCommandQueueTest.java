@@ -0,0 +1,280 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CameraCommandQueueTest {
+
+    private enum Command implements CameraCommandQueue.CommandType {
+        CLOSE(CameraCommandQueue.Priority.URGENT, false),
+        CONFIGURE(CameraCommandQueue.Priority.NORMAL, true),
+        CAPTURE(CameraCommandQueue.Priority.NORMAL, true),
+        STATS(CameraCommandQueue.Priority.BACKGROUND, false),
+        GOVERN(CameraCommandQueue.Priority.BACKGROUND, true);
+
+        private final CameraCommandQueue.Priority mPriority;
+        private final boolean mSessionBound;
+
+        Command(CameraCommandQueue.Priority priority, boolean sessionBound) {
+            mPriority = priority;
+            mSessionBound = sessionBound;
+        }
+
+        @NonNull
+        @Override
+        public CameraCommandQueue.Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public boolean isSessionBound() {
+            return mSessionBound;
+        }
+    }
+
+    /**
+     * 手动驱动的相机线程：消息按到期时间和投递顺序排队，由测试调用 {@link #runUntilIdle()} 执行。
+     */
+    private static class ManualDispatcher implements CameraCommandQueue.Dispatcher {
+        private static class Message {
+            final int mWhat;
+            final Object mObj;
+            final long mWhenMillis;
+
+            Message(int what, Object obj, long whenMillis) {
+                mWhat = what;
+                mObj = obj;
+                mWhenMillis = whenMillis;
+            }
+        }
+
+        private final List<Message> mMessages = new ArrayList<>();
+        private CameraCommandQueue<Command> mQueue;
+        private long mNowMillis;
+        private boolean mRunning;
+
+        @Override
+        public boolean isCurrentThread() {
+            return mRunning;
+        }
+
+        @Override
+        public void send(int what, @Nullable Object obj, long delayMillis) {
+            mMessages.add(new Message(what, obj, mNowMillis + delayMillis));
+        }
+
+        @Override
+        public void remove(int what) {
+            Iterator<Message> iterator = mMessages.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mWhat == what) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        void runUntilIdle() {
+            mRunning = true;
+            try {
+                while (true) {
+                    Message next = null;
+                    for (Message message : mMessages) {
+                        if (message.mWhenMillis <= mNowMillis && (next == null || message.mWhenMillis < next.mWhenMillis)) {
+                            next = message;
+                        }
+                    }
+                    if (next == null) {
+                        return;
+                    }
+                    mMessages.remove(next);
+                    mQueue.handleMessage(next.mWhat, next.mObj);
+                }
+            } finally {
+                mRunning = false;
+            }
+        }
+
+        void advance(long millis) {
+            mNowMillis += millis;
+            runUntilIdle();
+        }
+    }
+
+    private final ManualDispatcher mDispatcher = new ManualDispatcher();
+    private final List<String> mExecuted = new ArrayList<>();
+    private CameraCommandQueue<Command> mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = createQueue(CameraCommandQueue.DEFAULT_SLOW_COMMAND_THRESHOLD_NANOS, null);
+    }
+
+    private CameraCommandQueue<Command> createQueue(long slowThresholdNanos, @Nullable final Runnable action) {
+        CameraCommandQueue<Command> queue = new CameraCommandQueue<>(mDispatcher, Command.class, new CameraCommandQueue.Executor<Command>() {
+            @Override
+            public void execute(@NonNull Command type, @Nullable Object obj, int arg) {
+                assertTrue(mQueue.isCurrentThread());
+                mExecuted.add(type + (obj != null ? ":" + obj : ""));
+                if (action != null) {
+                    action.run();
+                }
+            }
+        }, slowThresholdNanos);
+        mDispatcher.mQueue = queue;
+        return queue;
+    }
+
+    private List<String> executed(String... commands) {
+        List<String> list = new ArrayList<>();
+        for (String command : commands) {
+            list.add(command);
+        }
+        return list;
+    }
+
+    @Test
+    public void higherPriorityRunsFirstAndSamePriorityInOrder() {
+        mQueue.post(Command.STATS);
+        mQueue.post(Command.CONFIGURE, "a", 0);
+        mQueue.post(Command.CAPTURE, "b", 0);
+        mQueue.post(Command.CLOSE);
+        mQueue.post(Command.CONFIGURE, "c", 0);
+        assertEquals(5, mQueue.getPendingCount());
+        mDispatcher.runUntilIdle();
+        assertEquals(executed("CLOSE", "CONFIGURE:a", "CAPTURE:b", "CONFIGURE:c", "STATS"), mExecuted);
+        assertEquals(0, mQueue.getPendingCount());
+        assertEquals(2, mQueue.getStats(Command.CONFIGURE).getExecutedCount());
+    }
+
+    @Test
+    public void cancelSessionDropsOnlySessionBoundCommands() {
+        mQueue.post(Command.CONFIGURE);
+        mQueue.post(Command.CAPTURE);
+        mQueue.post(Command.STATS);
+        assertEquals(2, mQueue.cancelSession());
+        mQueue.post(Command.CAPTURE, "new", 0);
+        mDispatcher.runUntilIdle();
+        assertEquals(executed("CAPTURE:new", "STATS"), mExecuted);
+        assertEquals(1, mQueue.getStats(Command.CONFIGURE).getCancelledCount());
+        assertEquals(1, mQueue.getStats(Command.CAPTURE).getCancelledCount());
+        assertEquals(1, mQueue.getStats(Command.CAPTURE).getExecutedCount());
+    }
+
+    @Test
+    public void delayedCommandIsQueuedByPriorityAfterDelay() {
+        mQueue.postDelayed(Command.STATS, 100);
+        mDispatcher.advance(50);
+        assertTrue(mExecuted.isEmpty());
+        mQueue.post(Command.CONFIGURE);
+        mDispatcher.advance(50);
+        assertEquals(executed("CONFIGURE", "STATS"), mExecuted);
+    }
+
+    @Test
+    public void cancelSessionDropsDelayedSessionBoundCommands() {
+        mQueue.postDelayed(Command.GOVERN, 100);
+        mQueue.postDelayed(Command.STATS, 100);
+        mQueue.cancelSession();
+        mDispatcher.advance(100);
+        assertEquals(executed("STATS"), mExecuted);
+    }
+
+    @Test
+    public void staleDelayedCommandIsCancelledWhenDelivered() {
+        final CameraCommandQueue.Dispatcher dispatcher = mDispatcher;
+        // 模拟取消会话时消息已经在投递途中，没能被移除。
+        mQueue = new CameraCommandQueue<>(new CameraCommandQueue.Dispatcher() {
+            @Override
+            public boolean isCurrentThread() {
+                return dispatcher.isCurrentThread();
+            }
+
+            @Override
+            public void send(int what, @Nullable Object obj, long delayMillis) {
+                dispatcher.send(what, obj, delayMillis);
+            }
+
+            @Override
+            public void remove(int what) {
+            }
+        }, Command.class, new CameraCommandQueue.Executor<Command>() {
+            @Override
+            public void execute(@NonNull Command type, @Nullable Object obj, int arg) {
+                mExecuted.add(type.name());
+            }
+        }, CameraCommandQueue.DEFAULT_SLOW_COMMAND_THRESHOLD_NANOS);
+        mDispatcher.mQueue = mQueue;
+        mQueue.postDelayed(Command.GOVERN, 100);
+        mQueue.cancelSession();
+        mDispatcher.advance(100);
+        assertTrue(mExecuted.isEmpty());
+        assertEquals(1, mQueue.getStats(Command.GOVERN).getCancelledCount());
+    }
+
+    @Test
+    public void removeDropsPendingAndDelayedCommandsOfType() {
+        mQueue.post(Command.STATS);
+        mQueue.postDelayed(Command.STATS, 100);
+        mQueue.post(Command.CAPTURE);
+        mQueue.remove(Command.STATS);
+        mDispatcher.advance(100);
+        assertEquals(executed("CAPTURE"), mExecuted);
+    }
+
+    @Test
+    public void commandsPostedDuringExecutionRunInPriorityOrder() {
+        mQueue = createQueue(CameraCommandQueue.DEFAULT_SLOW_COMMAND_THRESHOLD_NANOS, new Runnable() {
+            @Override
+            public void run() {
+                if (mExecuted.size() == 1) {
+                    mQueue.post(Command.STATS);
+                    mQueue.post(Command.CLOSE);
+                }
+            }
+        });
+        mQueue.post(Command.CONFIGURE);
+        mQueue.post(Command.CAPTURE);
+        mDispatcher.runUntilIdle();
+        assertEquals(executed("CONFIGURE", "CLOSE", "CAPTURE", "STATS"), mExecuted);
+    }
+
+    @Test
+    public void slowCommandsAreCounted() {
+        mQueue = createQueue(1, new Runnable() {
+            @Override
+            public void run() {
+                long endNanos = System.nanoTime() + 100000;
+                while (System.nanoTime() < endNanos) {
+                    Thread.yield();
+                }
+            }
+        });
+        mQueue.post(Command.CONFIGURE);
+        mDispatcher.runUntilIdle();
+        CameraCommandQueue.Stats stats = mQueue.getStats(Command.CONFIGURE);
+        assertEquals(1, stats.getSlowCount());
+        assertTrue(stats.getMaxExecuteNanos() >= 100000);
+        // 100us 落在 64-127us 的桶里。
+        assertTrue(stats.getExecutePercentileMicros(50) >= 127);
+    }
+
+    @Test
+    public void isCurrentThreadOnlyOnCameraThread() {
+        assertFalse(mQueue.isCurrentThread());
+        mQueue.post(Command.CONFIGURE);
+        mDispatcher.runUntilIdle();
+        assertEquals(1, mExecuted.size());
+    }
+
+}
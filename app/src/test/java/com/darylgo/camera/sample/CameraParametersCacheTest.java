@@ -0,0 +1,232 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CameraParametersCacheTest {
+
+    private static final String KEY_PREVIEW_FORMAT = "preview-format";
+
+    @Test
+    public void unchangedValuesDoNotCallSetParameters() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+
+        assertTrue(cache.edit()
+                .setPreviewSize(1920, 1080)
+                .setPictureSize(4000, 3000)
+                .setPreviewFpsRange(15000, 30000)
+                .setPreviewFormat(17)
+                .setRotation(90)
+                .commit());
+
+        assertEquals(0, store.mApplyCount);
+        assertEquals(1, cache.getCommitCount());
+        assertEquals(0, cache.getAppliedCommitCount());
+        assertEquals(0, cache.getSetParametersCount());
+    }
+
+    @Test
+    public void changedValuesAreAppliedInOneCall() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+
+        assertTrue(cache.edit()
+                .setPreviewSize(1280, 720)
+                .setPictureSize(1280, 720)
+                .setPreviewFpsRange(7000, 30000)
+                .setRotation(270)
+                .commit());
+
+        assertEquals(1, store.mApplyCount);
+        assertEquals("1280x720", store.mCommitted.get(CameraParametersCache.KEY_PREVIEW_SIZE));
+        assertEquals("1280x720", store.mCommitted.get(CameraParametersCache.KEY_PICTURE_SIZE));
+        assertEquals("7000,30000", store.mCommitted.get(CameraParametersCache.KEY_PREVIEW_FPS_RANGE));
+        assertEquals("270", store.mCommitted.get(CameraParametersCache.KEY_ROTATION));
+        assertEquals(1, cache.getAppliedCommitCount());
+
+        // 再次设置同样的值不会再调用 setParameters。
+        assertTrue(cache.edit().setPreviewSize(1280, 720).setRotation(270).commit());
+        assertEquals(1, store.mApplyCount);
+    }
+
+    @Test
+    public void rejectedCommitReloadsParameters() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+        store.mReject = true;
+
+        assertFalse(cache.edit().setPreviewSize(640, 480).commit());
+
+        assertEquals(1, store.mReloadCount);
+        assertEquals("1920x1080", store.mStaged.get(CameraParametersCache.KEY_PREVIEW_SIZE));
+        assertEquals(1, cache.getSetParametersCount());
+        assertEquals(0, cache.getAppliedCommitCount());
+        assertEquals(2, cache.getGetParametersCount());
+    }
+
+    @Test
+    public void editWithoutCommitOrAbortThrows() {
+        CameraParametersCache cache = new CameraParametersCache(new FakeStore());
+        cache.edit();
+        try {
+            cache.edit();
+            fail("edit() should throw while a transaction is open.");
+        } catch (IllegalStateException expected) {
+            // 上一次修改还没有结束。
+        }
+    }
+
+    @Test
+    public void abortDiscardsStagedChangesAndUnlocks() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+
+        CameraParametersCache.Transaction transaction = cache.edit();
+        try {
+            transaction.setPreviewSize(640, 480);
+            throw new IllegalArgumentException("Simulated failure.");
+        } catch (IllegalArgumentException expected) {
+            // 模拟修改过程中抛出异常。
+        } finally {
+            transaction.abort();
+        }
+
+        assertEquals(0, store.mApplyCount);
+        assertEquals(1, store.mReloadCount);
+        assertEquals("1920x1080", store.mStaged.get(CameraParametersCache.KEY_PREVIEW_SIZE));
+        assertTrue(cache.edit().setPreviewSize(1280, 720).commit());
+        assertEquals(1, store.mApplyCount);
+    }
+
+    @Test
+    public void abortAfterCommitDoesNothing() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+
+        CameraParametersCache.Transaction transaction = cache.edit();
+        try {
+            transaction.setPreviewSize(1280, 720);
+            assertTrue(transaction.commit());
+        } finally {
+            transaction.abort();
+        }
+
+        assertEquals(0, store.mReloadCount);
+        assertEquals("1280x720", store.mStaged.get(CameraParametersCache.KEY_PREVIEW_SIZE));
+        assertEquals(1, cache.getCommitCount());
+    }
+
+    @Test
+    public void savedRoundTripsCountsCachedReadsAndSkippedSets() {
+        FakeStore store = new FakeStore();
+        CameraParametersCache cache = new CameraParametersCache(store);
+
+        // 3 次读取只用了开启时的一次 getParameters，省掉 2 次。
+        cache.get();
+        cache.get();
+        cache.get();
+        assertEquals(2, cache.getSavedRoundTrips());
+
+        // 没有变化的提交省掉一次 getParameters 和一次 setParameters。
+        cache.edit().setRotation(90).commit();
+        assertEquals(4, cache.getSavedRoundTrips());
+
+        // 有变化的提交省掉一次 getParameters。
+        cache.edit().setRotation(0).commit();
+        assertEquals(5, cache.getSavedRoundTrips());
+    }
+
+    /**
+     * 内存中的参数，mCommitted 模拟 Camera 里生效的参数，mStaged 模拟缓存的参数对象。
+     */
+    private static class FakeStore implements CameraParametersCache.Store {
+
+        final Map<String, String> mCommitted = new HashMap<>();
+        final Map<String, String> mStaged = new HashMap<>();
+        boolean mReject;
+        int mApplyCount;
+        int mReloadCount;
+
+        FakeStore() {
+            mCommitted.put(CameraParametersCache.KEY_PREVIEW_SIZE, "1920x1080");
+            mCommitted.put(CameraParametersCache.KEY_PICTURE_SIZE, "4000x3000");
+            mCommitted.put(CameraParametersCache.KEY_PREVIEW_FPS_RANGE, "15000,30000");
+            mCommitted.put(CameraParametersCache.KEY_ROTATION, "90");
+            mCommitted.put(KEY_PREVIEW_FORMAT, "17");
+            mStaged.putAll(mCommitted);
+        }
+
+        @Override
+        public Camera.Parameters getParameters() {
+            return null;
+        }
+
+        @Override
+        public void reload() {
+            mReloadCount++;
+            mStaged.clear();
+            mStaged.putAll(mCommitted);
+        }
+
+        @Override
+        public void apply() {
+            if (mReject) {
+                throw new RuntimeException("setParameters failed");
+            }
+            mApplyCount++;
+            mCommitted.clear();
+            mCommitted.putAll(mStaged);
+        }
+
+        @Override
+        public String get(@NonNull String key) {
+            return mStaged.get(key);
+        }
+
+        @Override
+        public void set(@NonNull String key, @NonNull String value) {
+            mStaged.put(key, value);
+        }
+
+        @Override
+        public int getPreviewFormat() {
+            return Integer.parseInt(mStaged.get(KEY_PREVIEW_FORMAT));
+        }
+
+        @Override
+        public void setPreviewFormat(int format) {
+            mStaged.put(KEY_PREVIEW_FORMAT, String.valueOf(format));
+        }
+
+        @Override
+        public void setPreviewSize(int width, int height) {
+            mStaged.put(CameraParametersCache.KEY_PREVIEW_SIZE, width + "x" + height);
+        }
+
+        @Override
+        public void setPictureSize(int width, int height) {
+            mStaged.put(CameraParametersCache.KEY_PICTURE_SIZE, width + "x" + height);
+        }
+
+        @Override
+        public void setPreviewFpsRange(int min, int max) {
+            mStaged.put(CameraParametersCache.KEY_PREVIEW_FPS_RANGE, min + "," + max);
+        }
+
+        @Override
+        public void setRotation(int rotation) {
+            mStaged.put(CameraParametersCache.KEY_ROTATION, String.valueOf(rotation));
+        }
+    }
+}
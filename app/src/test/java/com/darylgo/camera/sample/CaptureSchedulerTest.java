@@ -0,0 +1,142 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CaptureSchedulerTest {
+
+    /**
+     * 记录调用次数的相机，takePicture 的结果由测试决定。
+     */
+    private static class FakeController implements CaptureScheduler.CameraController {
+        int mTakePictureCount;
+        int mRestartPreviewCount;
+        boolean mTakePictureResult = true;
+
+        @Override
+        public boolean takePicture() {
+            mTakePictureCount++;
+            return mTakePictureResult;
+        }
+
+        @Override
+        public void restartPreview() {
+            mRestartPreviewCount++;
+        }
+    }
+
+    private final FakeController mController = new FakeController();
+    private final CaptureScheduler mScheduler = new CaptureScheduler(mController);
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void singleShotTakesOnePicture() {
+        mScheduler.requestCapture(1, ms(0));
+        assertEquals(1, mController.mTakePictureCount);
+        mScheduler.onCaptureCompleted(ms(400));
+        assertEquals(1, mController.mRestartPreviewCount);
+        assertEquals(1, mScheduler.getCompletedShots());
+        assertEquals(1, mController.mTakePictureCount);
+    }
+
+    @Test
+    public void repeatedTapsWithinWindowAreCoalesced() {
+        mScheduler.requestCapture(1, ms(0));
+        mScheduler.requestCapture(1, ms(100));
+        mScheduler.requestCapture(1, ms(200));
+        assertEquals(2, mScheduler.getCoalescedRequests());
+        mScheduler.onCaptureCompleted(ms(400));
+        assertEquals(1, mController.mTakePictureCount);
+        assertEquals(1, mScheduler.getCompletedShots());
+    }
+
+    @Test
+    public void coalesceWindowDoesNotSlide() {
+        // 每 250ms 点一次，窗口从每组第一次点击算起，0 和 500 各拍一张，250 和 750 被合并。
+        mScheduler.requestCapture(1, ms(0));
+        mScheduler.requestCapture(1, ms(250));
+        mScheduler.requestCapture(1, ms(500));
+        mScheduler.requestCapture(1, ms(750));
+        assertEquals(2, mScheduler.getCoalescedRequests());
+
+        mScheduler.onCaptureCompleted(ms(800));
+        assertEquals(2, mController.mTakePictureCount);
+        mScheduler.onCaptureCompleted(ms(1200));
+        assertEquals(2, mController.mTakePictureCount);
+        assertEquals(2, mScheduler.getCompletedShots());
+    }
+
+    @Test
+    public void tapAfterWindowQueuesAnotherShot() {
+        mScheduler.requestCapture(1, ms(0));
+        mScheduler.requestCapture(1, ms(300));
+        assertEquals(0, mScheduler.getCoalescedRequests());
+        mScheduler.onCaptureCompleted(ms(400));
+        mScheduler.onCaptureCompleted(ms(800));
+        assertEquals(2, mController.mTakePictureCount);
+        assertEquals(2, mController.mRestartPreviewCount);
+    }
+
+    @Test
+    public void burstRecordsShotToShotAndSustainedRate() {
+        mScheduler.requestCapture(5, ms(0));
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, mController.mTakePictureCount);
+            mScheduler.onCaptureCompleted(ms(200 * i));
+        }
+        assertEquals(5, mController.mTakePictureCount);
+        assertEquals(5, mScheduler.getCompletedShots());
+        assertEquals(ms(200), mScheduler.getLastShotToShotNanos());
+        assertEquals(5f, mScheduler.getSustainedShotsPerSecond(), 0.001f);
+    }
+
+    @Test
+    public void coalescedBurstKeepsRequestedShotCount() {
+        // 连拍按钮连点两次，仍然只拍一组五张。
+        mScheduler.requestCapture(5, ms(0));
+        mScheduler.requestCapture(5, ms(100));
+        assertEquals(1, mScheduler.getCoalescedRequests());
+        for (int i = 1; i <= 6; i++) {
+            mScheduler.onCaptureCompleted(ms(200 * i));
+        }
+        assertEquals(5, mController.mTakePictureCount);
+        assertEquals(5, mScheduler.getCompletedShots());
+    }
+
+    @Test
+    public void failedTakePictureDropsPendingShots() {
+        mController.mTakePictureResult = false;
+        mScheduler.requestCapture(3, ms(0));
+        assertEquals(1, mController.mTakePictureCount);
+        // 没有在拍照，完成回调被忽略。
+        mScheduler.onCaptureCompleted(ms(100));
+        assertEquals(0, mController.mRestartPreviewCount);
+        assertEquals(0, mScheduler.getCompletedShots());
+
+        // 失败之后的请求不会被当成重复点击。
+        mController.mTakePictureResult = true;
+        mScheduler.requestCapture(1, ms(150));
+        assertEquals(0, mScheduler.getCoalescedRequests());
+        assertEquals(2, mController.mTakePictureCount);
+    }
+
+    @Test
+    public void resetDropsPendingShots() {
+        mScheduler.requestCapture(3, ms(0));
+        mScheduler.reset();
+        mScheduler.onCaptureCompleted(ms(100));
+        assertEquals(1, mController.mTakePictureCount);
+        assertEquals(0, mScheduler.getCompletedShots());
+
+        mScheduler.requestCapture(1, ms(200));
+        assertEquals(0, mScheduler.getCoalescedRequests());
+        assertEquals(2, mController.mTakePictureCount);
+    }
+
+}
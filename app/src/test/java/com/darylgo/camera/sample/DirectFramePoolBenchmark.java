@@ -0,0 +1,117 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DirectFramePool} 的复制耗时和 GC 基准，和每一帧都复制到新的堆数组的做法对比。
+ * <p>
+ * 在 JVM 上运行，结果只用来比较两种做法，不代表设备上的性能。
+ */
+public class DirectFramePoolBenchmark {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final FramePipeline.BufferRecycler NO_OP_RECYCLER = new FramePipeline.BufferRecycler() {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+        }
+    };
+
+    /**
+     * 每一帧复制一份新的堆数组，相当于没有缓存池时的做法。
+     */
+    private static class HeapCopySubscriber implements FrameHub.Subscriber {
+        long mChecksum;
+
+        @Override
+        public void onFrame(@NonNull FrameHandle frame) {
+            byte[] copy = Arrays.copyOf(frame.getData(), frame.getWidth() * frame.getHeight() * 3 / 2);
+            frame.release();
+            mChecksum += copy[copy.length - 1];
+        }
+    }
+
+    /**
+     * 读取一个字节之后不 retain，分发完帧就回到缓存池。
+     */
+    private static class TouchingConsumer implements DirectFramePool.Consumer {
+        long mChecksum;
+
+        @Override
+        public void onDirectFrame(@NonNull DirectFrame frame) {
+            mChecksum += frame.getBuffer().get(0);
+        }
+    }
+
+    @Test
+    public void copyCostAndGc() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] data = DirectFramePoolTest.frame(width, height, 1);
+
+            FrameHub heapHub = new FrameHub(4, NO_OP_RECYCLER);
+            HeapCopySubscriber heapCopy = new HeapCopySubscriber();
+            heapHub.subscribe("heapCopy", 0, heapCopy);
+            measure("heap copy", heapHub, data, width, height);
+
+            DirectFramePool pool = new DirectFramePool(3);
+            TouchingConsumer consumer = new TouchingConsumer();
+            pool.addConsumer(consumer);
+            FrameHub directHub = new FrameHub(4, NO_OP_RECYCLER);
+            directHub.subscribe("directMirror", 0, pool);
+            measure("direct pool", directHub, data, width, height);
+
+            System.out.println("checksum " + (heapCopy.mChecksum + consumer.mChecksum));
+        }
+    }
+
+    private static void measure(String name, FrameHub hub, byte[] data, int width, int height) {
+        run(hub, data, width, height, WARMUP_NANOS);
+        long gcCount = getGcCount();
+        long gcMillis = getGcMillis();
+        long startNanos = System.nanoTime();
+        int frames = run(hub, data, width, height, MEASURE_NANOS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.println(String.format(Locale.US, "DirectFramePool %s %dx%d: %.3f ms/frame, %d frames, %d GCs (%d ms)",
+                name, width, height, elapsedNanos / 1e6 / frames, frames, getGcCount() - gcCount, getGcMillis() - gcMillis));
+    }
+
+    private static int run(FrameHub hub, byte[] data, int width, int height, long durationNanos) {
+        long endNanos = System.nanoTime() + durationNanos;
+        int frames = 0;
+        do {
+            hub.publish(data, width, height, FORMAT_NV21, frames);
+            frames++;
+        } while (System.nanoTime() < endNanos);
+        return frames;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectFramePoolTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private static final FramePipeline.BufferRecycler NO_OP_RECYCLER = new FramePipeline.BufferRecycler() {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+        }
+    };
+
+    /**
+     * 保存收到的帧，由测试决定什么时候释放。
+     */
+    static class HoldingConsumer implements DirectFramePool.Consumer {
+        final List<DirectFrame> mFrames = new ArrayList<>();
+
+        @Override
+        public void onDirectFrame(@NonNull DirectFrame frame) {
+            mFrames.add(frame.retain());
+        }
+    }
+
+    static byte[] frame(int width, int height, long sequence) {
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (sequence + i);
+        }
+        return data;
+    }
+
+    private static FrameHub newHub(DirectFramePool pool) {
+        FrameHub hub = new FrameHub(4, NO_OP_RECYCLER);
+        hub.subscribe("directMirror", 0, pool);
+        return hub;
+    }
+
+    @Test
+    public void framesAreCopiedAndRecycled() {
+        DirectFramePool pool = new DirectFramePool(2);
+        HoldingConsumer consumer = new HoldingConsumer();
+        pool.addConsumer(consumer);
+        FrameHub hub = newHub(pool);
+
+        byte[] data = frame(WIDTH, HEIGHT, 1);
+        hub.publish(data, WIDTH, HEIGHT, FORMAT_NV21, 100);
+        DirectFrame directFrame = consumer.mFrames.get(0);
+        assertEquals(1, directFrame.getRefCount());
+        assertEquals(100, directFrame.getTimestampNanos());
+        ByteBuffer buffer = directFrame.getBuffer();
+        assertTrue(buffer.isDirect());
+        assertEquals(FRAME_SIZE, buffer.remaining());
+        byte[] copied = new byte[FRAME_SIZE];
+        buffer.get(copied);
+        assertEquals(ByteBuffer.wrap(data), ByteBuffer.wrap(copied));
+
+        // 释放之后同一块直接内存被下一帧复用。
+        directFrame.release();
+        hub.publish(frame(WIDTH, HEIGHT, 2), WIDTH, HEIGHT, FORMAT_NV21, 200);
+        assertSame(directFrame, consumer.mFrames.get(1));
+        assertEquals(200, directFrame.getTimestampNanos());
+    }
+
+    @Test
+    public void frameIsRecycledWhenConsumerDoesNotRetain() {
+        DirectFramePool pool = new DirectFramePool(1);
+        final List<DirectFrame> frames = new ArrayList<>();
+        pool.addConsumer(new DirectFramePool.Consumer() {
+            @Override
+            public void onDirectFrame(@NonNull DirectFrame frame) {
+                frames.add(frame);
+            }
+        });
+        FrameHub hub = newHub(pool);
+
+        // 只有一帧的缓存池，使用者不 retain 的话每一帧分发完都会回到缓存池。
+        for (int i = 0; i < 3; i++) {
+            hub.publish(frame(WIDTH, HEIGHT, i), WIDTH, HEIGHT, FORMAT_NV21, i);
+            assertEquals(0, frames.get(i).getRefCount());
+        }
+        assertEquals(3, pool.getMirroredCount());
+        assertEquals(0, pool.getDroppedCount());
+    }
+
+    @Test
+    public void framesAreDroppedWhenAllAreHeld() {
+        DirectFramePool pool = new DirectFramePool(2);
+        HoldingConsumer consumer = new HoldingConsumer();
+        pool.addConsumer(consumer);
+        FrameHub hub = newHub(pool);
+
+        for (int i = 0; i < 3; i++) {
+            hub.publish(frame(WIDTH, HEIGHT, i), WIDTH, HEIGHT, FORMAT_NV21, i);
+        }
+        assertEquals(2, consumer.mFrames.size());
+        assertEquals(3, pool.getMirroredCount() + pool.getDroppedCount());
+        assertEquals(1, pool.getDroppedCount());
+    }
+
+    @Test
+    public void viewsAreIndependentPerCall() {
+        DirectFramePool pool = new DirectFramePool(1);
+        HoldingConsumer consumer = new HoldingConsumer();
+        pool.addConsumer(consumer);
+        FrameHub hub = newHub(pool);
+
+        hub.publish(frame(WIDTH, HEIGHT, 0), WIDTH, HEIGHT, FORMAT_NV21, 0);
+        DirectFrame directFrame = consumer.mFrames.get(0);
+
+        // 一个使用者读完整个平面，另一个使用者拿到的视图还是从头开始。
+        ByteBuffer first = directFrame.getYPlane();
+        first.position(first.limit());
+        ByteBuffer second = directFrame.getYPlane();
+        assertNotSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(WIDTH * HEIGHT, second.remaining());
+
+        ByteBuffer vuPlane = directFrame.getVuPlane();
+        vuPlane.limit(1);
+        assertEquals(WIDTH * HEIGHT / 2, directFrame.getVuPlane().remaining());
+        assertEquals((byte) (WIDTH * HEIGHT), directFrame.getVuPlane().get(0));
+
+        directFrame.getBuffer().position(5);
+        assertEquals(0, directFrame.getBuffer().position());
+    }
+
+    @Test
+    public void viewsFollowSizeChange() {
+        DirectFramePool pool = new DirectFramePool(1);
+        HoldingConsumer consumer = new HoldingConsumer();
+        pool.addConsumer(consumer);
+        FrameHub hub = newHub(pool);
+
+        hub.publish(frame(WIDTH, HEIGHT, 0), WIDTH, HEIGHT, FORMAT_NV21, 0);
+        consumer.mFrames.get(0).release();
+        // 更小的尺寸复用同一块内存，视图按新尺寸重新创建。
+        hub.publish(frame(4, 2, 0), 4, 2, FORMAT_NV21, 1);
+        DirectFrame directFrame = consumer.mFrames.get(1);
+        assertSame(consumer.mFrames.get(0), directFrame);
+        assertEquals(12, directFrame.getBuffer().remaining());
+        assertEquals(8, directFrame.getYPlane().remaining());
+        assertEquals(4, directFrame.getVuPlane().remaining());
+        assertEquals(4, directFrame.getStride());
+    }
+
+}
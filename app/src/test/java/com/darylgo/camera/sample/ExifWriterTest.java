@@ -0,0 +1,163 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static com.darylgo.camera.sample.JpegSplicerTest.CAMERA_EXIF_IFD_OFFSET;
+import static com.darylgo.camera.sample.JpegSplicerTest.CAMERA_GPS_IFD_OFFSET;
+import static com.darylgo.camera.sample.JpegSplicerTest.CAMERA_MAKER_NOTE_OFFSET;
+import static com.darylgo.camera.sample.JpegSplicerTest.MAKER_NOTE;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_DATE_TIME;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_DATE_TIME_ORIGINAL;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_EXIF_IFD_POINTER;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_EXPOSURE_TIME;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_GPS_IFD_POINTER;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_ISO;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_MAKE;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_MAKER_NOTE;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_MODEL;
+import static com.darylgo.camera.sample.JpegSplicerTest.THUMBNAIL;
+import static com.darylgo.camera.sample.JpegSplicerTest.cameraTiff;
+import static com.darylgo.camera.sample.JpegSplicerTest.concat;
+import static com.darylgo.camera.sample.JpegSplicerTest.encodeJpeg;
+import static com.darylgo.camera.sample.JpegSplicerTest.findEntry;
+import static com.darylgo.camera.sample.JpegSplicerTest.readAscii;
+import static com.darylgo.camera.sample.JpegSplicerTest.withExif;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExifWriterTest {
+
+    private static final long DATE_TIME_MILLIS = 1500000000123L;
+
+    private static ByteBuffer mergeIntoCameraJpeg(ExifWriter exifWriter) throws IOException {
+        byte[] image = encodeJpeg(32, 32);
+        JpegSplicer splicer = JpegSplicer.parse(withExif(image, cameraTiff()));
+        ByteBuffer tiff = splicer.getExifTiff();
+        assertNotNull(tiff);
+        ByteBuffer[] merged = exifWriter.merge(tiff);
+        assertNotNull(merged);
+        JpegSplicer result = JpegSplicer.parse(concat(splicer.splice(merged)));
+        ByteBuffer resultTiff = result.getExifTiff();
+        assertNotNull(resultTiff);
+        return resultTiff;
+    }
+
+    @Test
+    public void mergeKeepsCameraTagsAndAddsMissingOnes() throws IOException {
+        ExifWriter exifWriter = new ExifWriter()
+                .setMake("Other")
+                .setModel("Pixel")
+                .setRotation(180)
+                .setDateTime(DATE_TIME_MILLIS);
+        ByteBuffer tiff = mergeIntoCameraJpeg(exifWriter);
+        assertEquals(ByteOrder.LITTLE_ENDIAN, tiff.order());
+
+        // 相机写入的标签不会被覆盖。
+        int ifd0 = tiff.getInt(4);
+        assertEquals("Acme", readAscii(tiff, findEntry(tiff, ifd0, TAG_MAKE)));
+        assertEquals(6, JpegSplicer.parse(withExif(encodeJpeg(8, 8), toArray(tiff))).getExifOrientation());
+        // 缺少的标签补充进来。
+        assertEquals("Pixel", readAscii(tiff, findEntry(tiff, ifd0, TAG_MODEL)));
+        assertTrue(findEntry(tiff, ifd0, TAG_DATE_TIME) >= 0);
+
+        // Exif IFD 复制到了末尾，原有的条目仍然指向原来的数据。
+        int exifIfd = tiff.getInt(findEntry(tiff, ifd0, TAG_EXIF_IFD_POINTER) + 8);
+        assertTrue(exifIfd > CAMERA_EXIF_IFD_OFFSET);
+        assertEquals(400, tiff.getShort(findEntry(tiff, exifIfd, TAG_ISO) + 8));
+        int exposure = tiff.getInt(findEntry(tiff, exifIfd, TAG_EXPOSURE_TIME) + 8);
+        assertEquals(1, tiff.getInt(exposure));
+        assertEquals(120, tiff.getInt(exposure + 4));
+        int makerNoteEntry = findEntry(tiff, exifIfd, TAG_MAKER_NOTE);
+        assertEquals(CAMERA_MAKER_NOTE_OFFSET, tiff.getInt(makerNoteEntry + 8));
+        byte[] makerNote = new byte[MAKER_NOTE.length];
+        for (int i = 0; i < makerNote.length; i++) {
+            makerNote[i] = tiff.get(CAMERA_MAKER_NOTE_OFFSET + i);
+        }
+        assertArrayEquals(MAKER_NOTE, makerNote);
+        assertTrue(findEntry(tiff, exifIfd, TAG_DATE_TIME_ORIGINAL) >= 0);
+
+        // GPS IFD 和缩略图仍然可以找到。
+        assertEquals(CAMERA_GPS_IFD_OFFSET, tiff.getInt(findEntry(tiff, ifd0, TAG_GPS_IFD_POINTER) + 8));
+        assertEquals(2, tiff.get(CAMERA_GPS_IFD_OFFSET + 2 + 8));
+        byte[] jpeg = withExif(encodeJpeg(8, 8), toArray(tiff));
+        ByteBuffer thumbnail = JpegSplicer.parse(jpeg).getThumbnail();
+        assertNotNull(thumbnail);
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+    }
+
+    @Test
+    public void mergeAddsOnlyIfd0TagsWithoutCopyingExifIfd() throws IOException {
+        ByteBuffer tiff = mergeIntoCameraJpeg(new ExifWriter().setModel("Pixel"));
+        int ifd0 = tiff.getInt(4);
+        assertEquals("Pixel", readAscii(tiff, findEntry(tiff, ifd0, TAG_MODEL)));
+        assertEquals(CAMERA_EXIF_IFD_OFFSET, tiff.getInt(findEntry(tiff, ifd0, TAG_EXIF_IFD_POINTER) + 8));
+    }
+
+    @Test
+    public void mergeReturnsNullWhenNothingIsMissing() {
+        ByteBuffer tiff = ByteBuffer.wrap(cameraTiff()).order(ByteOrder.LITTLE_ENDIAN);
+        assertNull(new ExifWriter().setMake("Other").setRotation(90).merge(tiff));
+    }
+
+    @Test
+    public void mergeReturnsNullForBrokenIfd() {
+        byte[] bytes = cameraTiff();
+        // IFD0 的偏移超出数据范围。
+        bytes[4] = (byte) 0xF0;
+        ByteBuffer tiff = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertNull(new ExifWriter().setModel("Pixel").merge(tiff));
+    }
+
+    @Test
+    public void mergeCreatesExifIfdWhenMissing() throws IOException {
+        // 只有 IFD0 的大端 EXIF。
+        byte[] jpeg = concat(JpegSplicer.parse(encodeJpeg(16, 16)).splice(new ExifWriter().setRotation(270).build(null)));
+        JpegSplicer splicer = JpegSplicer.parse(jpeg);
+        ByteBuffer tiff = splicer.getExifTiff();
+        assertNotNull(tiff);
+        assertEquals(-1, findEntry(tiff, tiff.getInt(4), TAG_EXIF_IFD_POINTER));
+
+        ByteBuffer[] merged = new ExifWriter().setDateTime(DATE_TIME_MILLIS).merge(tiff);
+        assertNotNull(merged);
+        JpegSplicer result = JpegSplicer.parse(concat(splicer.splice(merged)));
+        ByteBuffer resultTiff = result.getExifTiff();
+        assertNotNull(resultTiff);
+        assertEquals(8, result.getExifOrientation());
+        int ifd0 = resultTiff.getInt(4);
+        int exifIfd = resultTiff.getInt(findEntry(resultTiff, ifd0, TAG_EXIF_IFD_POINTER) + 8);
+        String dateTime = readAscii(resultTiff, findEntry(resultTiff, exifIfd, TAG_DATE_TIME_ORIGINAL));
+        assertEquals(readAscii(resultTiff, findEntry(resultTiff, ifd0, TAG_DATE_TIME)), dateTime);
+    }
+
+    @Test
+    public void mergedIfdEntriesAreSortedByTag() throws IOException {
+        ByteBuffer tiff = mergeIntoCameraJpeg(new ExifWriter().setModel("Pixel").setDateTime(DATE_TIME_MILLIS));
+        for (int ifd : new int[]{tiff.getInt(4), tiff.getInt(findEntry(tiff, tiff.getInt(4), TAG_EXIF_IFD_POINTER) + 8)}) {
+            int count = tiff.getShort(ifd) & 0xFFFF;
+            int[] tags = new int[count];
+            for (int i = 0; i < count; i++) {
+                tags[i] = tiff.getShort(ifd + 2 + i * 12) & 0xFFFF;
+            }
+            int[] sorted = tags.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(sorted, tags);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameHubTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+
+    private static class RecordingRecycler implements FramePipeline.BufferRecycler {
+        final List<byte[]> mRecycled = new ArrayList<>();
+
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+            mRecycled.add(buffer);
+        }
+    }
+
+    /**
+     * 保存收到的帧，由测试决定什么时候释放。
+     */
+    private static class HoldingSubscriber implements FrameHub.Subscriber {
+        final List<FrameHandle> mFrames = new ArrayList<>();
+
+        @Override
+        public void onFrame(@NonNull FrameHandle frame) {
+            mFrames.add(frame);
+        }
+    }
+
+    /**
+     * 收到帧之后立刻释放。
+     */
+    private static class ReleasingSubscriber implements FrameHub.Subscriber {
+        int mFrameCount;
+
+        @Override
+        public void onFrame(@NonNull FrameHandle frame) {
+            mFrameCount++;
+            frame.release();
+        }
+    }
+
+    private static void publish(FrameHub hub, byte[] data, long timestampNanos) {
+        hub.publish(data, 4, 2, FORMAT_NV21, timestampNanos);
+    }
+
+    @Test
+    public void frameWithoutSubscribersIsRecycledImmediately() {
+        RecordingRecycler recycler = new RecordingRecycler();
+        FrameHub hub = new FrameHub(2, recycler);
+        byte[] data = new byte[12];
+        publish(hub, data, 1);
+        assertEquals(1, recycler.mRecycled.size());
+        assertSame(data, recycler.mRecycled.get(0));
+        assertEquals(0, hub.getOutstandingCount());
+    }
+
+    @Test
+    public void bufferIsRecycledOnceAfterLastRelease() {
+        RecordingRecycler recycler = new RecordingRecycler();
+        FrameHub hub = new FrameHub(2, recycler);
+        ReleasingSubscriber releasing = new ReleasingSubscriber();
+        HoldingSubscriber holding = new HoldingSubscriber();
+        hub.subscribe("releasing", 0, releasing);
+        hub.subscribe("holding", 0, holding);
+
+        byte[] data = new byte[12];
+        publish(hub, data, 1);
+        assertEquals(1, releasing.mFrameCount);
+        assertEquals(1, holding.mFrames.size());
+        assertTrue(recycler.mRecycled.isEmpty());
+        assertEquals(1, hub.getOutstandingCount());
+
+        FrameHandle frame = holding.mFrames.get(0);
+        assertSame(data, frame.getData());
+        frame.retain();
+        frame.release();
+        assertTrue(recycler.mRecycled.isEmpty());
+        frame.release();
+        assertEquals(1, recycler.mRecycled.size());
+        assertSame(data, recycler.mRecycled.get(0));
+        assertEquals(0, hub.getOutstandingCount());
+    }
+
+    @Test
+    public void releasedFrameRejectsRetainAndExtraRelease() {
+        FrameHub hub = new FrameHub(1, new RecordingRecycler());
+        HoldingSubscriber holding = new HoldingSubscriber();
+        hub.subscribe("holding", 0, holding);
+        publish(hub, new byte[12], 1);
+        FrameHandle frame = holding.mFrames.get(0);
+        frame.release();
+        try {
+            frame.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void releaseByBufferFindsOutstandingFrame() {
+        RecordingRecycler recycler = new RecordingRecycler();
+        FrameHub hub = new FrameHub(2, recycler);
+        hub.subscribe("holding", 0, new HoldingSubscriber());
+        byte[] first = new byte[12];
+        byte[] second = new byte[12];
+        publish(hub, first, 1);
+        publish(hub, second, 2);
+        assertTrue(hub.release(second));
+        assertEquals(1, recycler.mRecycled.size());
+        assertSame(second, recycler.mRecycled.get(0));
+        assertFalse(hub.release(second));
+        assertFalse(hub.release(new byte[12]));
+    }
+
+    @Test
+    public void handlesAreAddedWhenSubscribersHoldMoreFrames() {
+        RecordingRecycler recycler = new RecordingRecycler();
+        FrameHub hub = new FrameHub(1, recycler);
+        HoldingSubscriber holding = new HoldingSubscriber();
+        hub.subscribe("holding", 0, holding);
+        for (int i = 0; i < 3; i++) {
+            publish(hub, new byte[12], i + 1);
+        }
+        assertEquals(3, hub.getOutstandingCount());
+        for (FrameHandle frame : holding.mFrames) {
+            frame.release();
+        }
+        assertEquals(3, recycler.mRecycled.size());
+    }
+
+    @Test
+    public void rateLimitSkipsFramesForSlowSubscriber() {
+        FrameHub hub = new FrameHub(2, new RecordingRecycler());
+        ReleasingSubscriber fast = new ReleasingSubscriber();
+        ReleasingSubscriber slow = new ReleasingSubscriber();
+        FrameHub.Subscription fastSubscription = hub.subscribe("fast", 0, fast);
+        FrameHub.Subscription slowSubscription = hub.subscribe("slow", 10, slow);
+        // 30fps 发布 30 帧，10fps 的订阅者应该每三帧收到一帧。
+        for (int i = 0; i < 30; i++) {
+            publish(hub, new byte[12], (i + 1) * FRAME_INTERVAL_NANOS);
+        }
+        assertEquals(30, fast.mFrameCount);
+        assertEquals(30, fastSubscription.getDeliveredCount());
+        assertEquals(10, slow.mFrameCount);
+        assertEquals(10, slowSubscription.getDeliveredCount());
+        assertEquals(20, slowSubscription.getSkippedCount());
+    }
+
+    @Test
+    public void rateLimitToleratesJitterAtExactRate() {
+        FrameHub hub = new FrameHub(2, new RecordingRecycler());
+        ReleasingSubscriber subscriber = new ReleasingSubscriber();
+        hub.subscribe("subscriber", 30, subscriber);
+        // 帧间隔比 30fps 略短也不应该丢帧。
+        long timestampNanos = 1;
+        for (int i = 0; i < 10; i++) {
+            publish(hub, new byte[12], timestampNanos);
+            timestampNanos += FRAME_INTERVAL_NANOS - TimeUnit.MILLISECONDS.toNanos(2);
+        }
+        assertEquals(10, subscriber.mFrameCount);
+    }
+
+    @Test
+    public void heldFrameIsReportedAsLeakOnce() {
+        FrameHub hub = new FrameHub(2, new RecordingRecycler(), TimeUnit.MILLISECONDS.toNanos(100));
+        HoldingSubscriber holding = new HoldingSubscriber();
+        FrameHub.Subscription subscription = hub.subscribe("holding", 0, holding);
+        publish(hub, new byte[12], 1);
+        hub.unsubscribe(subscription);
+        publish(hub, new byte[12], TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, hub.getLeakCount());
+        publish(hub, new byte[12], TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, hub.getLeakCount());
+        publish(hub, new byte[12], TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(1, hub.getLeakCount());
+    }
+
+    @Test
+    public void periodicCheckReportsLeakWithoutNewFrames() {
+        FrameHub hub = new FrameHub(2, new RecordingRecycler(), TimeUnit.MILLISECONDS.toNanos(100));
+        hub.subscribe("holding", 0, new HoldingSubscriber());
+        publish(hub, new byte[12], 1);
+
+        // 所有帧都被持有，之后不会再有 publish，只能靠定期检查发现。
+        hub.checkLeaks(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, hub.getLeakCount());
+        hub.checkLeaks(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, hub.getLeakCount());
+        hub.checkLeaks(TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(1, hub.getLeakCount());
+    }
+
+    @Test
+    public void unsubscribeFreesSubscriberSlot() {
+        FrameHub hub = new FrameHub(1, new RecordingRecycler());
+        FrameHub.Subscription first = null;
+        for (int i = 0; i < 32; i++) {
+            FrameHub.Subscription subscription = hub.subscribe("s" + i, 0, new ReleasingSubscriber());
+            if (first == null) {
+                first = subscription;
+            }
+        }
+        try {
+            hub.subscribe("extra", 0, new ReleasingSubscriber());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        hub.unsubscribe(first);
+        ReleasingSubscriber extra = new ReleasingSubscriber();
+        hub.subscribe("extra", 0, extra);
+        publish(hub, new byte[12], 1);
+        assertEquals(1, extra.mFrameCount);
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameMetricsTest {
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+
+    @Test
+    public void steadyStreamHasNoDropsAndThirtyFps() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(3);
+        byte[] buffer = new byte[16];
+        for (int i = 1; i <= 300; i++) {
+            long timestamp = i * INTERVAL_NANOS;
+            metrics.onFrameAvailable(buffer, timestamp);
+            metrics.onBufferReturned(buffer, timestamp + TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        assertEquals(300, snapshot.frameCount);
+        assertEquals(0, snapshot.droppedFrames);
+        assertEquals(0, snapshot.starvationEvents);
+        assertEquals(30f, snapshot.windowFps, 0.5f);
+        assertEquals(30f, snapshot.instantFps, 0.5f);
+        assertEquals(INTERVAL_NANOS, snapshot.expectedIntervalNanos, 1000);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), snapshot.averageHoldNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), snapshot.maxHoldNanos);
+        assertEquals(0, snapshot.getJitterPercentileMicros(99));
+    }
+
+    @Test
+    public void gapCountsMissingFrames() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(3);
+        byte[] buffer = new byte[16];
+        long timestamp = 0;
+        for (int i = 0; i < 300; i++) {
+            // 第 150 帧之前丢了两帧，间隔变成三倍。
+            timestamp += i == 150 ? 3 * INTERVAL_NANOS : INTERVAL_NANOS;
+            metrics.onFrameAvailable(buffer, timestamp);
+            metrics.onBufferReturned(buffer, timestamp);
+        }
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        assertEquals(2, snapshot.droppedFrames);
+        // 间隔异常的帧不更新期望间隔。
+        assertEquals(INTERVAL_NANOS, snapshot.expectedIntervalNanos, 1000);
+        // 只有一个样本的抖动是两个帧间隔。
+        long jitterMicros = TimeUnit.NANOSECONDS.toMicros(2 * INTERVAL_NANOS);
+        long p100 = snapshot.getJitterPercentileMicros(100);
+        assertTrue("p100=" + p100, p100 >= jitterMicros && p100 <= jitterMicros * 1.125);
+    }
+
+    @Test
+    public void jitterPercentilesStayWithinBucketError() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(3);
+        byte[] buffer = new byte[16];
+        long timestamp = 0;
+        for (int i = 0; i < 1000; i++) {
+            // 帧间隔交替偏早和偏晚 1ms。
+            timestamp += INTERVAL_NANOS + (i % 2 == 0 ? 1 : -1) * TimeUnit.MILLISECONDS.toNanos(1);
+            metrics.onFrameAvailable(buffer, timestamp);
+            metrics.onBufferReturned(buffer, timestamp);
+        }
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        long p50 = snapshot.getJitterPercentileMicros(50);
+        assertTrue("p50=" + p50, p50 >= 900 && p50 <= 1300);
+        assertEquals(0, snapshot.droppedFrames);
+    }
+
+    @Test
+    public void allBuffersHeldCountsStarvation() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(2);
+        byte[] first = new byte[16];
+        byte[] second = new byte[16];
+        metrics.onFrameAvailable(first, INTERVAL_NANOS);
+        metrics.onFrameAvailable(second, 2 * INTERVAL_NANOS);
+        metrics.onBufferReturned(first, 10 * INTERVAL_NANOS);
+        metrics.onBufferReturned(second, 3 * INTERVAL_NANOS);
+
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        assertEquals(1, snapshot.starvationEvents);
+        assertEquals(9 * INTERVAL_NANOS, snapshot.maxHoldNanos);
+        assertEquals(5 * INTERVAL_NANOS, snapshot.averageHoldNanos);
+    }
+
+    @Test
+    public void buffersHeldAcrossRestartCountStarvation() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(3);
+        metrics.onFrameAvailable(new byte[16], INTERVAL_NANOS);
+        metrics.onFrameAvailable(new byte[16], 2 * INTERVAL_NANOS);
+
+        // 上一次预览的两个 Buffer 还没有归还，新的预览只有两个 Buffer。
+        metrics.onPreviewStarted(2);
+        metrics.onFrameAvailable(new byte[16], 3 * INTERVAL_NANOS);
+
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        assertEquals(1, snapshot.starvationEvents);
+    }
+
+    @Test
+    public void restartKeepsTotalsButResetsInterval() {
+        FrameMetrics metrics = new FrameMetrics();
+        metrics.onPreviewStarted(3);
+        byte[] buffer = new byte[16];
+        metrics.onFrameAvailable(buffer, INTERVAL_NANOS);
+        metrics.onBufferReturned(buffer, INTERVAL_NANOS);
+        metrics.onFrameAvailable(buffer, 2 * INTERVAL_NANOS);
+        metrics.onBufferReturned(buffer, 2 * INTERVAL_NANOS);
+
+        // 重新开启预览，中间的停顿不算丢帧。
+        metrics.onPreviewStarted(3);
+        metrics.onFrameAvailable(buffer, TimeUnit.SECONDS.toNanos(10));
+        FrameMetrics.Snapshot snapshot = metrics.snapshot(new FrameMetrics.Snapshot());
+        assertEquals(3, snapshot.frameCount);
+        assertEquals(0, snapshot.droppedFrames);
+    }
+
+}
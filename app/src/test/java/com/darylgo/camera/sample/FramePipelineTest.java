@@ -0,0 +1,225 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FramePipelineTest {
+
+    private static final int FORMAT_NV21 = 17;
+
+    private final List<byte[]> mRecycled = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final FramePipeline.BufferRecycler mRecycler = new FramePipeline.BufferRecycler() {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+            mRecycled.add(buffer);
+        }
+    };
+    private FramePipeline mPipeline;
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.release();
+        }
+    }
+
+    /**
+     * 阻塞在第一帧上的处理器，用来把队列填满。
+     */
+    private static class BlockingProcessor implements FrameProcessor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void processFrame(@NonNull PreviewFrame frame) {
+            timestamps.add(frame.getTimestampNanos());
+            started.countDown();
+            // release() 会中断工作线程，这里忽略中断，一直阻塞到测试放行，保证处理中的帧不会提前回收。
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    unblock.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void submitWithoutProcessorRecyclesImmediately() {
+        mPipeline = new FramePipeline(2, 1, FramePipeline.Backpressure.DROP_OLDEST, mRecycler);
+        byte[] buffer = new byte[16];
+        assertFalse(mPipeline.submit(buffer, 4, 2, FORMAT_NV21, 0));
+        assertEquals(1, mRecycled.size());
+        assertSame(buffer, mRecycled.get(0));
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() throws Exception {
+        mPipeline = new FramePipeline(2, 1, FramePipeline.Backpressure.DROP_OLDEST, mRecycler);
+        BlockingProcessor processor = new BlockingProcessor();
+        mPipeline.addProcessor(processor);
+
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, i));
+        }
+        // 队列容量为 2，1、2、3 被丢弃。
+        assertEquals(3, mPipeline.getDroppedCount());
+        assertEquals(3, mRecycled.size());
+
+        processor.unblock.countDown();
+        waitForProcessed(3);
+        assertEquals(Arrays.asList(0L, 4L, 5L), processor.timestamps);
+        // 回收发生在计数之后。
+        waitForRecycled(6);
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() throws Exception {
+        mPipeline = new FramePipeline(1, 1, FramePipeline.Backpressure.DROP_NEWEST, mRecycler);
+        BlockingProcessor processor = new BlockingProcessor();
+        mPipeline.addProcessor(processor);
+
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        assertTrue(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 1));
+        assertFalse(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 2));
+        assertEquals(1, mPipeline.getDroppedCount());
+
+        processor.unblock.countDown();
+        waitForProcessed(2);
+        assertEquals(Arrays.asList(0L, 1L), processor.timestamps);
+    }
+
+    @Test
+    public void processorExceptionDoesNotStopWorker() throws Exception {
+        mPipeline = new FramePipeline(4, 1, FramePipeline.Backpressure.DROP_NEWEST, mRecycler);
+        mPipeline.addProcessor(new FrameProcessor() {
+            @Override
+            public void processFrame(@NonNull PreviewFrame frame) {
+                if (frame.getTimestampNanos() == 0) {
+                    throw new IllegalStateException("Broken frame");
+                }
+            }
+        });
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 1);
+        waitForProcessed(2);
+        waitForRecycled(2);
+    }
+
+    @Test
+    public void releaseRecyclesPendingFrames() throws Exception {
+        mPipeline = new FramePipeline(4, 1, FramePipeline.Backpressure.DROP_NEWEST, mRecycler);
+        BlockingProcessor processor = new BlockingProcessor();
+        mPipeline.addProcessor(processor);
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 1);
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 2);
+
+        mPipeline.release();
+        assertEquals(2, mRecycled.size());
+        processor.unblock.countDown();
+        waitForRecycled(3);
+        // 释放之后提交的帧直接回收。
+        assertFalse(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 3));
+        assertEquals(4, mRecycled.size());
+    }
+
+    @Test
+    public void blockWaitsForFreeSlot() throws Exception {
+        mPipeline = new FramePipeline(1, 1, FramePipeline.Backpressure.BLOCK, mRecycler);
+        BlockingProcessor processor = new BlockingProcessor();
+        mPipeline.addProcessor(processor);
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        assertTrue(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 1));
+
+        // 队列已满，第三帧阻塞到工作线程取走第二帧为止，不会丢帧。
+        Thread submitter = submitAsync(2, new AtomicReference<Boolean>());
+        submitter.join(50);
+        assertTrue(submitter.isAlive());
+        processor.unblock.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        waitForProcessed(3);
+        assertEquals(Arrays.asList(0L, 1L, 2L), processor.timestamps);
+        assertEquals(0, mPipeline.getDroppedCount());
+    }
+
+    @Test
+    public void releaseWakesBlockedSubmit() throws Exception {
+        mPipeline = new FramePipeline(1, 1, FramePipeline.Backpressure.BLOCK, mRecycler);
+        BlockingProcessor processor = new BlockingProcessor();
+        mPipeline.addProcessor(processor);
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 0);
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, 1);
+
+        AtomicReference<Boolean> result = new AtomicReference<>();
+        Thread submitter = submitAsync(2, result);
+        submitter.join(50);
+        assertTrue(submitter.isAlive());
+
+        // 工作线程还卡在第一帧上，release() 也要让相机线程返回，并回收排队和阻塞中的 Buffer。
+        mPipeline.release();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        assertEquals(Boolean.FALSE, result.get());
+        waitForRecycled(2);
+        processor.unblock.countDown();
+        waitForRecycled(3);
+    }
+
+    private Thread submitAsync(final long timestampNanos, final AtomicReference<Boolean> result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(mPipeline.submit(new byte[16], 4, 2, FORMAT_NV21, timestampNanos));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitForProcessed(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mPipeline.getProcessedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mPipeline.getProcessedCount());
+    }
+
+    private void waitForRecycled(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mRecycled.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mRecycled.size());
+    }
+
+}
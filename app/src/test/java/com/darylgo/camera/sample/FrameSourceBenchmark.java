@@ -0,0 +1,175 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测量预览帧处理链吞吐量和延迟的基准测试，不依赖相机，用 {@link SyntheticFrameSource} 在 JVM 上运行。
+ * <p>
+ * 帧来源的每一帧都会提交到一个新建的 {@link FramePipeline}，依次经过注册的处理器，
+ * 最后由测量处理器记录从回调到处理完成的耗时，Buffer 处理完之后交还给帧来源。
+ */
+public class FrameSourceBenchmark {
+
+    private static final int MAX_LATENCY_SAMPLES = 1 << 16;
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int BUFFER_COUNT = 4;
+    private static final int QUEUE_CAPACITY = 2;
+    private static final long WARMUP_MILLIS = 200;
+    private static final long MEASURE_MILLIS = 500;
+
+    @Test
+    public void syntheticSourceWithMotionDetector() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workerCount : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+            SyntheticFrameSource frameSource = new SyntheticFrameSource(WIDTH, HEIGHT, 0);
+            try {
+                run(frameSource, WIDTH, HEIGHT, BUFFER_COUNT, QUEUE_CAPACITY, workerCount, WARMUP_MILLIS,
+                        new MotionDetector());
+                Result result = run(frameSource, WIDTH, HEIGHT, BUFFER_COUNT, QUEUE_CAPACITY, workerCount,
+                        MEASURE_MILLIS, new MotionDetector());
+                System.out.println(String.format(Locale.US, "FrameSource %dx%d workers=%d: %s",
+                        WIDTH, HEIGHT, workerCount, result));
+            } finally {
+                frameSource.release();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new FrameSourceBenchmark().syntheticSourceWithMotionDetector();
+    }
+
+    /**
+     * 运行指定的时长，返回测量结果。
+     *
+     * @param frameSource   帧来源，运行期间由基准测试独占
+     * @param width         帧宽度
+     * @param height        帧高度
+     * @param bufferCount   交给帧来源的 Buffer 数量
+     * @param queueCapacity FramePipeline 的队列容量
+     * @param workerCount   FramePipeline 的工作线程数
+     * @param processors    要测量的处理器，按顺序执行
+     */
+    @NonNull
+    public static Result run(@NonNull final FrameSource frameSource, final int width, final int height,
+                             int bufferCount, int queueCapacity, int workerCount, long durationMillis,
+                             @NonNull FrameProcessor... processors) throws InterruptedException {
+        final LatencyProbe probe = new LatencyProbe();
+        final FramePipeline framePipeline = new FramePipeline(queueCapacity, workerCount,
+                FramePipeline.Backpressure.DROP_OLDEST, new FramePipeline.BufferRecycler() {
+            @Override
+            public void recycleBuffer(@NonNull byte[] buffer) {
+                frameSource.addCallbackBuffer(buffer);
+            }
+        });
+        for (FrameProcessor processor : processors) {
+            framePipeline.addProcessor(processor);
+        }
+        framePipeline.addProcessor(probe);
+
+        final AtomicLong deliveredFrames = new AtomicLong();
+        frameSource.setFrameCallback(new FrameSource.FrameCallback() {
+            @Override
+            public void onFrame(@NonNull byte[] data, @NonNull FrameSource source) {
+                deliveredFrames.incrementAndGet();
+                framePipeline.submit(data, width, height, ImageFormat.NV21, System.nanoTime());
+            }
+        });
+        int frameSize = width * height * 3 / 2;
+        for (int i = 0; i < bufferCount; i++) {
+            frameSource.addCallbackBuffer(new byte[frameSize]);
+        }
+
+        long startNanos = System.nanoTime();
+        frameSource.startPreview();
+        Thread.sleep(durationMillis);
+        frameSource.stopPreview();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        frameSource.setFrameCallback(null);
+        framePipeline.release();
+
+        Result result = new Result();
+        result.elapsedNanos = elapsedNanos;
+        result.deliveredFrames = deliveredFrames.get();
+        result.processedFrames = probe.mProcessedFrames.get();
+        result.droppedFrames = framePipeline.getDroppedCount();
+        result.framesPerSecond = result.processedFrames * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        if (frameSource instanceof GeneratedFrameSource) {
+            result.starvedFrames = ((GeneratedFrameSource) frameSource).getStarvedFrames();
+        }
+        long[] samples = Arrays.copyOf(probe.mLatencySamples, Math.min(probe.mSampleIndex.get(), MAX_LATENCY_SAMPLES));
+        Arrays.sort(samples);
+        result.latencySamples = samples;
+        return result;
+    }
+
+    /**
+     * 处理链末尾的测量处理器，记录每一帧从提交到处理完成的耗时。
+     */
+    private static class LatencyProbe implements FrameProcessor {
+        private final long[] mLatencySamples = new long[MAX_LATENCY_SAMPLES];
+        private final AtomicInteger mSampleIndex = new AtomicInteger();
+        private final AtomicLong mProcessedFrames = new AtomicLong();
+
+        @Override
+        public void processFrame(@NonNull PreviewFrame frame) {
+            long latencyNanos = System.nanoTime() - frame.getTimestampNanos();
+            mProcessedFrames.incrementAndGet();
+            int index = mSampleIndex.getAndIncrement();
+            if (index < MAX_LATENCY_SAMPLES) {
+                mLatencySamples[index] = latencyNanos;
+            }
+        }
+    }
+
+    /**
+     * 基准测试的结果。
+     */
+    public static class Result {
+        public long elapsedNanos;
+        public long deliveredFrames;
+        public long processedFrames;
+        public long droppedFrames;
+        public long starvedFrames;
+        public double framesPerSecond;
+        private long[] latencySamples = new long[0];
+
+        /**
+         * 端到端延迟的百分位数，最多统计前 {@value #MAX_LATENCY_SAMPLES} 帧。
+         *
+         * @param percentile 0 到 100 之间的百分位
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            if (latencySamples.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(latencySamples.length * percentile / 100) - 1;
+            return latencySamples[Math.max(0, Math.min(latencySamples.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return "FrameSourceBenchmark.Result{fps=" + String.format(Locale.US, "%.1f", framesPerSecond)
+                    + ", delivered=" + deliveredFrames
+                    + ", processed=" + processedFrames
+                    + ", dropped=" + droppedFrames
+                    + ", starved=" + starvedFrames
+                    + ", p50Us=" + getLatencyPercentileNanos(50) / 1000
+                    + ", p90Us=" + getLatencyPercentileNanos(90) / 1000
+                    + ", p99Us=" + getLatencyPercentileNanos(99) / 1000
+                    + ", maxUs=" + getLatencyPercentileNanos(100) / 1000 + "}";
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GeneratedFrameSourceTest {
+
+    /**
+     * 把帧序号写进第一个字节的帧来源。
+     */
+    private static class IndexFrameSource extends GeneratedFrameSource {
+        IndexFrameSource(int fps) {
+            super("IndexFrameSource", 4, 2, fps);
+        }
+
+        @Override
+        protected boolean fillFrame(@NonNull byte[] buffer, long frameIndex) {
+            buffer[0] = (byte) frameIndex;
+            return true;
+        }
+    }
+
+    private static class QueueCallback implements FrameSource.FrameCallback {
+        final BlockingQueue<byte[]> mFrames = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(@NonNull byte[] data, @NonNull FrameSource source) {
+            mFrames.add(data);
+        }
+    }
+
+    @Test
+    public void unlimitedSourceWaitsForCallbackInsteadOfSpinning() throws InterruptedException {
+        IndexFrameSource source = new IndexFrameSource(0);
+        try {
+            source.startPreview();
+            Thread.sleep(50);
+            QueueCallback callback = new QueueCallback();
+            source.setFrameCallback(callback);
+            source.addCallbackBuffer(new byte[source.getFrameSize()]);
+            byte[] frame = callback.mFrames.poll(1, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            // 没有回调期间不应该消耗帧序号。
+            assertEquals(0, frame[0]);
+            assertEquals(0, source.getStarvedFrames());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void unlimitedSourceDeliversOneFramePerBuffer() throws InterruptedException {
+        IndexFrameSource source = new IndexFrameSource(0);
+        try {
+            QueueCallback callback = new QueueCallback();
+            source.setFrameCallback(callback);
+            source.addCallbackBuffer(new byte[source.getFrameSize()]);
+            source.startPreview();
+            byte[] frame = callback.mFrames.poll(1, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            assertNull(callback.mFrames.poll(50, TimeUnit.MILLISECONDS));
+            source.addCallbackBuffer(frame);
+            frame = callback.mFrames.poll(1, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            assertEquals(1, frame[0]);
+            assertEquals(2, source.getDeliveredFrames());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void settingCallbackKeepsBuffersAddedAfterClearing() throws InterruptedException {
+        IndexFrameSource source = new IndexFrameSource(0);
+        try {
+            // 和 MainActivity 的调用顺序一致：先清空队列，再添加 Buffer，开启预览前才设置回调。
+            source.setFrameCallback(null);
+            source.addCallbackBuffer(new byte[source.getFrameSize()]);
+            source.addCallbackBuffer(new byte[source.getFrameSize()]);
+            QueueCallback callback = new QueueCallback();
+            source.setFrameCallback(callback);
+            source.startPreview();
+            assertNotNull(callback.mFrames.poll(1, TimeUnit.SECONDS));
+            assertNotNull(callback.mFrames.poll(1, TimeUnit.SECONDS));
+            assertEquals(2, source.getDeliveredFrames());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void clearingCallbackDropsQueuedBuffers() throws InterruptedException {
+        IndexFrameSource source = new IndexFrameSource(0);
+        try {
+            QueueCallback callback = new QueueCallback();
+            source.addCallbackBuffer(new byte[source.getFrameSize()]);
+            source.setFrameCallback(null);
+            source.setFrameCallback(callback);
+            source.startPreview();
+            assertNull(callback.mFrames.poll(50, TimeUnit.MILLISECONDS));
+            assertEquals(0, source.getDeliveredFrames());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void smallBufferIsRejected() {
+        IndexFrameSource source = new IndexFrameSource(30);
+        try {
+            source.addCallbackBuffer(new byte[source.getFrameSize() - 1]);
+            assertEquals(1, source.getRejectedBuffers());
+        } finally {
+            source.release();
+        }
+    }
+
+}
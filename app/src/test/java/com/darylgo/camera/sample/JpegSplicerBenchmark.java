@@ -0,0 +1,91 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * 比较保存照片时通过 {@link JpegSplicer} 合并 EXIF 和解码之后重新编码 JPEG 的每张耗时，两者都包括写入文件。
+ * <p>
+ * 在 JVM 上运行，重新编码用的是 ImageIO，结果只用来比较两种做法，不代表设备上的性能。
+ */
+public class JpegSplicerBenchmark {
+
+    private static final int[][] SIZES = {{1280, 720}, {1920, 1080}};
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private interface Saver {
+        void save(byte[] jpeg, FileChannel channel) throws IOException;
+    }
+
+    @Test
+    public void spliceVersusReencode() throws IOException {
+        File file = File.createTempFile("jpeg_splicer_benchmark", ".jpg");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            for (int[] size : SIZES) {
+                byte[] jpeg = JpegSplicerTest.withExif(JpegSplicerTest.encodeJpeg(size[0], size[1]), JpegSplicerTest.cameraTiff());
+                double splice = measure(new Saver() {
+                    @Override
+                    public void save(byte[] jpeg, FileChannel channel) throws IOException {
+                        JpegSplicer splicer = JpegSplicer.parse(jpeg);
+                        ByteBuffer tiff = splicer.getExifTiff();
+                        ByteBuffer[] merged = tiff != null ? createExifWriter().merge(tiff) : null;
+                        JpegSplicer.write(channel, merged != null ? splicer.splice(merged) : new ByteBuffer[]{ByteBuffer.wrap(jpeg)});
+                    }
+                }, jpeg, channel);
+                double reencode = measure(new Saver() {
+                    @Override
+                    public void save(byte[] jpeg, FileChannel channel) throws IOException {
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(jpeg.length);
+                        ImageIO.write(image, "jpg", outputStream);
+                        JpegSplicer.write(channel, new ByteBuffer[]{ByteBuffer.wrap(outputStream.toByteArray())});
+                    }
+                }, jpeg, channel);
+                System.out.println(String.format(Locale.US, "JpegSplicer %dx%d (%d KB): splice %.3f ms, re-encode %.2f ms (%.0fx)",
+                        size[0], size[1], jpeg.length / 1024, splice, reencode, reencode / splice));
+            }
+        } finally {
+            randomAccessFile.close();
+            file.delete();
+        }
+    }
+
+    private static ExifWriter createExifWriter() {
+        return new ExifWriter().setMake("Acme").setModel("Pixel").setDateTime(System.currentTimeMillis());
+    }
+
+    private static double measure(Saver saver, byte[] jpeg, FileChannel channel) throws IOException {
+        run(saver, jpeg, channel, WARMUP_NANOS);
+        long startNanos = System.nanoTime();
+        int photos = run(saver, jpeg, channel, MEASURE_NANOS);
+        return (System.nanoTime() - startNanos) / 1e6 / photos;
+    }
+
+    private static int run(Saver saver, byte[] jpeg, FileChannel channel, long durationNanos) throws IOException {
+        long endNanos = System.nanoTime() + durationNanos;
+        int photos = 0;
+        do {
+            channel.position(0);
+            channel.truncate(0);
+            saver.save(jpeg, channel);
+            photos++;
+        } while (System.nanoTime() < endNanos);
+        return photos;
+    }
+
+}
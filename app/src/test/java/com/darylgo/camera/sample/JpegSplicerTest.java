@@ -0,0 +1,258 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JpegSplicerTest {
+
+    static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+
+    /**
+     * 厂商数据里记录了自身的绝对偏移 118，移动了位置就会失效。
+     */
+    static final byte[] MAKER_NOTE = {'A', 'C', 'M', 'E', 118, 0, 0, 0};
+
+    static final int CAMERA_IFD0_OFFSET = 8;
+    static final int CAMERA_EXIF_IFD_OFFSET = 68;
+    static final int CAMERA_EXPOSURE_OFFSET = 110;
+    static final int CAMERA_MAKER_NOTE_OFFSET = 118;
+    static final int CAMERA_GPS_IFD_OFFSET = 126;
+    static final int CAMERA_IFD1_OFFSET = 144;
+    static final int CAMERA_THUMBNAIL_OFFSET = 186;
+
+    static final int TAG_MAKE = 0x010F;
+    static final int TAG_MODEL = 0x0110;
+    static final int TAG_ORIENTATION = 0x0112;
+    static final int TAG_DATE_TIME = 0x0132;
+    static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    static final int TAG_GPS_IFD_POINTER = 0x8825;
+    static final int TAG_EXPOSURE_TIME = 0x829A;
+    static final int TAG_ISO = 0x8827;
+    static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    static final int TAG_MAKER_NOTE = 0x927C;
+
+    /**
+     * 用 ImageIO 编码一张带渐变的 JPEG，只有 JFIF 段，没有 EXIF。
+     */
+    static byte[] encodeJpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x ^ y) & 0xFF));
+            }
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", outputStream));
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 模拟相机写入的小端 EXIF：IFD0 有厂商和方向，Exif IFD 有曝光时间、ISO 和厂商数据，
+     * 另外还有 GPS IFD 和带缩略图的 IFD1。
+     */
+    static byte[] cameraTiff() {
+        ByteBuffer tiff = ByteBuffer.allocate(190).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(CAMERA_IFD0_OFFSET);
+        tiff.putShort((short) 4);
+        putEntry(tiff, TAG_MAKE, 2, 5, 62);
+        putEntry(tiff, TAG_ORIENTATION, 3, 1, 6);
+        putEntry(tiff, TAG_EXIF_IFD_POINTER, 4, 1, CAMERA_EXIF_IFD_OFFSET);
+        putEntry(tiff, TAG_GPS_IFD_POINTER, 4, 1, CAMERA_GPS_IFD_OFFSET);
+        tiff.putInt(CAMERA_IFD1_OFFSET);
+        tiff.put(new byte[]{'A', 'c', 'm', 'e', 0, 0});
+
+        assertEquals(CAMERA_EXIF_IFD_OFFSET, tiff.position());
+        tiff.putShort((short) 3);
+        putEntry(tiff, TAG_EXPOSURE_TIME, 5, 1, CAMERA_EXPOSURE_OFFSET);
+        putEntry(tiff, TAG_ISO, 3, 1, 400);
+        putEntry(tiff, TAG_MAKER_NOTE, 7, MAKER_NOTE.length, CAMERA_MAKER_NOTE_OFFSET);
+        tiff.putInt(0);
+        tiff.putInt(1).putInt(120);
+        tiff.put(MAKER_NOTE);
+
+        assertEquals(CAMERA_GPS_IFD_OFFSET, tiff.position());
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0).putShort((short) 1).putInt(4).put(new byte[]{2, 2, 0, 0});
+        tiff.putInt(0);
+
+        assertEquals(CAMERA_IFD1_OFFSET, tiff.position());
+        tiff.putShort((short) 3);
+        putEntry(tiff, 0x0103, 3, 1, 6);
+        putEntry(tiff, 0x0201, 4, 1, CAMERA_THUMBNAIL_OFFSET);
+        putEntry(tiff, 0x0202, 4, 1, THUMBNAIL.length);
+        tiff.putInt(0);
+        tiff.put(THUMBNAIL);
+        assertEquals(tiff.capacity(), tiff.position());
+        return tiff.array();
+    }
+
+    private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3) {
+            tiff.putShort((short) value).putShort((short) 0);
+        } else {
+            tiff.putInt(value);
+        }
+    }
+
+    /**
+     * 把 TIFF 数据作为 APP1 段插入到 SOI 之后，和相机输出的 JPEG 一样 EXIF 在 JFIF 之前。
+     */
+    static byte[] withExif(byte[] jpeg, byte[] tiff) {
+        int segmentLength = 2 + 6 + tiff.length;
+        ByteBuffer buffer = ByteBuffer.allocate(jpeg.length + 2 + segmentLength);
+        buffer.put(jpeg, 0, 2);
+        buffer.put((byte) 0xFF).put((byte) JpegSplicer.MARKER_APP1).putShort((short) segmentLength);
+        buffer.put(new byte[]{'E', 'x', 'i', 'f', 0, 0}).put(tiff);
+        buffer.put(jpeg, 2, jpeg.length - 2);
+        return buffer.array();
+    }
+
+    static byte[] concat(ByteBuffer[] buffers) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer duplicate = buffer.duplicate();
+            byte[] bytes = new byte[duplicate.remaining()];
+            duplicate.get(bytes);
+            outputStream.write(bytes, 0, bytes.length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 在 IFD 中查找标签，返回条目的位置，找不到时返回 -1。
+     */
+    static int findEntry(ByteBuffer tiff, int ifdOffset, int tag) {
+        int count = tiff.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifdOffset + 2 + i * 12;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    static String readAscii(ByteBuffer tiff, int entry) {
+        int count = tiff.getInt(entry + 4);
+        int offset = count > 4 ? tiff.getInt(entry + 8) : entry + 8;
+        byte[] bytes = new byte[count - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = tiff.get(offset + i);
+        }
+        return new String(bytes);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void parseFindsCameraExifAndThumbnail() throws IOException {
+        byte[] jpeg = withExif(encodeJpeg(64, 48), cameraTiff());
+        JpegSplicer splicer = JpegSplicer.parse(jpeg);
+        List<JpegSplicer.Segment> segments = splicer.getSegments();
+        assertEquals(JpegSplicer.MARKER_APP1, segments.get(0).marker);
+        assertEquals(JpegSplicer.MARKER_SOS, segments.get(segments.size() - 1).marker);
+        assertTrue(splicer.hasExif());
+
+        ByteBuffer tiff = splicer.getExifTiff();
+        assertNotNull(tiff);
+        assertEquals(ByteOrder.LITTLE_ENDIAN, tiff.order());
+        assertEquals(6, splicer.getExifOrientation());
+        ByteBuffer thumbnail = splicer.getThumbnail();
+        assertNotNull(thumbnail);
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+    }
+
+    @Test
+    public void parseRejectsMalformedData() {
+        byte[][] samples = {
+                {1, 2, 3, 4},
+                // 段长度超出数据范围。
+                {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0x10, 0x00, 0, 0},
+                // 没有 SOS 就结束了。
+                {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0x00, 0x02},
+        };
+        for (byte[] sample : samples) {
+            try {
+                JpegSplicer.parse(sample);
+                fail("Parsed " + Arrays.toString(sample));
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void spliceInsertsExifAfterJfifWithoutTouchingImageData() throws IOException {
+        byte[] jpeg = encodeJpeg(64, 48);
+        JpegSplicer splicer = JpegSplicer.parse(jpeg);
+        assertFalse(splicer.hasExif());
+        JpegSplicer.Segment jfif = splicer.getSegments().get(0);
+        assertEquals(JpegSplicer.MARKER_APP0, jfif.marker);
+
+        byte[] spliced = concat(splicer.splice(new ExifWriter().setRotation(90).build(null)));
+        JpegSplicer result = JpegSplicer.parse(spliced);
+        assertEquals(JpegSplicer.MARKER_APP0, result.getSegments().get(0).marker);
+        assertEquals(JpegSplicer.MARKER_APP1, result.getSegments().get(1).marker);
+        assertEquals(6, result.getExifOrientation());
+
+        int headEnd = jfif.offset + jfif.length;
+        int inserted = spliced.length - jpeg.length;
+        assertArrayEquals(Arrays.copyOfRange(jpeg, 0, headEnd), Arrays.copyOfRange(spliced, 0, headEnd));
+        assertArrayEquals(Arrays.copyOfRange(jpeg, headEnd, jpeg.length),
+                Arrays.copyOfRange(spliced, headEnd + inserted, spliced.length));
+    }
+
+    @Test
+    public void spliceReplacesExistingExif() throws IOException {
+        byte[] image = encodeJpeg(64, 48);
+        byte[] jpeg = withExif(image, cameraTiff());
+        byte[] spliced = concat(JpegSplicer.parse(jpeg).splice(new ExifWriter().setRotation(180).build(null)));
+        JpegSplicer result = JpegSplicer.parse(spliced);
+        assertEquals(3, result.getExifOrientation());
+        assertNull(result.getThumbnail());
+        assertEquals(JpegSplicer.MARKER_APP1, result.getSegments().get(0).marker);
+        int app1End = result.getSegments().get(0).length + 2;
+        assertArrayEquals(Arrays.copyOfRange(image, 2, image.length), Arrays.copyOfRange(spliced, app1End, spliced.length));
+    }
+
+    @Test
+    public void buildEmbedsThumbnail() throws IOException {
+        byte[] jpeg = encodeJpeg(64, 48);
+        ByteBuffer[] exif = new ExifWriter().setMake("Acme").setDateTime(1500000000123L).build(ByteBuffer.wrap(THUMBNAIL));
+        assertEquals(2, exif.length);
+        JpegSplicer result = JpegSplicer.parse(concat(JpegSplicer.parse(jpeg).splice(exif)));
+        ByteBuffer thumbnail = result.getThumbnail();
+        assertNotNull(thumbnail);
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+        ByteBuffer tiff = result.getExifTiff();
+        assertNotNull(tiff);
+        assertEquals("Acme", readAscii(tiff, findEntry(tiff, tiff.getInt(4), TAG_MAKE)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spliceRejectsOversizedExif() throws IOException {
+        JpegSplicer.parse(encodeJpeg(16, 16)).splice(ByteBuffer.allocate(JpegSplicer.MAX_EXIF_TIFF_SIZE + 1));
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LumaStats} 在不同采样步长下的每帧耗时。
+ * <p>
+ * 在 JVM 上运行，结果只用来比较不同的步长，不代表设备上的性能。
+ */
+public class LumaStatsBenchmark {
+
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void throughputByStride() {
+        int width = 1920;
+        int height = 1080;
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(1).nextBytes(nv21);
+        LumaStats.Result result = new LumaStats.Result();
+        for (int stride : new int[]{1, 2, 4, 8}) {
+            LumaStats stats = new LumaStats(stride, stride);
+            run(stats, nv21, width, height, result, WARMUP_NANOS);
+            long startNanos = System.nanoTime();
+            int frames = run(stats, nv21, width, height, result, MEASURE_NANOS);
+            double millisPerFrame = (System.nanoTime() - startNanos) / 1e6 / frames;
+            System.out.println(String.format(Locale.US, "LumaStats %dx%d stride=%d: %.3f ms/frame, %d samples",
+                    width, height, stride, millisPerFrame, result.sampleCount));
+        }
+    }
+
+    private static int run(LumaStats stats, byte[] nv21, int width, int height, LumaStats.Result result, long durationNanos) {
+        long endNanos = System.nanoTime() + durationNanos;
+        int frames = 0;
+        do {
+            stats.compute(nv21, width, height, result);
+            frames++;
+        } while (System.nanoTime() < endNanos);
+        return frames;
+    }
+
+}
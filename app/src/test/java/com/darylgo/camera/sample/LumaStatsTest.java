@@ -0,0 +1,141 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LumaStatsTest {
+
+    private static byte[] uniformFrame(int width, int height, int luma) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        java.util.Arrays.fill(nv21, 0, width * height, (byte) luma);
+        return nv21;
+    }
+
+    private static byte[] randomFrame(int width, int height, long seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+
+    /**
+     * 逐个采样点计算的参考直方图。
+     */
+    private static int[] referenceHistogram(byte[] y, int width, int height, int strideX, int strideY) {
+        int[] histogram = new int[LumaStats.HISTOGRAM_SIZE];
+        for (int row = 0; row < height; row += strideY) {
+            for (int column = 0; column < width; column += strideX) {
+                histogram[y[row * width + column] & 0xFF]++;
+            }
+        }
+        return histogram;
+    }
+
+    private static double referenceSharpness(byte[] y, int width, int height, int strideX, int strideY) {
+        double sum = 0;
+        int samples = 0;
+        for (int row = 0; row < height - 1; row += strideY) {
+            for (int column = 0; column < width - 1; column += strideX) {
+                int center = y[row * width + column] & 0xFF;
+                int dx = (y[row * width + column + 1] & 0xFF) - center;
+                int dy = (y[(row + 1) * width + column] & 0xFF) - center;
+                sum += dx * dx + dy * dy;
+                samples++;
+            }
+        }
+        return sum / samples;
+    }
+
+    @Test
+    public void histogramAndMeanMatchReference() {
+        int width = 642;
+        int height = 482;
+        byte[] nv21 = randomFrame(width, height, 5);
+        for (int stride = 1; stride <= 4; stride++) {
+            LumaStats stats = new LumaStats(stride, stride + 1);
+            LumaStats.Result result = stats.compute(nv21, width, height, new LumaStats.Result());
+            int[] expected = referenceHistogram(nv21, width, height, stride, stride + 1);
+            assertArrayEquals(expected, result.histogram);
+
+            long sum = 0;
+            int samples = 0;
+            for (int i = 0; i < LumaStats.HISTOGRAM_SIZE; i++) {
+                sum += (long) i * expected[i];
+                samples += expected[i];
+            }
+            assertEquals(samples, result.sampleCount);
+            assertEquals((float) sum / samples, result.mean, 0.01f);
+            assertEquals(referenceSharpness(nv21, width, height, stride, stride + 1), result.sharpness[0], 0.01);
+        }
+    }
+
+    @Test
+    public void uniformFrameHasNoSharpness() {
+        LumaStats stats = new LumaStats(2, 2);
+        LumaStats.Result result = stats.compute(uniformFrame(640, 480, 128), 640, 480, new LumaStats.Result());
+        assertEquals(128f, result.mean, 0f);
+        assertEquals(0f, result.getMaxSharpness(), 0f);
+        assertEquals(128, result.getPercentile(1));
+        assertEquals(128, result.getPercentile(99));
+        assertEquals(0f, result.getUnderExposedRatio(), 0f);
+        assertEquals(0f, result.getOverExposedRatio(), 0f);
+    }
+
+    @Test
+    public void clipThresholdsCountExposure() {
+        int width = 640;
+        int height = 480;
+        byte[] nv21 = uniformFrame(width, height, 128);
+        // 上半部分全黑，下面四分之一全白。
+        java.util.Arrays.fill(nv21, 0, width * height / 2, (byte) 0);
+        java.util.Arrays.fill(nv21, width * height * 3 / 4, width * height, (byte) 255);
+        LumaStats stats = new LumaStats(1, 1);
+        LumaStats.Result result = stats.compute(nv21, width, height, new LumaStats.Result());
+        assertEquals(0.5f, result.getUnderExposedRatio(), 1e-6f);
+        assertEquals(0.25f, result.getOverExposedRatio(), 1e-6f);
+        assertEquals(0, result.getPercentile(50));
+        assertEquals(255, result.getPercentile(100));
+
+        stats.setClipThresholds(0, 128);
+        stats.compute(nv21, width, height, result);
+        assertEquals(0.5f, result.getOverExposedRatio(), 1e-6f);
+    }
+
+    @Test
+    public void sharperPatternScoresHigher() {
+        int width = 320;
+        int height = 240;
+        byte[] fine = new byte[width * height * 3 / 2];
+        byte[] coarse = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                fine[row * width + column] = (byte) (((row + column) & 1) == 0 ? 40 : 200);
+                coarse[row * width + column] = (byte) (((row / 16 + column / 16) & 1) == 0 ? 40 : 200);
+            }
+        }
+        LumaStats stats = new LumaStats(1, 1);
+        float fineSharpness = stats.compute(fine, width, height, new LumaStats.Result()).getMaxSharpness();
+        float coarseSharpness = stats.compute(coarse, width, height, new LumaStats.Result()).getMaxSharpness();
+        assertTrue(fineSharpness + " <= " + coarseSharpness, fineSharpness > coarseSharpness * 4);
+    }
+
+    @Test
+    public void resultIsReusedWithoutStaleCounts() {
+        LumaStats stats = new LumaStats(1, 1);
+        LumaStats.Result result = new LumaStats.Result();
+        stats.compute(uniformFrame(64, 64, 10), 64, 64, result);
+        stats.compute(uniformFrame(64, 64, 20), 64, 64, result);
+        assertEquals(0, result.histogram[10]);
+        assertEquals(64 * 64, result.histogram[20]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallBuffer() {
+        new LumaStats(1, 1).compute(new byte[10], 64, 64, new LumaStats.Result());
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.darylgo.camera.sample;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MotionDetectorTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private static class RecordingListener implements MotionDetector.Listener {
+        int started;
+        int stopped;
+        Thread stoppedThread;
+
+        @Override
+        public void onMotionStarted(@NonNull Rect region, long timestampNanos) {
+            started++;
+        }
+
+        @Override
+        public void onMotionUpdated(@NonNull Rect region, long timestampNanos) {
+        }
+
+        @Override
+        public void onMotionStopped(long timestampNanos) {
+            stopped++;
+            stoppedThread = Thread.currentThread();
+        }
+    }
+
+    private static PreviewFrame frame(byte[] nv21, long timestampNanos) {
+        PreviewFrame frame = new PreviewFrame();
+        frame.set(nv21, WIDTH, HEIGHT, FORMAT_NV21, timestampNanos);
+        return frame;
+    }
+
+    private static byte[] background() {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 100);
+        return nv21;
+    }
+
+    private static byte[] withSquare(int left, int top, int size) {
+        byte[] nv21 = background();
+        for (int row = top; row < top + size; row++) {
+            Arrays.fill(nv21, row * WIDTH + left, row * WIDTH + left + size, (byte) 250);
+        }
+        return nv21;
+    }
+
+    /**
+     * 周期为两个像素宽的竖条纹，phase 为 1 时平移一个条纹宽度，整体亮度不变。
+     */
+    private static byte[] stripes(int phase) {
+        byte[] nv21 = background();
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                nv21[row * WIDTH + column] = (byte) ((((column >> 1) + phase) & 1) == 0 ? 20 : 230);
+            }
+        }
+        return nv21;
+    }
+
+    @Test
+    public void movingObjectStartsAndStopsMotion() {
+        MotionDetector detector = new MotionDetector(12, 1, 2, 1, 3);
+        RecordingListener listener = new RecordingListener();
+        detector.setListener(listener);
+        long timestamp = 0;
+        for (int i = 0; i < 5; i++) {
+            detector.processFrame(frame(background(), timestamp++));
+        }
+        assertFalse(detector.isInMotion());
+
+        detector.processFrame(frame(withSquare(100, 100, 96), timestamp++));
+        assertTrue(detector.isInMotion());
+        assertEquals(1, listener.started);
+        assertTrue(detector.getActiveBlockCount() >= 2);
+
+        // 物体离开之后，参考图需要几帧才能恢复，之后连续安静的帧结束运动。
+        for (int i = 0; i < 60 && detector.isInMotion(); i++) {
+            detector.processFrame(frame(background(), timestamp++));
+        }
+        assertFalse(detector.isInMotion());
+        assertEquals(1, listener.stopped);
+    }
+
+    @Test
+    public void shiftedFineTextureIsNotMotion() {
+        // 640 宽时缩放倍数是 4，2x2 采样会在条纹平移时看到全亮和全暗交替。
+        MotionDetector detector = new MotionDetector(12, 1, 2, 1, 3);
+        RecordingListener listener = new RecordingListener();
+        detector.setListener(listener);
+        for (int i = 0; i < 10; i++) {
+            detector.processFrame(frame(stripes(i & 1), i));
+        }
+        assertEquals(0, listener.started);
+        assertEquals(0, detector.getActiveBlockCount());
+    }
+
+    @Test
+    public void resetDuringMotionStopsOnCallingThread() {
+        MotionDetector detector = new MotionDetector(12, 1, 2, 1, 3);
+        RecordingListener listener = new RecordingListener();
+        detector.setListener(listener);
+        detector.processFrame(frame(background(), 0));
+        detector.processFrame(frame(withSquare(200, 200, 128), 1));
+        assertTrue(detector.isInMotion());
+
+        detector.reset();
+        assertFalse(detector.isInMotion());
+        assertEquals(1, listener.stopped);
+        assertSame(Thread.currentThread(), listener.stoppedThread);
+
+        // 重置之后下一帧成为新的参考图，不会立刻触发运动。
+        detector.processFrame(frame(withSquare(200, 200, 128), 2));
+        assertFalse(detector.isInMotion());
+    }
+
+    @Test
+    public void idleFramesAreSkipped() {
+        MotionDetector detector = new MotionDetector(12, 3, 2, 1, 3);
+        for (int i = 0; i < 9; i++) {
+            detector.processFrame(frame(background(), i));
+        }
+        assertEquals(3, detector.getProcessedFrames());
+        assertEquals(6, detector.getSkippedFrames());
+    }
+
+}
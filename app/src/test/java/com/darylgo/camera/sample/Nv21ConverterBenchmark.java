@@ -0,0 +1,54 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Nv21Converter} 的吞吐量基准，输出每秒转换的百万像素数。
+ * <p>
+ * 在 JVM 上运行，结果只用来比较不同实现和线程数，不代表设备上的性能。
+ */
+public class Nv21ConverterBenchmark {
+
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void argbThroughput() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threadCount : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+            Nv21Converter converter = new Nv21Converter(threadCount);
+            try {
+                for (int[] size : SIZES) {
+                    int width = size[0];
+                    int height = size[1];
+                    byte[] nv21 = Nv21ConverterTest.randomNv21(width, height, 1);
+                    int[] argb = new int[width * height];
+                    run(converter, nv21, width, height, argb, WARMUP_NANOS);
+                    long startNanos = System.nanoTime();
+                    int frames = run(converter, nv21, width, height, argb, MEASURE_NANOS);
+                    long elapsedNanos = System.nanoTime() - startNanos;
+                    double megapixelsPerSecond = (double) width * height * frames / 1e6 / (elapsedNanos / 1e9);
+                    System.out.println(String.format(Locale.US, "Nv21Converter ARGB %dx%d threads=%d: %.1f MP/s (%.2f ms/frame)",
+                            width, height, threadCount, megapixelsPerSecond, elapsedNanos / 1e6 / frames));
+                }
+            } finally {
+                converter.release();
+            }
+        }
+    }
+
+    private static int run(Nv21Converter converter, byte[] nv21, int width, int height, int[] argb, long durationNanos) {
+        long endNanos = System.nanoTime() + durationNanos;
+        int frames = 0;
+        do {
+            converter.convertToArgb(nv21, width, height, argb, 1);
+            frames++;
+        } while (System.nanoTime() < endNanos);
+        return frames;
+    }
+
+}
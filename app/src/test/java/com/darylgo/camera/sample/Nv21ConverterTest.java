@@ -0,0 +1,203 @@
+package com.darylgo.camera.sample;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Nv21ConverterTest {
+
+    private Nv21Converter mConverter;
+
+    @After
+    public void tearDown() {
+        if (mConverter != null) {
+            mConverter.release();
+        }
+    }
+
+    static byte[] randomNv21(int width, int height, long seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+
+    /**
+     * 浮点数实现的 BT.601 full range 参考转换，返回 0xRRGGBB。
+     */
+    static int referenceRgb(byte[] nv21, int width, int height, int x, int y) {
+        int vuIndex = width * height + (y >> 1) * width + (x & ~1);
+        double luma = nv21[y * width + x] & 0xff;
+        double v = (nv21[vuIndex] & 0xff) - 128;
+        double u = (nv21[vuIndex + 1] & 0xff) - 128;
+        int r = clamp(Math.round(luma + 1.402 * v));
+        int g = clamp(Math.round(luma - 0.344136 * u - 0.714136 * v));
+        int b = clamp(Math.round(luma + 1.772 * u));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static void assertChannelClose(int expected, int actual, String message) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int diff = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+            if (diff > 1) {
+                fail(message + ": expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(actual));
+            }
+        }
+    }
+
+    @Test
+    public void argbMatchesReference() {
+        int[][] sizes = {{640, 480}, {1280, 720}, {1920, 1080}, {66, 38}};
+        mConverter = new Nv21Converter(4);
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] nv21 = randomNv21(width, height, width);
+            for (int downscale = 1; downscale <= 4; downscale++) {
+                int dstWidth = Nv21Converter.getOutputWidth(width, downscale);
+                int dstHeight = Nv21Converter.getOutputHeight(height, downscale);
+                int[] argb = new int[dstWidth * dstHeight];
+                mConverter.convertToArgb(nv21, width, height, argb, downscale);
+                for (int dy = 0; dy < dstHeight; dy++) {
+                    for (int dx = 0; dx < dstWidth; dx++) {
+                        int actual = argb[dy * dstWidth + dx];
+                        assertEquals(0xff000000, actual & 0xff000000);
+                        int expected = referenceRgb(nv21, width, height, dx * downscale, dy * downscale);
+                        assertChannelClose(expected, actual, width + "x" + height + "/" + downscale + " at " + dx + "," + dy);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rgbMatchesArgb() {
+        int width = 1280;
+        int height = 720;
+        byte[] nv21 = randomNv21(width, height, 7);
+        mConverter = new Nv21Converter(3);
+        for (int downscale = 1; downscale <= 3; downscale++) {
+            int pixels = (width / downscale) * (height / downscale);
+            int[] argb = new int[pixels];
+            byte[] rgb = new byte[pixels * 3];
+            mConverter.convertToArgb(nv21, width, height, argb, downscale);
+            mConverter.convertToRgb(nv21, width, height, rgb, downscale);
+            for (int i = 0; i < pixels; i++) {
+                int packed = ((rgb[i * 3] & 0xff) << 16) | ((rgb[i * 3 + 1] & 0xff) << 8) | (rgb[i * 3 + 2] & 0xff);
+                assertEquals(argb[i] & 0xffffff, packed);
+            }
+        }
+    }
+
+    @Test
+    public void parallelOutputEqualsSingleThread() {
+        int width = 1920;
+        int height = 1080;
+        byte[] nv21 = randomNv21(width, height, 11);
+        int[] single = new int[width * height];
+        int[] parallel = new int[width * height];
+        Nv21Converter singleConverter = new Nv21Converter(1);
+        singleConverter.convertToArgb(nv21, width, height, single, 1);
+        singleConverter.release();
+        mConverter = new Nv21Converter(8);
+        // 多次转换，确认条带之间的代数切换没有遗漏。
+        for (int i = 0; i < 20; i++) {
+            java.util.Arrays.fill(parallel, 0);
+            mConverter.convertToArgb(nv21, width, height, parallel, 1);
+            assertArrayEquals(single, parallel);
+        }
+    }
+
+    @Test
+    public void convertersShareStripeThreads() {
+        int width = 1280;
+        int height = 720;
+        byte[] nv21 = randomNv21(width, height, 5);
+        int[] argb = new int[width * height];
+        int cores = Runtime.getRuntime().availableProcessors();
+        // 多个转换器同时存在，线程数也不会超过共享线程池的大小。
+        Nv21Converter[] converters = new Nv21Converter[10];
+        for (int i = 0; i < converters.length; i++) {
+            converters[i] = new Nv21Converter(cores);
+            converters[i].convertToArgb(nv21, width, height, argb, 1);
+        }
+        for (Nv21Converter converter : converters) {
+            converter.release();
+        }
+        int stripeThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Nv21Converter-")) {
+                assertTrue(thread.isDaemon());
+                stripeThreads++;
+            }
+        }
+        // 之前的测试留下的线程可能正在空闲超时退出，同时新的线程已经创建，所以最多允许两倍。
+        // 每个转换器各自创建线程的话会有 10 倍。
+        assertTrue("stripe threads: " + stripeThreads, stripeThreads <= 2 * Nv21Converter.getSharedThreadCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallOutput() {
+        mConverter = new Nv21Converter(1);
+        mConverter.convertToArgb(new byte[640 * 480 * 3 / 2], 640, 480, new int[640 * 480 - 1], 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddSize() {
+        mConverter = new Nv21Converter(1);
+        mConverter.convertToArgb(new byte[641 * 480 * 3 / 2], 641, 480, new int[641 * 480], 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void convertAfterReleaseThrows() {
+        mConverter = new Nv21Converter(2);
+        mConverter.release();
+        mConverter.convertToArgb(new byte[640 * 480 * 3 / 2], 640, 480, new int[640 * 480], 1);
+    }
+
+    @Test
+    public void releaseWakesInFlightConversion() throws Exception {
+        final int width = 1920;
+        final int height = 1080;
+        final byte[] nv21 = randomNv21(width, height, 3);
+        final int[] argb = new int[width * height];
+        mConverter = new Nv21Converter(4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        mConverter.convertToArgb(nv21, width, height, argb, 1);
+                        started.countDown();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+        caller.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        mConverter.release();
+        // 不管释放发生在转换中还是两次转换之间，调用线程都不能一直等下去。
+        assertTrue("Conversion is still waiting after release", finished.await(5, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IllegalStateException);
+    }
+
+}
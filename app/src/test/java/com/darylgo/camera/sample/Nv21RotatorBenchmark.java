@@ -0,0 +1,58 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较 {@link Nv21Rotator} 的分块实现和逐行的朴素实现，输出每帧耗时。
+ * <p>
+ * 在 JVM 上运行，结果只用来比较两种实现，不代表设备上的性能。
+ */
+public class Nv21RotatorBenchmark {
+
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void tiledVersusNaive() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] src = Nv21RotatorTest.randomNv21(width, height);
+            byte[] dst = new byte[src.length];
+            for (int rotation : new int[]{90, 270}) {
+                for (boolean mirror : new boolean[]{false, true}) {
+                    double naive = measure(false, src, width, height, dst, rotation, mirror);
+                    double tiled = measure(true, src, width, height, dst, rotation, mirror);
+                    System.out.println(String.format(Locale.US, "Nv21Rotator %dx%d rotation=%d mirror=%b: naive %.2f ms, tiled %.2f ms (%.1fx)",
+                            width, height, rotation, mirror, naive, tiled, naive / tiled));
+                }
+            }
+        }
+    }
+
+    private static double measure(boolean tiled, byte[] src, int width, int height, byte[] dst, int rotation, boolean mirror) {
+        run(tiled, src, width, height, dst, rotation, mirror, WARMUP_NANOS);
+        long startNanos = System.nanoTime();
+        int frames = run(tiled, src, width, height, dst, rotation, mirror, MEASURE_NANOS);
+        return (System.nanoTime() - startNanos) / 1e6 / frames;
+    }
+
+    private static int run(boolean tiled, byte[] src, int width, int height, byte[] dst, int rotation, boolean mirror, long durationNanos) {
+        long endNanos = System.nanoTime() + durationNanos;
+        int frames = 0;
+        do {
+            if (tiled) {
+                Nv21Rotator.rotate(src, width, height, dst, rotation, mirror);
+            } else {
+                Nv21RotatorTest.rotateNaive(src, width, height, dst, rotation, mirror);
+            }
+            frames++;
+        } while (System.nanoTime() < endNanos);
+        return frames;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.darylgo.camera.sample;
+
+import android.hardware.Camera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Nv21RotatorTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    /**
+     * 逐行逐像素计算目标坐标的参考实现，先水平镜像再顺时针旋转。
+     */
+    static void rotateNaive(byte[] src, int width, int height, byte[] dst, int rotation, boolean mirror) {
+        int frameSize = width * height;
+        rotatePlaneNaive(src, 0, width, height, dst, 0, rotation, mirror, 1);
+        rotatePlaneNaive(src, frameSize, width / 2, height / 2, dst, frameSize, rotation, mirror, 2);
+    }
+
+    private static void rotatePlaneNaive(byte[] src, int srcOffset, int width, int height,
+                                         byte[] dst, int dstOffset, int rotation, boolean mirror, int pixelSize) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int mx = mirror ? width - 1 - x : x;
+                int dx;
+                int dy;
+                int dstWidth;
+                switch (rotation) {
+                    case 90:
+                        dx = height - 1 - y;
+                        dy = mx;
+                        dstWidth = height;
+                        break;
+                    case 180:
+                        dx = width - 1 - mx;
+                        dy = height - 1 - y;
+                        dstWidth = width;
+                        break;
+                    case 270:
+                        dx = y;
+                        dy = width - 1 - mx;
+                        dstWidth = height;
+                        break;
+                    default:
+                        dx = mx;
+                        dy = y;
+                        dstWidth = width;
+                        break;
+                }
+                int srcIndex = srcOffset + (y * width + x) * pixelSize;
+                int dstIndex = dstOffset + (dy * dstWidth + dx) * pixelSize;
+                for (int i = 0; i < pixelSize; i++) {
+                    dst[dstIndex + i] = src[srcIndex + i];
+                }
+            }
+        }
+    }
+
+    static byte[] randomNv21(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(width * 31 + height).nextBytes(nv21);
+        return nv21;
+    }
+
+    private static Camera.CameraInfo cameraInfo(int facing, int orientation) {
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        cameraInfo.facing = facing;
+        cameraInfo.orientation = orientation;
+        return cameraInfo;
+    }
+
+    @Test
+    public void tiledMatchesNaive() {
+        // 包含不是块大小整数倍的尺寸。
+        int[][] sizes = {{2, 2}, {70, 38}, {640, 480}, {1280, 720}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] src = randomNv21(width, height);
+            for (int rotation : ROTATIONS) {
+                for (boolean mirror : new boolean[]{false, true}) {
+                    byte[] expected = new byte[src.length];
+                    byte[] actual = new byte[src.length];
+                    rotateNaive(src, width, height, expected, rotation, mirror);
+                    Nv21Rotator.rotate(src, width, height, actual, rotation, mirror);
+                    assertArrayEquals(width + "x" + height + " rotation=" + rotation + " mirror=" + mirror, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotate90MovesTopLeftToTopRight() {
+        // 4x2 的 Y 平面：
+        // 0 1 2 3
+        // 4 5 6 7
+        byte[] src = {0, 1, 2, 3, 4, 5, 6, 7, 10, 11, 12, 13};
+        byte[] dst = new byte[src.length];
+        Nv21Rotator.rotate(src, 4, 2, dst, 90, false);
+        // 顺时针 90 度之后是 2x4：
+        // 4 0
+        // 5 1
+        // 6 2
+        // 7 3
+        assertArrayEquals(new byte[]{4, 0, 5, 1, 6, 2, 7, 3, 10, 11, 12, 13}, dst);
+
+        Nv21Rotator.rotate(src, 4, 2, dst, 90, true);
+        // 先镜像成 3 2 1 0 / 7 6 5 4，再旋转。
+        assertArrayEquals(new byte[]{7, 3, 6, 2, 5, 1, 4, 0, 12, 13, 10, 11}, dst);
+    }
+
+    @Test
+    public void frameRotationMatchesDisplayOrientation() {
+        for (int orientation : ROTATIONS) {
+            for (int display : ROTATIONS) {
+                int back = Nv21Rotator.getFrameRotation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_BACK, orientation), display);
+                assertEquals((orientation - display + 360) % 360, back);
+                // Camera.setDisplayOrientation 对前置摄像头也是先镜像再旋转。
+                int front = Nv21Rotator.getFrameRotation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_FRONT, orientation), display);
+                assertEquals((360 - (orientation + display) % 360) % 360, front);
+            }
+        }
+        // 常见的前置摄像头：传感器 270 度，竖屏时需要顺时针旋转 90 度。
+        assertEquals(90, Nv21Rotator.getFrameRotation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_FRONT, 270), 0));
+        assertEquals(180, Nv21Rotator.getFrameRotation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_FRONT, 270), 270));
+    }
+
+    @Test
+    public void setOrientationUsesFacingForMirror() {
+        Nv21Rotator rotator = new Nv21Rotator();
+        rotator.setOrientation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_FRONT, 270), 0);
+        assertTrue(rotator.isMirror());
+        assertEquals(90, rotator.getRotation());
+        assertEquals(480, rotator.getOutputWidth(640, 480));
+        assertEquals(640, rotator.getOutputHeight(640, 480));
+
+        rotator.setOrientation(cameraInfo(Camera.CameraInfo.CAMERA_FACING_BACK, 90), 0);
+        assertFalse(rotator.isMirror());
+        assertEquals(90, rotator.getRotation());
+    }
+
+    @Test
+    public void rotateWithPoolUsesPooledBuffer() {
+        Nv21Rotator rotator = new Nv21Rotator();
+        PreviewBufferPool pool = new PreviewBufferPool();
+        byte[] src = randomNv21(64, 32);
+        byte[] dst = rotator.rotate(src, 64, 32, pool);
+        pool.release(dst);
+        assertTrue(dst == rotator.rotate(src, 64, 32, pool));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInPlaceRotation() {
+        byte[] src = randomNv21(4, 2);
+        Nv21Rotator.rotate(src, 4, 2, src, 90, false);
+    }
+
+}
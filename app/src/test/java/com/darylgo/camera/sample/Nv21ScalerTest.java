@@ -0,0 +1,47 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Nv21ScalerTest {
+
+    @Test
+    public void scaleKeepsWidthWithinLimit() {
+        assertEquals(1, Nv21Scaler.getScale(640, 640));
+        assertEquals(2, Nv21Scaler.getScale(1280, 640));
+        assertEquals(4, Nv21Scaler.getScale(1920, 640));
+        assertEquals(480, Nv21Scaler.getScaledWidth(1920, 4));
+        assertEquals(270 & ~1, Nv21Scaler.getScaledHeight(1080, 4));
+    }
+
+    @Test
+    public void downscaleAveragesLumaAndChroma() {
+        // 4x4 的帧缩小一半，每个 2x2 单元取平均值。
+        byte[] src = {
+                0, 2, 10, 20,
+                4, 6, 30, 40,
+                1, 1, 100, 100,
+                1, 1, 100, 104,
+                // VU 平面是 2 行，每行 2 个 VU 对。
+                10, 20, 30, 40,
+                50, 60, 70, 80,
+        };
+        byte[] dst = new byte[2 * 2 * 3 / 2];
+        Nv21Scaler.downscale(src, 4, 4, 2, dst, 2, 2);
+        assertArrayEquals(new byte[]{3, 25, 1, 101, 40, 50}, dst);
+    }
+
+    @Test
+    public void scaleOneCopiesFrame() {
+        byte[] src = new byte[8 * 4 * 3 / 2];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) i;
+        }
+        byte[] dst = new byte[src.length];
+        Nv21Scaler.downscale(src, 8, 4, 1, dst, 8, 4);
+        assertArrayEquals(src, dst);
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.darylgo.camera.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_ISO;
+import static com.darylgo.camera.sample.JpegSplicerTest.TAG_MODEL;
+import static com.darylgo.camera.sample.JpegSplicerTest.THUMBNAIL;
+import static com.darylgo.camera.sample.JpegSplicerTest.cameraTiff;
+import static com.darylgo.camera.sample.JpegSplicerTest.encodeJpeg;
+import static com.darylgo.camera.sample.JpegSplicerTest.findEntry;
+import static com.darylgo.camera.sample.JpegSplicerTest.readAscii;
+import static com.darylgo.camera.sample.JpegSplicerTest.withExif;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoWriterTest {
+
+    private File mDirectory;
+    private PhotoWriter mPhotoWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("photo_writer_test").toFile();
+        mPhotoWriter = new PhotoWriter(4, 2);
+        mPhotoWriter.setThumbnailDirectory(new File(mDirectory, "thumbnails"));
+    }
+
+    @After
+    public void tearDown() {
+        mPhotoWriter.release();
+        deleteRecursively(mDirectory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private byte[] save(byte[] data, ExifWriter exifWriter) throws Exception {
+        File file = new File(mDirectory, "photo" + mPhotoWriter.getWrittenCount() + ".jpg");
+        long writtenCount = mPhotoWriter.getWrittenCount();
+        assertTrue(mPhotoWriter.submit(data, file, exifWriter));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mPhotoWriter.getWrittenCount() == writtenCount && mPhotoWriter.getFailedCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, mPhotoWriter.getFailedCount());
+        assertEquals(writtenCount + 1, mPhotoWriter.getWrittenCount());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Test
+    public void cameraExifIsKeptAndCompleted() throws Exception {
+        byte[] jpeg = withExif(encodeJpeg(32, 32), cameraTiff());
+        byte[] saved = save(jpeg, new ExifWriter().setModel("Pixel"));
+        ByteBuffer tiff = JpegSplicer.parse(saved).getExifTiff();
+        assertNotNull(tiff);
+        int ifd0 = tiff.getInt(4);
+        assertEquals("Pixel", readAscii(tiff, findEntry(tiff, ifd0, TAG_MODEL)));
+        int exifIfd = tiff.getInt(findEntry(tiff, ifd0, 0x8769) + 8);
+        assertEquals(400, tiff.getShort(findEntry(tiff, exifIfd, TAG_ISO) + 8));
+
+        File thumbnail = new File(new File(mDirectory, "thumbnails"), "photo0.jpg");
+        assertArrayEquals(THUMBNAIL, Files.readAllBytes(thumbnail.toPath()));
+    }
+
+    @Test
+    public void completeCameraExifIsSavedAsIs() throws Exception {
+        byte[] jpeg = withExif(encodeJpeg(32, 32), cameraTiff());
+        assertArrayEquals(jpeg, save(jpeg, new ExifWriter().setMake("Other")));
+    }
+
+    @Test
+    public void brokenExifIsSavedAsIs() throws Exception {
+        byte[] tiff = cameraTiff();
+        // IFD0 的偏移超出数据范围。
+        tiff[4] = (byte) 0xF0;
+        byte[] jpeg = withExif(encodeJpeg(32, 32), tiff);
+        assertArrayEquals(jpeg, save(jpeg, new ExifWriter().setModel("Pixel")));
+    }
+
+    @Test
+    public void notJpegIsSavedAsIs() throws Exception {
+        byte[] data = {1, 2, 3, 4, 5};
+        assertArrayEquals(data, save(data, new ExifWriter()));
+    }
+
+    @Test
+    public void jpegWithoutExifGetsNewExif() throws Exception {
+        byte[] saved = save(encodeJpeg(32, 32), new ExifWriter().setRotation(90));
+        assertEquals(6, JpegSplicer.parse(saved).getExifOrientation());
+    }
+
+}
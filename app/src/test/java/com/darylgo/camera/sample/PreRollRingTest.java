@@ -0,0 +1,185 @@
+package com.darylgo.camera.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollRingTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("pre_roll_test", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[] frame(long sequence) {
+        byte[] data = new byte[FRAME_SIZE];
+        Arrays.fill(data, (byte) sequence);
+        return data;
+    }
+
+    /**
+     * 读取导出文件，返回每一帧的时间戳，同时检查帧数据和时间戳一致。
+     */
+    private static long[] readExport(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] header = new byte[12];
+            input.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            assertEquals(PreRollRing.EXPORT_MAGIC, new String(magic, "US-ASCII"));
+            assertEquals(PreRollRing.EXPORT_VERSION, buffer.getInt());
+            int frameCount = buffer.getInt();
+            long[] timestamps = new long[frameCount];
+            byte[] slotHeader = new byte[PreRollRing.SLOT_HEADER_SIZE];
+            for (int i = 0; i < frameCount; i++) {
+                input.readFully(slotHeader);
+                ByteBuffer slot = ByteBuffer.wrap(slotHeader).order(ByteOrder.LITTLE_ENDIAN);
+                long timestamp = slot.getLong(0);
+                int length = slot.getInt(8);
+                assertEquals(WIDTH, slot.getInt(12));
+                assertEquals(HEIGHT, slot.getInt(16));
+                assertEquals(FORMAT_NV21, slot.getInt(20));
+                byte[] data = new byte[length];
+                input.readFully(data);
+                for (byte value : data) {
+                    assertEquals((byte) timestamp, value);
+                }
+                timestamps[i] = timestamp;
+            }
+            assertEquals(-1, input.read());
+            return timestamps;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void exportsNewestWindowInOrder() throws IOException {
+        File ringFile = new File(mDirectory, "ring");
+        PreRollRing ring = PreRollRing.open(ringFile, 5, 2, FRAME_SIZE);
+        assertEquals(7, ring.getSlotCount());
+        for (long sequence = 0; sequence < 20; sequence++) {
+            assertTrue(ring.write(frame(sequence), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, sequence));
+        }
+        File export = new File(mDirectory, "export");
+        assertEquals(5, ring.freezeAndExport(export));
+        long[] timestamps = readExport(export);
+        assertEquals(Arrays.toString(new long[]{15, 16, 17, 18, 19}), Arrays.toString(timestamps));
+        ring.release();
+    }
+
+    @Test
+    public void exportsPartialWindow() throws IOException {
+        PreRollRing ring = PreRollRing.open(new File(mDirectory, "ring"), 5, 2, FRAME_SIZE);
+        ring.write(frame(1), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, 1);
+        ring.write(frame(2), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, 2);
+        File export = new File(mDirectory, "export");
+        assertEquals(2, ring.freezeAndExport(export));
+        assertEquals(Arrays.toString(new long[]{1, 2}), Arrays.toString(readExport(export)));
+        ring.release();
+    }
+
+    @Test
+    public void writingDuringExportKeepsWindowIntact() throws Exception {
+        final PreRollRing ring = PreRollRing.open(new File(mDirectory, "ring"), 30, 10, FRAME_SIZE);
+        for (long sequence = 0; sequence < 40; sequence++) {
+            ring.write(frame(sequence), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, sequence);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[] written = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long sequence = 40;
+                while (running.get()) {
+                    if (ring.write(frame(sequence), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, sequence)) {
+                        written[0]++;
+                    }
+                    sequence++;
+                }
+            }
+        });
+        writer.start();
+        File export = new File(mDirectory, "export");
+        int frameCount;
+        try {
+            frameCount = ring.freezeAndExport(export);
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        long[] timestamps = readExport(export);
+        assertEquals(30, frameCount);
+        // 导出的是冻结时的窗口，序号连续，数据没有被并发写入覆盖。
+        for (int i = 1; i < timestamps.length; i++) {
+            assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+        }
+        assertTrue(timestamps[0] >= 10);
+        // 导出结束之后可以正常写入。
+        assertTrue(ring.write(frame(0), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, 0));
+        assertTrue(written[0] > 0 || ring.getSkippedFrames() > 0);
+        ring.release();
+    }
+
+    @Test
+    public void releaseDeletesFileAndRejectsWrites() throws IOException {
+        File ringFile = new File(mDirectory, "ring");
+        PreRollRing ring = PreRollRing.open(ringFile, 3, 1, FRAME_SIZE);
+        assertTrue(ringFile.exists());
+        ring.release();
+        assertFalse(ringFile.exists());
+        assertFalse(ring.write(frame(1), FRAME_SIZE, WIDTH, HEIGHT, FORMAT_NV21, 1));
+        ring.release();
+    }
+
+    @Test
+    public void oversizedFrameIsRejected() throws IOException {
+        PreRollRing ring = PreRollRing.open(new File(mDirectory, "ring"), 3, 1, FRAME_SIZE);
+        assertFalse(ring.write(new byte[FRAME_SIZE + 1], FRAME_SIZE + 1, WIDTH, HEIGHT, FORMAT_NV21, 1));
+        assertEquals(1, ring.getOversizedFrames());
+        ring.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void exportAfterReleaseThrows() throws IOException {
+        PreRollRing ring = PreRollRing.open(new File(mDirectory, "ring"), 3, 1, FRAME_SIZE);
+        ring.release();
+        ring.freezeAndExport(new File(mDirectory, "export"));
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.darylgo.camera.sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PreviewBufferPoolTest {
+
+    private static final int SIZE_1080P = 1920 * 1080 * 3 / 2;
+    private static final int SIZE_720P = 1280 * 720 * 3 / 2;
+
+    @Test
+    public void acquireReusesReleasedBufferOfSameSize() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        byte[] buffer = pool.acquire(SIZE_720P);
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(SIZE_720P));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(SIZE_720P, pool.getAllocatedBytes());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void acquireNeverReturnsBufferOfOtherSize() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        byte[] buffer = pool.acquire(SIZE_1080P);
+        pool.release(buffer);
+
+        byte[] other = pool.acquire(SIZE_720P);
+        assertNotSame(buffer, other);
+        assertEquals(SIZE_720P, other.length);
+        assertEquals(SIZE_1080P, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void releaseEvictsOtherSizesBeforeSameSize() {
+        // 只能容纳两个 1080p Buffer。
+        PreviewBufferPool pool = new PreviewBufferPool(2L * SIZE_1080P);
+        byte[] large = new byte[SIZE_1080P];
+        byte[] small = new byte[SIZE_720P];
+        pool.release(large);
+        pool.release(small);
+        pool.release(new byte[SIZE_720P]);
+
+        // 再放入一个 720p 时超出上限，应该先丢弃 1080p。
+        pool.release(new byte[SIZE_720P]);
+        assertEquals(3L * SIZE_720P, pool.getRetainedBytes());
+        assertEquals(0, pool.getHitCount());
+        pool.acquire(SIZE_1080P);
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void releaseIgnoresBufferLargerThanLimit() {
+        PreviewBufferPool pool = new PreviewBufferPool(SIZE_720P);
+        pool.release(new byte[SIZE_1080P]);
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void trimToSizeDropsLargestFirst() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        pool.release(new byte[SIZE_1080P]);
+        pool.release(new byte[SIZE_720P]);
+
+        pool.trimToSize(SIZE_720P);
+        assertEquals(SIZE_720P, pool.getRetainedBytes());
+        pool.acquire(SIZE_720P);
+        assertEquals(1, pool.getHitCount());
+
+        pool.release(new byte[SIZE_720P]);
+        pool.clear();
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void defaultLimitHoldsThreeBuffersPerCamera() {
+        // 前后置各三个 1080p Buffer 都应该留在缓存中。
+        PreviewBufferPool pool = new PreviewBufferPool();
+        for (int i = 0; i < 6; i++) {
+            pool.release(new byte[SIZE_1080P]);
+        }
+        assertEquals(6L * SIZE_1080P, pool.getRetainedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void acquireRejectsIllegalSize() {
+        new PreviewBufferPool().acquire(0);
+    }
+
+}
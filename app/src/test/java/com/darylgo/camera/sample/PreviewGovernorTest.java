@@ -0,0 +1,173 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+import android.util.Size;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PreviewGovernorTest {
+
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+    private static final long EVALUATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 负载由测试直接设置的 FramePipeline。
+     */
+    private static class FakePipeline extends FramePipeline {
+        long mSubmittedCount;
+        long mProcessNanos;
+
+        FakePipeline() {
+            super(2, 1, Backpressure.DROP_OLDEST, new BufferRecycler() {
+                @Override
+                public void recycleBuffer(@NonNull byte[] buffer) {
+                }
+            });
+        }
+
+        @Override
+        public long getSubmittedCount() {
+            return mSubmittedCount;
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return 0;
+        }
+
+        @Override
+        public long getAverageProcessNanos() {
+            return mProcessNanos;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+    }
+
+    private FakePipeline mPipeline;
+    private PreviewGovernor mGovernor;
+    private long mNowNanos;
+
+    @Before
+    public void setUp() {
+        mPipeline = new FakePipeline();
+        mGovernor = new PreviewGovernor();
+        // 只有一个尺寸，档位只按帧率区分：30、24、15。
+        Size size = new Size(1280, 720);
+        mGovernor.reset(size, Collections.singletonList(size), new int[]{15000, 15000, 24000, 24000, 30000, 30000});
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.release();
+    }
+
+    private PreviewGovernor.Level evaluate(long processNanos) {
+        mPipeline.mSubmittedCount += 30;
+        mPipeline.mProcessNanos = processNanos;
+        mNowNanos += EVALUATION_INTERVAL_NANOS;
+        return mGovernor.evaluate(mNowNanos, mPipeline, FRAME_INTERVAL_NANOS);
+    }
+
+    /**
+     * 持续按同样的负载判断，直到档位变化，返回经过的判断次数。
+     */
+    private int evaluateUntilChange(long processNanos, int maxEvaluations) {
+        for (int i = 1; i <= maxEvaluations; i++) {
+            if (evaluate(processNanos) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long overloaded() {
+        return FRAME_INTERVAL_NANOS;
+    }
+
+    private static long idle() {
+        return FRAME_INTERVAL_NANOS / 4;
+    }
+
+    @Test
+    public void stepsDownAfterSustainedOverload() {
+        assertEquals(30000, mGovernor.getCurrentLevel().getMaxFps());
+        // 第一次判断只记录基线，之后连续三次过载降一档。
+        assertEquals(4, evaluateUntilChange(overloaded(), 10));
+        assertEquals(24000, mGovernor.getCurrentLevel().getMaxFps());
+        assertEquals(1, mGovernor.getChangeLog().size());
+    }
+
+    @Test
+    public void stepsUpAfterSustainedHeadroom() {
+        evaluateUntilChange(overloaded(), 10);
+        // 基线、两次冷却，再连续十次有余量升一档。
+        assertEquals(13, evaluateUntilChange(idle(), 100));
+        assertEquals(30000, mGovernor.getCurrentLevel().getMaxFps());
+    }
+
+    @Test
+    public void failedStepUpDoublesHeadroomRequirement() {
+        evaluateUntilChange(overloaded(), 10);
+        int steps = evaluateUntilChange(idle(), 100);
+        // 升档之后马上又过载（基线、两次冷却、三次过载），下次升到最高档需要两倍的余量次数。
+        assertEquals(6, evaluateUntilChange(overloaded(), 10));
+        assertEquals(20, mGovernor.getHeadroomEvaluations(0));
+        assertEquals(steps + 10, evaluateUntilChange(idle(), 100));
+
+        // 再失败一次继续加倍。
+        evaluateUntilChange(overloaded(), 10);
+        assertEquals(40, mGovernor.getHeadroomEvaluations(0));
+    }
+
+    @Test
+    public void headroomRequirementIsCapped() {
+        evaluateUntilChange(overloaded(), 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(24000, mGovernor.getCurrentLevel().getMaxFps());
+            evaluateUntilChange(idle(), 1000);
+            evaluateUntilChange(overloaded(), 10);
+        }
+        assertEquals(160, mGovernor.getHeadroomEvaluations(0));
+    }
+
+    @Test
+    public void stableStepUpRestoresHeadroomRequirement() {
+        evaluateUntilChange(overloaded(), 10);
+        evaluateUntilChange(idle(), 100);
+        evaluateUntilChange(overloaded(), 10);
+        assertEquals(20, mGovernor.getHeadroomEvaluations(0));
+        evaluateUntilChange(idle(), 100);
+        assertEquals(30000, mGovernor.getCurrentLevel().getMaxFps());
+        // 除了基线之外在最高档保持二十次没有过载，认为是稳定的。
+        for (int i = 0; i < 21; i++) {
+            assertNull(evaluate(idle()));
+        }
+        assertEquals(10, mGovernor.getHeadroomEvaluations(0));
+        // 稳定之后再过载不会加倍。
+        evaluateUntilChange(overloaded(), 10);
+        assertEquals(10, mGovernor.getHeadroomEvaluations(0));
+    }
+
+    @Test
+    public void resetRestoresHeadroomRequirement() {
+        evaluateUntilChange(overloaded(), 10);
+        evaluateUntilChange(idle(), 100);
+        evaluateUntilChange(overloaded(), 10);
+        assertEquals(20, mGovernor.getHeadroomEvaluations(0));
+        Size size = new Size(1280, 720);
+        mGovernor.reset(size, Collections.singletonList(size), new int[]{15000, 15000, 24000, 24000, 30000, 30000});
+        assertEquals(10, mGovernor.getHeadroomEvaluations(0));
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PreviewSnapshotTest {
+
+    private static final int FORMAT_NV21 = 17;
+
+    private final PreviewSnapshot mSnapshot = new PreviewSnapshot();
+
+    @After
+    public void tearDown() {
+        mSnapshot.release();
+    }
+
+    private static class RecordingCallback implements PreviewSnapshot.Callback {
+        int calls;
+        int width;
+        int height;
+        int firstPixel;
+
+        @Override
+        public void onPreviewSnapshot(@NonNull int[] argb, int width, int height, long timestampNanos) {
+            calls++;
+            this.width = width;
+            this.height = height;
+            firstPixel = argb[0];
+        }
+    }
+
+    private static PreviewFrame grayFrame(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        java.util.Arrays.fill(nv21, 0, width * height, (byte) 200);
+        java.util.Arrays.fill(nv21, width * height, nv21.length, (byte) 128);
+        PreviewFrame frame = new PreviewFrame();
+        frame.set(nv21, width, height, FORMAT_NV21, 1);
+        return frame;
+    }
+
+    @Test
+    public void convertsOnlyRequestedFrame() {
+        PreviewFrame frame = grayFrame(640, 480);
+        RecordingCallback callback = new RecordingCallback();
+        mSnapshot.processFrame(frame);
+        assertEquals(0, callback.calls);
+
+        mSnapshot.request(4, callback);
+        mSnapshot.processFrame(frame);
+        mSnapshot.processFrame(frame);
+        assertEquals(1, callback.calls);
+        assertEquals(160, callback.width);
+        assertEquals(120, callback.height);
+        assertEquals(0xffc8c8c8, callback.firstPixel);
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewStreamServerTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private static final FramePipeline.BufferRecycler NO_OP_RECYCLER = new FramePipeline.BufferRecycler() {
+        @Override
+        public void recycleBuffer(@NonNull byte[] buffer) {
+        }
+    };
+
+    /**
+     * 保存收到的帧，交给测试直接编码。
+     */
+    private static class HoldingSubscriber implements FrameHub.Subscriber {
+        final List<FrameHandle> mFrames = new ArrayList<>();
+
+        @Override
+        public void onFrame(@NonNull FrameHandle frame) {
+            mFrames.add(frame);
+        }
+    }
+
+    private PreviewStreamServer mServer;
+    private Socket mSocket;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    /**
+     * 发送请求并读取响应头，返回状态行。
+     */
+    private String request(String path) throws IOException {
+        mSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        mSocket.setSoTimeout(TIMEOUT_MILLIS);
+        OutputStream output = mSocket.getOutputStream();
+        output.write(("GET " + path + " HTTP/1.0\r\n\r\n").getBytes("US-ASCII"));
+        output.flush();
+        InputStream input = mSocket.getInputStream();
+        StringBuilder header = new StringBuilder();
+        while (header.indexOf("\r\n\r\n") < 0) {
+            int b = input.read();
+            if (b < 0) {
+                break;
+            }
+            header.append((char) b);
+        }
+        return header.substring(0, header.indexOf("\r\n"));
+    }
+
+    @Test
+    public void bindsLoopbackByDefault() throws IOException {
+        mServer = PreviewStreamServer.start(0);
+        assertTrue(mServer.getAddress().isLoopbackAddress());
+        assertTrue(mServer.getPort() > 0);
+    }
+
+    @Test
+    public void allowRemoteBindsAllInterfaces() throws IOException {
+        mServer = PreviewStreamServer.start(0, true);
+        assertTrue(mServer.getAddress().isAnyLocalAddress());
+    }
+
+    @Test
+    public void unknownPathIsRejected() throws IOException {
+        mServer = PreviewStreamServer.start(0);
+        assertEquals("HTTP/1.0 404 Not Found", request("/unknown"));
+        assertEquals(-1, mSocket.getInputStream().read());
+        assertEquals(0, mServer.getClientCount());
+    }
+
+    @Test
+    public void nv21StreamReusesFrames() throws IOException {
+        mServer = PreviewStreamServer.start(0);
+        assertEquals("HTTP/1.0 200 OK", request(PreviewStreamServer.PATH_NV21));
+        // 响应头在客户端计数之后才发出。
+        assertEquals(1, mServer.getClientCount());
+
+        FrameHub hub = new FrameHub(2, NO_OP_RECYCLER);
+        HoldingSubscriber subscriber = new HoldingSubscriber();
+        hub.subscribe("stream", 0, subscriber);
+        DataInputStream input = new DataInputStream(mSocket.getInputStream());
+        byte[] header = new byte[PreviewStreamServer.NV21_HEADER_SIZE];
+        byte[] received = new byte[FRAME_SIZE];
+        int frameCount = 20;
+        for (int i = 0; i < frameCount; i++) {
+            byte[] data = new byte[FRAME_SIZE];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            hub.publish(data, WIDTH, HEIGHT, FORMAT_NV21, 1000L * i);
+            mServer.encode(subscriber.mFrames.get(i));
+
+            input.readFully(header);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(PreviewStreamServer.NV21_MAGIC, new String(header, 0, 4, "US-ASCII"));
+            assertEquals(WIDTH, headerBuffer.getInt(4));
+            assertEquals(HEIGHT, headerBuffer.getInt(8));
+            assertEquals(1000L * i, headerBuffer.getLong(12));
+            assertEquals(FRAME_SIZE, headerBuffer.getInt(20));
+            input.readFully(received);
+            assertEquals(ByteBuffer.wrap(data), ByteBuffer.wrap(received));
+        }
+        assertEquals(frameCount, mServer.getEncodedFrames());
+        assertEquals(0, hub.getOutstandingCount());
+        // 客户端读完一帧才编码下一帧，最新帧、正在发送的帧和正在编码的帧最多三个。
+        assertTrue("allocated " + mServer.getAllocatedFrames(), mServer.getAllocatedFrames() <= 3);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.darylgo.camera.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimeLapseRecorderTest {
+
+    private File mDirectory;
+    private FileChannel mDataChannel;
+    private FileChannel mIndexChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("time_lapse_test", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+        mDataChannel = new RandomAccessFile(new File(mDirectory, TimeLapseRecorder.DATA_FILE_NAME), "rw").getChannel();
+        mIndexChannel = new RandomAccessFile(new File(mDirectory, TimeLapseRecorder.INDEX_FILE_NAME), "rw").getChannel();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDataChannel.close();
+        mIndexChannel.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(TimeLapseRecorder.INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(TimeLapseRecorder.INDEX_MAGIC.getBytes()).putInt(TimeLapseRecorder.INDEX_VERSION).flip();
+        return header;
+    }
+
+    /**
+     * 按照 TimeLapseRecorder 的格式生成一条索引记录。
+     */
+    private static ByteBuffer record(long timestampNanos, long offset, int length) {
+        ByteBuffer record = ByteBuffer.allocate(TimeLapseRecorder.INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        record.putLong(timestampNanos).putLong(offset).putInt(length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, 20);
+        record.putInt((int) crc.getValue()).flip();
+        return record;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 写入 frameCount 帧完整的数据和索引，第 i 帧长度为 100 + i。
+     *
+     * @return 数据总长度
+     */
+    private long writeFrames(int frameCount) throws IOException {
+        write(mIndexChannel, header());
+        long offset = 0;
+        for (int i = 0; i < frameCount; i++) {
+            int length = 100 + i;
+            write(mDataChannel, ByteBuffer.allocate(length));
+            write(mIndexChannel, record(i * 1000L, offset, length));
+            offset += length;
+        }
+        return offset;
+    }
+
+    private static long indexSize(int frameCount) {
+        return TimeLapseRecorder.INDEX_HEADER_SIZE + (long) frameCount * TimeLapseRecorder.INDEX_RECORD_SIZE;
+    }
+
+    @Test
+    public void recoverInitializesEmptyFiles() throws IOException {
+        assertArrayEquals(new long[]{0, 0}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(TimeLapseRecorder.INDEX_HEADER_SIZE, mIndexChannel.size());
+        assertEquals(TimeLapseRecorder.INDEX_HEADER_SIZE, mIndexChannel.position());
+        ByteBuffer header = ByteBuffer.allocate(TimeLapseRecorder.INDEX_HEADER_SIZE);
+        mIndexChannel.read(header, 0);
+        assertArrayEquals(header().array(), header.array());
+    }
+
+    @Test
+    public void recoverDiscardsDataWithoutHeader() throws IOException {
+        // 头部没写完就被杀掉，数据文件里的内容没有任何索引。
+        write(mIndexChannel, ByteBuffer.wrap(new byte[]{'T', 'L'}));
+        write(mDataChannel, ByteBuffer.allocate(64));
+        assertArrayEquals(new long[]{0, 0}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(TimeLapseRecorder.INDEX_HEADER_SIZE, mIndexChannel.size());
+        assertEquals(0, mDataChannel.size());
+    }
+
+    @Test
+    public void recoverKeepsCompleteFrames() throws IOException {
+        long dataSize = writeFrames(3);
+        assertArrayEquals(new long[]{dataSize, 3}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(indexSize(3), mIndexChannel.size());
+        assertEquals(indexSize(3), mIndexChannel.position());
+        assertEquals(dataSize, mDataChannel.size());
+        assertEquals(dataSize, mDataChannel.position());
+    }
+
+    @Test
+    public void recoverTruncatesPartialRecordAndUnindexedData() throws IOException {
+        long dataSize = writeFrames(2);
+        // 第三帧的数据写完了，索引只写了一半。
+        write(mDataChannel, ByteBuffer.allocate(50));
+        ByteBuffer record = record(2000, dataSize, 50);
+        record.limit(10);
+        write(mIndexChannel, record);
+
+        assertArrayEquals(new long[]{dataSize, 2}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(indexSize(2), mIndexChannel.size());
+        assertEquals(dataSize, mDataChannel.size());
+        assertEquals(dataSize, mDataChannel.position());
+    }
+
+    @Test
+    public void recoverStopsAtCorruptedRecord() throws IOException {
+        writeFrames(3);
+        // 破坏第二条记录的长度，CRC 校验失败之后的记录都丢弃。
+        ByteBuffer corrupted = ByteBuffer.allocate(1);
+        corrupted.put((byte) 0x7f).flip();
+        mIndexChannel.write(corrupted, indexSize(1) + 16);
+
+        assertArrayEquals(new long[]{100, 1}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(indexSize(1), mIndexChannel.size());
+        assertEquals(100, mDataChannel.size());
+    }
+
+    @Test
+    public void recoverDropsRecordBeyondData() throws IOException {
+        long dataSize = writeFrames(2);
+        // 索引比数据先落盘的情况：最后一条记录指向不存在的数据。
+        mDataChannel.truncate(dataSize - 1);
+
+        assertArrayEquals(new long[]{100, 1}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+        assertEquals(indexSize(1), mIndexChannel.size());
+        assertEquals(100, mDataChannel.size());
+    }
+
+    @Test
+    public void recoverAppendsAfterReopen() throws IOException {
+        long dataSize = writeFrames(2);
+        TimeLapseRecorder.recover(mDataChannel, mIndexChannel);
+        // 继续追加一帧之后再恢复，三帧都应该保留。
+        write(mDataChannel, ByteBuffer.allocate(30));
+        write(mIndexChannel, record(2000, dataSize, 30));
+
+        assertArrayEquals(new long[]{dataSize + 30, 3}, TimeLapseRecorder.recover(mDataChannel, mIndexChannel));
+    }
+
+    @Test
+    public void recoverRejectsForeignIndex() throws IOException {
+        write(mIndexChannel, ByteBuffer.wrap("NOTANIDX".getBytes()));
+        write(mDataChannel, ByteBuffer.allocate(64));
+        try {
+            TimeLapseRecorder.recover(mDataChannel, mIndexChannel);
+            fail();
+        } catch (IOException expected) {
+            // 不认识的文件不能被截断。
+        }
+        assertEquals(8, mIndexChannel.size());
+        assertEquals(64, mDataChannel.size());
+    }
+
+}
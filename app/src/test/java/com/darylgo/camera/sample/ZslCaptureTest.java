@@ -0,0 +1,133 @@
+package com.darylgo.camera.sample;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZslCaptureTest {
+
+    private static final int FORMAT_NV21 = 17;
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+
+    /**
+     * 在调用线程上直接编码。
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class RecordingCallback implements ZslCapture.Callback {
+        final List<Long> mFrameTimestamps = new ArrayList<>();
+        final List<Long> mPressToFrames = new ArrayList<>();
+
+        @Override
+        public void onZslCaptured(@NonNull byte[] jpeg, long frameTimestampNanos, long pressToFrameNanos) {
+            mFrameTimestamps.add(frameTimestampNanos);
+            mPressToFrames.add(pressToFrameNanos);
+        }
+    }
+
+    /**
+     * 亮度按列交替变化的帧，contrast 越大越清晰。
+     */
+    private static PreviewFrame frame(int contrast, long timestampMillis) {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 128);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 1; column < WIDTH; column += 2) {
+                nv21[row * WIDTH + column] = (byte) (128 + contrast);
+            }
+        }
+        PreviewFrame frame = new PreviewFrame();
+        frame.set(nv21, WIDTH, HEIGHT, FORMAT_NV21, TimeUnit.MILLISECONDS.toNanos(timestampMillis));
+        return frame;
+    }
+
+    private static ZslCapture newCapture() {
+        ZslCapture capture = new ZslCapture(4, WINDOW_NANOS, DIRECT);
+        capture.setEnabled(true);
+        return capture;
+    }
+
+    @Test
+    public void picksSharpestFrameInsideWindow() {
+        ZslCapture capture = newCapture();
+        capture.processFrame(frame(10, 0));
+        capture.processFrame(frame(80, 50));
+        capture.processFrame(frame(40, 100));
+        // 最清晰的一帧离按下快门 200ms，在时间窗口之外。
+        capture.processFrame(frame(120, 300));
+
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(capture.capture(TimeUnit.MILLISECONDS.toNanos(100), callback));
+
+        assertEquals(Arrays.asList(TimeUnit.MILLISECONDS.toNanos(50)), callback.mFrameTimestamps);
+        assertEquals(Arrays.asList(-TimeUnit.MILLISECONDS.toNanos(50)), callback.mPressToFrames);
+        assertEquals(1, capture.getCaptureCount());
+    }
+
+    @Test
+    public void picksClosestFrameWhenNoneInsideWindow() {
+        ZslCapture capture = newCapture();
+        capture.processFrame(frame(120, 0));
+        capture.processFrame(frame(10, 100));
+
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(capture.capture(TimeUnit.SECONDS.toNanos(1), callback));
+
+        assertEquals(Arrays.asList(TimeUnit.MILLISECONDS.toNanos(100)), callback.mFrameTimestamps);
+        assertEquals(-TimeUnit.MILLISECONDS.toNanos(900), capture.getLastPressToFrameNanos());
+    }
+
+    @Test
+    public void captureHandsOffSelectedSlot() {
+        ZslCapture capture = newCapture();
+        capture.processFrame(frame(80, 0));
+        capture.processFrame(frame(40, 10));
+
+        RecordingCallback callback = new RecordingCallback();
+        long press = TimeUnit.MILLISECONDS.toNanos(10);
+        assertTrue(capture.capture(press, callback));
+        // 选中的帧已经被拿走，第二次只能选剩下的一帧。
+        assertTrue(capture.capture(press, callback));
+        assertFalse(capture.capture(press, callback));
+        assertEquals(Arrays.asList(0L, TimeUnit.MILLISECONDS.toNanos(10)), callback.mFrameTimestamps);
+
+        // 被拿走 Buffer 的槽可以继续写入。
+        for (int i = 0; i < 4; i++) {
+            capture.processFrame(frame(20, 20 + i));
+        }
+        assertTrue(capture.capture(TimeUnit.MILLISECONDS.toNanos(23), callback));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(23), (long) callback.mFrameTimestamps.get(2));
+    }
+
+    @Test
+    public void disabledOrClearedCaptureHasNoFrames() {
+        ZslCapture capture = new ZslCapture(4, WINDOW_NANOS, DIRECT);
+        RecordingCallback callback = new RecordingCallback();
+        capture.processFrame(frame(80, 0));
+        assertFalse(capture.capture(0, callback));
+
+        capture.setEnabled(true);
+        capture.processFrame(frame(80, 0));
+        capture.clear();
+        assertFalse(capture.capture(0, callback));
+        assertEquals(0, callback.mFrameTimestamps.size());
+    }
+
+}